@@ -0,0 +1,148 @@
+package org.gssb.pdffiller.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.gssb.pdffiller.excel.ExcelCell;
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.excel.RowGroup;
+import org.gssb.pdffiller.pdf.PdfFormFiller;
+import org.gssb.pdffiller.template.TemplateMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fills the sample templates of the 2018 test project: one record into the
+ * raw score template, with and without encryption and through the fill plan
+ * of the template, and a group of records into the acceptance letter whose
+ * fields are numbered per record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PdfFillBenchmark {
+
+   private static final String SOURCES = "src/test/resources/2018/sources";
+   private static final String MASTER_KEY = "MASTER";
+   private static final String SECRET = "abc";
+
+   @Param({"true", "false"})
+   public boolean bufferTemplates;
+
+   private PdfFormFiller filler;
+   private File recordTemplate;
+   private File groupTemplate;
+   private Path targetFolder;
+   private File targetPdf;
+
+   private ExcelRow record;
+   private TemplateMetadata recordMetadata;
+   private Map<String, String> recordMap;
+   private Map<String, String> groupMap;
+
+   static ExcelRow createRow(final List<String> keys, final List<String> values) {
+      ExcelRow row = new ExcelRow();
+      for (int i = 0; i < keys.size(); i++) {
+         row.addExcelCell(new ExcelCell(i, keys.get(i), values.get(i)));
+      }
+      return row;
+   }
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      this.filler = new PdfFormFiller(this.bufferTemplates);
+      this.recordTemplate = new File(SOURCES, "AATG Raw Score.pdf");
+      this.groupTemplate = new File(SOURCES, "2018-2019 Acceptance.pdf");
+      this.targetFolder = Files.createTempDirectory("pdffiller-jmh");
+      this.targetPdf = this.targetFolder.resolve("target.pdf").toFile();
+
+      List<String> keys = Arrays.asList("Klasse", "Name", "LehrerIn", "Level",
+                                        "Points_out_of_100", "Listening_and_Viewing",
+                                        "Reading", "Percentile");
+      this.record = createRow(keys, Arrays.asList("6B", "Sasson, Leo", "Mr. Cool",
+                                                  "02", "43", "21", "22", "N/A"));
+      this.recordMap = this.record.createRowMap();
+      this.recordMetadata = this.filler.inspect(this.recordTemplate.toPath(),
+                                                Collections.emptyMap());
+
+      List<String> groupKeys = Arrays.asList("FamilyID", "ParentName", "Name",
+                                             "LehrerIn", "Room");
+      Set<String> groupColumns = new HashSet<>(Arrays.asList("FamilyID", "ParentName"));
+      RowGroup group =
+            new RowGroup("FamilyID",
+                         Arrays.asList(createRow(groupKeys,
+                                                 Arrays.asList("S1234", "Mary & Michael S",
+                                                               "S, Leo", "123", "Mr. Cool1")),
+                                       createRow(groupKeys,
+                                                 Arrays.asList("S1234", "Mary & Michael S",
+                                                               "S, Gwen", "223", "Mr. Cool2")),
+                                       createRow(groupKeys,
+                                                 Arrays.asList("S1234", "Mary & Michael S",
+                                                               "S, Helene", "323", "Mr. Cool3"))));
+      this.groupMap = new HashMap<>(group.createFormMap(groupColumns));
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws IOException {
+      try (Stream<Path> files = Files.walk(this.targetFolder)) {
+         files.sorted(Comparator.reverseOrder())
+              .map(Path::toFile)
+              .forEach(File::delete);
+      }
+   }
+
+   @Benchmark
+   public File fillRecord() throws IOException {
+      this.filler.populateAndCopy(this.recordTemplate, this.targetPdf, this.recordMap,
+                                  null, Collections.emptyMap(), null);
+      return this.targetPdf;
+   }
+
+   @Benchmark
+   public File fillRecordWithPlan() throws IOException {
+      this.filler.populateAndCopy(this.recordTemplate, this.targetPdf, this.record,
+                                  null, this.recordMetadata, null);
+      return this.targetPdf;
+   }
+
+   @Benchmark
+   public File fillRecordEncrypted() throws IOException {
+      this.filler.populateAndCopy(this.recordTemplate, this.targetPdf, this.recordMap,
+                                  MASTER_KEY, Collections.emptyMap(), SECRET);
+      return this.targetPdf;
+   }
+
+   @Benchmark
+   public File fillGroup() throws IOException {
+      this.filler.populateAndCopy(this.groupTemplate, this.targetPdf, this.groupMap,
+                                  null, Collections.emptyMap(), null);
+      return this.targetPdf;
+   }
+
+}
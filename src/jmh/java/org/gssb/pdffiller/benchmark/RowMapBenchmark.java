@@ -0,0 +1,105 @@
+package org.gssb.pdffiller.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.gssb.pdffiller.excel.ExcelCell;
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.excel.RowGroup;
+import org.gssb.pdffiller.template.FillPlan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads the shared value map of a row and builds the form map of a row
+ * group for spreadsheets of different widths, and resolves the fill plan of a
+ * template with a field for every value of the group from the form map and
+ * from a copy of it, which is how group values were collected before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMapBenchmark {
+
+   private static final int GROUP_SIZE = 5;
+   private static final int GROUP_COLUMNS = 3;
+
+   @Param({"10", "50", "200"})
+   public int columns;
+
+   private ExcelRow row;
+   private RowGroup group;
+   private Set<String> groupColumns;
+   private FillPlan groupPlan;
+
+   private ExcelRow createRow(final int rowIndex) {
+      ExcelRow excelRow = new ExcelRow();
+      for (int i = 0; i < this.columns; i++) {
+         // group columns hold the same value in every row
+         String value = i < GROUP_COLUMNS ? "group" + i : "value" + rowIndex + "." + i;
+         excelRow.addExcelCell(new ExcelCell(i, "Column" + i, value));
+      }
+      return excelRow;
+   }
+
+   @Setup
+   public void setUp() {
+      this.row = createRow(0);
+      List<ExcelRow> rows = new ArrayList<>();
+      for (int i = 0; i < GROUP_SIZE; i++) {
+         rows.add(createRow(i));
+      }
+      this.group = new RowGroup("Column0", rows);
+      this.groupColumns = new HashSet<>();
+      for (int i = 0; i < GROUP_COLUMNS; i++) {
+         this.groupColumns.add("Column" + i);
+      }
+      this.groupPlan =
+            FillPlan.compile(new ArrayList<>(this.group.createFormMap(this.groupColumns)
+                                                       .keySet()),
+                             f -> f);
+   }
+
+   @Benchmark
+   public Map<String, String> createRowMap() {
+      return this.row.createRowMap();
+   }
+
+   @Benchmark
+   public Map<String, String> getRowMap() {
+      return this.row.getRowMap();
+   }
+
+   @Benchmark
+   public Map<String, String> createFormMap() {
+      return this.group.createFormMap(this.groupColumns);
+   }
+
+   @Benchmark
+   public String[] resolveGroupPlan() {
+      return this.groupPlan.resolve(this.group.createFormMap(this.groupColumns));
+   }
+
+   @Benchmark
+   public String[] resolveCopiedGroupPlan() {
+      return this.groupPlan.resolve(new HashMap<>(this.group.createFormMap(this.groupColumns)));
+   }
+
+}
@@ -0,0 +1,99 @@
+package org.gssb.pdffiller.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.gssb.pdffiller.excel.ExcelCell;
+import org.gssb.pdffiller.excel.ExcelHeader;
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Builds the rows of a sheet with 60 columns the way the readers do, with
+ * one header shared by all rows, and as maps of cells by column name and
+ * by index per row, the representation rows had before; then reads every
+ * value of the sheet by column name. Run with
+ * <code>-Pjmh.profilers=gc</code> to compare the bytes allocated per sheet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowModelBenchmark {
+
+   private static final int COLUMNS = 60;
+
+   @Param({"1000", "10000"})
+   public int rows;
+
+   private List<String> columnNames;
+   private String[][] values;
+   private List<ExcelRow> sheet;
+
+   @Setup
+   public void setUp() {
+      this.columnNames = new ArrayList<>();
+      for (int i = 0; i < COLUMNS; i++) {
+         this.columnNames.add("Column" + i);
+      }
+      this.values = new String[this.rows][COLUMNS];
+      for (int r = 0; r < this.rows; r++) {
+         for (int i = 0; i < COLUMNS; i++) {
+            this.values[r][i] = "value" + r + "." + i;
+         }
+      }
+      this.sheet = buildSharedHeader();
+   }
+
+   @Benchmark
+   public List<ExcelRow> buildSharedHeader() {
+      ExcelHeader header = ExcelHeader.of(this.columnNames);
+      List<ExcelRow> excelRows = new ArrayList<>(this.rows);
+      for (int r = 0; r < this.rows; r++) {
+         excelRows.add(new ExcelRow(header, this.values[r].clone()));
+      }
+      return excelRows;
+   }
+
+   @Benchmark
+   public void buildCellMaps(final Blackhole blackhole) {
+      for (int r = 0; r < this.rows; r++) {
+         Map<Integer, ExcelCell> definedIndexes = new HashMap<>();
+         Map<String, ExcelCell> row = new HashMap<>();
+         for (int i = 0; i < COLUMNS; i++) {
+            ExcelCell cell = new ExcelCell(i, this.columnNames.get(i),
+                                           this.values[r][i]);
+            row.put(cell.getColumnName(), cell);
+            definedIndexes.put(cell.getColumnIndex(), cell);
+         }
+         blackhole.consume(row);
+         blackhole.consume(definedIndexes);
+      }
+   }
+
+   @Benchmark
+   public void readValues(final Blackhole blackhole) {
+      for (ExcelRow row : this.sheet) {
+         for (String column : this.columnNames) {
+            blackhole.consume(row.getValue(column).getColumnValue());
+         }
+      }
+   }
+
+}
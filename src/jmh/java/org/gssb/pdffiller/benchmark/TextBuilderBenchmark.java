@@ -0,0 +1,69 @@
+package org.gssb.pdffiller.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.gssb.pdffiller.text.TextBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Substitutes a row into the file name, subject and body templates of the
+ * 2018 sample configuration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextBuilderBenchmark {
+
+   private static final String FILE_NAME_TEMPLATE = "{{_BaseName_}} - {{Name}}.pdf";
+   private static final String SUBJECT_TEMPLATE =
+         "GSSB: AATG raw test results for {{Name}}";
+   private static final File BODY_TEMPLATE =
+         new File("src/test/resources/2018/sources/aatg_raw_results.mustache");
+
+   private TextBuilder textBuilder;
+   private Map<String, String> row;
+
+   @Setup
+   public void setUp() {
+      this.textBuilder = new TextBuilder();
+      this.row = new HashMap<>();
+      this.row.put("_BaseName_", "AATG Raw Score");
+      this.row.put("Name", "Sasson, Leo");
+      this.row.put("Klasse", "6B");
+      this.row.put("LehrerIn", "Mr. Cool");
+      this.row.put("Level", "02");
+      this.row.put("Points_out_of_100", "43");
+   }
+
+   @Benchmark
+   public String substituteFileName() throws IOException {
+      return this.textBuilder.substitute(FILE_NAME_TEMPLATE, this.row);
+   }
+
+   @Benchmark
+   public String substituteSubject() throws IOException {
+      return this.textBuilder.substitute(SUBJECT_TEMPLATE, this.row);
+   }
+
+   @Benchmark
+   public String substituteBody() throws IOException {
+      return this.textBuilder.substitute(BODY_TEMPLATE, this.row);
+   }
+
+}
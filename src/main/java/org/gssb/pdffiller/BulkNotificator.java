@@ -6,10 +6,16 @@ import java.io.UnsupportedEncodingException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -22,12 +28,25 @@ import org.apache.logging.log4j.Logger;
 import org.gssb.pdffiller.config.AppProperties;
 import org.gssb.pdffiller.email.BulkEmail;
 import org.gssb.pdffiller.excel.ColumnNotFoundException;
+import org.gssb.pdffiller.excel.ColumnProjection;
+import org.gssb.pdffiller.excel.RowGroup;
 import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.gssb.pdffiller.journal.RunJournal;
+import org.gssb.pdffiller.manifest.Fingerprint;
+import org.gssb.pdffiller.metrics.Metrics;
+import org.gssb.pdffiller.metrics.MetricsReport;
 import org.gssb.pdffiller.pdf.BulkPdf;
+import org.gssb.pdffiller.pdf.MessageWrapper;
+import org.gssb.pdffiller.pdf.PdfFormFiller;
+import org.gssb.pdffiller.pdf.PdfMemoryPolicy;
 import org.gssb.pdffiller.pdf.UnitOfWork;
+import org.gssb.pdffiller.pipeline.DeliveryPipeline;
 import org.gssb.pdffiller.template.Choice;
 import org.gssb.pdffiller.template.TemplateBuilder;
+import org.gssb.pdffiller.template.TemplateMetadataCache;
 import org.gssb.pdffiller.template.Template;
+import org.gssb.pdffiller.validation.PreflightValidator;
+import org.gssb.pdffiller.validation.ValidationReport;
 
 @SuppressWarnings("deprecation")
 public class BulkNotificator {
@@ -39,9 +58,11 @@ public class BulkNotificator {
 	   Path    configFile    = null;
 	   String  root          = "";
 	   boolean simulate      = false;
+	   boolean validate      = false;
 	   String  emailPassword = "";
 	   String  masterKey     = "";
 	   Optional<String> groupId = Optional.empty();
+	   Optional<Integer> threads = Optional.empty();
 	}
 	
    private static final String CHARACTER_SET = "utf-8";
@@ -56,6 +77,18 @@ public class BulkNotificator {
 	
    private static final String EMAIL_BODY_ENCODING_ERROR =
          "An text encoding error occured after the template body was read.";
+   
+   private static final String METRICS_REPORT_WARN =
+         "Unable to write the metrics report to folder '%s'.";
+   
+   private static final String VALIDATION_REPORT_WARN =
+         "Unable to write the validation report '%s'.";
+   
+   private static final String VALIDATION_FAILED =
+         "Validation found %d errors. No documents were created. See '%s'.";
+   
+   private static final String JOURNAL_WARN =
+         "Unable to use the journal '%s'. The run cannot be resumed.";
 	
 	private final static String INCORRECT_SECRET_COLUMN =
 	      "The defined secret column %s is not available in the " +
@@ -67,12 +100,19 @@ public class BulkNotificator {
 	
 	private final Configuration config;
 	private final AppProperties properties;
+	private final PdfFormFiller pdfFormFiller;
+	private final TemplateMetadataCache metadataCache;
 	private final BulkPdf bulkPdf;
 
 	public BulkNotificator(final Configuration config) {
 		super();
       this.config = config;
       this.properties = createPropertiesInstance(config);
+      this.pdfFormFiller =
+            new PdfFormFiller(this.properties.isTemplateBuffered(),
+                              new PdfMemoryPolicy(this.properties, config.root));
+      // templates are probed once and shared by template builder and BulkPdf
+      this.metadataCache = new TemplateMetadataCache(this.pdfFormFiller);
 		this.bulkPdf = createBulkPdfInstance(properties);
 	}
 	
@@ -85,13 +125,19 @@ public class BulkNotificator {
    }
 
    protected BulkPdf createBulkPdfInstance(final AppProperties properties) {
-      return new BulkPdf(properties);
+      return new BulkPdf(properties, this.pdfFormFiller, this.metadataCache,
+                         this.config.threads.orElse(properties.getPdfThreads()));
+   }
+
+   protected PreflightValidator createPreflightValidatorInstance(final AppProperties properties) {
+      return new PreflightValidator(properties, this.pdfFormFiller, this.metadataCache,
+                                    this.config.threads.orElse(properties.getPdfThreads()));
    }
 
    protected TemplateBuilder createTemplateBuilderImpl(
                                          final Configuration config,
                                          final AppProperties properties) {
-      return new TemplateBuilder(properties, config.root);
+      return new TemplateBuilder(properties, config.root, this.metadataCache);
    }
    
     protected AppProperties createPropertiesInstance(final Configuration config) {
@@ -110,9 +156,8 @@ public class BulkNotificator {
 	                                              k -> properties.getMappings(k)));
 	}
 	
-   private void deliverEmails(final List<UnitOfWork> createdUnits, 
-                              final Configuration config,
-                              final AppProperties properties) { 
+   private String readBodyTemplate(final Configuration config,
+                                   final AppProperties properties) {
       File bodyTemplate = new File (new File(config.root,
                                              properties.getSourceFolder()), 
                                     properties.getEmailBodyFile());
@@ -136,17 +181,202 @@ public class BulkNotificator {
          logger.error(msg, e);
          throw new UnrecoverableException(msg, e);
       }
+      return bodyTemplateText;
+   }
+   
+   /**
+    * Restricts reading the spreadsheet to the columns this run uses, unless
+    * projection is disabled.
+    */
+   private void projectColumns(final String secretColumnName,
+                               final List<Template> alwaysInclude,
+                               final List<Choice> choices,
+                               final Map<String, Map<String, String>> formFieldMaps,
+                               final Set<String> emailColumns) {
+      if (!this.properties.isColumnProjection()) {
+         return;
+      }
+      ColumnProjection projection =
+            this.bulkPdf.createColumnProjection(secretColumnName, alwaysInclude,
+                                                choices, formFieldMaps, emailColumns);
+      logger.info("Read spreadsheet columns " + projection + ".");
+      this.bulkPdf.setColumnProjection(projection);
+   }
+   
+   /**
+    * Creates documents and sends emails in one pipeline, so that the first
+    * emails are sent while documents of later groups are still created.
+    */
+   private void deliverEmails(final List<Template> alwaysInclude,
+                              final List<Choice> choices,
+                              final Map<String, Map<String, String>> formFieldMaps,
+                              final String secretColumnName,
+                              final RunJournal journal) {
+      String bodyTemplateText = readBodyTemplate(this.config, this.properties);
       
-      BulkEmail bulkEmail = createBulkEmailInstance(properties);
-      bulkEmail.sendEmails(createdUnits, config.simulate,
-                           properties.getEmailHost(),
-                           properties.getEmailPort(), 
-                           properties.getEmailAddress(),
-                           properties.getEmailReturnAddress(),
-                           config.emailPassword, bodyTemplateText);
+      BulkEmail bulkEmail = createBulkEmailInstance(this.properties);
+      projectColumns(secretColumnName, alwaysInclude, choices, formFieldMaps,
+                     bulkEmail.getReferencedColumns(bodyTemplateText));
+      // the connections to the email server stay open for the whole run
+      try (BulkEmail.Delivery delivery =
+                 bulkEmail.startDelivery(this.config.simulate,
+                                         this.properties.getEmailHost(),
+                                         this.properties.getEmailPort(), 
+                                         this.properties.getEmailAddress(),
+                                         this.properties.getEmailReturnAddress(),
+                                         this.config.emailPassword, bodyTemplateText,
+                                         journal)) {
+         DeliveryPipeline<RowGroup, UnitOfWork, MessageWrapper> pipeline =
+               new DeliveryPipeline<>(this.properties.getPipelineQueueSize(),
+                                      this.config.threads.orElse(this.properties.getPdfThreads()),
+                                      g -> this.bulkPdf.createUnitOfWork(this.config.root, g,
+                                                                         this.config.masterKey,
+                                                                         secretColumnName,
+                                                                         alwaysInclude,
+                                                                         choices,
+                                                                         formFieldMaps,
+                                                                         journal),
+                                      delivery::createMessage,
+                                      delivery::send);
+         
+         try (Stream<RowGroup> groups =
+                    this.bulkPdf.streamGroups(this.config.root,
+                                              this.properties.getExcelSheetName(),
+                                              this.config.groupId)) {
+            // groups sent by an interrupted run need neither documents nor email
+            pipeline.run(groups.filter(g -> !journal.isSent(RunJournal.getKey(g)))
+                               .iterator());
+         } finally {
+            this.bulkPdf.finishRun();
+         }
+         delivery.printSummary();
+      }
+   }
+   
+   /**
+    * Checks all records before any document is created. The report is
+    * written to the generated folder; the run stops if it contains errors.
+    */
+   private void validate(final List<Template> alwaysInclude,
+                         final List<Choice> choices,
+                         final Map<String, Map<String, String>> formFieldMaps,
+                         final String secretColumnName) {
+      PreflightValidator validator = createPreflightValidatorInstance(this.properties);
+      ValidationReport report;
+      try (Stream<RowGroup> groups =
+                 this.bulkPdf.scanGroups(this.config.root,
+                                         this.properties.getExcelSheetName())) {
+         report = validator.validate(groups, this.config.masterKey, secretColumnName,
+                                     alwaysInclude, choices, formFieldMaps,
+                                     !this.config.emailPassword.isEmpty());
+      }
+      
+      Path folder = Paths.get(this.config.root, this.properties.getGeneratedFolder());
+      Path reportFile = folder.resolve(this.properties.getValidationReportName());
+      try {
+         Files.createDirectories(folder);
+         report.write(reportFile);
+      } catch (IOException e) {
+         logger.warn(String.format(VALIDATION_REPORT_WARN, reportFile), e);
+      }
+      report.printSummary(System.out);
+      
+      if (!report.isValid()) {
+         String msg = String.format(VALIDATION_FAILED, report.getErrorCount(),
+                                    reportFile);
+         logger.error(msg);
+         throw new UnrecoverableException(msg);
+      }
+   }
+   
+   /**
+    * @return digest of the inputs besides the spreadsheet that decide which
+    *         documents are created and what they contain: the template
+    *         files, the field mappings, the name templates, the group
+    *         columns, the secret column and the master key
+    */
+   private String getInputDigest(final List<Template> alwaysInclude,
+                                 final List<Choice> choices,
+                                 final Map<String, Map<String, String>> formFieldMaps,
+                                 final String secretColumnName) throws IOException {
+      Fingerprint digest = new Fingerprint();
+      List<Template> templates = new ArrayList<>(alwaysInclude);
+      for (Choice choice : choices) {
+         digest.add(choice.getSelectionColumn());
+         for (String key : new TreeSet<>(choice.getKeys())) {
+            digest.add(key);
+            choice.select(key).ifPresent(templates::add);
+         }
+      }
+      for (Template template : templates) {
+         digest.add(template.getKey())
+               .add(Fingerprint.hashFile(template.getTemplatePath()));
+      }
+      for (Map.Entry<String, Map<String, String>> mapping :
+                 new TreeMap<>(formFieldMaps).entrySet()) {
+         digest.add(mapping.getKey()).add(mapping.getValue());
+      }
+      return digest.add(this.properties.getFileNameTemplate())
+                   .add(this.properties.getFileGroupNameTemplate())
+                   .add(String.join(",", this.properties.getGroupColumns()))
+                   .add(secretColumnName)
+                   .add(this.config.masterKey)
+                   .build();
+   }
+   
+   /**
+    * Opens the journal of this run. The journal of an interrupted run is
+    * continued if neither the spreadsheet nor the other inputs of the
+    * documents have changed since.
+    */
+   private RunJournal openJournal(final List<Template> alwaysInclude,
+                                  final List<Choice> choices,
+                                  final Map<String, Map<String, String>> formFieldMaps,
+                                  final String secretColumnName) {
+      Optional<String> journalName = this.properties.getJournalFileName();
+      if (!journalName.isPresent()) {
+         return RunJournal.disabled();
+      }
+      Path journalFile = Paths.get(this.config.root,
+                                   this.properties.getGeneratedFolder(),
+                                   journalName.get());
+      File excelFile = Paths.get(this.config.root,
+                                 this.properties.getSourceFolder(),
+                                 this.properties.getExcelFileName()).toFile();
+      try {
+         String signature = excelFile.getCanonicalPath() + "|" +
+                            this.properties.getExcelSheetName() + "|" +
+                            excelFile.length() + "|" + excelFile.lastModified() + "|" +
+                            getInputDigest(alwaysInclude, choices, formFieldMaps,
+                                           secretColumnName);
+         return RunJournal.open(journalFile, signature,
+                                this.properties.getJournalSyncInterval());
+      } catch (IOException e) {
+         logger.warn(String.format(JOURNAL_WARN, journalFile), e);
+         return RunJournal.disabled();
+      }
+   }
+   
+   /**
+    * Writes the timings and counts of this run next to the generated files.
+    * A report that cannot be written does not fail the run.
+    */
+   private void writeMetricsReport() {
+      Optional<String> reportName = this.properties.getMetricsReportName();
+      if (!reportName.isPresent()) {
+         return;
+      }
+      Path folder = Paths.get(this.config.root, this.properties.getGeneratedFolder());
+      try {
+         Metrics.recordHeapPeak();
+         new MetricsReport().write(folder, reportName.get());
+      } catch (IOException | RuntimeException e) {
+         logger.warn(String.format(METRICS_REPORT_WARN, folder), e);
+      }
    }
 	
    public void run(final String[] args) {
+      int exitCode = 0;
       try {
          TemplateBuilder choiceBuilder = 
                createTemplateBuilderImpl(this.config, this.properties);
@@ -159,24 +389,33 @@ public class BulkNotificator {
          
          String secretColumnName = this.properties.getExcelSecretColumnName();
          
-         List<UnitOfWork> createdUnits;
-         try {
-            createdUnits = 
+         if (this.config.validate) {
+            validate(alwaysInclude, choices, formFieldMaps, secretColumnName);
+         }
+         
+         try (RunJournal journal = openJournal(alwaysInclude, choices, formFieldMaps,
+                                               secretColumnName)) {
+            if (this.config.emailPassword.isEmpty()) {
+               projectColumns(secretColumnName, alwaysInclude, choices,
+                              formFieldMaps, Collections.emptySet());
                this.bulkPdf
                    .createPdfs(this.config.root, 
                                this.properties.getExcelSheetName(),
                                this.config.masterKey, secretColumnName,
                                alwaysInclude, choices, formFieldMaps,
-                               config.groupId, false);
+                               config.groupId, false, journal);
+            } else {
+               deliverEmails(alwaysInclude, choices, formFieldMaps,
+                             secretColumnName, journal);
+            }
+            // the next run starts from the beginning
+            journal.complete();
          } catch (ColumnNotFoundException e) {
             String msg = String.format(INCORRECT_SECRET_COLUMN,
                                        secretColumnName);
             logger.error(msg, e);
             throw new UnrecoverableException(msg, e);
          }
-         if (!this.config.emailPassword.isEmpty()) {
-            deliverEmails(createdUnits, this.config, this.properties);
-         }
       } catch (UnrecoverableException e) {
          String cause = e.getCause()!=null && e.getCause().getMessage()!=null
                              ?  EOL + e.getCause().getMessage()
@@ -185,15 +424,16 @@ public class BulkNotificator {
          System.err.println();
          System.err.println(msg + e.getMessage() + cause);
          logger.error(msg, e);
-         System.exit(1);
+         exitCode = 1;
       } catch (Throwable e) {
          String msg = "Application stopped after an unexpected error occurred: ";
          System.err.println();
          System.err.println(msg + e.getMessage());
          logger.error(msg, e);
-         System.exit(1);
+         exitCode = 1;
       }
-      System.exit(0);
+      writeMetricsReport();
+      System.exit(exitCode);
 	}
    	
    	//
@@ -241,6 +481,17 @@ public class BulkNotificator {
             config.groupId = Optional.empty();
          }
          
+         if (cmd.hasOption("t")) {
+            try {
+               config.threads = Optional.of(Integer.valueOf(cmd.getOptionValue("t")));
+            } catch (NumberFormatException e) {
+               logger.error("Number of threads must be an integer.");
+               help();
+            }
+         } else {
+            config.threads = Optional.empty();
+         }
+         
          if (cmd.hasOption("p")) {
             config.emailPassword = cmd.getOptionValue("p");
          } else {
@@ -252,6 +503,10 @@ public class BulkNotificator {
             config.simulate = true;
          }
 
+         if (cmd.hasOption("v")) {
+            config.validate = true;
+         }
+
       } catch (ParseException e) {
          logger.error("Failed to parse comand line properties", e);
          help();
@@ -265,7 +520,7 @@ public class BulkNotificator {
 	 * 
 	 * -c *** path to configuration file *** 
 	 * [-m *** master-key ***] [-p *** password ***]
-	 * [-g *** groupID ***] [-s]
+	 * [-g *** groupID ***] [-t *** threads ***] [-s] [-v]
 	 * 
 	 * @param args
 	 */
@@ -276,7 +531,12 @@ public class BulkNotificator {
       options.addOption("g", "groupid", true, "groupID from which processing is started.");
       options.addOption("m", "master-key", true, "Master key for PDF encryption");
       options.addOption("p", "password", true, "User password for email account.");
+      options.addOption("t", "threads", true,
+                        "Number of worker threads used to create PDF documents.");
       options.addOption("s", "suppress", false, "Logs email instead of sending them.");
+      options.addOption("v", "validate", false,
+                        "Checks all records before any document is created and " +
+                        "stops if errors are found.");
       
       Configuration config = parse(args);
       	BulkNotificator bn = new BulkNotificator(config);
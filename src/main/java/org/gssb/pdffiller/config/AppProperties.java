@@ -1,5 +1,9 @@
 package org.gssb.pdffiller.config;
 
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -8,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -23,10 +28,22 @@ public class AppProperties extends AbstractConfiguration {
    private static final String MALFORMED_INTEGER  = 
          "The property value '%s' for property key '%s' must be an integer.";
    
+   private static final String MALFORMED_CHOICE  = 
+         "The property value '%s' for property key '%s' must be one of %s.";
+   
+   private static final String UNSUPPORTED_ENCODING  = 
+         "The property value '%s' for property key '%s' is not a supported character encoding.";
+   
    private static final String FOLDER_GENERATED             = "folder.generated";
    private static final String FOLDER_GENERATED_DEFAULT     = "generated";
    private static final String FOLDER_SOURCE                = "folder.sources";
    private static final String FOLDER_SOURCE_DEFAULT        = "sources";
+   private static final String FOLDER_LAYOUT                = "folder.generated_layout";
+   private static final OutputLayout FOLDER_LAYOUT_DEFAULT  = OutputLayout.FLAT;
+   private static final String FOLDER_FAN_OUT               = "folder.generated_fan_out";
+   private static final int    FOLDER_FAN_OUT_DEFAULT       = 256;
+   private static final String FOLDER_INDEX                 = "folder.generated_index";
+   private static final String FOLDER_INDEX_DEFAULT         = "pdffiller-index.txt";
    
    private final static String XLS_INPUT_FILE_NAME          = "excel.file_name";
    private final static String XLS_INPUT_FILE_NAME_DEFAULT  = "Raw_Input.xlsx";
@@ -35,6 +52,19 @@ public class AppProperties extends AbstractConfiguration {
    private final static String XLS_TARGET_EMAIL_COLUMNS_KEY = "excel.target_email_columns";
    private final static String XLS_SECRET_COLUMNS_KEY       = "excel.secret_column";
    private final static String XLS_SECRET_COLUMNS_DEFAULT   = "Key";
+   private final static String XLS_CACHED_FORMULAS          = "excel.cached_formulas";
+   private final static boolean XLS_CACHED_FORMULAS_DEFAULT = false;
+   private final static String XLS_STREAMING                = "excel.streaming";
+   private final static boolean XLS_STREAMING_DEFAULT       = true;
+   private final static String XLS_FORMAT                   = "excel.format";
+   private final static String XLS_ENCODING                 = "excel.encoding";
+   private final static Charset XLS_ENCODING_DEFAULT        = StandardCharsets.UTF_8;
+   private final static String XLS_SNAPSHOT_FOLDER          = "excel.snapshot_folder";
+   private final static String XLS_PROJECTION               = "excel.projection";
+   private final static boolean XLS_PROJECTION_DEFAULT      = true;
+   private final static String XLS_GROUP_MEMORY_LIMIT       = "excel.group_memory_limit";
+   private final static int    XLS_GROUP_MEMORY_LIMIT_DEFAULT = 256; // MB
+   private final static String XLS_GROUP_SPILL_FOLDER       = "excel.group_spill_folder";
    
    private final static String XLS_SHEET_NAME_DEFAULT       = "Testergebnisse";
    private final static List<String> XLS_TARGET_EMAIL_COLUMNS_DEFAULT = 
@@ -51,6 +81,10 @@ public class AppProperties extends AbstractConfiguration {
    private final static int    EMAIL_WAIT_TIME_DEFAULT      = 5000;  // 5 seconds
    private final static String EMAIL_RETRIES                = "email.retries";
    private final static int    EMAIL_RETRIES_DEFAULT        = 3;
+   private final static String EMAIL_CONNECTIONS            = "email.connections";
+   private final static int    EMAIL_CONNECTIONS_DEFAULT    = 1;
+   private final static String EMAIL_CONNECTION_LIMIT       = "email.server_connection_limit";
+   private final static int    EMAIL_CONNECTION_LIMIT_DEFAULT = 4;
    
    private final static String EMAIL_SUBJECT_MESSAGE        = "email.subject";
    private final static String EMAIL_BODY_MESSAGE_FILE      = "email.body_file";
@@ -69,6 +103,43 @@ public class AppProperties extends AbstractConfiguration {
    private final static String CHOICE_SELECT                = "select";
    
    private final static String MAPPINGS_BASE                = "mappings";
+   
+   private final static String PDF_TEMPLATE_BUFFER          = "pdf.template_buffer";
+   private final static boolean PDF_TEMPLATE_BUFFER_DEFAULT = true;
+   private final static String PDF_THREADS                  = "pdf.threads";
+   private final static int    PDF_THREADS_DEFAULT          = 1;
+   private final static String PIPELINE_QUEUE_SIZE          = "pipeline.queue_size";
+   private final static int    PIPELINE_QUEUE_SIZE_DEFAULT  = 32;
+   
+   private final static String METRICS_REPORT               = "metrics.report";
+   
+   private final static String VALIDATION_REPORT            = "validation.report";
+   private final static String VALIDATION_REPORT_DEFAULT    = "pdffiller-validation.txt";
+   
+   private final static String JOURNAL_FILE                 = "journal.file";
+   private final static String JOURNAL_FILE_DEFAULT         = "pdffiller-journal.log";
+   private final static String JOURNAL_SYNC_INTERVAL        = "journal.sync_interval";
+   private final static int    JOURNAL_SYNC_INTERVAL_DEFAULT = 1000;
+   
+   private final static String PDF_MANIFEST                 = "pdf.manifest";
+   private final static String PDF_MANIFEST_DEFAULT         = "pdffiller-manifest.txt";
+   
+   private final static String PDF_IN_MEMORY                = "pdf.in_memory";
+   private final static boolean PDF_IN_MEMORY_DEFAULT       = false;
+   private final static String PDF_WRITE_BEHIND             = "pdf.write_behind";
+   private final static boolean PDF_WRITE_BEHIND_DEFAULT    = false;
+   
+   private final static String PDF_ARCHIVE                  = "pdf.archive";
+   private final static String PDF_ARCHIVE_SIZE_LIMIT       = "pdf.archive_size_limit";
+   private final static int    PDF_ARCHIVE_SIZE_LIMIT_DEFAULT = 1024; // MB
+   private final static String PDF_ARCHIVE_COMPRESSION      = "pdf.archive_compression";
+   private final static int    PDF_ARCHIVE_COMPRESSION_DEFAULT = 6;
+   
+   private final static String PDF_MEMORY                   = "pdf.memory";
+   private final static PdfMemoryUsage PDF_MEMORY_DEFAULT   = PdfMemoryUsage.MAIN;
+   private final static String PDF_MEMORY_LIMIT             = "pdf.memory_limit";
+   private final static int    PDF_MEMORY_LIMIT_DEFAULT     = 64; // MB
+   private final static String PDF_SCRATCH_FOLDER           = "pdf.scratch_folder";
 
    
    public AppProperties(final Path propertyFile) {
@@ -89,6 +160,29 @@ public class AppProperties extends AbstractConfiguration {
       return value;
    }
    
+   private int getIntegerProperty(final String propertyKey,
+                                  final int defaultValue) {
+      String value = getProperty(propertyKey);
+      if (value==null || value.trim().isEmpty()) {
+         return defaultValue;
+      }
+      try {
+         return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+         String msg = String.format(MALFORMED_INTEGER, value, propertyKey);
+         throw new UnrecoverableException(msg, e);
+      }
+   }
+   
+   private boolean getBooleanProperty(final String propertyKey,
+                                      final boolean defaultValue) {
+      String value = getProperty(propertyKey);
+      if (value==null || value.trim().isEmpty()) {
+         return defaultValue;
+      }
+      return Boolean.parseBoolean(value.trim());
+   }
+   
    //
    // folder
    //
@@ -98,6 +192,46 @@ public class AppProperties extends AbstractConfiguration {
                      .orElse(FOLDER_GENERATED_DEFAULT);
    }
    
+   /**
+    * @return arrangement of the documents in the generated folder
+    */
+   public OutputLayout getOutputLayout() {
+      String value = getProperty(FOLDER_LAYOUT);
+      if (value==null || value.trim().isEmpty()) {
+         return FOLDER_LAYOUT_DEFAULT;
+      }
+      Optional<OutputLayout> layout = OutputLayout.fromPropertyValue(value);
+      if (!layout.isPresent()) {
+         String choices = Arrays.stream(OutputLayout.values())
+                                .map(OutputLayout::getPropertyValue)
+                                .collect(Collectors.joining(", "));
+         String msg = String.format(MALFORMED_CHOICE, value, FOLDER_LAYOUT, choices);
+         logger.error(msg);
+         throw new UnrecoverableException(msg);
+      }
+      return layout.get();
+   }
+   
+   /**
+    * @return number of subfolders the documents are spread across by a
+    *         hashed or grouped layout
+    */
+   public int getOutputFanOut() {
+      return Math.max(1, getIntegerProperty(FOLDER_FAN_OUT, FOLDER_FAN_OUT_DEFAULT));
+   }
+   
+   /**
+    * @return name of the index in the generated folder that lists the
+    *         documents of every group of a hashed or grouped layout; empty
+    *         if no index is kept
+    */
+   public Optional<String> getOutputIndexFileName() {
+      String name = Optional.ofNullable(getProperty(FOLDER_INDEX))
+                            .orElse(FOLDER_INDEX_DEFAULT)
+                            .trim();
+      return name.isEmpty() ? Optional.empty() : Optional.of(name);
+   }
+   
    public String getSourceFolder() {
       return Optional.ofNullable(getProperty(FOLDER_SOURCE))
                      .orElse(FOLDER_SOURCE_DEFAULT);
@@ -148,6 +282,99 @@ public class AppProperties extends AbstractConfiguration {
       }
       return value;
    }
+   
+   /**
+    * @return true if formula cells of loaded workbooks provide the result
+    *         saved with the workbook instead of being evaluated again
+    */
+   public boolean isCachedFormulaResults() {
+      return getBooleanProperty(XLS_CACHED_FORMULAS, XLS_CACHED_FORMULAS_DEFAULT);
+   }
+   
+   /**
+    * @return true if XLSX sheets are streamed row by row instead of loading
+    *         the workbook; streamed formula cells always provide the result
+    *         saved with the workbook
+    */
+   public boolean isExcelStreaming() {
+      return getBooleanProperty(XLS_STREAMING, XLS_STREAMING_DEFAULT);
+   }
+   
+   /**
+    * @return format of the input file; by default derived from the file
+    *         name, where files ending on .csv or .tsv are delimited files
+    */
+   public InputFormat getInputFormat() {
+      String value = getProperty(XLS_FORMAT);
+      if (value==null || value.trim().isEmpty()) {
+         return InputFormat.fromFileName(getExcelFileName());
+      }
+      Optional<InputFormat> format = InputFormat.fromPropertyValue(value);
+      if (!format.isPresent()) {
+         String choices = Arrays.stream(InputFormat.values())
+                                .map(InputFormat::getPropertyValue)
+                                .collect(Collectors.joining(", "));
+         String msg = String.format(MALFORMED_CHOICE, value, XLS_FORMAT, choices);
+         logger.error(msg);
+         throw new UnrecoverableException(msg);
+      }
+      return format.get();
+   }
+   
+   /**
+    * @return character encoding of delimited input files
+    */
+   public Charset getInputEncoding() {
+      String value = getProperty(XLS_ENCODING);
+      if (value==null || value.trim().isEmpty()) {
+         return XLS_ENCODING_DEFAULT;
+      }
+      try {
+         return Charset.forName(value.trim());
+      } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+         String msg = String.format(UNSUPPORTED_ENCODING, value, XLS_ENCODING);
+         logger.error(msg, e);
+         throw new UnrecoverableException(msg, e);
+      }
+   }
+   
+   /**
+    * @return true if only the columns referenced by the configuration, the
+    *         templates and the email texts are read from the spreadsheet
+    */
+   public boolean isColumnProjection() {
+      return getBooleanProperty(XLS_PROJECTION, XLS_PROJECTION_DEFAULT);
+   }
+   
+   /**
+    * @return folder of the snapshots of workbook rows, relative to the
+    *         folder of the workbook; empty if workbooks are always parsed,
+    *         which is the default
+    */
+   public Optional<String> getExcelSnapshotFolder() {
+      return Optional.ofNullable(getProperty(XLS_SNAPSHOT_FOLDER))
+                     .map(String::trim)
+                     .filter(n -> !n.isEmpty());
+   }
+   
+   /**
+    * @return heap in megabytes the rows being grouped may use before sorted
+    *         runs are spilled to disk; 0 keeps all rows in memory
+    */
+   public int getGroupMemoryLimit() {
+      return Math.max(0, getIntegerProperty(XLS_GROUP_MEMORY_LIMIT,
+                                            XLS_GROUP_MEMORY_LIMIT_DEFAULT));
+   }
+   
+   /**
+    * @return folder of the sorted runs spilled while grouping rows; empty to
+    *         use the system folder for temporary files
+    */
+   public Optional<String> getGroupSpillFolder() {
+      return Optional.ofNullable(getProperty(XLS_GROUP_SPILL_FOLDER))
+                     .map(String::trim)
+                     .filter(f -> !f.isEmpty());
+   }
 
    //
    // email server properties
@@ -215,6 +442,16 @@ public class AppProperties extends AbstractConfiguration {
       return result;
    }
    
+   public int getEmailConnections() {
+      return Math.max(1, getIntegerProperty(EMAIL_CONNECTIONS,
+                                            EMAIL_CONNECTIONS_DEFAULT));
+   }
+   
+   public int getEmailServerConnectionLimit() {
+      return Math.max(1, getIntegerProperty(EMAIL_CONNECTION_LIMIT,
+                                            EMAIL_CONNECTION_LIMIT_DEFAULT));
+   }
+   
    public String getEmailSubjectMessage() {
       return getMandatoryProperty(EMAIL_SUBJECT_MESSAGE);
    }
@@ -286,4 +523,153 @@ public class AppProperties extends AbstractConfiguration {
       return Collections.unmodifiableMap(value);
    }
    
+   //
+   // PDF generation
+   //
+   
+   public boolean isTemplateBuffered() {
+      return getBooleanProperty(PDF_TEMPLATE_BUFFER, PDF_TEMPLATE_BUFFER_DEFAULT);
+   }
+   
+   public int getPdfThreads() {
+      return Math.max(1, getIntegerProperty(PDF_THREADS, PDF_THREADS_DEFAULT));
+   }
+   
+   public int getPipelineQueueSize() {
+      return Math.max(1, getIntegerProperty(PIPELINE_QUEUE_SIZE,
+                                            PIPELINE_QUEUE_SIZE_DEFAULT));
+   }
+   
+   /**
+    * @return base name of the metrics report files written to the generated
+    *         folder; empty if no report is written
+    */
+   public Optional<String> getMetricsReportName() {
+      return Optional.ofNullable(getProperty(METRICS_REPORT))
+                     .map(String::trim)
+                     .filter(n -> !n.isEmpty());
+   }
+   
+   /**
+    * @return name of the report of the validation pass in the generated
+    *         folder
+    */
+   public String getValidationReportName() {
+      String name = Optional.ofNullable(getProperty(VALIDATION_REPORT))
+                            .orElse(VALIDATION_REPORT_DEFAULT)
+                            .trim();
+      return name.isEmpty() ? VALIDATION_REPORT_DEFAULT : name;
+   }
+   
+   /**
+    * @return name of the journal file in the generated folder that records
+    *         completed groups; empty if runs are not journaled
+    */
+   public Optional<String> getJournalFileName() {
+      String name = Optional.ofNullable(getProperty(JOURNAL_FILE))
+                            .orElse(JOURNAL_FILE_DEFAULT)
+                            .trim();
+      return name.isEmpty() ? Optional.empty() : Optional.of(name);
+   }
+   
+   /**
+    * @return interval in milliseconds in which journal entries are synced to
+    *         disk; 0 syncs every entry
+    */
+   public int getJournalSyncInterval() {
+      return Math.max(0, getIntegerProperty(JOURNAL_SYNC_INTERVAL,
+                                            JOURNAL_SYNC_INTERVAL_DEFAULT));
+   }
+   
+   /**
+    * @return name of the manifest in the generated folder that records the
+    *         fingerprints of generated documents; empty if every document is
+    *         created again in each run
+    */
+   public Optional<String> getManifestFileName() {
+      String name = Optional.ofNullable(getProperty(PDF_MANIFEST))
+                            .orElse(PDF_MANIFEST_DEFAULT)
+                            .trim();
+      return name.isEmpty() ? Optional.empty() : Optional.of(name);
+   }
+   
+   /**
+    * @return true if documents sent by email are created in memory and
+    *         attached without being saved to the generated folder
+    */
+   public boolean isInMemoryOutput() {
+      return getBooleanProperty(PDF_IN_MEMORY, PDF_IN_MEMORY_DEFAULT);
+   }
+   
+   /**
+    * @return true if documents created in memory are also written to the
+    *         generated folder in the background
+    */
+   public boolean isWriteBehind() {
+      return getBooleanProperty(PDF_WRITE_BEHIND, PDF_WRITE_BEHIND_DEFAULT);
+   }
+   
+   /**
+    * @return base name of the ZIP archives in the generated folder that
+    *         collect all generated documents; empty if no archive is written
+    */
+   public Optional<String> getArchiveName() {
+      return Optional.ofNullable(getProperty(PDF_ARCHIVE))
+                     .map(String::trim)
+                     .filter(n -> !n.isEmpty());
+   }
+   
+   /**
+    * @return size in megabytes after which a new archive is started
+    */
+   public int getArchiveSizeLimit() {
+      return Math.max(1, getIntegerProperty(PDF_ARCHIVE_SIZE_LIMIT,
+                                            PDF_ARCHIVE_SIZE_LIMIT_DEFAULT));
+   }
+   
+   /**
+    * @return compression level of the archive entries from 0 (stored without
+    *         compression) to 9
+    */
+   public int getArchiveCompression() {
+      return Math.max(0, Math.min(9, getIntegerProperty(PDF_ARCHIVE_COMPRESSION,
+                                                        PDF_ARCHIVE_COMPRESSION_DEFAULT)));
+   }
+   
+   public PdfMemoryUsage getPdfMemoryUsage() {
+      String value = getProperty(PDF_MEMORY);
+      if (value==null || value.trim().isEmpty()) {
+         return PDF_MEMORY_DEFAULT;
+      }
+      Optional<PdfMemoryUsage> usage = PdfMemoryUsage.fromPropertyValue(value);
+      if (!usage.isPresent()) {
+         String choices = Arrays.stream(PdfMemoryUsage.values())
+                                .map(PdfMemoryUsage::getPropertyValue)
+                                .collect(Collectors.joining(", "));
+         String msg = String.format(MALFORMED_CHOICE, value, PDF_MEMORY, choices);
+         logger.error(msg);
+         throw new UnrecoverableException(msg);
+      }
+      return usage.get();
+   }
+   
+   /**
+    * @return heap in megabytes a document may use before PDFBox moves its
+    *         content to scratch files; only used by mixed memory usage
+    */
+   public int getPdfMemoryLimit() {
+      return Math.max(1, getIntegerProperty(PDF_MEMORY_LIMIT,
+                                            PDF_MEMORY_LIMIT_DEFAULT));
+   }
+   
+   /**
+    * @return folder of the PDFBox scratch files; empty to use the system
+    *         folder for temporary files
+    */
+   public Optional<String> getPdfScratchFolder() {
+      return Optional.ofNullable(getProperty(PDF_SCRATCH_FOLDER))
+                     .map(String::trim)
+                     .filter(f -> !f.isEmpty());
+   }
+   
 }
@@ -0,0 +1,55 @@
+package org.gssb.pdffiller.config;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Format of the file with the records to be merged.
+ */
+public enum InputFormat {
+
+   /** Excel workbook read with POI, such as XLSX or XLS */
+   WORKBOOK("workbook", '\0'),
+   /** comma separated values */
+   CSV("csv", ','),
+   /** tab separated values */
+   TSV("tsv", '\t');
+
+   private final String propertyValue;
+   private final char delimiter;
+
+   InputFormat(final String propertyValue, final char delimiter) {
+      this.propertyValue = propertyValue;
+      this.delimiter = delimiter;
+   }
+
+   public String getPropertyValue() {
+      return this.propertyValue;
+   }
+
+   /**
+    * @return the character separating the values of a delimited file
+    */
+   public char getDelimiter() {
+      return this.delimiter;
+   }
+
+   static Optional<InputFormat> fromPropertyValue(final String value) {
+      return Arrays.stream(values())
+                   .filter(f -> f.propertyValue.equalsIgnoreCase(value.trim()))
+                   .findFirst();
+   }
+
+   /**
+    * @return the delimited format of files ending on .csv or .tsv, all
+    *         other files are workbooks
+    */
+   static InputFormat fromFileName(final String fileName) {
+      String name = fileName.toLowerCase(Locale.ROOT);
+      if (name.endsWith(".csv")) return CSV;
+      if (name.endsWith(".tsv")) return TSV;
+      return WORKBOOK;
+   }
+
+}
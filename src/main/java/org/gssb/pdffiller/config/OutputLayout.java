@@ -0,0 +1,34 @@
+package org.gssb.pdffiller.config;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * How generated documents are arranged in the generated folder.
+ */
+public enum OutputLayout {
+
+   /** all documents in the generated folder */
+   FLAT("flat"),
+   /** documents in subfolders chosen by a hash of the file name */
+   HASHED("hashed"),
+   /** documents of a group in a subfolder named by the group ID */
+   GROUP("group");
+
+   private final String propertyValue;
+
+   OutputLayout(final String propertyValue) {
+      this.propertyValue = propertyValue;
+   }
+
+   public String getPropertyValue() {
+      return this.propertyValue;
+   }
+
+   static Optional<OutputLayout> fromPropertyValue(final String value) {
+      return Arrays.stream(values())
+                   .filter(l -> l.propertyValue.equalsIgnoreCase(value.trim()))
+                   .findFirst();
+   }
+
+}
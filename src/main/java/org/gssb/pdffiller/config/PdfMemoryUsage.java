@@ -0,0 +1,35 @@
+package org.gssb.pdffiller.config;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Where PDFBox keeps the content of PDF documents while they are loaded,
+ * filled and saved.
+ */
+public enum PdfMemoryUsage {
+
+   /** all content on the heap */
+   MAIN("main"),
+   /** content on the heap up to a limit, the rest in scratch files */
+   MIXED("mixed"),
+   /** all content in scratch files */
+   TEMP_FILE("temp_file");
+
+   private final String propertyValue;
+
+   PdfMemoryUsage(final String propertyValue) {
+      this.propertyValue = propertyValue;
+   }
+
+   public String getPropertyValue() {
+      return this.propertyValue;
+   }
+
+   static Optional<PdfMemoryUsage> fromPropertyValue(final String value) {
+      return Arrays.stream(values())
+                   .filter(u -> u.propertyValue.equalsIgnoreCase(value.trim()))
+                   .findFirst();
+   }
+
+}
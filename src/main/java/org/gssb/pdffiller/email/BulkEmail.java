@@ -3,16 +3,28 @@ package org.gssb.pdffiller.email;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.Address;
 import javax.mail.Authenticator;
 import javax.mail.BodyPart;
@@ -35,6 +47,11 @@ import org.apache.logging.log4j.Logger;
 import org.gssb.pdffiller.config.AppProperties;
 import org.gssb.pdffiller.excel.RowGroup;
 import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.gssb.pdffiller.journal.RunJournal;
+import org.gssb.pdffiller.metrics.Counter;
+import org.gssb.pdffiller.metrics.Metrics;
+import org.gssb.pdffiller.metrics.Timer;
+import org.gssb.pdffiller.pdf.InMemoryDocument;
 import org.gssb.pdffiller.pdf.MessageWrapper;
 import org.gssb.pdffiller.pdf.UnitOfWork;
 import org.gssb.pdffiller.text.TextBuilder;
@@ -43,12 +60,53 @@ import com.github.mustachejava.MustacheException;
 
 public class BulkEmail {
 
+   /**
+    * Attaches a document created in memory without writing it to disk.
+    */
+   private static class DocumentDataSource implements DataSource {
+      
+      private static final String PDF_TYPE = "application/pdf";
+      
+      private final InMemoryDocument document;
+      
+      DocumentDataSource(final InMemoryDocument document) {
+         this.document = document;
+      }
+
+      @Override
+      public InputStream getInputStream() throws IOException {
+         return this.document.openStream();
+      }
+
+      @Override
+      public OutputStream getOutputStream() throws IOException {
+         throw new IOException("Document " + getName() + " is read-only.");
+      }
+
+      @Override
+      public String getContentType() {
+         return PDF_TYPE;
+      }
+
+      @Override
+      public String getName() {
+         return this.document.getName();
+      }
+   }
+
    private final static Logger logger = LogManager.getLogger(BulkEmail.class);
 
    private final static String EOL = System.getProperty("line.separator");
    
    // Define LATIN-1 as character set for email subject and body
    private static final String CHARACTER_SET = "ISO-8859-1";
+   
+   private static final Timer SEND_TIMER =
+         Metrics.timer("email.send", "Time to send one email to the server.");
+   private static final Counter SENT_COUNTER =
+         Metrics.counter("email.sent", "Emails accepted by the server.");
+   private static final Counter FAILED_COUNTER =
+         Metrics.counter("email.failed", "Emails rejected for at least one recipient.");
 
    private static final String MISSING_COLUMN =
          "The spreadsheet does not contain the columns %s that define " +
@@ -90,6 +148,9 @@ public class BulkEmail {
          "Emails sent to '%s' and emails not delivered to '%s' for " +
          "record with groups ID %s.";
    
+   private static final String DELIVERY_INTERRUPTED =
+         "Interrupted while sending emails.";
+   
    private static final String NOT_LOGGED = 
          "Could not log email addresses '%s' for record with group ID %s.";
 
@@ -102,6 +163,7 @@ public class BulkEmail {
    private final int retries;
    private final int waitTime;
    private final int timeout;
+   private final int connections;
    
    private final String subjectTemplate;
    
@@ -112,6 +174,10 @@ public class BulkEmail {
       this.retries = props.getEmailSendRetries();
       this.waitTime = props.getEmailWaitTime();
       this.timeout = props.getEmailTimeout();
+      // never open more connections than the email server accepts
+      int limit = props.getEmailServerConnectionLimit();
+      int requested = Math.max(1, props.getEmailConnections());
+      this.connections = limit > 0 ? Math.min(requested, limit) : requested;
       this.emailColumns = props.getTargetEmailColumns();
       this.subjectTemplate = props.getEmailSubjectMessage();
       this.emailSendProtocol = "smtp";
@@ -123,7 +189,25 @@ public class BulkEmail {
       this(props, System.out);
    }
    
-   private void printProgress(final int count, final char character) {
+   /**
+    * @return columns that emails are created from: the email columns and
+    *         the variables of the subject and body templates
+    */
+   public Set<String> getReferencedColumns(final String bodyTemplateText) {
+      TextBuilder textBuilder = new TextBuilder();
+      Set<String> columns = new HashSet<>();
+      for (String column : this.emailColumns) {
+         columns.add(column);
+         columns.add(column.trim());
+      }
+      if (this.subjectTemplate != null) {
+         columns.addAll(textBuilder.getVariables(this.subjectTemplate));
+      }
+      columns.addAll(textBuilder.getVariables(bodyTemplateText));
+      return columns;
+   }
+   
+   private synchronized void printProgress(final int count, final char character) {
       if (count>0 && count % 100 == 0) {
          this.outstream.println(character);
       } else {
@@ -173,7 +257,7 @@ public class BulkEmail {
                                            final List<String> recipients,
                                            final String subject,
                                            final String body,
-                                           final List<File> attachedFiles)
+                                           final UnitOfWork unit)
                             throws MessagingException {
       MimeMessage msg = new MimeMessage(session);
 
@@ -206,12 +290,21 @@ public class BulkEmail {
       multipart.addBodyPart(messageBodyPart);
 
       // adds attachments
-      for (File attachedFile : attachedFiles) {
+      for (File attachedFile : unit.getGeneratedFiles()) {
          if (attachedFile != null) {
             MimeBodyPart attachPart = new MimeBodyPart();
 
+            Optional<InMemoryDocument> document =
+                  unit.getInMemoryDocument(attachedFile);
             try {
-               attachPart.attachFile(attachedFile);
+               if (document.isPresent()) {
+                  DataSource source = new DocumentDataSource(document.get());
+                  attachPart.setDataHandler(new DataHandler(source));
+                  attachPart.setFileName(document.get().getName());
+                  attachPart.setDisposition(Part.ATTACHMENT);
+               } else {
+                  attachPart.attachFile(attachedFile);
+               }
             } catch (IOException ex) {
                logger.error("File " + attachedFile.toString() + 
                             " was not found and could not be attached. " +
@@ -309,10 +402,12 @@ public class BulkEmail {
                            final int index, final int alreadyProcessed) {
       int successCode = 0; // no error
       final Message message = wrappedMessage.getMessage();
-      try {
+      try (Timer.Sample sample = SEND_TIMER.start()) {
          message.saveChanges();
          t.sendMessage(message, message.getAllRecipients());
+         SENT_COUNTER.increment();
       } catch (SendFailedException e) {
+         FAILED_COUNTER.increment();
          String msg = String.format(SEND_ERROR, 
                                     getRecipients(e.getValidSentAddresses()),
                                     getRecipients(e.getValidUnsentAddresses()),
@@ -336,47 +431,80 @@ public class BulkEmail {
       return successCode; 
    }
    
+   /**
+    * Records a message accepted by the server in the journal and prints its
+    * progress.
+    *
+    * @param position    number of messages of the delivery before this one
+    * @param successCode number of recipients the server rejected
+    * @return true if all recipients were reached
+    */
+   private boolean recordDelivery(final MessageWrapper wrappedMessage,
+                                  final int successCode, final int position,
+                                  final RunJournal journal) {
+      Message message = wrappedMessage.getMessage();
+      // sending again does not reach rejected recipients either
+      journal.recordSent(wrappedMessage.getGroupKey());
+      if (successCode == 0) {
+         printProgress(position + 1, '.');
+         try {
+            String msg = String.format(EMAIL_SENT, position,
+                                       wrappedMessage.getGroudId(),
+                                       getAddressList(message.getAllRecipients()));
+            logger.info(msg);
+         } catch (MessagingException e) {
+            String msg = String.format(NOT_LOGGED, position,
+                                       wrappedMessage.getGroudId());
+            logger.debug(msg, e);
+         }
+         return true;
+      }
+      // at least one email recipient was not reached
+      char status = 'a';
+      try {
+         if (message.getAllRecipients().length == successCode) {
+            status = 'A';
+         }
+      } catch (MessagingException e) {
+         logger.debug("Unable to get email addresses from message.", e);
+      }
+      printProgress(position + 1, status);
+      return false;
+   }
+   
+   private void closeTransport(final Transport transport) {
+      try {
+         transport.close();
+      } catch (MessagingException e) {
+         logger.warn("Unable to close email transportation layer.", e);
+      }
+   }
+
    private int sendMessages(final Session session,
                             final List<MessageWrapper> messages,
-                            final int alreadyProcessed) {
-      int processed = 0;
+                            final int alreadyProcessed,
+                            final RunJournal journal) {
       int sentEmails = 0;
-      try (Transport t = getTransport(session, this.emailSendProtocol)) {
+      Transport t = getTransport(session, this.emailSendProtocol);
+      try {
          for (int i=0; i < messages.size(); i++) {
             MessageWrapper wrapedMessage = messages.get(i);
-            Message message = wrapedMessage.getMessage();
             int successCode = sendMessage(t, wrapedMessage, i, alreadyProcessed);
-            processed++;
-            if (successCode == 0) {
+            if (recordDelivery(wrapedMessage, successCode, alreadyProcessed + i,
+                               journal)) {
                sentEmails++;
-               printProgress(alreadyProcessed + processed, '.');
-               try {
-                  String msg = String.format(EMAIL_SENT, alreadyProcessed + i,
-                                             wrapedMessage.getGroudId(),
-                                             getAddressList(message.getAllRecipients()));
-                  logger.info(msg);
-               } catch (MessagingException e) {
-                  String msg = String.format(NOT_LOGGED, sentEmails,
-                                             messages.get(i).getGroudId());
-                  logger.debug(msg, e);
-               }
-            } else {
-               // at least one email recipient was not reached
-               char status = 'a';
-               if (message.getAllRecipients().length == successCode) {
-                  status = 'A';
-               }
-               printProgress(alreadyProcessed + processed, status);
             }
          }
-      } catch (MessagingException e) {
-         logger.warn("Unable to close email transportation layer.", e);
-      } 
+      } finally {
+         closeTransport(t);
+      }
       return sentEmails;
    }
 
    private int sendMessagesWithRetry(final Session session,
-                                     final List<MessageWrapper> messages) {
+                                     final List<MessageWrapper> messages,
+                                     final int offset,
+                                     final RunJournal journal) {
       int emailsSent = 0;
       BulkEmailException lastException = null;
       int retriedCount = 0;
@@ -385,7 +513,7 @@ public class BulkEmail {
          try {
             emailsSent += sendMessages(session, messages.subList(messageIndex,
                                                                  messages.size()),
-                                       messageIndex);
+                                       offset + messageIndex, journal);
             // exit retry loop after messages were sent successfully 
             return emailsSent;
          } catch (BulkEmailException e) {
@@ -399,7 +527,7 @@ public class BulkEmail {
             emailsSent += failedIndex; // TODO - approximation
             lastException = e;
          }
-         printProgress(messageIndex, 'r');
+         printProgress(offset + messageIndex, 'r');
          try {
             Thread.sleep(this.waitTime); // sleep a bit before retrying
          } catch (InterruptedException e) {
@@ -411,6 +539,180 @@ public class BulkEmail {
       logger.error(msg, lastException);
       throw new UnrecoverableException(msg, lastException);
    }
+   
+   /**
+    * Connections to the email server that stay open for a whole delivery.
+    * Every worker owns one transport and takes the next message from a
+    * shared queue, so a slow connection does not hold back messages another
+    * connection could send. A connection that fails while sending is opened
+    * again for the next attempt. Once a message cannot be delivered, the
+    * remaining messages fail without connecting again.
+    */
+   private class ConnectionPool {
+      
+      private final Session session;
+      private final RunJournal journal;
+      private final ExecutorService workers;
+      private final BlockingQueue<Optional<PendingMessage>> queue =
+            new LinkedBlockingQueue<>();
+      private volatile UnrecoverableException failure = null;
+      
+      ConnectionPool(final Session session, final RunJournal journal) {
+         this.session = session;
+         this.journal = journal;
+         this.workers = Executors.newFixedThreadPool(connections, r -> {
+            Thread t = new Thread(r, "email-connection");
+            t.setDaemon(true);
+            return t;
+         });
+         for (int i = 0; i < connections; i++) {
+            this.workers.execute(this::work);
+         }
+      }
+      
+      private Optional<Transport> connect() {
+         try {
+            return Optional.of(getTransport(this.session, emailSendProtocol));
+         } catch (UnrecoverableException e) {
+            this.failure = e;
+            return Optional.empty();
+         }
+      }
+      
+      private void work() {
+         Optional<Transport> transport = connect();
+         try {
+            // an empty entry stops the worker
+            Optional<PendingMessage> next;
+            while ((next = this.queue.take()).isPresent()) {
+               transport = send(transport, next.get());
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } finally {
+            transport.ifPresent(BulkEmail.this::closeTransport);
+         }
+      }
+      
+      private Optional<Transport> send(final Optional<Transport> transport,
+                                       final PendingMessage pending) {
+         Optional<Transport> t = transport;
+         BulkEmailException lastException = null;
+         int retriedCount = 0;
+         while (retriedCount < retries) {
+            if (this.failure != null) {
+               pending.result.completeExceptionally(this.failure);
+               return t;
+            }
+            if (!t.isPresent()) {
+               t = connect();
+               continue;
+            }
+            try {
+               int successCode = sendMessage(t.get(), pending.message, 0,
+                                             pending.position);
+               pending.result.complete(recordDelivery(pending.message, successCode,
+                                                      pending.position,
+                                                      this.journal));
+               return t;
+            } catch (BulkEmailException e) {
+               lastException = e;
+            } catch (RuntimeException e) {
+               this.failure = e instanceof UnrecoverableException
+                                 ? (UnrecoverableException) e
+                                 : new UnrecoverableException(e.getMessage(), e);
+               pending.result.completeExceptionally(this.failure);
+               return t;
+            }
+            closeTransport(t.get());
+            t = Optional.empty();
+            retriedCount++;
+            printProgress(pending.position, 'r');
+            try {
+               Thread.sleep(waitTime); // sleep a bit before retrying
+            } catch (InterruptedException e) {
+               logger.debug("Done waiting before attempting to connect to email server.");
+            }
+         }
+         String msg = String.format(UNABLE_TO_SEND_EMAIL, lastException.getGroupId(),
+                                    retries);
+         logger.error(msg, lastException);
+         this.failure = new UnrecoverableException(msg, lastException);
+         pending.result.completeExceptionally(this.failure);
+         return t;
+      }
+      
+      /**
+       * Queues the messages and waits until all of them were handled. The
+       * delivery fails after all messages are done if one of them could not
+       * be delivered.
+       *
+       * @return number of messages that reached all recipients
+       */
+      int send(final List<MessageWrapper> messages, final int offset) {
+         List<PendingMessage> pending = new ArrayList<>(messages.size());
+         for (int i = 0; i < messages.size(); i++) {
+            PendingMessage message = new PendingMessage(messages.get(i), offset + i);
+            pending.add(message);
+            this.queue.add(Optional.of(message));
+         }
+         int emailsSent = 0;
+         UnrecoverableException failure = null;
+         for (PendingMessage message : pending) {
+            try {
+               if (message.result.get()) {
+                  emailsSent++;
+               }
+            } catch (ExecutionException e) {
+               if (failure == null) {
+                  failure = (UnrecoverableException) e.getCause();
+               }
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               logger.error(DELIVERY_INTERRUPTED, e);
+               throw new UnrecoverableException(DELIVERY_INTERRUPTED, e);
+            }
+         }
+         if (failure != null) {
+            throw failure;
+         }
+         return emailsSent;
+      }
+      
+      /**
+       * Stops the workers after the queued messages and closes the
+       * connections.
+       */
+      void close() {
+         for (int i = 0; i < connections; i++) {
+            this.queue.add(Optional.empty());
+         }
+         this.workers.shutdown();
+         try {
+            if (!this.workers.awaitTermination(timeout + waitTime, TimeUnit.MILLISECONDS)) {
+               this.workers.shutdownNow();
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.workers.shutdownNow();
+         }
+      }
+   }
+   
+   /**
+    * A message waiting for a connection of the pool.
+    */
+   private static class PendingMessage {
+      private final MessageWrapper message;
+      // number of messages of the delivery before this one
+      private final int position;
+      private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+      
+      PendingMessage(final MessageWrapper message, final int position) {
+         this.message = message;
+         this.position = position;
+      }
+   }
 
    private String getTextFromMessage(Message message) 
            throws MessagingException, IOException {
@@ -523,37 +825,74 @@ public class BulkEmail {
       }
    }
 
-   public void sendEmails(final List<UnitOfWork> createdUnits,
-                          final boolean simulate,
-                          final String host, 
-                          final String port, 
-                          final String userName,
-                          final String fromAddress,
-                          final String password, 
-                          final String bodyTemplateText) {
-      Session session = createSession(host, port, userName, password);
-      List<MessageWrapper> messages = new ArrayList<>();
-
-      TextBuilder textBuilder = new TextBuilder();
+   /**
+    * Builds and sends the email messages of one run. Messages may be built
+    * and sent in batches, so that units of work are delivered while later
+    * units are still being created. With more than one connection, the
+    * connections stay open for all batches until the delivery is closed.
+    */
+   public class Delivery implements AutoCloseable {
       
-      this.outstream.println();
-
-      for (UnitOfWork unit : createdUnits) {
+      private final boolean simulate;
+      private final Session session;
+      private final String  userName;
+      private final String  fromAddress;
+      private final String  bodyTemplateText;
+      private final TextBuilder textBuilder = new TextBuilder();
+      private final RunJournal journal;
+      
+      private int messageCount = 0;
+      private int emailsSent = 0;
+      private Optional<ConnectionPool> pool = Optional.empty();
+      
+      Delivery(final boolean simulate, final String host, final String port,
+               final String userName, final String fromAddress,
+               final String password, final String bodyTemplateText,
+               final RunJournal journal) {
+         this.simulate = simulate;
+         this.session = createSession(host, port, userName, password);
+         this.userName = userName;
+         this.fromAddress = fromAddress;
+         this.bodyTemplateText = bodyTemplateText;
+         this.journal = journal;
+      }
+      
+      /**
+       * @return the email message for the unit of work; empty if no email
+       *         can be sent for the unit, in which case the in-memory
+       *         documents of the unit are released
+       */
+      public Optional<MessageWrapper> createMessage(final UnitOfWork unit) {
+         Optional<MessageWrapper> message = buildMessage(unit);
+         if (!message.isPresent()) {
+            unit.release();
+         }
+         return message;
+      }
+      
+      private Optional<MessageWrapper> buildMessage(final UnitOfWork unit) {
          RowGroup group = unit.getRow();
          String groupId = group.getGroupId().orElse("<group ID not configured>");
+         String groupKey = RunJournal.getKey(group);
          List<File> attachedFiles = unit.getGeneratedFiles();
          
+         if (this.journal.isSent(groupKey)) {
+            logger.info("Email for group ID '" + groupId +
+                        "' was sent by an earlier run.");
+            return Optional.empty();
+         }
+         
          List<String> emails = getValidEmailAddresses(group);
          if (emails.isEmpty()) {
             logger.warn("No email sent for group ID '" + groupId + 
                         "' because the required email address was unavailable.");
-            continue;
+            return Optional.empty();
          }
          String recipients = emails.stream() 
                                    .collect(Collectors.joining(","));
 
          boolean allFound = attachedFiles.stream()
-                                         .allMatch(f -> f.exists());
+                                         .allMatch(unit::isAvailable);
          if (!allFound) {
             String fileNames =
                   attachedFiles.stream()
@@ -561,38 +900,127 @@ public class BulkEmail {
                                .collect(Collectors.joining(", "));
             logger.warn("Files '" + fileNames + "' not found. " + 
                         "Skip sending email.");
-            continue;
+            return Optional.empty();
          }
          
-         String subject = createSubjectMessage(textBuilder, group, recipients);
-         String message = createEmailBodyMessage(textBuilder, bodyTemplateText,
+         String subject = createSubjectMessage(this.textBuilder, group, recipients);
+         String message = createEmailBodyMessage(this.textBuilder,
+                                                 this.bodyTemplateText,
                                                  group, recipients);
          Optional<Message> emailMessage;
          try {
-            emailMessage = createMessage(session, userName, fromAddress, emails,
-                                         subject, message, attachedFiles);
-            if (!emailMessage.isPresent()) {
-               continue;
-            }
+            emailMessage = BulkEmail.this.createMessage(this.session, this.userName,
+                                                        this.fromAddress, emails,
+                                                        subject, message,
+                                                        unit);
          } catch (MessagingException e) {
             String msg = String.format("Unable to create message for groupId %s.",
                                         groupId);
             logger.error(msg, e);
-            continue;
+            return Optional.empty();
          }
-         messages.add(new MessageWrapper(groupId, emailMessage.get()));
+         return emailMessage.map(m -> new MessageWrapper(groupId, groupKey, m,
+                                                         Optional.of(unit)));
       }
-
-      // send messages
-      if (simulate) {
-         for (MessageWrapper m : messages) {
-            logger.info(renderMessage(m.getMessage()));
+      
+      /**
+       * Sends a batch of messages, or logs them in simulation mode. The
+       * in-memory documents of the messages are released afterwards.
+       */
+      public void send(final List<MessageWrapper> messages) {
+         if (messages.isEmpty()) {
+            return;
          }
-      } else if (!messages.isEmpty()) {
-         int emailsSent = sendMessagesWithRetry(session, messages);
+         try {
+            if (this.simulate) {
+               for (MessageWrapper m : messages) {
+                  logger.info(renderMessage(m.getMessage()));
+               }
+            } else {
+               if (connections > 1) {
+                  if (!this.pool.isPresent()) {
+                     this.pool = Optional.of(new ConnectionPool(this.session,
+                                                                this.journal));
+                  }
+                  this.emailsSent += this.pool.get().send(messages, this.messageCount);
+               } else {
+                  this.emailsSent += sendMessagesWithRetry(this.session, messages,
+                                                           this.messageCount,
+                                                           this.journal);
+               }
+            }
+         } finally {
+            messages.forEach(MessageWrapper::release);
+         }
+         this.messageCount += messages.size();
+      }
+      
+      public void printSummary() {
+         if (!this.simulate && this.messageCount > 0) {
+            outstream.println();
+            outstream.println("Sent " + this.emailsSent + " of " +
+                              this.messageCount + " possible emails.");
+         }
+      }
+      
+      /**
+       * Closes the connections to the email server.
+       */
+      @Override
+      public void close() {
+         this.pool.ifPresent(ConnectionPool::close);
+         this.pool = Optional.empty();
+      }
+   }
+   
+   public Delivery startDelivery(final boolean simulate,
+                                 final String host, 
+                                 final String port, 
+                                 final String userName,
+                                 final String fromAddress,
+                                 final String password, 
+                                 final String bodyTemplateText) {
+      return startDelivery(simulate, host, port, userName, fromAddress, password,
+                           bodyTemplateText, RunJournal.disabled());
+   }
+   
+   /**
+    * @param journal records the groups whose email was sent; groups sent by
+    *                an interrupted run are not sent again
+    */
+   public Delivery startDelivery(final boolean simulate,
+                                 final String host, 
+                                 final String port, 
+                                 final String userName,
+                                 final String fromAddress,
+                                 final String password, 
+                                 final String bodyTemplateText,
+                                 final RunJournal journal) {
+      return new Delivery(simulate, host, port, userName, fromAddress, password,
+                          bodyTemplateText, journal);
+   }
+
+   public void sendEmails(final List<UnitOfWork> createdUnits,
+                          final boolean simulate,
+                          final String host, 
+                          final String port, 
+                          final String userName,
+                          final String fromAddress,
+                          final String password, 
+                          final String bodyTemplateText) {
+      try (Delivery delivery = startDelivery(simulate, host, port, userName,
+                                             fromAddress, password, bodyTemplateText)) {
+         List<MessageWrapper> messages = new ArrayList<>();
+         
          this.outstream.println();
-         this.outstream.println("Sent " + emailsSent + " of " +
-                                messages.size() + " possible emails.");
+   
+         for (UnitOfWork unit : createdUnits) {
+            delivery.createMessage(unit).ifPresent(messages::add);
+         }
+   
+         // send messages
+         delivery.send(messages);
+         delivery.printSummary();
       }
    }
 
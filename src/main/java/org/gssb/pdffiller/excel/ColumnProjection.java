@@ -0,0 +1,136 @@
+package org.gssb.pdffiller.excel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Columns of the input that a run reads. Readers neither evaluate nor store
+ * the values of other columns, so rows hold only the projected columns in
+ * the order of the input. Other columns are only checked for a value, so
+ * that a projection skips the same empty rows as reading every column.
+ */
+public final class ColumnProjection {
+
+   private static final ColumnProjection ALL = new ColumnProjection(Optional.empty());
+
+   /**
+    * Positions of the projected columns of an input.
+    */
+   static final class Selection {
+      private final ExcelHeader header;
+      // position in the projected row of each input column; -1 if dropped
+      private final int[] positions;
+      private final boolean complete;
+
+      private Selection(final ExcelHeader header, final int[] positions,
+                        final boolean complete) {
+         this.header = header;
+         this.positions = positions;
+         this.complete = complete;
+      }
+
+      /**
+       * @return header of the projected rows
+       */
+      ExcelHeader getHeader() {
+         return this.header;
+      }
+
+      /**
+       * @return position of an input column in the projected row; -1 if the
+       *         column is not stored
+       */
+      int getPosition(final int column) {
+         return column >= 0 && column < this.positions.length ? this.positions[column]
+                                                              : -1;
+      }
+
+      /**
+       * @return true if the value of an input column is read; without a
+       *         projection cells beyond the header are read, too, since they
+       *         decide whether a row is empty
+       */
+      boolean reads(final int column) {
+         return this.complete || getPosition(column) >= 0;
+      }
+
+      /**
+       * @param columnValues values of all input columns; values that are
+       *                     not read may be null
+       * @return values of the projected columns; missing values are empty
+       */
+      String[] project(final String[] columnValues) {
+         if (this.complete && columnValues.length == this.positions.length) {
+            return columnValues;
+         }
+         String[] values = new String[this.header.size()];
+         Arrays.fill(values, "");
+         int count = Math.min(columnValues.length, this.positions.length);
+         for (int i = 0; i < count; i++) {
+            if (this.positions[i] >= 0 && columnValues[i] != null) {
+               values[this.positions[i]] = columnValues[i];
+            }
+         }
+         return values;
+      }
+   }
+
+   private final Optional<SortedSet<String>> columns;
+
+   private ColumnProjection(final Optional<SortedSet<String>> columns) {
+      this.columns = columns;
+   }
+
+   /**
+    * @return the projection that reads every column
+    */
+   public static ColumnProjection all() {
+      return ALL;
+   }
+
+   public static ColumnProjection of(final Collection<String> columns) {
+      return new ColumnProjection(Optional.of(Collections.unmodifiableSortedSet(new TreeSet<>(columns))));
+   }
+
+   /**
+    * @return the projected columns; empty if every column is read
+    */
+   public Optional<SortedSet<String>> getColumns() {
+      return this.columns;
+   }
+
+   public boolean contains(final String column) {
+      return !this.columns.isPresent() ||
+             column != null && this.columns.get().contains(column);
+   }
+
+   /**
+    * @param names column names of the input in the order of the input
+    */
+   Selection select(final List<String> names) {
+      int[] positions = new int[names.size()];
+      List<String> selected = new ArrayList<>();
+      for (int i = 0; i < positions.length; i++) {
+         if (contains(names.get(i))) {
+            positions[i] = selected.size();
+            selected.add(names.get(i));
+         } else {
+            positions[i] = -1;
+         }
+      }
+      return new Selection(ExcelHeader.of(selected), positions,
+                           !this.columns.isPresent());
+   }
+
+   @Override
+   public String toString() {
+      return this.columns.map(Object::toString).orElse("[*]");
+   }
+
+}
@@ -0,0 +1,271 @@
+package org.gssb.pdffiller.excel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Splits delimited text into records of values. Values may be enclosed in
+ * double quotes to contain delimiters, line breaks and quotes, which are
+ * doubled; records end with LF or CRLF.
+ * <p>
+ * The input is read from the channel in large blocks and scanned as bytes.
+ * This requires an encoding in which delimiters, quotes and line breaks
+ * are single bytes that never occur inside other characters, such as
+ * UTF-8 or ISO-8859-1. Each value is decoded directly from the block.
+ */
+class DelimitedParser implements Closeable {
+
+   private static final String UNTERMINATED_QUOTE_ERROR =
+         "A quoted value that starts in record %d is not terminated.";
+
+   static final int BLOCK_SIZE = 1 << 20;
+
+   private static final byte QUOTE = '"';
+   private static final byte CR    = '\r';
+   private static final byte LF    = '\n';
+   private static final int  END_OF_RECORD = -1;
+
+   private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+   private final ReadableByteChannel channel;
+   private final byte delimiter;
+   private final Charset charset;
+   private final List<String> values = new ArrayList<>();
+   private IntPredicate decoded = i -> true;
+   private boolean otherValue = false;
+
+   private byte[]  block;
+   private int     position = 0;
+   private int     limit = 0;
+   private boolean endOfInput = false;
+   private long    recordNumber = 0;
+
+   DelimitedParser(final ReadableByteChannel channel, final char delimiter,
+                   final Charset charset, final int blockSize) throws IOException {
+      super();
+      this.channel = channel;
+      this.delimiter = (byte) delimiter;
+      this.charset = charset;
+      this.block = new byte[blockSize];
+      fill(0);
+      while (this.limit < UTF8_BOM.length && !this.endOfInput) {
+         fill(0);
+      }
+      if (StandardCharsets.UTF_8.equals(charset) && this.limit >= UTF8_BOM.length &&
+          Arrays.equals(Arrays.copyOf(this.block, UTF8_BOM.length), UTF8_BOM)) {
+         this.position = UTF8_BOM.length;
+      }
+   }
+
+   /**
+    * Reads more input into the block. Bytes before <code>keep</code> are
+    * discarded and the remaining bytes are moved to the start of the block;
+    * the block grows if a single value does not fit.
+    *
+    * @return number of positions the kept bytes moved
+    */
+   private int fill(final int keep) throws IOException {
+      int kept = this.limit - keep;
+      if (keep > 0) {
+         System.arraycopy(this.block, keep, this.block, 0, kept);
+      } else if (kept == this.block.length) {
+         this.block = Arrays.copyOf(this.block, this.block.length * 2);
+      }
+      this.position -= keep;
+      this.limit = kept;
+      int read = 0;
+      while (read == 0) {
+         read = this.channel.read(ByteBuffer.wrap(this.block, this.limit,
+                                                  this.block.length - this.limit));
+      }
+      if (read < 0) {
+         this.endOfInput = true;
+      } else {
+         this.limit += read;
+      }
+      return keep;
+   }
+
+   /**
+    * Restricts decoding to some positions of a record; the values at other
+    * positions are null and only checked by {@link #hasOtherValue()}.
+    */
+   void setDecoded(final IntPredicate decoded) {
+      this.decoded = decoded;
+   }
+
+   /**
+    * @return true if a value of the last record that is not decoded is
+    *         neither "" nor "0", so the record is not empty
+    */
+   boolean hasOtherValue() {
+      return this.otherValue;
+   }
+
+   private void addValue(final int start, final int end) {
+      if (this.decoded.test(this.values.size())) {
+         this.values.add(new String(this.block, start, end - start, this.charset));
+         return;
+      }
+      // decodes other values only until one of them is not empty
+      if (!this.otherValue && end > start) {
+         this.otherValue = !ExcelReader.isEmpty(new String(this.block, start, end - start,
+                                                           this.charset));
+      }
+      this.values.add(null);
+   }
+
+   /**
+    * Consumes the delimiter or line break at the current position.
+    *
+    * @return the delimiter or {@link #END_OF_RECORD}
+    */
+   private int terminate() throws IOException {
+      if (this.position == this.limit) {
+         return END_OF_RECORD;
+      }
+      byte terminator = this.block[this.position++];
+      if (terminator == this.delimiter) {
+         return this.delimiter;
+      }
+      if (terminator == CR) {
+         if (this.position == this.limit && !this.endOfInput) {
+            fill(this.position);
+         }
+         if (this.position < this.limit && this.block[this.position] == LF) {
+            this.position++;
+         }
+      }
+      return END_OF_RECORD;
+   }
+
+   private boolean isTerminator(final byte b) {
+      return b == this.delimiter || b == LF || b == CR;
+   }
+
+   private int readPlainValue() throws IOException {
+      int start = this.position;
+      while (true) {
+         while (this.position < this.limit) {
+            if (isTerminator(this.block[this.position])) {
+               addValue(start, this.position);
+               return terminate();
+            }
+            this.position++;
+         }
+         if (this.endOfInput) {
+            addValue(start, this.position);
+            return END_OF_RECORD;
+         }
+         start -= fill(start);
+      }
+   }
+
+   /**
+    * Reads a value enclosed in quotes. Doubled quotes are unescaped in place;
+    * characters between the closing quote and the next delimiter are
+    * ignored.
+    */
+   private int readQuotedValue() throws IOException {
+      // opening quote
+      this.position++;
+      int start = this.position;
+      int write = this.position;
+      while (true) {
+         while (this.position < this.limit) {
+            byte b = this.block[this.position];
+            if (b != QUOTE) {
+               this.block[write++] = b;
+               this.position++;
+               continue;
+            }
+            if (this.position + 1 == this.limit && !this.endOfInput) {
+               // the next byte decides whether the quote is doubled
+               break;
+            }
+            if (this.position + 1 < this.limit &&
+                this.block[this.position + 1] == QUOTE) {
+               this.block[write++] = QUOTE;
+               this.position += 2;
+               continue;
+            }
+            // closing quote
+            this.position++;
+            addValue(start, write);
+            return skipToTerminator();
+         }
+         if (this.endOfInput) {
+            throw new IOException(String.format(UNTERMINATED_QUOTE_ERROR,
+                                                this.recordNumber));
+         }
+         int moved = fill(start);
+         start -= moved;
+         write -= moved;
+      }
+   }
+
+   private int skipToTerminator() throws IOException {
+      while (true) {
+         while (this.position < this.limit) {
+            if (isTerminator(this.block[this.position])) {
+               return terminate();
+            }
+            this.position++;
+         }
+         if (this.endOfInput) {
+            return END_OF_RECORD;
+         }
+         fill(this.position);
+      }
+   }
+
+   /**
+    * @return number of the record returned last, starting with 1 for the
+    *         header
+    */
+   long getRecordNumber() {
+      return this.recordNumber;
+   }
+
+   /**
+    * @return values of the next record; null at the end of the input
+    */
+   String[] next() throws IOException {
+      if (this.position == this.limit) {
+         if (this.endOfInput) {
+            return null;
+         }
+         fill(this.position);
+         if (this.position == this.limit) {
+            return null;
+         }
+      }
+      this.recordNumber++;
+      this.values.clear();
+      this.otherValue = false;
+      int terminator;
+      do {
+         if (this.position == this.limit && !this.endOfInput) {
+            fill(this.position);
+         }
+         terminator = this.position < this.limit && this.block[this.position] == QUOTE
+                         ? readQuotedValue()
+                         : readPlainValue();
+      } while (terminator != END_OF_RECORD);
+      return this.values.toArray(new String[0]);
+   }
+
+   @Override
+   public void close() throws IOException {
+      this.channel.close();
+   }
+
+}
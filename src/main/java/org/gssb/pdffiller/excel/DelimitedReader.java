@@ -0,0 +1,180 @@
+package org.gssb.pdffiller.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.gssb.pdffiller.metrics.Counter;
+import org.gssb.pdffiller.metrics.Metrics;
+import org.gssb.pdffiller.metrics.Timer;
+
+/**
+ * Reads the rows of a CSV or TSV file, such as an export of the upstream
+ * system, without converting it to a workbook. Values are taken as they
+ * are; rows with fewer values than the header are filled with empty
+ * values and values beyond the header are ignored.
+ */
+public class DelimitedReader implements RowSource {
+   
+   private final static Logger logger = LogManager.getLogger(DelimitedReader.class);
+   
+   private static final String MISSING_HEADER_ERROR =
+         "The first line of file %s does not define column names.";
+   private static final String READ_ERROR =
+         "Error while reading file %s.";
+   
+   private static final Timer READ_TIMER =
+         Metrics.timer("delimited.read", "Time to read all rows of a delimited file.");
+   private static final Counter ROWS_COUNTER =
+         Metrics.counter("delimited.rows", "Data rows read from delimited files.");
+   
+   private final char delimiter;
+   private final Charset charset;
+   private final int blockSize;
+   
+   public DelimitedReader(final char delimiter, final Charset charset) {
+      this(delimiter, charset, DelimitedParser.BLOCK_SIZE);
+   }
+   
+   DelimitedReader(final char delimiter, final Charset charset,
+                   final int blockSize) {
+      super();
+      this.delimiter = delimiter;
+      this.charset = charset;
+      this.blockSize = blockSize;
+   }
+   
+   /**
+    * Turns the records after the header into rows that share the header of
+    * the projected columns.
+    */
+   private static class RowIterator implements Iterator<ExcelRow> {
+      private final DelimitedParser parser;
+      private final File file;
+      private final ColumnProjection.Selection selection;
+      private ExcelRow next;
+      
+      RowIterator(final DelimitedParser parser, final File file,
+                  final ColumnProjection.Selection selection) {
+         this.parser = parser;
+         this.file = file;
+         this.selection = selection;
+         this.next = readNext();
+      }
+      
+      private ExcelRow readNext() {
+         try {
+            String[] values;
+            while ((values = this.parser.next()) != null) {
+               // skip empty row; values that are not read are null
+               if (!this.parser.hasOtherValue() &&
+                   ExcelReader.isRowEmpty(Arrays.asList(values))) continue;
+               
+               return new ExcelRow(this.selection.getHeader(),
+                                   this.selection.project(values),
+                                   (int) this.parser.getRecordNumber());
+            }
+            return null;
+         } catch (IOException e) {
+            String msg = String.format(READ_ERROR, this.file.getName());
+            logger.error(msg, e);
+            throw new UncheckedIOException(msg, e);
+         }
+      }
+      
+      @Override
+      public boolean hasNext() {
+         return this.next != null;
+      }
+      
+      @Override
+      public ExcelRow next() {
+         if (this.next == null) {
+            throw new NoSuchElementException();
+         }
+         ExcelRow row = this.next;
+         this.next = readNext();
+         return row;
+      }
+   }
+   
+   @Override
+   public Stream<ExcelRow> stream(final File file, final String sheetName)
+                           throws IOException {
+      return stream(file, sheetName, ColumnProjection.all());
+   }
+   
+   @Override
+   public Stream<ExcelRow> stream(final File file, final String sheetName,
+                                  final ColumnProjection projection)
+                           throws IOException {
+      assert(file.exists()) : "File does not exist: " + file.toString();
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+         DelimitedParser parser = new DelimitedParser(channel, this.delimiter,
+                                                      this.charset, this.blockSize);
+         String[] columns = parser.next();
+         if (columns == null || ExcelReader.isRowEmpty(Arrays.asList(columns))) {
+            String msg = String.format(MISSING_HEADER_ERROR, file.getName());
+            logger.error(msg);
+            throw new UnrecoverableException(msg);
+         }
+         // all rows share the header; unused values are not decoded
+         ColumnProjection.Selection selection = projection.select(Arrays.asList(columns));
+         parser.setDecoded(selection::reads);
+         RowIterator rows = new RowIterator(parser, file, selection);
+         int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+         return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows,
+                                                                         characteristics),
+                                     false)
+                             .peek(row -> ROWS_COUNTER.increment())
+                             .onClose(() -> close(parser));
+      } catch (IOException | RuntimeException e) {
+         channel.close();
+         throw e;
+      }
+   }
+   
+   private static void close(final DelimitedParser parser) {
+      try {
+         parser.close();
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+   
+   @Override
+   public List<ExcelRow> read(final File file, final String sheetName)
+                         throws IOException {
+      return read(file, sheetName, ColumnProjection.all());
+   }
+   
+   @Override
+   public List<ExcelRow> read(final File file, final String sheetName,
+                              final ColumnProjection projection)
+                         throws IOException {
+      try (Timer.Sample sample = READ_TIMER.start();
+           Stream<ExcelRow> rows = stream(file, sheetName, projection)) {
+         return Collections.unmodifiableList(rows.collect(Collectors.toList()));
+      } catch (UncheckedIOException e) {
+         throw e.getCause();
+      }
+   }
+   
+}
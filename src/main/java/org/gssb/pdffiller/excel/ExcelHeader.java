@@ -0,0 +1,112 @@
+package org.gssb.pdffiller.excel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable column names of a sheet shared by all of its rows. Position
+ * <code>i</code> names the value at position <code>i</code> of a row; a
+ * position without a name is not a column. If several positions share a
+ * name, the name refers to the last of them.
+ * <p>
+ * The header is the key layout of the row maps of its rows: the slot of a
+ * column is its position.
+ */
+public final class ExcelHeader implements KeyLayout {
+
+   static final ExcelHeader EMPTY = new ExcelHeader(new String[0]);
+
+   private final String[] names;
+   // created on first use; headers extended cell by cell are never looked up
+   private volatile Map<String, Integer> indexes;
+   // layouts of the groups of this header's rows, released with the header
+   final ConcurrentMap<GroupLayout.Key, GroupLayout> groupLayouts =
+         new ConcurrentHashMap<>();
+
+   private ExcelHeader(final String[] names) {
+      this.names = names;
+   }
+
+   private Map<String, Integer> getIndexes() {
+      Map<String, Integer> nameIndexes = this.indexes;
+      if (nameIndexes == null) {
+         nameIndexes = new HashMap<>();
+         for (int i = 0; i < this.names.length; i++) {
+            if (this.names[i] != null) {
+               nameIndexes.put(this.names[i], i);
+            }
+         }
+         nameIndexes = Collections.unmodifiableMap(nameIndexes);
+         this.indexes = nameIndexes;
+      }
+      return nameIndexes;
+   }
+
+   public static ExcelHeader of(final List<String> names) {
+      return new ExcelHeader(names.toArray(new String[0]));
+   }
+
+   /**
+    * @return a copy of the header that names one more position
+    */
+   ExcelHeader with(final int index, final String name) {
+      String[] extended = Arrays.copyOf(this.names,
+                                        Math.max(this.names.length, index + 1));
+      extended[index] = name;
+      return new ExcelHeader(extended);
+   }
+
+   /**
+    * @return number of positions, including positions without a name
+    */
+   public int size() {
+      return this.names.length;
+   }
+
+   /**
+    * @return name of a position; null if the position is not a column
+    */
+   public String getName(final int index) {
+      return index >= 0 && index < this.names.length ? this.names[index] : null;
+   }
+
+   /**
+    * @return position of a column; -1 if the header does not contain it
+    */
+   public int indexOf(final String name) {
+      Integer index = getIndexes().get(name);
+      return index != null ? index : -1;
+   }
+
+   @Override
+   public int slotOf(final Object key) {
+      return key instanceof String ? indexOf((String) key) : -1;
+   }
+   
+   /**
+    * @return true if the name refers to this position and not to a later
+    *         position with the same name
+    */
+   boolean isColumn(final int index) {
+      String name = getName(index);
+      return name != null && getIndexes().get(name) == index;
+   }
+
+   @Override
+   public int hashCode() {
+      return Arrays.hashCode(this.names);
+   }
+
+   @Override
+   public boolean equals(final Object obj) {
+      if (this == obj) return true;
+      if (!(obj instanceof ExcelHeader)) return false;
+      return Arrays.equals(this.names, ((ExcelHeader) obj).names);
+   }
+
+}
@@ -1,16 +1,28 @@
 package org.gssb.pdffiller.excel;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.poi.EncryptedDocumentException;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.poifs.filesystem.FileMagic;
 import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.ss.usermodel.CellValue;
 import org.apache.poi.ss.usermodel.FormulaEvaluator;
 import org.apache.poi.ss.usermodel.Row;
@@ -19,18 +31,47 @@ import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.gssb.pdffiller.config.AppProperties;
 import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.gssb.pdffiller.metrics.Counter;
+import org.gssb.pdffiller.metrics.Metrics;
+import org.gssb.pdffiller.metrics.Timer;
 
-public class ExcelReader {
+public class ExcelReader implements RowSource {
    
    private final static Logger logger = LogManager.getLogger(ExcelReader.class);
    
    private static final String MISSING_SHEET_ERROR = 
          "The Excel sheet %s is not defined in the Excel workbook %s.";
+   private static final String SNAPSHOT_INFO =
+         "Read %d rows of sheet %s from the snapshot %s.";
+   
+   private static final Timer READ_TIMER =
+         Metrics.timer("excel.read", "Time to read all rows of an Excel sheet.");
+   private static final Counter ROWS_COUNTER =
+         Metrics.counter("excel.rows", "Data rows read from Excel sheets.");
+   
+   private final boolean cachedFormulaResults;
+   private final boolean streaming;
+   private final Optional<String> snapshotFolder;
+   private final String secretColumn;
    
    public ExcelReader(final AppProperties properties) {
+      this.cachedFormulaResults = properties.isCachedFormulaResults();
+      this.streaming = properties.isExcelStreaming();
+      this.snapshotFolder = properties.getExcelSnapshotFolder();
+      this.secretColumn = properties.getExcelSecretColumnName();
    }
    
-   private String getValue(final Cell cell, final FormulaEvaluator evaluator) {
+   /**
+    * Writes whole numbers without a fraction, all other numbers as returned
+    * by {@link Double#toString(double)}.
+    */
+   static String formatNumber(final double dvalue) {
+      int ivalue = (int) dvalue;
+      return (dvalue - ivalue < 0.000000001) ? "" + ivalue
+                                              : Double.toString(dvalue);
+   }
+   
+   private String getEvaluatedValue(final Cell cell, final FormulaEvaluator evaluator) {
       CellValue cellValue = evaluator.evaluate(cell);
 
       String value;
@@ -39,11 +80,7 @@ public class ExcelReader {
          value = Boolean.toString(cellValue.getBooleanValue());
          break;
       case NUMERIC:
-         double dvalue = cellValue.getNumberValue();
-         int    ivalue = (int) dvalue;
-         value = (dvalue - ivalue < 0.000000001)
-                         ? value = "" + ivalue
-                         : Double.toString(cellValue.getNumberValue());
+         value = formatNumber(cellValue.getNumberValue());
          break;
       case STRING:
          value = cellValue.getStringValue();
@@ -64,63 +101,291 @@ public class ExcelReader {
       return value;
    }
    
-   private boolean isRowEmpty(final Row row, final FormulaEvaluator evaluator) {
-      boolean isEmpty = true;
+   /**
+    * Provides the result saved with the workbook for formula cells.
+    */
+   private String getCachedValue(final Cell cell) {
+      CellType cellType = cell.getCellType() == CellType.FORMULA
+                             ? cell.getCachedFormulaResultType()
+                             : cell.getCellType();
+      String value;
+      switch (cellType) {
+      case BOOLEAN:
+         value = Boolean.toString(cell.getBooleanCellValue());
+         break;
+      case NUMERIC:
+         value = formatNumber(cell.getNumericCellValue());
+         break;
+      case STRING:
+         value = cell.getStringCellValue();
+         break;
+      default:
+         value = "";
+      }
+      return value;
+   }
+   
+   private String getValue(final Cell cell,
+                           final Optional<FormulaEvaluator> evaluator) {
+      return evaluator.isPresent() ? getEvaluatedValue(cell, evaluator.get())
+                                   : getCachedValue(cell);
+   }
+   
+   static boolean isEmpty(final String value) {
+      return value == null || value.equals("") || value.equals("0");
+   }
+   
+   /**
+    * @return true if no value is defined; a value of 0 counts as undefined
+    */
+   static boolean isRowEmpty(final Iterable<String> values) {
+      for (String value : values) {
+         if (!isEmpty(value)) {
+            return false;
+         }
+      }
+      return true;
+   }
+   
+   /**
+    * Evaluates every physical cell of a row that the selection reads
+    * exactly once. Positions without a cell are empty. Cells the selection
+    * does not read are never evaluated; their cached value is only checked
+    * while the row still looks empty.
+    * 
+    * @return values of the projected columns; null if the row is empty,
+    *         including cells outside of the header
+    */
+   private String[] readValues(final Optional<FormulaEvaluator> evaluator,
+                               final Row row,
+                               final ColumnProjection.Selection selection) {
+      String[] values = new String[selection.getHeader().size()];
+      Arrays.fill(values, "");
+      boolean empty = true;
       for (Cell cell : row) {
-         String cellValue = getValue(cell, evaluator);
-         if (cellValue != null && !cellValue.equals("") && !cellValue.equals("0")) {
-            isEmpty = false;
-            break;
+         int column = cell.getColumnIndex();
+         if (!selection.reads(column)) {
+            empty = empty && isEmpty(getCachedValue(cell));
+            continue;
+         }
+         
+         String value = getValue(cell, evaluator);
+         empty = empty && isEmpty(value);
+         int position = selection.getPosition(column);
+         if (position >= 0) {
+            values[position] = value;
          }
       }
-      return isEmpty;
+      return empty ? null : values;
    }
 
-   private List<String> readHeader(final FormulaEvaluator evaluator, final Sheet sheet) {
+   private List<String> readHeader(final Optional<FormulaEvaluator> evaluator,
+                                   final Sheet sheet) {
       List<String> header = new ArrayList<>();
       Row topRow = sheet.getRow(0);
-      assert(!isRowEmpty(topRow, evaluator));
       for (Cell cell : topRow) {
          String cellValue = getValue(cell, evaluator);
          header.add(cellValue);
       }
+      assert(!isRowEmpty(header));
       return header;
    }
    
-   private ExcelRow createRow(final FormulaEvaluator evaluator,
-                              final Row currentRow, final List<String> header) {
-      ExcelRow excelRow = new ExcelRow();
-      for (int i=0; i < header.size(); i++) {
-         Cell cell = currentRow.getCell(i);
-         String value = cell!=null ? getValue(cell, evaluator) : "";
-         excelRow.addExcelCell(new ExcelCell(i, header.get(i), value));
-      }
-      return excelRow;
-   }
-   
-   private List<ExcelRow> readDataRows(final FormulaEvaluator evaluator, 
-                                       final Sheet sheet, final List<String> header) {
+   private List<ExcelRow> readDataRows(final Optional<FormulaEvaluator> evaluator, 
+                                       final Sheet sheet, final List<String> columns,
+                                       final ColumnProjection projection) {
+      // all rows share the header of the projected columns
+      ColumnProjection.Selection selection = projection.select(columns);
+      ExcelHeader header = selection.getHeader();
       List<ExcelRow> excelRows = new ArrayList<>();
       for (int i = 1; i <= sheet.getLastRowNum(); i++) {
          Row currentRow = sheet.getRow(i);
+         if (currentRow == null) continue;
+         
+         String[] values = readValues(evaluator, currentRow, selection);
          // skip empty row
-         if (isRowEmpty(currentRow, evaluator)) continue;
+         if (values == null) continue;
          
-         ExcelRow excelRow = createRow(evaluator, currentRow, header);
-         excelRows.add(excelRow);
+         excelRows.add(new ExcelRow(header, values, i + 1));
+      }
+      return excelRows;
+   }
+   
+   private boolean isXlsx(final File excelFile) throws IOException {
+      return FileMagic.valueOf(excelFile) == FileMagic.OOXML;
+   }
+   
+   /**
+    * @return the snapshot of the sheet in the snapshot folder next to the
+    *         workbook; empty if snapshots are disabled
+    */
+   Optional<RowSnapshot> getSnapshot(final File excelFile, final String sheetName,
+                                     final ColumnProjection projection) throws IOException {
+      if (!this.snapshotFolder.isPresent()) {
+         return Optional.empty();
       }
+      Path workbook = excelFile.toPath().toAbsolutePath();
+      Path folder = workbook.getParent().resolve(this.snapshotFolder.get());
+      return Optional.of(new RowSnapshot(folder, workbook, sheetName,
+                                         "cached_formulas=" + this.cachedFormulaResults +
+                                         ";streaming=" + this.streaming +
+                                         ";columns=" + projection,
+                                         this.secretColumn));
+   }
+   
+   private Optional<RowSnapshot.Rows> loadSnapshot(final Optional<RowSnapshot> snapshot,
+                                                   final String sheetName) {
+      Optional<RowSnapshot.Rows> excelRows = snapshot.flatMap(RowSnapshot::load);
+      excelRows.ifPresent(rows -> logger.info(String.format(SNAPSHOT_INFO,
+                                                            rows.getRowCount(),
+                                                            sheetName,
+                                                            snapshot.get().getSnapshotFile())));
       return excelRows;
    }
    
-   public List<ExcelRow> read(final File excelFile, final String sheetName)
+   private static Stream<ExcelRow> toStream(final SheetRows rows) {
+      int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+      return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows,
+                                                                      characteristics),
+                                  false)
+                          .onClose(rows::close);
+   }
+   
+   /**
+    * @return true if the sheet is streamed: XLSX workbooks if streaming is
+    *         enabled
+    */
+   private boolean isStreamed(final File excelFile) throws IOException {
+      return this.streaming && isXlsx(excelFile);
+   }
+   
+   /**
+    * Streams the data rows of an XLSX sheet without loading the workbook if
+    * streaming is enabled; formula cells then provide the result saved with
+    * the workbook. Other workbooks are loaded completely and their formulas
+    * are evaluated unless cached formula results are enabled. The stream
+    * holds the workbook open and must be closed by the caller. The rows of
+    * a current snapshot are decoded as they are read instead of reading the
+    * workbook; otherwise a new snapshot is saved once all rows were read. A
+    * stream closed early keeps the previous snapshot. The time spent
+    * reading is recorded when the stream ends or is closed.
+    */
+   @Override
+   public Stream<ExcelRow> stream(final File excelFile, final String sheetName,
+                                  final ColumnProjection projection)
+                           throws IOException, InvalidFormatException {
+      assert(excelFile.exists()) : "File does not exist: " + excelFile.toString();
+      long start = System.nanoTime();
+      Optional<RowSnapshot> snapshot = getSnapshot(excelFile, sheetName, projection);
+      Optional<RowSnapshot.Rows> snapshotRows = loadSnapshot(snapshot, sheetName);
+      if (snapshotRows.isPresent()) {
+         return toStream(new SheetRows(snapshotRows.get(), () -> { }, Optional.empty(),
+                                       System.nanoTime() - start));
+      }
+      if (!isStreamed(excelFile)) {
+         List<ExcelRow> excelRows = readWorkbook(excelFile, sheetName, projection);
+         snapshot.ifPresent(s -> s.save(excelRows));
+         READ_TIMER.record(System.nanoTime() - start);
+         return excelRows.stream();
+      }
+      StreamingSheetReader reader = new StreamingSheetReader(excelFile, sheetName,
+                                                             projection);
+      return toStream(new SheetRows(reader, reader::close,
+                                    snapshot.map(RowSnapshot::createWriter),
+                                    System.nanoTime() - start));
+   }
+   
+   /**
+    * Reads all data rows of a sheet. XLSX workbooks are streamed if
+    * streaming is enabled, other workbooks such as XLS or encrypted files
+    * are loaded completely. The rows are loaded from a snapshot if the
+    * workbook has not changed since the snapshot was saved; otherwise a new
+    * snapshot is saved.
+    */
+   @Override
+   public List<ExcelRow> read(final File excelFile, final String sheetName,
+                              final ColumnProjection projection)
                          throws IOException, EncryptedDocumentException,
                                              InvalidFormatException {
-
+      try (Stream<ExcelRow> rows = stream(excelFile, sheetName, projection)) {
+         return Collections.unmodifiableList(rows.collect(Collectors.toList()));
+      }
+   }
+   
+   /**
+    * Rows of a streamed sheet or a loaded snapshot. Streamed rows are
+    * written to the snapshot as they are read; the snapshot is saved when
+    * the last row was read. Only the time spent reading rows counts towards
+    * the read time, not the time the caller spends processing them.
+    */
+   private static class SheetRows implements Iterator<ExcelRow>, Closeable {
+      
+      private final Iterator<ExcelRow> rows;
+      private final Runnable closer;
+      private final Optional<RowSnapshot.Writer> snapshot;
+      private long readNanos;
+      private boolean recorded = false;
+      
+      /**
+       * @param closer releases the source of the rows
+       */
+      SheetRows(final Iterator<ExcelRow> rows, final Runnable closer,
+                final Optional<RowSnapshot.Writer> snapshot, final long openNanos) {
+         this.rows = rows;
+         this.closer = closer;
+         this.snapshot = snapshot;
+         this.readNanos = openNanos;
+      }
+      
+      private void recordReadTime() {
+         if (!this.recorded) {
+            this.recorded = true;
+            READ_TIMER.record(this.readNanos);
+         }
+      }
+      
+      @Override
+      public boolean hasNext() {
+         long start = System.nanoTime();
+         boolean hasNext = this.rows.hasNext();
+         if (!hasNext) {
+            this.snapshot.ifPresent(RowSnapshot.Writer::commit);
+         }
+         this.readNanos += System.nanoTime() - start;
+         if (!hasNext) {
+            recordReadTime();
+         }
+         return hasNext;
+      }
+      
+      @Override
+      public ExcelRow next() {
+         long start = System.nanoTime();
+         ExcelRow row = this.rows.next();
+         ROWS_COUNTER.increment();
+         this.snapshot.ifPresent(s -> s.add(row));
+         this.readNanos += System.nanoTime() - start;
+         return row;
+      }
+      
+      @Override
+      public void close() {
+         this.closer.run();
+         this.snapshot.ifPresent(RowSnapshot.Writer::close);
+         recordReadTime();
+      }
+   }
+   
+   List<ExcelRow> readWorkbook(final File excelFile, final String sheetName,
+                               final ColumnProjection projection)
+                          throws IOException, EncryptedDocumentException {
       // Creating a Workbook from an Excel file (.xls or .xlsx)
-      assert(excelFile.exists()) : "File does not exist: " + excelFile.toString();
       Workbook workbook = WorkbookFactory.create(excelFile);
-      FormulaEvaluator evaluator = workbook.getCreationHelper()
-                                           .createFormulaEvaluator();
+      // formulas are not evaluated if the saved results are used
+      Optional<FormulaEvaluator> evaluator =
+            this.cachedFormulaResults
+               ? Optional.empty()
+               : Optional.of(workbook.getCreationHelper().createFormulaEvaluator());
 
       Sheet sheet = workbook.getSheet(sheetName);
       if (sheet == null) {
@@ -135,9 +400,10 @@ public class ExcelReader {
       // read header
       List<String> header = readHeader(evaluator, sheet);
       // read data rows
-      List<ExcelRow> excelRows = readDataRows(evaluator, sheet, header);
+      List<ExcelRow> excelRows = readDataRows(evaluator, sheet, header, projection);
       // Closing the workbook
       workbook.close();
+      ROWS_COUNTER.add(excelRows.size());
       
       return Collections.unmodifiableList(excelRows);
    }
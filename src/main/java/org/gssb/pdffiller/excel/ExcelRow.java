@@ -1,46 +1,139 @@
 package org.gssb.pdffiller.excel;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+/**
+ * Values of a data row. The column names are held by a header shared by
+ * all rows of a sheet; the row itself only holds its values by position.
+ * Cells and maps are views created on request.
+ */
 public class ExcelRow {
    
    private static final String INDEX_FORM = "_%s";
    
-   private final Map<Integer, ExcelCell> definedIndexes = new HashMap<>();
-   private final Map<String, ExcelCell> row = new HashMap<>();
+   private ExcelHeader header;
+   private String[] values;
+   private final int rowNumber;
+   // shared by all consumers of the row's values; created on first use
+   private RowMap rowMap;
    
+   public ExcelRow() {
+      this(ExcelHeader.EMPTY, new String[0]);
+   }
+   
+   /**
+    * @param values value of every position of the header; the array is
+    *               owned by the row
+    */
+   public ExcelRow(final ExcelHeader header, final String[] values) {
+      this(header, values, 0);
+   }
+   
+   /**
+    * @param values    value of every position of the header; the array is
+    *                  owned by the row
+    * @param rowNumber number of the row in the sheet, starting with 1 for
+    *                  the header row
+    */
+   public ExcelRow(final ExcelHeader header, final String[] values,
+                   final int rowNumber) {
+      super();
+      assert(header.size() == values.length);
+      this.header = header;
+      this.values = values;
+      this.rowNumber = rowNumber;
+   }
+   
+   public ExcelHeader getHeader() {
+      return this.header;
+   }
+   
+   /**
+    * @return number of the row in the sheet, starting with 1 for the header
+    *         row; 0 if the row was not read from a sheet
+    */
+   public int getRowNumber() {
+      return this.rowNumber;
+   }
+   
+   private ExcelCell createCell(final int index) {
+      return new ExcelCell(index, this.header.getName(index), this.values[index]);
+   }
+   
+   private IntStream columnIndexes() {
+      return IntStream.range(0, this.values.length)
+                      .filter(this.header::isColumn);
+   }
+   
+   /**
+    * @return a view of the cells by column name
+    */
    public Map<String, ExcelCell> getRow() {
-      return Collections.unmodifiableMap(this.row);
+      Map<String, ExcelCell> cells = new HashMap<>();
+      columnIndexes().forEach(i -> cells.put(this.header.getName(i), createCell(i)));
+      return Collections.unmodifiableMap(cells);
    }
    
-   public Map<String, String> getRowMap() {
-      return this.row
-                 .entrySet()
-                 .stream()
-                 .collect(Collectors.toMap(e -> e.getKey(),
-                                           e -> e.getValue()
-                                                 .getColumnValue()));
+   /**
+    * @return an unmodifiable view of the values by column name, created
+    *         once and shared by all callers
+    */
+   public IndexedMap getRowMap() {
+      RowMap map = this.rowMap;
+      if (map == null) {
+         map = new RowMap(this.header, this.values);
+         this.rowMap = map;
+      }
+      return map;
    }
    
+   /**
+    * Adds a cell to a row that was not created from a shared header. The
+    * row gets a header of its own that is copied for every new column, so
+    * this is meant for rows with few columns such as test data.
+    */
    public void addExcelCell(final ExcelCell cell) {
-      ExcelCell original = this.row.put(cell.getColumnName(), cell);
-      // check that cell is new or replaces a cell with the same index
-      assert(original == null ||
-            this.definedIndexes.get(cell.getColumnIndex())==original);
-      this.definedIndexes.put(cell.getColumnIndex(), cell);
+      int index = cell.getColumnIndex();
+      String original = this.header.getName(index);
+      if (!cell.getColumnName().equals(original)) {
+         this.header = this.header.with(index, cell.getColumnName());
+      }
+      if (index >= this.values.length) {
+         this.values = Arrays.copyOf(this.values, index + 1);
+      }
+      this.values[index] = cell.getColumnValue();
+      this.rowMap = null;
+   }
+   
+   public boolean containsColumn(final String columnName) {
+      return this.header.indexOf(columnName) >= 0;
    }
    
    public ExcelCell getValue(final String columnName) {
-      ExcelCell value = this.row.get(columnName);
-      if (value==null && this.row.keySet().contains(columnName)) {
+      int index = this.header.indexOf(columnName);
+      if (index < 0) {
+         return null;
+      }
+      if (this.values[index]==null) {
          throw new ColumnNotFoundException("Value for expected column not defined");
       }
-      return value;
+      return createCell(index);
+   }
+   
+   /**
+    * @return the value at a position of the header; null if the row has no
+    *         value at that position
+    */
+   public String getColumnValue(final int columnIndex) {
+      return columnIndex >= 0 && columnIndex < this.values.length
+                ? this.values[columnIndex] : null;
    }
    
    private String getFormNamePostfix(final int index) {
@@ -50,13 +143,14 @@ public class ExcelRow {
    private Map<String, String> createKeyValueMap(final int index,
                                                  final Predicate<String> keyCondition) {
       String post = getFormNamePostfix(index);
-      return this.row
-                 .entrySet()
-                 .stream()
-                 .filter(e -> keyCondition.test(e.getKey()))
-                 .collect(Collectors.toMap(e -> e.getKey() + post,
-                                           e -> e.getValue()
-                                                 .getColumnValue()));
+      Map<String, String> map = new HashMap<>();
+      for (int i = 0; i < this.values.length; i++) {
+         String name = this.header.getName(i);
+         if (this.header.isColumn(i) && keyCondition.test(name)) {
+            map.put(name + post, this.values[i]);
+         }
+      }
+      return map;
    }
    
    Map<String, String> createHeaderFormMap(final Set<String> groupColumns) {
@@ -70,24 +164,21 @@ public class ExcelRow {
       return createKeyValueMap(index, keyCondition);
    }
    
+   /**
+    * @return the same view as {@link #getRowMap()}
+    */
    public Map<String, String> createRowMap() {
-      return createFormMap(-1, Collections.emptySet());
+      return getRowMap();
    }
    
    public String printHeaders() {
-      return this.row.values()
-                 .stream()
-                 .sorted((c1, c2) -> c1.getColumnIndex() - c2.getColumnIndex())
-                 .map(c -> c.getColumnName())
-                 .collect(Collectors.joining(", "));
+      return columnIndexes().mapToObj(this.header::getName)
+                            .collect(Collectors.joining(", "));
    }
    
    public String printValues() {
-      return this.row.values()
-                 .stream()
-                 .sorted((c1, c2) -> c1.getColumnIndex() - c2.getColumnIndex())
-                 .map(c -> c.getColumnValue())
-                 .collect(Collectors.joining(", "));
+      return columnIndexes().mapToObj(i -> this.values[i])
+                            .collect(Collectors.joining(", "));
    }
    
 }
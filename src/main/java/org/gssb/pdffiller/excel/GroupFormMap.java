@@ -0,0 +1,81 @@
+package org.gssb.pdffiller.excel;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unmodifiable form map of a group that reads its values from the rows of
+ * the group. The keys are held by a {@link GroupLayout} shared by all
+ * groups of the same shape, so no key is created and no value is copied
+ * when the map is created.
+ */
+public final class GroupFormMap extends AbstractMap<String, String>
+                                implements IndexedMap {
+
+   private final GroupLayout layout;
+   private final List<ExcelRow> groupRows;
+
+   GroupFormMap(final GroupLayout layout, final List<ExcelRow> groupRows) {
+      super();
+      this.layout = layout;
+      this.groupRows = groupRows;
+   }
+
+   @Override
+   public GroupLayout getLayout() {
+      return this.layout;
+   }
+
+   @Override
+   public String getValue(final int slot) {
+      return this.layout.getValue(this.groupRows, slot);
+   }
+
+   @Override
+   public String get(final Object key) {
+      int slot = this.layout.slotOf(key);
+      return slot >= 0 ? getValue(slot) : null;
+   }
+
+   @Override
+   public boolean containsKey(final Object key) {
+      return this.layout.slotOf(key) >= 0;
+   }
+
+   @Override
+   public int size() {
+      return this.layout.size();
+   }
+
+   @Override
+   public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+         @Override
+         public Iterator<Map.Entry<String, String>> iterator() {
+            Iterator<String> keys = GroupFormMap.this.layout.getKeys().iterator();
+            return new Iterator<Map.Entry<String, String>>() {
+               @Override
+               public boolean hasNext() {
+                  return keys.hasNext();
+               }
+
+               @Override
+               public Map.Entry<String, String> next() {
+                  String key = keys.next();
+                  return new SimpleImmutableEntry<>(key, get(key));
+               }
+            };
+         }
+
+         @Override
+         public int size() {
+            return GroupFormMap.this.layout.size();
+         }
+      };
+   }
+
+}
@@ -0,0 +1,126 @@
+package org.gssb.pdffiller.excel;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Form keys of the values of a group. The group columns of the head row
+ * are named by their column; the other columns of row <code>n</code> are
+ * named by their column with the suffix <code>_n</code>. The keys only
+ * depend on the header, the group columns and the number of rows, so a
+ * layout is created once and shared by all groups of the same shape. The
+ * layouts are kept by the header, so they are released with the rows of a
+ * sheet and need no limit.
+ * <p>
+ * Each key has a slot with the row and the column position of its value.
+ * If several values have the same key, the key refers to the last of them.
+ */
+public final class GroupLayout implements KeyLayout {
+
+   private static final String INDEX_FORM = "_";
+
+   /**
+    * Shape of the groups of one header.
+    */
+   static final class Key {
+      private final Set<String> groupColumns;
+      private final int rowCount;
+
+      Key(final Set<String> groupColumns, final int rowCount) {
+         this.groupColumns = groupColumns;
+         this.rowCount = rowCount;
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hash(this.groupColumns, this.rowCount);
+      }
+
+      @Override
+      public boolean equals(final Object obj) {
+         if (this == obj) return true;
+         if (!(obj instanceof Key)) return false;
+         Key other = (Key) obj;
+         return this.rowCount == other.rowCount &&
+                this.groupColumns.equals(other.groupColumns);
+      }
+   }
+
+   private final Map<String, Integer> slots;
+   private final int[] rows;
+   private final int[] positions;
+
+   private GroupLayout(final ExcelHeader header, final Set<String> groupColumns,
+                       final int rowCount) {
+      super();
+      int capacity = header.size() * (rowCount + 1);
+      this.rows = new int[capacity];
+      this.positions = new int[capacity];
+      Map<String, Integer> keySlots = new LinkedHashMap<>();
+      int slot = 0;
+      for (int i = 0; i < header.size(); i++) {
+         if (header.isColumn(i) && groupColumns.contains(header.getName(i))) {
+            keySlots.put(header.getName(i), slot);
+            this.positions[slot++] = i;
+         }
+      }
+      for (int r = 0; r < rowCount; r++) {
+         String suffix = INDEX_FORM + (r + 1);
+         for (int i = 0; i < header.size(); i++) {
+            if (header.isColumn(i) && !groupColumns.contains(header.getName(i))) {
+               keySlots.put(header.getName(i) + suffix, slot);
+               this.rows[slot] = r;
+               this.positions[slot++] = i;
+            }
+         }
+      }
+      this.slots = Collections.unmodifiableMap(keySlots);
+   }
+
+   /**
+    * @return the layout of groups with the given number of rows that all
+    *         share the header
+    */
+   static GroupLayout of(final ExcelHeader header, final Set<String> groupColumns,
+                         final int rowCount) {
+      GroupLayout layout = header.groupLayouts.get(new Key(groupColumns, rowCount));
+      if (layout == null) {
+         layout = header.groupLayouts.computeIfAbsent(new Key(Set.copyOf(groupColumns),
+                                                              rowCount),
+                                                      k -> new GroupLayout(header,
+                                                                           k.groupColumns,
+                                                                           k.rowCount));
+      }
+      return layout;
+   }
+
+   /**
+    * @return number of keys
+    */
+   public int size() {
+      return this.slots.size();
+   }
+
+   /**
+    * @return the keys in the order of the head row's group columns
+    *         followed by the columns of each row
+    */
+   public Set<String> getKeys() {
+      return this.slots.keySet();
+   }
+
+   @Override
+   public int slotOf(final Object key) {
+      Integer slot = this.slots.get(key);
+      return slot != null ? slot : -1;
+   }
+
+   String getValue(final List<ExcelRow> groupRows, final int slot) {
+      return groupRows.get(this.rows[slot]).getColumnValue(this.positions[slot]);
+   }
+
+}
@@ -0,0 +1,18 @@
+package org.gssb.pdffiller.excel;
+
+import java.util.Map;
+
+/**
+ * Unmodifiable map whose values can also be read by the slot of their key
+ * in the shared {@link KeyLayout} of the map.
+ */
+public interface IndexedMap extends Map<String, String> {
+
+   KeyLayout getLayout();
+
+   /**
+    * @return value of a slot of the layout
+    */
+   String getValue(int slot);
+
+}
@@ -0,0 +1,15 @@
+package org.gssb.pdffiller.excel;
+
+/**
+ * Assignment of the keys of {@link IndexedMap}s to slots. Maps with the
+ * same layout hold the value of a key in the same slot, so a consumer
+ * looks up the slots of its keys once per layout instead of once per map.
+ */
+public interface KeyLayout {
+
+   /**
+    * @return slot of a key; -1 if the layout does not contain the key
+    */
+   int slotOf(Object key);
+
+}
@@ -34,10 +34,22 @@ public class RowGroup {
       return Collections.unmodifiableList(this.detailRecords);
    }
    
+   /**
+    * @return the values of the group columns of the head row and the other
+    *         values of every row <code>n</code> with the suffix
+    *         <code>_n</code>; rows that share a header are read through a
+    *         shared {@link GroupLayout} instead of being copied
+    */
    public Map<String, String> createFormMap(final Set<String> groupColumns) {
       if (this.detailRecords.isEmpty()) {
          return Collections.emptyMap();
       }
+      ExcelHeader header = getHeadRow().getHeader();
+      if (this.detailRecords.stream().allMatch(r -> header.equals(r.getHeader()))) {
+         return new GroupFormMap(GroupLayout.of(header, groupColumns,
+                                                this.detailRecords.size()),
+                                 this.detailRecords);
+      }
       Map<String, String> headerMap = getHeadRow().createHeaderFormMap(groupColumns);
       
       Map<String, String> allMaps = new HashMap<>(headerMap);
@@ -0,0 +1,516 @@
+package org.gssb.pdffiller.excel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.metrics.Counter;
+import org.gssb.pdffiller.metrics.Metrics;
+
+/**
+ * Groups rows by the value of the group column and returns the groups in
+ * the order of their group ids; the rows of a group keep their input order.
+ * Rows are collected until their estimated size exceeds the memory limit.
+ * The collected rows are then sorted by group id and spilled as a run to a
+ * temporary file. The runs and the rows still in memory are merged while
+ * the groups are consumed, so the rows of a sheet do not need to fit into
+ * the heap at once.
+ * <p>
+ * Every run keeps a sparse index of the group ids in its file. A start
+ * group seeks each run to the rows of that group instead of reading and
+ * discarding all groups before it.
+ */
+public class RowGroupSorter {
+
+   private final static Logger logger = LogManager.getLogger(RowGroupSorter.class);
+
+   private static final String SPILL_ERROR =
+         "Unable to write sorted rows to %s.";
+   private static final String RUN_ERROR =
+         "Unable to read sorted rows from %s.";
+   private static final String DELETE_WARN =
+         "Unable to delete the sorted rows in %s.";
+
+   private static final Counter RUNS_COUNTER =
+         Metrics.counter("excel.group_runs",
+                         "Sorted runs of rows spilled to disk while grouping.");
+
+   // rows between two entries of the sparse index of a run
+   static final int INDEX_INTERVAL = 256;
+   // estimated heap of a row and of each value besides its characters
+   private static final int ROW_BYTES   = 64;
+   private static final int VALUE_BYTES = 48;
+
+   private final String groupColumn;
+   private final long memoryLimit;
+   private final Path spillFolder;
+
+   /**
+    * @param groupColumn column with the group id; null to return every row
+    *                    as a group of its own
+    * @param memoryLimit estimated bytes of rows kept in memory before they
+    *                    are spilled; 0 keeps all rows in memory
+    * @param spillFolder folder of the temporary run files
+    */
+   public RowGroupSorter(final String groupColumn, final long memoryLimit,
+                         final Path spillFolder) {
+      super();
+      this.groupColumn = groupColumn;
+      this.memoryLimit = memoryLimit;
+      this.spillFolder = spillFolder;
+   }
+
+   /**
+    * A row with its group id, which is compared many times while sorting.
+    */
+   private static final class SortEntry {
+      private final String groupId;
+      private final ExcelRow row;
+
+      SortEntry(final String groupId, final ExcelRow row) {
+         this.groupId = groupId;
+         this.row = row;
+      }
+   }
+
+   private static final Comparator<SortEntry> BY_GROUP_ID =
+         Comparator.comparing(e -> e.groupId);
+
+   /**
+    * Sorted rows of a run in memory or on disk, read one row at a time.
+    */
+   private abstract static class Cursor {
+      // runs are numbered in input order; equal group ids are merged in
+      // this order to keep the rows of a group in input order
+      private final int order;
+      protected SortEntry current;
+
+      Cursor(final int order) {
+         this.order = order;
+      }
+
+      /**
+       * Positions the cursor on the first row of the group or a later
+       * group.
+       */
+      abstract void seek(String groupId) throws IOException;
+
+      abstract void advance() throws IOException;
+
+      void close() throws IOException {
+      }
+   }
+
+   private static final Comparator<Cursor> CURSOR_ORDER =
+         Comparator.<Cursor, String>comparing(c -> c.current.groupId)
+                   .thenComparingInt(c -> c.order);
+
+   private static final class MemoryCursor extends Cursor {
+      private final List<SortEntry> entries;
+      private int position;
+
+      MemoryCursor(final int order, final List<SortEntry> entries) {
+         super(order);
+         this.entries = entries;
+      }
+
+      @Override
+      void seek(final String groupId) {
+         // first entry with a group id not less than the start group
+         int low = 0;
+         int high = this.entries.size();
+         while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.entries.get(middle).groupId.compareTo(groupId) < 0) {
+               low = middle + 1;
+            } else {
+               high = middle;
+            }
+         }
+         this.position = low;
+         advance();
+      }
+
+      @Override
+      void advance() {
+         this.current = this.position < this.entries.size()
+                           ? this.entries.get(this.position++) : null;
+      }
+   }
+
+   /**
+    * File of a spilled run. A row is written as the number of its header
+    * and its row number followed by its values; strings are written as the length of their
+    * UTF-8 encoding followed by its bytes, a length of -1 stands for null.
+    */
+   private static final class RunFile {
+      private final Path file;
+      private final int rowCount;
+      // group id and file offset of every INDEX_INTERVAL-th row
+      private final String[] indexIds;
+      private final long[] indexOffsets;
+
+      RunFile(final Path file, final int rowCount, final String[] indexIds,
+              final long[] indexOffsets) {
+         this.file = file;
+         this.rowCount = rowCount;
+         this.indexIds = indexIds;
+         this.indexOffsets = indexOffsets;
+      }
+   }
+
+   private static final class RunCursor extends Cursor {
+      private final RunFile run;
+      private final List<ExcelHeader> headers;
+      private final String groupColumn;
+      private FileChannel channel;
+      private DataInputStream in;
+      private int rowNumber;
+      private byte[] bytes = new byte[256];
+
+      RunCursor(final int order, final RunFile run, final List<ExcelHeader> headers,
+                final String groupColumn) {
+         super(order);
+         this.run = run;
+         this.headers = headers;
+         this.groupColumn = groupColumn;
+      }
+
+      private void open(final int indexEntry) throws IOException {
+         this.channel = FileChannel.open(this.run.file, StandardOpenOption.READ);
+         this.channel.position(this.run.indexOffsets[indexEntry]);
+         this.in = new DataInputStream(
+                      new BufferedInputStream(Channels.newInputStream(this.channel),
+                                              1 << 16));
+         this.rowNumber = indexEntry * INDEX_INTERVAL;
+      }
+
+      @Override
+      void seek(final String groupId) throws IOException {
+         // rows before the last indexed row of an earlier group belong to
+         // earlier groups
+         int low = 0;
+         int high = this.run.indexIds.length;
+         while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.run.indexIds[middle].compareTo(groupId) < 0) {
+               low = middle + 1;
+            } else {
+               high = middle;
+            }
+         }
+         open(Math.max(0, low - 1));
+         advance();
+         while (this.current != null && this.current.groupId.compareTo(groupId) < 0) {
+            advance();
+         }
+      }
+
+      private String readString() throws IOException {
+         int length = this.in.readInt();
+         if (length == -1) {
+            return null;
+         }
+         if (length > this.bytes.length) {
+            this.bytes = new byte[Math.max(length, this.bytes.length * 2)];
+         }
+         this.in.readFully(this.bytes, 0, length);
+         return new String(this.bytes, 0, length, StandardCharsets.UTF_8);
+      }
+
+      @Override
+      void advance() throws IOException {
+         if (this.channel == null) {
+            open(0);
+         }
+         if (this.rowNumber >= this.run.rowCount) {
+            this.current = null;
+            close();
+            return;
+         }
+         ExcelHeader header = this.headers.get(this.in.readInt());
+         int rowNumber = this.in.readInt();
+         String[] values = new String[header.size()];
+         for (int i = 0; i < values.length; i++) {
+            values[i] = readString();
+         }
+         ExcelRow row = new ExcelRow(header, values, rowNumber);
+         this.current = new SortEntry(row.getValue(this.groupColumn).getColumnValue(),
+                                      row);
+         this.rowNumber++;
+      }
+
+      @Override
+      void close() throws IOException {
+         if (this.in != null) {
+            this.in.close();
+         }
+      }
+   }
+
+   private static long estimateSize(final ExcelRow row) {
+      long size = ROW_BYTES;
+      for (int i = 0; i < row.getHeader().size(); i++) {
+         String value = row.getColumnValue(i);
+         size += value != null ? VALUE_BYTES + 2L * value.length() : Long.BYTES;
+      }
+      return size;
+   }
+
+   private static long writeString(final DataOutputStream out,
+                                   final String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+         return Integer.BYTES;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      return Integer.BYTES + bytes.length;
+   }
+
+   /**
+    * Reads the input, spills sorted runs and merges them into groups.
+    */
+   private class GroupIterator implements Iterator<RowGroup> {
+      private final Iterator<ExcelRow> rows;
+      private final Optional<String> startGroupId;
+      // headers of the spilled rows by the number written to the runs
+      private final List<ExcelHeader> headers = new ArrayList<>();
+      private final Map<ExcelHeader, Integer> headerNumbers = new IdentityHashMap<>();
+      private final List<Cursor> cursors = new ArrayList<>();
+      private PriorityQueue<Cursor> queue;
+      private Path runFolder;
+      private boolean grouped = true;
+      // first row of ungrouped rows, read to look for the group column
+      private ExcelRow pendingRow;
+
+      GroupIterator(final Iterator<ExcelRow> rows, final Optional<String> startGroupId) {
+         this.rows = rows;
+         this.startGroupId = startGroupId;
+      }
+
+      private int getHeaderNumber(final ExcelHeader header) {
+         return this.headerNumbers.computeIfAbsent(header, h -> {
+            this.headers.add(h);
+            return this.headers.size() - 1;
+         });
+      }
+
+      private RunFile spill(final List<SortEntry> entries) throws IOException {
+         if (this.runFolder == null) {
+            Files.createDirectories(RowGroupSorter.this.spillFolder);
+            this.runFolder = Files.createTempDirectory(RowGroupSorter.this.spillFolder,
+                                                       "pdffiller-groups");
+         }
+         Path file = this.runFolder.resolve("run" + this.cursors.size());
+         int indexSize = (entries.size() + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+         String[] indexIds = new String[indexSize];
+         long[] indexOffsets = new long[indexSize];
+         long offset = 0;
+         try (DataOutputStream out =
+                 new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                                                               1 << 16))) {
+            for (int r = 0; r < entries.size(); r++) {
+               SortEntry entry = entries.get(r);
+               if (r % INDEX_INTERVAL == 0) {
+                  indexIds[r / INDEX_INTERVAL] = entry.groupId;
+                  indexOffsets[r / INDEX_INTERVAL] = offset;
+               }
+               ExcelHeader header = entry.row.getHeader();
+               out.writeInt(getHeaderNumber(header));
+               out.writeInt(entry.row.getRowNumber());
+               offset += 2 * Integer.BYTES;
+               for (int i = 0; i < header.size(); i++) {
+                  offset += writeString(out, entry.row.getColumnValue(i));
+               }
+            }
+         }
+         RUNS_COUNTER.increment();
+         return new RunFile(file, entries.size(), indexIds, indexOffsets);
+      }
+
+      /**
+       * Creates the sorted runs of all rows. A run that fits into memory is
+       * not spilled.
+       */
+      private void sort(final ExcelRow first) throws IOException {
+         List<SortEntry> entries = new ArrayList<>();
+         long size = 0;
+         ExcelRow row = first;
+         while (row != null) {
+            entries.add(new SortEntry(row.getValue(RowGroupSorter.this.groupColumn)
+                                         .getColumnValue(),
+                                      row));
+            size += estimateSize(row);
+            if (RowGroupSorter.this.memoryLimit > 0 &&
+                size > RowGroupSorter.this.memoryLimit) {
+               entries.sort(BY_GROUP_ID);
+               this.cursors.add(new RunCursor(this.cursors.size(), spill(entries),
+                                              this.headers,
+                                              RowGroupSorter.this.groupColumn));
+               entries = new ArrayList<>();
+               size = 0;
+            }
+            row = this.rows.hasNext() ? this.rows.next() : null;
+         }
+         entries.sort(BY_GROUP_ID);
+         this.cursors.add(new MemoryCursor(this.cursors.size(), entries));
+      }
+
+      private void start() throws IOException {
+         this.queue = new PriorityQueue<>(CURSOR_ORDER);
+         if (!this.rows.hasNext()) {
+            return;
+         }
+         ExcelRow first = this.rows.next();
+         // grouping column not found -> process row by row
+         if (RowGroupSorter.this.groupColumn == null ||
+             !first.containsColumn(RowGroupSorter.this.groupColumn)) {
+            this.grouped = false;
+            this.pendingRow = first;
+            return;
+         }
+         sort(first);
+         for (Cursor cursor : this.cursors) {
+            if (this.startGroupId.isPresent()) {
+               cursor.seek(this.startGroupId.get());
+            } else {
+               cursor.advance();
+            }
+            if (cursor.current != null) {
+               this.queue.add(cursor);
+            } else {
+               cursor.close();
+            }
+         }
+         // groups start with the start group; there are none without it
+         if (this.startGroupId.isPresent() && !this.queue.isEmpty() &&
+             !this.queue.peek().current.groupId.equals(this.startGroupId.get())) {
+            this.queue.clear();
+         }
+      }
+
+      private RowGroup nextUngrouped() {
+         ExcelRow row = this.pendingRow != null ? this.pendingRow : this.rows.next();
+         this.pendingRow = null;
+         return new RowGroup(null, Arrays.asList(row));
+      }
+
+      private RowGroup nextGroup() throws IOException {
+         Cursor cursor = this.queue.poll();
+         String groupId = cursor.current.groupId;
+         List<ExcelRow> groupRows = new ArrayList<>();
+         while (cursor != null) {
+            groupRows.add(cursor.current.row);
+            cursor.advance();
+            if (cursor.current != null) {
+               this.queue.add(cursor);
+            }
+            cursor = !this.queue.isEmpty() &&
+                     this.queue.peek().current.groupId.equals(groupId)
+                        ? this.queue.poll() : null;
+         }
+         return new RowGroup(RowGroupSorter.this.groupColumn, groupRows);
+      }
+
+      @Override
+      public boolean hasNext() {
+         try {
+            if (this.queue == null) {
+               start();
+            }
+         } catch (IOException e) {
+            String msg = String.format(SPILL_ERROR, RowGroupSorter.this.spillFolder);
+            logger.error(msg, e);
+            throw new UncheckedIOException(msg, e);
+         }
+         return this.grouped ? !this.queue.isEmpty()
+                             : this.pendingRow != null || this.rows.hasNext();
+      }
+
+      @Override
+      public RowGroup next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         if (!this.grouped) {
+            return nextUngrouped();
+         }
+         try {
+            return nextGroup();
+         } catch (IOException e) {
+            String msg = String.format(RUN_ERROR, this.runFolder);
+            logger.error(msg, e);
+            throw new UncheckedIOException(msg, e);
+         }
+      }
+
+      void close() {
+         for (Cursor cursor : this.cursors) {
+            try {
+               cursor.close();
+            } catch (IOException e) {
+               logger.warn(String.format(RUN_ERROR, this.runFolder), e);
+            }
+         }
+         if (this.runFolder == null) {
+            return;
+         }
+         try (Stream<Path> files = Files.list(this.runFolder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+               Files.delete(file);
+            }
+            Files.delete(this.runFolder);
+         } catch (IOException e) {
+            logger.warn(String.format(DELETE_WARN, this.runFolder), e);
+         }
+      }
+   }
+
+   /**
+    * Streams the groups of the rows in the order of their group ids. If the
+    * first row has no group column, every row is a group of its own and the
+    * rows are streamed in input order. The stream closes the row stream and
+    * deletes the spilled runs when it is closed.
+    *
+    * @param startGroupId group the groups start with; without such a group
+    *                     the stream is empty
+    */
+   public Stream<RowGroup> group(final Stream<ExcelRow> rows,
+                                 final Optional<String> startGroupId) {
+      GroupIterator groups = new GroupIterator(rows.iterator(), startGroupId);
+      int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+      return StreamSupport.stream(Spliterators.spliteratorUnknownSize(groups,
+                                                                      characteristics),
+                                  false)
+                          .onClose(groups::close)
+                          .onClose(rows::close);
+   }
+
+}
@@ -0,0 +1,107 @@
+package org.gssb.pdffiller.excel;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Unmodifiable map of the values of a row by column name. The map reads
+ * the values array of the row and looks up names in the shared header, so
+ * it copies neither names nor values. The slots of the map are the
+ * positions of the header.
+ */
+final class RowMap extends AbstractMap<String, String> implements IndexedMap {
+
+   private final ExcelHeader header;
+   private final String[] values;
+   // computed on first use
+   private int size = -1;
+
+   RowMap(final ExcelHeader header, final String[] values) {
+      super();
+      this.header = header;
+      this.values = values;
+   }
+
+   @Override
+   public KeyLayout getLayout() {
+      return this.header;
+   }
+   
+   @Override
+   public String getValue(final int slot) {
+      return this.values[slot];
+   }
+   
+   @Override
+   public String get(final Object key) {
+      if (!(key instanceof String)) {
+         return null;
+      }
+      int index = this.header.indexOf((String) key);
+      return index >= 0 ? this.values[index] : null;
+   }
+
+   @Override
+   public boolean containsKey(final Object key) {
+      return key instanceof String && this.header.indexOf((String) key) >= 0;
+   }
+
+   @Override
+   public int size() {
+      if (this.size < 0) {
+         int count = 0;
+         for (int i = 0; i < this.values.length; i++) {
+            if (this.header.isColumn(i)) count++;
+         }
+         this.size = count;
+      }
+      return this.size;
+   }
+
+   @Override
+   public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+         @Override
+         public Iterator<Map.Entry<String, String>> iterator() {
+            return new Iterator<Map.Entry<String, String>>() {
+               private int next = advance(0);
+
+               private int advance(final int from) {
+                  int index = from;
+                  while (index < RowMap.this.values.length &&
+                         !RowMap.this.header.isColumn(index)) {
+                     index++;
+                  }
+                  return index;
+               }
+
+               @Override
+               public boolean hasNext() {
+                  return this.next < RowMap.this.values.length;
+               }
+
+               @Override
+               public Map.Entry<String, String> next() {
+                  if (!hasNext()) {
+                     throw new NoSuchElementException();
+                  }
+                  int index = this.next;
+                  this.next = advance(index + 1);
+                  return new SimpleImmutableEntry<>(RowMap.this.header.getName(index),
+                                                    RowMap.this.values[index]);
+               }
+            };
+         }
+
+         @Override
+         public int size() {
+            return RowMap.this.size();
+         }
+      };
+   }
+
+}
@@ -0,0 +1,399 @@
+package org.gssb.pdffiller.excel;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.manifest.Fingerprint;
+
+/**
+ * Binary copy of the rows of a sheet, loaded instead of parsing the workbook
+ * again. Each workbook, sheet and set of reader options, such as the
+ * projected columns, has its own snapshot file, so runs that read different
+ * columns do not replace each other's snapshot. The snapshot records the
+ * SHA-256 digest of the workbook content; a snapshot of a modified workbook
+ * does not match and is replaced when the workbook is read again.
+ * <p>
+ * The file contains a magic number, the format version, the key, the column
+ * names, the number of rows and the row number and values of every row.
+ * Strings are written as the length of their UTF-8 encoding followed by its
+ * bytes; a length of -1 stands for null. Snapshots are loaded memory-mapped
+ * and their rows are decoded as they are read.
+ * <p>
+ * Snapshots are not encrypted, so the rows of a sheet that contains the
+ * secret column are never saved.
+ */
+class RowSnapshot {
+
+   private final static Logger logger = LogManager.getLogger(RowSnapshot.class);
+
+   private static final String LOAD_WARN =
+         "Unable to load the snapshot %s. The workbook is read again.";
+   private static final String SAVE_WARN =
+         "Unable to save the snapshot %s.";
+   private static final String HEADER_WARN =
+         "Rows of sheet %s do not share one header. The snapshot %s is not saved.";
+   private static final String SECRET_INFO =
+         "Rows of sheet %s contain the secret column %s. The snapshot %s is not saved.";
+   private static final String CORRUPT_ERROR =
+         "The snapshot is corrupt at position %d.";
+
+   private static final int    MAGIC   = 0x50465253;
+   private static final int    VERSION = 2;
+   private static final String SUFFIX  = ".rows";
+
+   private final Path   snapshotFile;
+   private final String sheetName;
+   private final String key;
+   private final String secretColumn;
+
+   /**
+    * @param options      reader settings that change the values read from
+    *                     the workbook
+    * @param secretColumn column whose values are never saved; null if
+    *                     there is none
+    */
+   RowSnapshot(final Path snapshotFolder, final Path workbook,
+               final String sheetName, final String options,
+               final String secretColumn) throws IOException {
+      super();
+      String name = new Fingerprint().add(workbook.getFileName().toString())
+                                     .add(sheetName)
+                                     .add(options)
+                                     .build();
+      this.snapshotFile = snapshotFolder.resolve(name + SUFFIX);
+      this.sheetName = sheetName;
+      this.key = new Fingerprint().add(Fingerprint.hashFile(workbook))
+                                  .add(sheetName)
+                                  .add(options)
+                                  .build();
+      this.secretColumn = secretColumn;
+   }
+
+   Path getSnapshotFile() {
+      return this.snapshotFile;
+   }
+
+   private static void writeString(final DataOutputStream out,
+                                   final String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+      } else {
+         byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+   }
+
+   private boolean containsSecret(final ExcelHeader header) {
+      return this.secretColumn != null && header.indexOf(this.secretColumn) >= 0;
+   }
+
+   /**
+    * Rows of a loaded snapshot, decoded from the mapped file as they are
+    * iterated, so only the rows being processed are held in memory. The
+    * mapping stays valid after the file is closed.
+    */
+   class Rows implements Iterator<ExcelRow> {
+
+      private final ByteBuffer buffer;
+      // decoding buffer, grows to the longest string
+      private byte[] bytes = new byte[256];
+      private ExcelHeader header;
+      private int rowCount;
+      private int next = 0;
+
+      private Rows(final ByteBuffer buffer) {
+         this.buffer = buffer;
+      }
+
+      /**
+       * @param itemSize minimum number of bytes of each counted item
+       */
+      private int readCount(final long itemSize) throws IOException {
+         int count = this.buffer.getInt();
+         if (count < 0 || count * itemSize > this.buffer.remaining()) {
+            throw new IOException(String.format(CORRUPT_ERROR, this.buffer.position()));
+         }
+         return count;
+      }
+
+      private int readLength() throws IOException {
+         int length = this.buffer.getInt();
+         if (length < -1 || length > this.buffer.remaining()) {
+            throw new IOException(String.format(CORRUPT_ERROR, this.buffer.position()));
+         }
+         return length;
+      }
+
+      private String readString() throws IOException {
+         int length = readLength();
+         if (length == -1) {
+            return null;
+         }
+         if (length > this.bytes.length) {
+            this.bytes = new byte[Math.max(length, this.bytes.length * 2)];
+         }
+         this.buffer.get(this.bytes, 0, length);
+         return new String(this.bytes, 0, length, StandardCharsets.UTF_8);
+      }
+
+      /**
+       * Reads the key and the column names and checks that the file holds
+       * all rows without decoding them.
+       *
+       * @return false if the snapshot was created from a different workbook
+       *         content or with other options
+       */
+      private boolean open() throws IOException {
+         if (this.buffer.getInt() != MAGIC || this.buffer.getInt() != VERSION ||
+             !key.equals(readString())) {
+            return false;
+         }
+         int columnCount = readCount(Integer.BYTES);
+         List<String> columns = new ArrayList<>(columnCount);
+         for (int i = 0; i < columnCount; i++) {
+            columns.add(readString());
+         }
+         this.header = ExcelHeader.of(columns);
+         this.rowCount = readCount((columnCount + 1L) * Integer.BYTES);
+         int start = this.buffer.position();
+         for (int r = 0; r < this.rowCount; r++) {
+            this.buffer.getInt();
+            for (int i = 0; i < columnCount; i++) {
+               int length = readLength();
+               this.buffer.position(this.buffer.position() + Math.max(0, length));
+            }
+         }
+         if (this.buffer.hasRemaining()) {
+            throw new IOException(String.format(CORRUPT_ERROR, this.buffer.position()));
+         }
+         this.buffer.position(start);
+         return true;
+      }
+
+      ExcelHeader getHeader() {
+         return this.header;
+      }
+
+      int getRowCount() {
+         return this.rowCount;
+      }
+
+      @Override
+      public boolean hasNext() {
+         return this.next < this.rowCount;
+      }
+
+      @Override
+      public ExcelRow next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         try {
+            int rowNumber = this.buffer.getInt();
+            String[] values = new String[this.header.size()];
+            for (int i = 0; i < values.length; i++) {
+               values[i] = readString();
+            }
+            this.next++;
+            return new ExcelRow(this.header, values, rowNumber);
+         } catch (IOException e) {
+            // the rows were checked when the snapshot was loaded
+            throw new UncheckedIOException(e);
+         }
+      }
+   }
+
+   /**
+    * @return the rows of the snapshot; empty if there is no snapshot, it
+    *         was created from a different workbook content or with other
+    *         options, or it contains the secret column
+    */
+   Optional<Rows> load() {
+      if (!Files.isRegularFile(this.snapshotFile)) {
+         return Optional.empty();
+      }
+      try (FileChannel channel = FileChannel.open(this.snapshotFile,
+                                                  StandardOpenOption.READ)) {
+         // a single mapping covers at most 2 GB
+         if (channel.size() > Integer.MAX_VALUE) {
+            return Optional.empty();
+         }
+         MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+         Rows rows = new Rows(buffer);
+         if (!rows.open()) {
+            return Optional.empty();
+         }
+         if (containsSecret(rows.getHeader())) {
+            // a snapshot of secrets is neither used nor kept
+            Files.delete(this.snapshotFile);
+            return Optional.empty();
+         }
+         return Optional.of(rows);
+      } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+         logger.warn(String.format(LOAD_WARN, this.snapshotFile), e);
+         return Optional.empty();
+      }
+   }
+
+   /**
+    * Writes the rows of a sheet as they are read to a temporary file that
+    * replaces the previous snapshot once all rows are written, so an
+    * interrupted read never leaves a corrupt or partial snapshot. All rows
+    * must share one header. Failures are logged; the rows are read from the
+    * workbook again in the next run.
+    */
+   class Writer implements Closeable {
+
+      private final Path tempFile;
+      private DataOutputStream out = null;
+      private ExcelHeader header = null;
+      // position of the row count, which is known once all rows are written
+      private long countPosition;
+      private int rowCount = 0;
+      private boolean done = false;
+
+      private Writer() {
+         this.tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+         try {
+            Files.createDirectories(snapshotFile.getParent());
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.tempFile),
+                                                                     1 << 16));
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            writeString(this.out, key);
+         } catch (IOException e) {
+            fail(e);
+         }
+      }
+
+      private void fail(final Exception e) {
+         logger.warn(String.format(SAVE_WARN, snapshotFile), e);
+         close();
+      }
+
+      private void writeHeader(final ExcelHeader header) throws IOException {
+         this.header = header;
+         this.out.writeInt(header.size());
+         for (int i = 0; i < header.size(); i++) {
+            writeString(this.out, header.getName(i));
+         }
+         this.countPosition = this.out.size();
+         this.out.writeInt(0);
+      }
+
+      /**
+       * Appends a row to the snapshot.
+       */
+      void add(final ExcelRow row) {
+         if (this.done) {
+            return;
+         }
+         try {
+            if (this.header == null) {
+               if (containsSecret(row.getHeader())) {
+                  logger.info(String.format(SECRET_INFO, sheetName, secretColumn,
+                                            snapshotFile));
+                  close();
+                  return;
+               }
+               writeHeader(row.getHeader());
+            } else if (!this.header.equals(row.getHeader())) {
+               logger.warn(String.format(HEADER_WARN, sheetName, snapshotFile));
+               close();
+               return;
+            }
+            this.out.writeInt(row.getRowNumber());
+            for (int i = 0; i < this.header.size(); i++) {
+               writeString(this.out, row.getColumnValue(i));
+            }
+            this.rowCount++;
+         } catch (IOException e) {
+            fail(e);
+         }
+      }
+
+      /**
+       * Replaces the previous snapshot after all rows were added.
+       */
+      void commit() {
+         if (this.done) {
+            return;
+         }
+         try {
+            if (this.header == null) {
+               writeHeader(ExcelHeader.EMPTY);
+            }
+            this.out.close();
+            try (FileChannel channel = FileChannel.open(this.tempFile,
+                                                        StandardOpenOption.WRITE)) {
+               ByteBuffer count = ByteBuffer.allocate(Integer.BYTES);
+               count.putInt(this.rowCount).flip();
+               channel.write(count, this.countPosition);
+            }
+            Files.move(this.tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            this.done = true;
+         } catch (IOException e) {
+            fail(e);
+         }
+      }
+
+      /**
+       * Discards the rows written so far unless they were committed.
+       */
+      @Override
+      public void close() {
+         if (this.done) {
+            return;
+         }
+         this.done = true;
+         try {
+            if (this.out != null) {
+               this.out.close();
+            }
+            Files.deleteIfExists(this.tempFile);
+         } catch (IOException e) {
+            logger.debug("Unable to delete " + this.tempFile + ".", e);
+         }
+      }
+   }
+
+   /**
+    * @return a writer that replaces this snapshot once it is committed
+    */
+   Writer createWriter() {
+      return new Writer();
+   }
+
+   /**
+    * Replaces the snapshot with the rows, which must share one header.
+    */
+   void save(final List<ExcelRow> excelRows) {
+      try (Writer writer = createWriter()) {
+         excelRows.forEach(writer::add);
+         writer.commit();
+      }
+   }
+
+}
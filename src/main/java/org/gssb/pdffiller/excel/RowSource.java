@@ -0,0 +1,69 @@
+package org.gssb.pdffiller.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.gssb.pdffiller.config.AppProperties;
+import org.gssb.pdffiller.config.InputFormat;
+
+/**
+ * Source of the data rows to be merged. The first row of the input defines
+ * the column names and rows without any value other than "" or "0" are
+ * skipped.
+ */
+public interface RowSource {
+
+   /**
+    * @return the reader of the input format configured in the properties
+    */
+   static RowSource of(final AppProperties properties) {
+      InputFormat format = properties.getInputFormat();
+      if (format == InputFormat.WORKBOOK) {
+         return new ExcelReader(properties);
+      }
+      return new DelimitedReader(format.getDelimiter(),
+                                 properties.getInputEncoding());
+   }
+
+   /**
+    * Reads all data rows.
+    *
+    * @param sheetName sheet of a workbook; ignored by inputs without sheets
+    */
+   default List<ExcelRow> read(final File file, final String sheetName)
+                          throws IOException, InvalidFormatException {
+      return read(file, sheetName, ColumnProjection.all());
+   }
+
+   /**
+    * Reads the projected columns of all data rows.
+    *
+    * @param sheetName sheet of a workbook; ignored by inputs without sheets
+    */
+   List<ExcelRow> read(File file, String sheetName, ColumnProjection projection)
+                  throws IOException, InvalidFormatException;
+
+   /**
+    * Streams the data rows. The stream may hold the input open and must be
+    * closed by the caller.
+    *
+    * @param sheetName sheet of a workbook; ignored by inputs without sheets
+    */
+   default Stream<ExcelRow> stream(final File file, final String sheetName)
+                            throws IOException, InvalidFormatException {
+      return stream(file, sheetName, ColumnProjection.all());
+   }
+
+   /**
+    * Streams the projected columns of the data rows. The stream may hold
+    * the input open and must be closed by the caller.
+    *
+    * @param sheetName sheet of a workbook; ignored by inputs without sheets
+    */
+   Stream<ExcelRow> stream(File file, String sheetName, ColumnProjection projection)
+                    throws IOException, InvalidFormatException;
+
+}
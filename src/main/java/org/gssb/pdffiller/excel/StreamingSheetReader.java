@@ -0,0 +1,395 @@
+package org.gssb.pdffiller.excel;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Reads the rows of one XLSX sheet with the POI event API. A background
+ * thread parses the sheet XML and hands rows over through a bounded queue,
+ * so only a small window of rows is held in memory at any time.
+ * <p>
+ * Cell values follow the rules of {@link ExcelReader}: the first row defines
+ * the column names, rows without any value other than "" or "0" are
+ * skipped, whole numbers are written without a fraction, and error cells
+ * become empty strings. Formula cells use the result cached in the workbook;
+ * a formula without a saved result reads as an empty string.
+ * <p>
+ * The reader must be closed to release the workbook if iteration ends early.
+ */
+class StreamingSheetReader implements Iterator<ExcelRow>, Closeable {
+
+   private final static Logger logger =
+         LogManager.getLogger(StreamingSheetReader.class);
+
+   private static final String MISSING_SHEET_ERROR =
+         "The Excel sheet %s is not defined in the Excel workbook %s.";
+
+   private static final String MISSING_HEADER_ERROR =
+         "The first row of Excel sheet %s does not define column names.";
+
+   private static final String READ_ERROR =
+         "Error while reading Excel sheet %s in workbook %s.";
+
+   private static final int QUEUE_CAPACITY = 1024;
+
+   // marks the end of the sheet in the row queue
+   private static final ExcelRow END_OF_SHEET = new ExcelRow();
+
+   /**
+    * Aborts parsing in the parser thread after the reader was closed.
+    */
+   private static class ReadingStopped extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+   }
+
+   /**
+    * Collects the physical cells of each row and turns non-empty data rows
+    * into {@link ExcelRow} instances. Cells of data rows that the selection
+    * does not read are not stored; they only keep a row from being skipped
+    * as empty.
+    */
+   private class RowCollector implements SheetContentsHandler {
+
+      private final SortedMap<Integer, String> cells = new TreeMap<>();
+      private ColumnProjection.Selection selection = null;
+      private int     column = -1;
+      private boolean stringCell = false;
+      // a cell that the selection does not read has a value in this row
+      private boolean otherValue = false;
+
+      void startCell(final int column, final boolean stringCell) {
+         this.stringCell = stringCell;
+         if (this.selection != null && !this.selection.reads(column)) {
+            this.column = -1;
+            return;
+         }
+         this.column = column;
+         // blank cells are physical cells, too
+         this.cells.put(column, "");
+      }
+
+      /**
+       * @return false if the current cell is ignored
+       */
+      boolean isReading() {
+         return this.column >= 0;
+      }
+
+      /**
+       * @return false if the value of the current cell is not needed: it
+       *         is ignored and the row already has a value in another
+       *         ignored cell
+       */
+      boolean needsValue() {
+         return isReading() || !this.otherValue;
+      }
+
+      void addValue(final String value) {
+         if (isReading()) {
+            this.cells.put(this.column, value);
+         } else if (!ExcelReader.isEmpty(value)) {
+            this.otherValue = true;
+         }
+      }
+
+      @Override
+      public void startRow(final int rowNum) {
+         this.cells.clear();
+         this.otherValue = false;
+      }
+
+      @Override
+      public void cell(final String cellReference, final String formattedValue,
+                       final XSSFComment comment) {
+         // POI resolves shared and inline strings; all other values are
+         // recorded unformatted by the sheet handler
+         if (this.stringCell && needsValue()) {
+            addValue(formattedValue != null ? formattedValue : "");
+         }
+      }
+
+      @Override
+      public void endRow(final int rowNum) {
+         if (rowNum == 0) {
+            this.selection = projection.select(new ArrayList<>(this.cells.values()));
+            return;
+         }
+         // skip empty row
+         if (!this.otherValue && ExcelReader.isRowEmpty(this.cells.values())) return;
+
+         if (this.selection == null) {
+            String msg = String.format(MISSING_HEADER_ERROR, sheetName);
+            logger.error(msg);
+            throw new UnrecoverableException(msg);
+         }
+         // rows share the header and only hold their values
+         ExcelHeader header = this.selection.getHeader();
+         String[] values = new String[header.size()];
+         Arrays.fill(values, "");
+         for (Map.Entry<Integer, String> cell : this.cells.entrySet()) {
+            int position = this.selection.getPosition(cell.getKey());
+            if (position >= 0) {
+               values[position] = cell.getValue();
+            }
+         }
+         publish(new ExcelRow(header, values, rowNum + 1));
+      }
+   }
+
+   /**
+    * Extends the POI sheet handler to record every physical cell together
+    * with its type and raw value. POI resolves shared and inline strings;
+    * numbers, booleans and formula results are taken from the raw value so
+    * that cell styles do not change them.
+    */
+   private static class SheetHandler extends XSSFSheetXMLHandler {
+
+      private final RowCollector collector;
+      private final StringBuilder rawValue = new StringBuilder();
+      private boolean valueOpen = false;
+      private String  cellType = null;
+      private int     column = -1;
+
+      SheetHandler(final StylesTable styles,
+                   final ReadOnlySharedStringsTable strings,
+                   final RowCollector collector) {
+         super(styles, strings, collector, new DataFormatter(), false);
+         this.collector = collector;
+      }
+
+      @Override
+      public void startElement(final String uri, final String localName,
+                               final String qName, final Attributes attributes)
+                  throws SAXException {
+         if ("c".equals(localName)) {
+            String ref = attributes.getValue("r");
+            this.column = ref != null ? new CellReference(ref).getCol()
+                                      : this.column + 1;
+            this.cellType = attributes.getValue("t");
+            this.rawValue.setLength(0);
+            this.collector.startCell(this.column, isString());
+         } else if ("v".equals(localName)) {
+            this.valueOpen = true;
+         } else if ("row".equals(localName)) {
+            this.column = -1;
+         }
+         super.startElement(uri, localName, qName, attributes);
+      }
+
+      @Override
+      public void characters(final char[] ch, final int start, final int length)
+                  throws SAXException {
+         if (this.valueOpen) {
+            this.rawValue.append(ch, start, length);
+         }
+         super.characters(ch, start, length);
+      }
+
+      @Override
+      public void endElement(final String uri, final String localName,
+                             final String qName) throws SAXException {
+         if ("v".equals(localName)) {
+            this.valueOpen = false;
+            if (!isString() && this.collector.needsValue()) {
+               this.collector.addValue(getRawValue());
+            }
+         }
+         super.endElement(uri, localName, qName);
+      }
+
+      private boolean isString() {
+         return "s".equals(this.cellType) || "inlineStr".equals(this.cellType);
+      }
+
+      private String getRawValue() {
+         String raw = this.rawValue.toString();
+         String value;
+         if (this.cellType == null || "n".equals(this.cellType)) {
+            value = raw.isEmpty() ? ""
+                                  : ExcelReader.formatNumber(Double.parseDouble(raw));
+         } else if ("b".equals(this.cellType)) {
+            value = Boolean.toString("1".equals(raw) ||
+                                     "true".equalsIgnoreCase(raw));
+         } else if ("str".equals(this.cellType)) {
+            value = raw;
+         } else {
+            // error cells
+            value = "";
+         }
+         return value;
+      }
+   }
+
+   private final String sheetName;
+   private final String workbookName;
+   private final ColumnProjection projection;
+   private final BlockingQueue<ExcelRow> rows =
+         new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+   private final Thread parser;
+
+   private volatile Exception failure = null;
+   private volatile boolean closed = false;
+   private ExcelRow next = null;
+   private boolean finished = false;
+
+   StreamingSheetReader(final File excelFile, final String sheetName,
+                        final ColumnProjection projection)
+                        throws IOException, InvalidFormatException {
+      this.sheetName = sheetName;
+      this.workbookName = excelFile.getCanonicalPath();
+      this.projection = projection;
+
+      OPCPackage pkg = OPCPackage.open(excelFile, PackageAccess.READ);
+      try {
+         XSSFReader reader = new XSSFReader(pkg);
+         InputStream sheet = findSheet(reader);
+         SheetHandler handler = new SheetHandler(reader.getStylesTable(),
+                                                 new ReadOnlySharedStringsTable(pkg),
+                                                 new RowCollector());
+         this.parser = new Thread(() -> parse(pkg, sheet, handler),
+                                  "excel-reader");
+         this.parser.setDaemon(true);
+      } catch (IOException | InvalidFormatException | RuntimeException e) {
+         pkg.revert();
+         throw e;
+      } catch (OpenXML4JException | SAXException e) {
+         pkg.revert();
+         throw new IOException(String.format(READ_ERROR, sheetName,
+                                             this.workbookName), e);
+      }
+      this.parser.start();
+   }
+
+   private InputStream findSheet(final XSSFReader reader)
+                       throws IOException, InvalidFormatException {
+      XSSFReader.SheetIterator sheets =
+            (XSSFReader.SheetIterator) reader.getSheetsData();
+      while (sheets.hasNext()) {
+         InputStream sheet = sheets.next();
+         if (this.sheetName.equals(sheets.getSheetName())) {
+            return sheet;
+         }
+         sheet.close();
+      }
+      String msg = String.format(MISSING_SHEET_ERROR, this.sheetName,
+                                 this.workbookName);
+      logger.error(msg);
+      throw new UnrecoverableException(msg);
+   }
+
+   private void publish(final ExcelRow row) {
+      try {
+         this.rows.put(row);
+      } catch (InterruptedException e) {
+         throw new ReadingStopped();
+      }
+   }
+
+   private void parse(final OPCPackage pkg, final InputStream sheet,
+                      final SheetHandler handler) {
+      try (InputStream in = sheet) {
+         XMLReader xmlReader = XMLHelper.newXMLReader();
+         xmlReader.setContentHandler(handler);
+         xmlReader.parse(new InputSource(in));
+      } catch (ReadingStopped e) {
+         // reader was closed
+      } catch (IOException | SAXException | ParserConfigurationException |
+               RuntimeException e) {
+         this.failure = e;
+      } finally {
+         pkg.revert();
+         if (!this.closed) {
+            try {
+               this.rows.put(END_OF_SHEET);
+            } catch (InterruptedException e) {
+               // reader was closed
+            }
+         }
+      }
+   }
+
+   @Override
+   public boolean hasNext() {
+      if (this.next != null) return true;
+      if (this.finished) return false;
+      try {
+         ExcelRow row = this.rows.take();
+         if (row == END_OF_SHEET) {
+            this.finished = true;
+            if (this.failure != null) {
+               throw createReadException(this.failure);
+            }
+            return false;
+         }
+         this.next = row;
+         return true;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         close();
+         throw createReadException(e);
+      }
+   }
+
+   private UnrecoverableException createReadException(final Exception e) {
+      if (e instanceof UnrecoverableException) {
+         return (UnrecoverableException) e;
+      }
+      String msg = String.format(READ_ERROR, this.sheetName, this.workbookName);
+      logger.error(msg, e);
+      return new UnrecoverableException(msg, e);
+   }
+
+   @Override
+   public ExcelRow next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      ExcelRow row = this.next;
+      this.next = null;
+      return row;
+   }
+
+   @Override
+   public void close() {
+      if (this.closed) return;
+      this.closed = true;
+      this.finished = true;
+      this.parser.interrupt();
+      this.rows.clear();
+   }
+
+}
@@ -0,0 +1,297 @@
+package org.gssb.pdffiller.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.excel.RowGroup;
+import org.gssb.pdffiller.text.TabSeparated;
+
+/**
+ * Append-only record of the groups completed by a run. Every group whose
+ * documents were created is recorded with its files, and every group whose
+ * email was sent is recorded as sent. A run that stops early leaves the
+ * journal behind, and the next run with the same spreadsheet skips the
+ * groups that are already complete in a stage. A run that finishes
+ * successfully deletes its journal.
+ * <p>
+ * Entries are collected in memory and written and synced to disk together
+ * in a fixed interval, so recording a group does not wait for the disk. A
+ * crash loses at most the entries of the last interval; those groups are
+ * processed again by the next run.
+ */
+public class RunJournal implements Closeable {
+
+   private final static Logger logger = LogManager.getLogger(RunJournal.class);
+
+   private static final String RESUME_INFO =
+         "Resuming run from journal %s: %d groups with documents, %d groups sent.";
+
+   private static final String DISCARD_INFO =
+         "Journal %s belongs to a different spreadsheet and is discarded.";
+
+   private static final String WRITE_ERROR =
+         "Unable to write journal %s. An interrupted run may process " +
+         "completed groups again.";
+
+   private static final String RUN     = "run";
+   private static final String CREATED = "pdf";
+   private static final String SENT    = "sent";
+
+   private static final char SEPARATOR = '\t';
+   private static final char EOL = '\n';
+
+   private final Path journalFile;
+   private final FileChannel channel;
+   private final ScheduledExecutorService syncer;
+
+   private final Map<String, List<File>> createdGroups = new ConcurrentHashMap<>();
+   private final Set<String> sentGroups = ConcurrentHashMap.newKeySet();
+
+   private final StringBuilder pending = new StringBuilder();
+   private boolean failed = false;
+   private boolean closed = false;
+
+   private RunJournal() {
+      this.journalFile = null;
+      this.channel = null;
+      this.syncer = null;
+   }
+
+   private RunJournal(final Path journalFile, final String signature,
+                      final long syncIntervalMillis) throws IOException {
+      this.journalFile = journalFile;
+      long validLength = Files.exists(journalFile) ? load(signature) : -1;
+      if (journalFile.getParent() != null) {
+         Files.createDirectories(journalFile.getParent());
+      }
+      if (validLength > 0) {
+         // drop an entry cut off by a crash before new entries are appended
+         this.channel = FileChannel.open(journalFile, StandardOpenOption.WRITE);
+         this.channel.truncate(validLength);
+         this.channel.position(validLength);
+         String msg = String.format(RESUME_INFO, journalFile,
+                                    this.createdGroups.size(),
+                                    this.sentGroups.size());
+         logger.info(msg);
+      } else {
+         this.channel = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                                         StandardOpenOption.WRITE,
+                                         StandardOpenOption.TRUNCATE_EXISTING);
+         this.pending.append(RUN).append(SEPARATOR)
+                     .append(TabSeparated.escape(signature)).append(EOL);
+         sync();
+      }
+
+      if (syncIntervalMillis > 0) {
+         this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal-sync");
+            t.setDaemon(true);
+            return t;
+         });
+         this.syncer.scheduleWithFixedDelay(this::sync, syncIntervalMillis,
+                                            syncIntervalMillis,
+                                            TimeUnit.MILLISECONDS);
+      } else {
+         this.syncer = null;
+      }
+   }
+
+   /**
+    * Opens the journal of a run and loads the entries of an interrupted run
+    * of the same spreadsheet.
+    *
+    * @param signature          identifies the input of the run; a journal
+    *                           with a different signature is discarded
+    * @param syncIntervalMillis interval in which entries are written and
+    *                           synced to disk; 0 syncs every entry
+    */
+   public static RunJournal open(final Path journalFile, final String signature,
+                                 final long syncIntervalMillis) throws IOException {
+      return new RunJournal(journalFile, signature, syncIntervalMillis);
+   }
+
+   /**
+    * @return a journal that records nothing and never skips a group
+    */
+   public static RunJournal disabled() {
+      return new RunJournal();
+   }
+
+   /**
+    * @return key identifying a group across runs: the group ID, or the
+    *         number of the record in the sheet if the run is not grouped;
+    *         records that were not read from a sheet are identified by
+    *         their values
+    */
+   public static String getKey(final RowGroup group) {
+      Optional<String> groupId = group.getGroupId();
+      if (groupId.isPresent()) {
+         return "id:" + groupId.get();
+      }
+      ExcelRow row = group.getHeadRow();
+      return row.getRowNumber() > 0 ? "row:" + row.getRowNumber()
+                                    : "record:" + row.printValues();
+   }
+
+   /**
+    * @return length of the complete entries in bytes; -1 if the journal
+    *         belongs to a different run
+    */
+   private long load(final String signature) throws IOException {
+      byte[] content = Files.readAllBytes(this.journalFile);
+      // the bytes after the last line break are an entry cut off by a crash
+      int validLength = content.length;
+      while (validLength > 0 && content[validLength - 1] != EOL) {
+         validLength--;
+      }
+      String[] lines = new String(content, 0, validLength, StandardCharsets.UTF_8)
+                             .split(String.valueOf(EOL));
+      if (validLength == 0 ||
+          !lines[0].equals(RUN + SEPARATOR + TabSeparated.escape(signature))) {
+         logger.info(String.format(DISCARD_INFO, this.journalFile));
+         return -1;
+      }
+      for (int i = 1; i < lines.length; i++) {
+         String[] fields = lines[i].split(String.valueOf(SEPARATOR), -1);
+         if (fields.length < 2) {
+            continue;
+         }
+         String key = TabSeparated.unescape(fields[1]);
+         if (CREATED.equals(fields[0])) {
+            List<File> files = new ArrayList<>();
+            for (int f = 2; f < fields.length; f++) {
+               files.add(new File(TabSeparated.unescape(fields[f])));
+            }
+            this.createdGroups.put(key, Collections.unmodifiableList(files));
+         } else if (SENT.equals(fields[0])) {
+            this.sentGroups.add(key);
+         }
+      }
+      return validLength;
+   }
+
+   private synchronized void append(final String type, final String key,
+                                    final String... values) {
+      this.pending.append(type).append(SEPARATOR).append(TabSeparated.escape(key));
+      for (String value : values) {
+         this.pending.append(SEPARATOR).append(TabSeparated.escape(value));
+      }
+      this.pending.append(EOL);
+      if (this.syncer == null) {
+         sync();
+      }
+   }
+
+   /**
+    * Writes all collected entries and forces them to disk.
+    */
+   public synchronized void sync() {
+      if (this.channel == null || this.failed || this.pending.length() == 0) {
+         return;
+      }
+      try {
+         ByteBuffer buffer =
+               ByteBuffer.wrap(this.pending.toString().getBytes(StandardCharsets.UTF_8));
+         while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+         }
+         this.channel.force(false);
+         this.pending.setLength(0);
+      } catch (IOException e) {
+         // keep the run going; only the ability to resume is lost
+         this.failed = true;
+         logger.error(String.format(WRITE_ERROR, this.journalFile), e);
+      }
+   }
+
+   /**
+    * @return the files created for the group by an earlier run if all of
+    *         them still exist
+    */
+   public Optional<List<File>> getCreatedFiles(final String key) {
+      return getCreatedFiles(key, File::exists);
+   }
+
+   /**
+    * @param exists tells whether a file still exists, such as a lookup in an
+    *               index of the generated documents
+    * @return the files created for the group by an earlier run if all of
+    *         them still exist
+    */
+   public Optional<List<File>> getCreatedFiles(final String key,
+                                               final Predicate<File> exists) {
+      List<File> files = this.createdGroups.get(key);
+      if (files == null || !files.stream().allMatch(exists)) {
+         return Optional.empty();
+      }
+      return Optional.of(files);
+   }
+
+   public boolean isSent(final String key) {
+      return this.sentGroups.contains(key);
+   }
+
+   public void recordCreated(final String key, final List<File> files) {
+      if (this.channel == null) {
+         return;
+      }
+      this.createdGroups.put(key, Collections.unmodifiableList(new ArrayList<>(files)));
+      append(CREATED, key, files.stream()
+                                .map(File::getAbsolutePath)
+                                .toArray(String[]::new));
+   }
+
+   public void recordSent(final String key) {
+      if (this.channel == null) {
+         return;
+      }
+      this.sentGroups.add(key);
+      append(SENT, key);
+   }
+
+   /**
+    * Closes the journal after a successful run and deletes it, so the next
+    * run starts from the beginning.
+    */
+   public void complete() throws IOException {
+      close();
+      if (this.journalFile != null) {
+         Files.deleteIfExists(this.journalFile);
+      }
+   }
+
+   @Override
+   public synchronized void close() throws IOException {
+      if (this.closed || this.channel == null) {
+         return;
+      }
+      this.closed = true;
+      if (this.syncer != null) {
+         this.syncer.shutdownNow();
+      }
+      sync();
+      this.channel.close();
+   }
+
+}
@@ -0,0 +1,96 @@
+package org.gssb.pdffiller.manifest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Builds a SHA-256 digest of the inputs of a generated document. Every value
+ * is added with its length, so different sequences of values never produce
+ * the same input to the digest.
+ */
+public class Fingerprint {
+
+   private static final String ALGORITHM = "SHA-256";
+
+   private final MessageDigest digest;
+
+   public Fingerprint() {
+      super();
+      this.digest = createDigest();
+   }
+
+   static MessageDigest createDigest() {
+      try {
+         return MessageDigest.getInstance(ALGORITHM);
+      } catch (NoSuchAlgorithmException e) {
+         // every Java platform supports SHA-256
+         throw new IllegalStateException(e);
+      }
+   }
+
+   static String toHex(final byte[] bytes) {
+      StringBuilder sb = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+         sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+           .append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+   }
+
+   /**
+    * @return hex encoded SHA-256 digest of the file content
+    */
+   public static String hashFile(final Path file) throws IOException {
+      MessageDigest digest = createDigest();
+      byte[] buffer = new byte[8192];
+      try (InputStream in = Files.newInputStream(file)) {
+         int read;
+         while ((read = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, read);
+         }
+      }
+      return toHex(digest.digest());
+   }
+
+   public Fingerprint add(final String value) {
+      if (value == null) {
+         this.digest.update(ByteBuffer.allocate(4).putInt(-1).array());
+      } else {
+         byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+         this.digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+         this.digest.update(bytes);
+      }
+      return this;
+   }
+
+   /**
+    * Adds all entries in the order of their keys.
+    */
+   public Fingerprint add(final Map<String, String> values) {
+      Map<String, String> sorted = new TreeMap<>(values);
+      add(Integer.toString(sorted.size()));
+      for (Entry<String, String> entry : sorted.entrySet()) {
+         add(entry.getKey());
+         add(entry.getValue());
+      }
+      return this;
+   }
+
+   /**
+    * @return hex encoded digest; the fingerprint cannot be extended
+    *         afterwards
+    */
+   public String build() {
+      return toHex(this.digest.digest());
+   }
+
+}
@@ -0,0 +1,183 @@
+package org.gssb.pdffiller.manifest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.text.TabSeparated;
+
+/**
+ * Records the fingerprint of every generated document. A document whose
+ * fingerprint has not changed since the last run and which is unchanged on
+ * disk can be reused instead of being created again.
+ * <p>
+ * The manifest is a text file with one line per document: path,
+ * fingerprint, size and modification time, separated by tabs. Paths and
+ * fingerprints are escaped with {@link TabSeparated}.
+ */
+public class OutputManifest {
+
+   private final static Logger logger = LogManager.getLogger(OutputManifest.class);
+
+   private static final String READ_WARN =
+         "Unable to read manifest %s. All documents are created again.";
+
+   private static final char SEPARATOR = '\t';
+
+   private static class Entry {
+      private final String fingerprint;
+      private final long   size;
+      private final long   lastModified;
+
+      Entry(final String fingerprint, final long size, final long lastModified) {
+         this.fingerprint = fingerprint;
+         this.size = size;
+         this.lastModified = lastModified;
+      }
+   }
+
+   private static class FileHash {
+      private final long   size;
+      private final long   lastModified;
+      private final String hash;
+
+      FileHash(final long size, final long lastModified, final String hash) {
+         this.size = size;
+         this.lastModified = lastModified;
+         this.hash = hash;
+      }
+   }
+
+   private final Path manifestFile;
+   private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+   private final ConcurrentMap<Path, FileHash> fileHashes = new ConcurrentHashMap<>();
+
+   private OutputManifest(final Path manifestFile) {
+      super();
+      this.manifestFile = manifestFile;
+   }
+
+   /**
+    * Loads the manifest of the last run; a missing or unreadable manifest
+    * results in an empty one.
+    */
+   public static OutputManifest load(final Path manifestFile) {
+      Objects.requireNonNull(manifestFile);
+      OutputManifest manifest = new OutputManifest(manifestFile);
+      if (Files.exists(manifestFile)) {
+         try (BufferedReader reader = Files.newBufferedReader(manifestFile,
+                                                              StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+               if (fields.length == 4) {
+                  manifest.entries.put(TabSeparated.unescape(fields[0]),
+                                       new Entry(TabSeparated.unescape(fields[1]),
+                                                 Long.parseLong(fields[2]),
+                                                 Long.parseLong(fields[3])));
+               }
+            }
+         } catch (IOException | RuntimeException e) {
+            logger.warn(String.format(READ_WARN, manifestFile), e);
+            manifest.entries.clear();
+         }
+      }
+      return manifest;
+   }
+
+   /**
+    * @return a manifest that records nothing and never reuses a document
+    */
+   public static OutputManifest disabled() {
+      return new OutputManifest(null);
+   }
+
+   public boolean isEnabled() {
+      return this.manifestFile != null;
+   }
+
+   private static String getKey(final File document) {
+      return document.getAbsoluteFile().toPath().normalize().toString();
+   }
+
+   /**
+    * @return SHA-256 digest of the file content; computed once per run as
+    *         long as the file is not modified
+    */
+   public String getFileHash(final Path file) throws IOException {
+      Path key = file.toAbsolutePath().normalize();
+      long size = Files.size(key);
+      long lastModified = Files.getLastModifiedTime(key).toMillis();
+      FileHash fileHash = this.fileHashes.get(key);
+      if (fileHash == null || fileHash.size != size ||
+          fileHash.lastModified != lastModified) {
+         fileHash = new FileHash(size, lastModified, Fingerprint.hashFile(key));
+         this.fileHashes.put(key, fileHash);
+      }
+      return fileHash.hash;
+   }
+
+   /**
+    * @return true if the document was created from inputs with the same
+    *         fingerprint and has not been modified since
+    */
+   public boolean isCurrent(final File document, final String fingerprint) {
+      if (this.manifestFile == null) {
+         return false;
+      }
+      Entry entry = this.entries.get(getKey(document));
+      return entry != null && entry.fingerprint.equals(fingerprint) &&
+             document.isFile() && document.length() == entry.size &&
+             document.lastModified() == entry.lastModified;
+   }
+
+   public void record(final File document, final String fingerprint) {
+      if (this.manifestFile == null) {
+         return;
+      }
+      this.entries.put(getKey(document),
+                       new Entry(fingerprint, document.length(),
+                                 document.lastModified()));
+   }
+
+   /**
+    * Removes a document that could not be created from the manifest.
+    */
+   public void remove(final File document) {
+      this.entries.remove(getKey(document));
+   }
+
+   /**
+    * Writes the manifest to a temporary file that replaces the previous
+    * manifest, so an interrupted write never leaves a corrupt manifest.
+    */
+   public synchronized void save() throws IOException {
+      if (this.manifestFile == null) {
+         return;
+      }
+      Path tempFile = this.manifestFile.resolveSibling(this.manifestFile.getFileName() +
+                                                       ".tmp");
+      try (Writer out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+         for (Map.Entry<String, Entry> e : new TreeMap<>(this.entries).entrySet()) {
+            out.write(TabSeparated.escape(e.getKey()) + SEPARATOR +
+                      TabSeparated.escape(e.getValue().fingerprint) + SEPARATOR +
+                      e.getValue().size + SEPARATOR + e.getValue().lastModified + "\n");
+         }
+      }
+      Files.move(tempFile, this.manifestFile, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+   }
+
+}
@@ -0,0 +1,44 @@
+package org.gssb.pdffiller.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic count of events, safe for concurrent updates.
+ */
+public class Counter {
+
+   private final String name;
+   private final String description;
+   private final LongAdder count = new LongAdder();
+
+   Counter(final String name, final String description) {
+      super();
+      this.name = name;
+      this.description = description;
+   }
+
+   public String getName() {
+      return this.name;
+   }
+
+   public String getDescription() {
+      return this.description;
+   }
+
+   public void increment() {
+      this.count.increment();
+   }
+
+   public void add(final long value) {
+      this.count.add(value);
+   }
+
+   public long getCount() {
+      return this.count.sum();
+   }
+
+   void reset() {
+      this.count.reset();
+   }
+
+}
@@ -0,0 +1,41 @@
+package org.gssb.pdffiller.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Highest value observed during a run, such as the peak memory in use;
+ * safe for concurrent updates.
+ */
+public class Gauge {
+
+   private final String name;
+   private final String description;
+   private final LongAccumulator peak = new LongAccumulator(Long::max, 0);
+
+   Gauge(final String name, final String description) {
+      super();
+      this.name = name;
+      this.description = description;
+   }
+
+   public String getName() {
+      return this.name;
+   }
+
+   public String getDescription() {
+      return this.description;
+   }
+
+   public void record(final long value) {
+      this.peak.accumulate(value);
+   }
+
+   public long getValue() {
+      return this.peak.get();
+   }
+
+   void reset() {
+      this.peak.reset();
+   }
+
+}
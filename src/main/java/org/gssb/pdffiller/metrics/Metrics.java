@@ -0,0 +1,90 @@
+package org.gssb.pdffiller.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the timers, counters and gauges of a run. Components look up their
+ * metrics once by name and update them while the run proceeds; the report
+ * is written at the end of the run by {@link MetricsReport}.
+ */
+public final class Metrics {
+
+   static final String HEAP_PEAK = "jvm.heap_peak_bytes";
+
+   private static final ConcurrentMap<String, Timer> timers =
+         new ConcurrentHashMap<>();
+   private static final ConcurrentMap<String, Counter> counters =
+         new ConcurrentHashMap<>();
+   private static final ConcurrentMap<String, Gauge> gauges =
+         new ConcurrentHashMap<>();
+
+   private Metrics() {
+   }
+
+   public static Timer timer(final String name, final String description) {
+      return timers.computeIfAbsent(name, n -> new Timer(n, description));
+   }
+
+   public static Counter counter(final String name, final String description) {
+      return counters.computeIfAbsent(name, n -> new Counter(n, description));
+   }
+
+   public static Gauge gauge(final String name, final String description) {
+      return gauges.computeIfAbsent(name, n -> new Gauge(n, description));
+   }
+
+   public static List<Timer> getTimers() {
+      List<Timer> result = new ArrayList<>(timers.values());
+      result.sort(Comparator.comparing(Timer::getName));
+      return Collections.unmodifiableList(result);
+   }
+
+   public static List<Counter> getCounters() {
+      List<Counter> result = new ArrayList<>(counters.values());
+      result.sort(Comparator.comparing(Counter::getName));
+      return Collections.unmodifiableList(result);
+   }
+
+   public static List<Gauge> getGauges() {
+      List<Gauge> result = new ArrayList<>(gauges.values());
+      result.sort(Comparator.comparing(Gauge::getName));
+      return Collections.unmodifiableList(result);
+   }
+
+   /**
+    * Records the peak heap of the run as gauge {@value #HEAP_PEAK}: the sum
+    * of the peak usage of all heap memory pools. The pools may peak at
+    * different times, so the sum is an upper bound of the heap in use at
+    * any one moment. Called once when the run ends.
+    */
+   public static void recordHeapPeak() {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+            peak += pool.getPeakUsage().getUsed();
+         }
+      }
+      gauge(HEAP_PEAK, "Peak heap in use during the run.").record(peak);
+   }
+
+   /**
+    * Sets all metrics and the peak usage of the memory pools back to zero;
+    * registered metrics remain valid.
+    */
+   public static void reset() {
+      timers.values().forEach(Timer::reset);
+      counters.values().forEach(Counter::reset);
+      gauges.values().forEach(Gauge::reset);
+      ManagementFactory.getMemoryPoolMXBeans()
+                       .forEach(MemoryPoolMXBean::resetPeakUsage);
+   }
+
+}
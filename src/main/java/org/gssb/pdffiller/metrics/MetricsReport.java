@@ -0,0 +1,151 @@
+package org.gssb.pdffiller.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the metrics of a run as JSON document and in the Prometheus text
+ * exposition format. Durations are reported in seconds.
+ */
+public class MetricsReport {
+
+   static final String PROMETHEUS_PREFIX = "pdffiller_";
+
+   private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+   private final List<Timer>   timers;
+   private final List<Counter> counters;
+   private final List<Gauge>   gauges;
+
+   public MetricsReport() {
+      this(Metrics.getTimers(), Metrics.getCounters(), Metrics.getGauges());
+   }
+
+   MetricsReport(final List<Timer> timers, final List<Counter> counters) {
+      this(timers, counters, Collections.emptyList());
+   }
+
+   MetricsReport(final List<Timer> timers, final List<Counter> counters,
+                 final List<Gauge> gauges) {
+      super();
+      this.timers = timers;
+      this.counters = counters;
+      this.gauges = gauges;
+   }
+
+   private static String seconds(final long nanos) {
+      return String.format(Locale.ROOT, "%.6f", nanos / NANOS_PER_SECOND);
+   }
+
+   private static String bound(final double bound) {
+      return String.format(Locale.ROOT, "%s", bound);
+   }
+
+   private static String quote(final String text) {
+      StringBuilder sb = new StringBuilder("\"");
+      for (char c : text.toCharArray()) {
+         if (c == '"' || c == '\\') {
+            sb.append('\\').append(c);
+         } else if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+         } else {
+            sb.append(c);
+         }
+      }
+      return sb.append('"').toString();
+   }
+
+   static String prometheusName(final String name) {
+      return PROMETHEUS_PREFIX + name.replaceAll("[^a-zA-Z0-9_]", "_");
+   }
+
+   public void writeJson(final Writer out) throws IOException {
+      out.write("{\n  \"timers\": {");
+      String separator = "\n";
+      for (Timer timer : this.timers) {
+         out.write(separator);
+         out.write("    " + quote(timer.getName()) + ": {");
+         out.write("\"count\": " + timer.getCount());
+         out.write(", \"total_seconds\": " + seconds(timer.getTotalNanos()));
+         out.write(", \"min_seconds\": " + seconds(timer.getMinNanos()));
+         out.write(", \"max_seconds\": " + seconds(timer.getMaxNanos()));
+         out.write(", \"buckets\": {");
+         long[] counts = timer.getBucketCounts();
+         for (int i = 0; i < counts.length; i++) {
+            String le = i < Timer.BUCKETS.length ? bound(Timer.BUCKETS[i]) : "+Inf";
+            out.write((i > 0 ? ", " : "") + quote(le) + ": " + counts[i]);
+         }
+         out.write("}}");
+         separator = ",\n";
+      }
+      out.write("\n  },\n  \"counters\": {");
+      separator = "\n";
+      for (Counter counter : this.counters) {
+         out.write(separator);
+         out.write("    " + quote(counter.getName()) + ": " + counter.getCount());
+         separator = ",\n";
+      }
+      out.write("\n  },\n  \"gauges\": {");
+      separator = "\n";
+      for (Gauge gauge : this.gauges) {
+         out.write(separator);
+         out.write("    " + quote(gauge.getName()) + ": " + gauge.getValue());
+         separator = ",\n";
+      }
+      out.write("\n  }\n}\n");
+   }
+
+   public void writePrometheus(final Writer out) throws IOException {
+      for (Timer timer : this.timers) {
+         String name = prometheusName(timer.getName()) + "_seconds";
+         out.write("# HELP " + name + " " + timer.getDescription() + "\n");
+         out.write("# TYPE " + name + " histogram\n");
+         long[] counts = timer.getBucketCounts();
+         long cumulative = 0;
+         for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String le = i < Timer.BUCKETS.length ? bound(Timer.BUCKETS[i]) : "+Inf";
+            out.write(name + "_bucket{le=\"" + le + "\"} " + cumulative + "\n");
+         }
+         out.write(name + "_sum " + seconds(timer.getTotalNanos()) + "\n");
+         out.write(name + "_count " + timer.getCount() + "\n");
+      }
+      for (Counter counter : this.counters) {
+         String name = prometheusName(counter.getName()) + "_total";
+         out.write("# HELP " + name + " " + counter.getDescription() + "\n");
+         out.write("# TYPE " + name + " counter\n");
+         out.write(name + " " + counter.getCount() + "\n");
+      }
+      for (Gauge gauge : this.gauges) {
+         String name = prometheusName(gauge.getName());
+         out.write("# HELP " + name + " " + gauge.getDescription() + "\n");
+         out.write("# TYPE " + name + " gauge\n");
+         out.write(name + " " + gauge.getValue() + "\n");
+      }
+   }
+
+   /**
+    * Writes {@code <baseName>.json} and {@code <baseName>.prom} into the
+    * given folder.
+    */
+   public void write(final Path folder, final String baseName)
+               throws IOException {
+      Files.createDirectories(folder);
+      try (Writer out = Files.newBufferedWriter(folder.resolve(baseName + ".json"),
+                                                StandardCharsets.UTF_8)) {
+         writeJson(out);
+      }
+      try (Writer out = Files.newBufferedWriter(folder.resolve(baseName + ".prom"),
+                                                StandardCharsets.UTF_8)) {
+         writePrometheus(out);
+      }
+   }
+
+}
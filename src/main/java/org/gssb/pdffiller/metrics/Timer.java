@@ -0,0 +1,119 @@
+package org.gssb.pdffiller.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the duration of an operation: number of calls, total, minimum and
+ * maximum time, and a histogram with fixed bucket bounds. All updates are
+ * safe for concurrent use.
+ */
+public class Timer {
+
+   /**
+    * Upper bounds in seconds of the histogram buckets; the last bucket
+    * counts all longer durations.
+    */
+   static final double[] BUCKETS =
+         { 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1.0, 5.0, 10.0, 60.0 };
+
+   /**
+    * Measures one call; closing the sample records the elapsed time.
+    */
+   public class Sample implements AutoCloseable {
+      private final long start = System.nanoTime();
+
+      private Sample() {
+      }
+
+      @Override
+      public void close() {
+         record(System.nanoTime() - this.start);
+      }
+   }
+
+   private final String name;
+   private final String description;
+
+   private final LongAdder count = new LongAdder();
+   private final LongAdder totalNanos = new LongAdder();
+   private final AtomicLong minNanos = new AtomicLong(Long.MAX_VALUE);
+   private final AtomicLong maxNanos = new AtomicLong(0);
+   private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+
+   Timer(final String name, final String description) {
+      super();
+      this.name = name;
+      this.description = description;
+      for (int i = 0; i < this.buckets.length; i++) {
+         this.buckets[i] = new LongAdder();
+      }
+   }
+
+   public String getName() {
+      return this.name;
+   }
+
+   public String getDescription() {
+      return this.description;
+   }
+
+   public Sample start() {
+      return new Sample();
+   }
+
+   public void record(final long nanos) {
+      this.count.increment();
+      this.totalNanos.add(nanos);
+      this.minNanos.accumulateAndGet(nanos, Math::min);
+      this.maxNanos.accumulateAndGet(nanos, Math::max);
+
+      double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+      int bucket = 0;
+      while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+         bucket++;
+      }
+      this.buckets[bucket].increment();
+   }
+
+   public long getCount() {
+      return this.count.sum();
+   }
+
+   public long getTotalNanos() {
+      return this.totalNanos.sum();
+   }
+
+   public long getMinNanos() {
+      long min = this.minNanos.get();
+      return min == Long.MAX_VALUE ? 0 : min;
+   }
+
+   public long getMaxNanos() {
+      return this.maxNanos.get();
+   }
+
+   /**
+    * @return number of recorded durations per bucket, not cumulative; the
+    *         last entry counts durations above the largest bound
+    */
+   public long[] getBucketCounts() {
+      long[] counts = new long[this.buckets.length];
+      for (int i = 0; i < counts.length; i++) {
+         counts[i] = this.buckets[i].sum();
+      }
+      return counts;
+   }
+
+   void reset() {
+      this.count.reset();
+      this.totalNanos.reset();
+      this.minNanos.set(Long.MAX_VALUE);
+      this.maxNanos.set(0);
+      for (LongAdder bucket : this.buckets) {
+         bucket.reset();
+      }
+   }
+
+}
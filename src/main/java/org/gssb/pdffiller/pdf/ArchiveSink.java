@@ -0,0 +1,471 @@
+package org.gssb.pdffiller.pdf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.metrics.Counter;
+import org.gssb.pdffiller.metrics.Metrics;
+import org.gssb.pdffiller.text.TabSeparated;
+
+/**
+ * Writes generated documents into ZIP archives as they are created, so the
+ * documents of a run can be handed on as archives without reading them back
+ * from disk. A new archive is started once an archive reaches the size
+ * limit; the limit applies to the size of the archive file, including its
+ * central directory. An archive is written to a temporary file that is moved
+ * to its final name once it is complete.
+ * <p>
+ * Parallel workers compress their documents into a buffer of their own, so
+ * documents are compressed at the same time; only writing the compressed
+ * entries to the archive is done one document at a time. The archives are
+ * plain ZIP files without ZIP64 extensions, so an archive holds at most
+ * 65535 entries and 4 GB. An index lists the archive entries of every group;
+ * it is a text file with one line per entry: group key, archive name and
+ * entry name, separated by tabs.
+ */
+public class ArchiveSink implements Closeable {
+
+   private final static Logger logger = LogManager.getLogger(ArchiveSink.class);
+
+   private static final String CLOSED_ERROR =
+         "Archive %s is closed. Document %s is not archived.";
+
+   private static final String DUPLICATE_WARN =
+         "Archive %s already contains %s. The document is archived as %s.";
+
+   private static final String ARCHIVE_FORM = "%s-%04d.zip";
+   private static final String INDEX_FORM = "%s-index.txt";
+   private static final String PART = ".part";
+
+   private static final char SEPARATOR = '\t';
+   private static final char EOL = '\n';
+
+   private static final int LOCAL_HEADER = 0x04034b50;
+   private static final int CENTRAL_HEADER = 0x02014b50;
+   private static final int END_HEADER = 0x06054b50;
+   private static final int LOCAL_HEADER_SIZE = 30;
+   private static final int CENTRAL_HEADER_SIZE = 46;
+   private static final int END_SIZE = 22;
+   private static final short VERSION = 20;
+   private static final short UTF8_FLAG = 0x0800;
+   private static final short DEFLATED = 8;
+   private static final int MAX_ENTRIES = 0xffff;
+   private static final long MAX_SIZE = 0xffffffffL;
+
+   private static final int CHUNK_SIZE = 64 * 1024;
+   // buffers of very large documents are not kept by the workers
+   private static final int MAX_RETAINED_SIZE = 16 * 1024 * 1024;
+
+   private static final Counter ARCHIVED_COUNTER =
+         Metrics.counter("pdf.archived", "PDF documents written to ZIP archives.");
+   private static final Counter ARCHIVES_COUNTER =
+         Metrics.counter("pdf.archives", "ZIP archives written.");
+
+   /**
+    * Location of a document in the archives.
+    */
+   public static final class ArchiveEntry {
+      private final String archive;
+      private final String name;
+
+      ArchiveEntry(final String archive, final String name) {
+         this.archive = archive;
+         this.name = name;
+      }
+
+      /**
+       * @return file name of the archive
+       */
+      public String getArchive() {
+         return this.archive;
+      }
+
+      /**
+       * @return name of the entry in the archive
+       */
+      public String getName() {
+         return this.name;
+      }
+
+      @Override
+      public String toString() {
+         return this.archive + "!/" + this.name;
+      }
+   }
+
+   /**
+    * Counts the bytes written to an archive file.
+    */
+   private static class CountingStream extends FilterOutputStream {
+      private long count = 0;
+
+      CountingStream(final OutputStream out) {
+         super(out);
+      }
+
+      @Override
+      public void write(final int b) throws IOException {
+         this.out.write(b);
+         this.count++;
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+         this.out.write(b, off, len);
+         this.count += len;
+      }
+   }
+
+   /**
+    * Compresses documents of a worker into a buffer that is reused for the
+    * next document of the worker.
+    */
+   private static class Compressor {
+      private final Deflater deflater;
+      private final DocumentBufferPool.Buffer buffer =
+            new DocumentBufferPool.Buffer(CHUNK_SIZE);
+      private final byte[] chunk = new byte[CHUNK_SIZE];
+      private final CRC32 crc = new CRC32();
+      private long size;
+
+      Compressor(final int level) {
+         // ZIP entries hold raw deflate data without zlib header
+         this.deflater = new Deflater(level, true);
+      }
+
+      void compress(final InputStream content) throws IOException {
+         this.deflater.reset();
+         this.buffer.reset();
+         this.crc.reset();
+         this.size = 0;
+         try (OutputStream out = new DeflaterOutputStream(this.buffer, this.deflater,
+                                                          CHUNK_SIZE)) {
+            int n;
+            while ((n = content.read(this.chunk)) > 0) {
+               this.crc.update(this.chunk, 0, n);
+               out.write(this.chunk, 0, n);
+               this.size += n;
+            }
+         }
+      }
+   }
+
+   private final Path folder;
+   private final String baseName;
+   private final long sizeLimit;
+   private final ThreadLocal<Compressor> compressors;
+
+   private final Map<String, List<ArchiveEntry>> entries = new LinkedHashMap<>();
+
+   private int archiveCount = 0;
+   private String archiveName;
+   private CountingStream out;
+   private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+   private final Set<String> entryNames = new HashSet<>();
+   private boolean closed = false;
+
+   private ArchiveSink(final Path folder, final String baseName,
+                       final long sizeLimit, final int level) {
+      super();
+      this.folder = folder;
+      this.baseName = baseName;
+      this.sizeLimit = Math.max(1, Math.min(MAX_SIZE, sizeLimit));
+      int compression = Math.max(Deflater.NO_COMPRESSION,
+                                 Math.min(Deflater.BEST_COMPRESSION, level));
+      this.compressors = ThreadLocal.withInitial(() -> new Compressor(compression));
+   }
+
+   /**
+    * Opens the archives of a run in the generated folder. Archives of an
+    * earlier run with the same base name are deleted.
+    *
+    * @param baseName  archives are named by the base name and a sequence
+    *                  number, such as <code>print-0001.zip</code>
+    * @param sizeLimit size in bytes of an archive file that a new document
+    *                  must not exceed, otherwise a new archive is started
+    * @param level     compression level of the entries from 0 (stored
+    *                  without compression) to 9
+    */
+   public static ArchiveSink open(final Path folder, final String baseName,
+                                  final long sizeLimit, final int level)
+                 throws IOException {
+      Objects.requireNonNull(folder);
+      Objects.requireNonNull(baseName);
+      Pattern earlier = Pattern.compile(Pattern.quote(baseName) + "-\\d{4,}\\.zip(" +
+                                        Pattern.quote(PART) + ")?");
+      try (DirectoryStream<Path> files =
+                 Files.newDirectoryStream(folder,
+                                          f -> earlier.matcher(f.getFileName()
+                                                                .toString())
+                                                      .matches())) {
+         for (Path file : files) {
+            Files.delete(file);
+         }
+      }
+      return new ArchiveSink(folder, baseName, sizeLimit, level);
+   }
+
+   private void startArchive() throws IOException {
+      this.archiveCount++;
+      this.archiveName = String.format(ARCHIVE_FORM, this.baseName, this.archiveCount);
+      Path part = this.folder.resolve(this.archiveName + PART);
+      this.out = new CountingStream(new BufferedOutputStream(Files.newOutputStream(part)));
+      this.centralDirectory.reset();
+      this.entryNames.clear();
+   }
+
+   private void finishArchive() throws IOException {
+      if (this.out == null) {
+         return;
+      }
+      long offset = this.out.count;
+      this.centralDirectory.writeTo(this.out);
+      ByteBuffer end = ByteBuffer.allocate(END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      end.putInt(END_HEADER)
+         .putShort((short) 0)
+         .putShort((short) 0)
+         .putShort((short) this.entryNames.size())
+         .putShort((short) this.entryNames.size())
+         .putInt(this.centralDirectory.size())
+         .putInt((int) offset)
+         .putShort((short) 0);
+      this.out.write(end.array());
+      this.out.close();
+      this.out = null;
+      Path part = this.folder.resolve(this.archiveName + PART);
+      Files.move(part, this.folder.resolve(this.archiveName),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      ARCHIVES_COUNTER.increment();
+   }
+
+   /**
+    * @return path of the document relative to the folder of the archives,
+    *         or its file name if it is located elsewhere
+    */
+   private String getEntryName(final File document) {
+      Path path = document.toPath().toAbsolutePath().normalize();
+      Path base = this.folder.toAbsolutePath().normalize();
+      if (!path.startsWith(base) || path.equals(base)) {
+         return document.getName();
+      }
+      return base.relativize(path).toString().replace(File.separatorChar, '/');
+   }
+
+   /**
+    * @return the name, or the name with a number if the current archive
+    *         already contains an entry of the name
+    */
+   private String getUniqueName(final String name) {
+      if (!this.entryNames.contains(name)) {
+         return name;
+      }
+      int dot = name.lastIndexOf('.');
+      int slash = name.lastIndexOf('/');
+      String stem = dot > slash ? name.substring(0, dot) : name;
+      String extension = dot > slash ? name.substring(dot) : "";
+      int n = 2;
+      String unique;
+      do {
+         unique = stem + " (" + n++ + ")" + extension;
+      } while (this.entryNames.contains(unique));
+      return unique;
+   }
+
+   /**
+    * @return date and time in MS-DOS format, time in the low and date in
+    *         the high 16 bits
+    */
+   private static int toDosTime(final long millis) {
+      LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis),
+                                                   ZoneId.systemDefault());
+      if (time.getYear() < 1980) {
+         return (1 << 21) | (1 << 16);
+      }
+      return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 |
+             time.getDayOfMonth() << 16 | time.getHour() << 11 |
+             time.getMinute() << 5 | time.getSecond() >> 1;
+   }
+
+   /**
+    * @return size of the current archive file once the entry is added
+    */
+   private long getSizeWith(final byte[] name, final Compressor compressor) {
+      return this.out.count + LOCAL_HEADER_SIZE + name.length + compressor.buffer.size() +
+             this.centralDirectory.size() + CENTRAL_HEADER_SIZE + name.length + END_SIZE;
+   }
+
+   private void writeEntry(final byte[] name, final Compressor compressor,
+                           final int dosTime) throws IOException {
+      long offset = this.out.count;
+      ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE)
+                                    .order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(LOCAL_HEADER)
+            .putShort(VERSION)
+            .putShort(UTF8_FLAG)
+            .putShort(DEFLATED)
+            .putInt(dosTime)
+            .putInt((int) compressor.crc.getValue())
+            .putInt(compressor.buffer.size())
+            .putInt((int) compressor.size)
+            .putShort((short) name.length)
+            .putShort((short) 0);
+      this.out.write(header.array());
+      this.out.write(name);
+      compressor.buffer.writeTo(this.out);
+
+      ByteBuffer central = ByteBuffer.allocate(CENTRAL_HEADER_SIZE)
+                                     .order(ByteOrder.LITTLE_ENDIAN);
+      central.putInt(CENTRAL_HEADER)
+             .putShort(VERSION)
+             .putShort(VERSION)
+             .putShort(UTF8_FLAG)
+             .putShort(DEFLATED)
+             .putInt(dosTime)
+             .putInt((int) compressor.crc.getValue())
+             .putInt(compressor.buffer.size())
+             .putInt((int) compressor.size)
+             .putShort((short) name.length)
+             .putShort((short) 0)
+             .putShort((short) 0)
+             .putShort((short) 0)
+             .putShort((short) 0)
+             .putInt(0)
+             .putInt((int) offset);
+      this.centralDirectory.write(central.array());
+      this.centralDirectory.write(name);
+   }
+
+   /**
+    * Compresses a document and adds it to the current archive. A new
+    * archive is started first if the document would make the current
+    * archive file exceed the size limit.
+    *
+    * @param groupKey key of the group of the document in the index
+    * @param document the file the document is saved to; names the entry
+    * @param content  content of the document
+    */
+   public void add(final String groupKey, final File document,
+                   final InputStream content) throws IOException {
+      Compressor compressor = this.compressors.get();
+      compressor.compress(content);
+      String entryName = getEntryName(document);
+      int dosTime = toDosTime(document.isFile() ? document.lastModified()
+                                                : System.currentTimeMillis());
+      try {
+         addCompressed(groupKey, document, entryName, compressor, dosTime);
+      } finally {
+         if (compressor.buffer.capacity() > MAX_RETAINED_SIZE) {
+            this.compressors.remove();
+         }
+      }
+   }
+
+   private synchronized void addCompressed(final String groupKey, final File document,
+                                           final String entryName,
+                                           final Compressor compressor,
+                                           final int dosTime) throws IOException {
+      if (this.closed) {
+         throw new IllegalStateException(String.format(CLOSED_ERROR, this.baseName,
+                                                       document));
+      }
+      String name = this.out != null ? getUniqueName(entryName) : entryName;
+      if (this.out != null && !this.entryNames.isEmpty() &&
+          (this.entryNames.size() >= MAX_ENTRIES ||
+           getSizeWith(name.getBytes(StandardCharsets.UTF_8), compressor) > this.sizeLimit)) {
+         finishArchive();
+      }
+      if (this.out == null) {
+         startArchive();
+         name = entryName;
+      }
+      if (!name.equals(entryName)) {
+         logger.warn(String.format(DUPLICATE_WARN, this.archiveName, entryName, name));
+      }
+      this.entryNames.add(name);
+      writeEntry(name.getBytes(StandardCharsets.UTF_8), compressor, dosTime);
+      this.entries.computeIfAbsent(groupKey, k -> new ArrayList<>())
+                  .add(new ArchiveEntry(this.archiveName, name));
+      ARCHIVED_COUNTER.increment();
+   }
+
+   /**
+    * Adds a document saved to disk, such as a document reused from an
+    * earlier run.
+    */
+   public void add(final String groupKey, final File document) throws IOException {
+      try (InputStream in = Files.newInputStream(document.toPath())) {
+         add(groupKey, document, in);
+      }
+   }
+
+   /**
+    * @return the archive entries of a group in the order they were added
+    */
+   public synchronized List<ArchiveEntry> getEntries(final String groupKey) {
+      List<ArchiveEntry> groupEntries = this.entries.get(groupKey);
+      return groupEntries != null ? new ArrayList<>(groupEntries)
+                                  : Collections.emptyList();
+   }
+
+   private void saveIndex() throws IOException {
+      Path indexFile = this.folder.resolve(String.format(INDEX_FORM, this.baseName));
+      Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+      try (Writer out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+         for (Map.Entry<String, List<ArchiveEntry>> e : this.entries.entrySet()) {
+            String groupKey = TabSeparated.escape(e.getKey());
+            for (ArchiveEntry entry : e.getValue()) {
+               out.write(groupKey + SEPARATOR + entry.archive + SEPARATOR +
+                         TabSeparated.escape(entry.name) + EOL);
+            }
+         }
+      }
+      Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   /**
+    * Completes the current archive and writes the index. Documents added
+    * afterwards are rejected.
+    */
+   @Override
+   public synchronized void close() throws IOException {
+      if (this.closed) {
+         return;
+      }
+      this.closed = true;
+      finishArchive();
+      saveIndex();
+   }
+
+}
@@ -2,19 +2,32 @@ package org.gssb.pdffiller.pdf;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -24,14 +37,25 @@ import org.apache.pdfbox.pdmodel.encryption.InvalidPasswordException;
 import org.apache.poi.EncryptedDocumentException;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.gssb.pdffiller.config.AppProperties;
+import org.gssb.pdffiller.config.OutputLayout;
 import org.gssb.pdffiller.excel.ColumnNotFoundException;
+import org.gssb.pdffiller.excel.ColumnProjection;
 import org.gssb.pdffiller.excel.ExcelCell;
 import org.gssb.pdffiller.excel.ExcelRow;
 import org.gssb.pdffiller.excel.RowGroup;
-import org.gssb.pdffiller.excel.ExcelReader;
+import org.gssb.pdffiller.excel.RowGroupSorter;
+import org.gssb.pdffiller.excel.RowSource;
 import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.gssb.pdffiller.journal.RunJournal;
+import org.gssb.pdffiller.manifest.Fingerprint;
+import org.gssb.pdffiller.manifest.OutputManifest;
+import org.gssb.pdffiller.metrics.Counter;
+import org.gssb.pdffiller.metrics.Metrics;
 import org.gssb.pdffiller.template.Choice;
 import org.gssb.pdffiller.template.Template;
+import org.gssb.pdffiller.template.TemplateMetadata;
+import org.gssb.pdffiller.template.TemplateMetadataCache;
+import org.gssb.pdffiller.text.OverlayMap;
 import org.gssb.pdffiller.text.TextBuilder;
 
 import com.github.mustachejava.MustacheException;
@@ -77,46 +101,161 @@ public class BulkPdf {
          "The secret column %s does not exist in the selected " +
          "Excel workbook sheet.";
    
+   private static final String GROUP_FAILED =
+         "Unable to create the PDF documents of %s.";
+   
+   private static final String MANIFEST_WARN =
+         "Unable to save manifest %s. All documents will be created again.";
+   
+   private static final String INDEX_WARN =
+         "Unable to save output index %s.";
+   
+   private static final String ARCHIVE_OPEN_ERROR =
+         "Unable to create archive %s in %s.";
+   
+   private static final String ARCHIVE_CLOSE_ERROR =
+         "Unable to complete archive %s. The archive is incomplete.";
+   
+   private static final String ARCHIVE_ADD_ERROR =
+         "Unable to add document '%s' to archive %s.";
+   
    private static final String BASE_NAME = "_BaseName_";
    
+   // seconds to wait for the groups in progress after a run stopped
+   private static final long WORKER_STOP_TIMEOUT = 60;
+   
+   // form field of a repeated record, such as Name_2
+   private static final Pattern INDEXED_NAME = Pattern.compile("(.+)_\\d+");
+   
+   private static final Counter REUSED_COUNTER =
+         Metrics.counter("pdf.reused", "Unchanged PDF documents reused from an earlier run.");
+   private static final Counter IN_MEMORY_COUNTER =
+         Metrics.counter("pdf.in_memory", "PDF documents created in memory for email.");
+   
    private final PrintStream outstream;
 
    private final String sourceFolder;
    private final String generatedFolder;
    private final String excelInputFile;
    
+   private final OutputLayout outputLayout;
+   private final int outputFanOut;
+   private final Optional<String> outputIndexName;
+   private volatile OutputDirectory outputDirectory;
+   
    private final List<String> groupColumns;
+   private final long groupMemoryLimit;
+   private final Optional<String> groupSpillFolder;
    
-   private final ExcelReader rowReader;
+   private final RowSource rowReader;
    private final PdfFormFiller pdfFormFiller;
    private final TextBuilder textBuilder;
+   private final TemplateMetadataCache metadataCache;
    
    private final String fileNameTemplate;
    private final String fileGroupNameTemplate;
    
-   BulkPdf(final AppProperties properties, final ExcelReader rowReader,
+   private final int threads;
+   
+   private final Optional<String> manifestName;
+   private volatile OutputManifest manifest = OutputManifest.disabled();
+   
+   private volatile ColumnProjection projection = ColumnProjection.all();
+   
+   private final boolean inMemory;
+   private final DocumentBufferPool bufferPool;
+   private final Optional<DocumentWriter> documentWriter;
+   
+   private final Optional<String> archiveName;
+   private final long archiveSizeLimit;
+   private final int archiveCompression;
+   private volatile Optional<ArchiveSink> archive = Optional.empty();
+   
+   BulkPdf(final AppProperties properties, final RowSource rowReader,
            final TextBuilder textBuilder, final PdfFormFiller pdfFormFiller,
            final PrintStream outstream) {
+      this(properties, rowReader, textBuilder, pdfFormFiller,
+           new TemplateMetadataCache(pdfFormFiller),
+           properties.getPdfThreads(), outstream);
+   }
+   
+   BulkPdf(final AppProperties properties, final RowSource rowReader,
+           final TextBuilder textBuilder, final PdfFormFiller pdfFormFiller,
+           final TemplateMetadataCache metadataCache, final int threads,
+           final PrintStream outstream) {
       super();
       this.sourceFolder = properties.getSourceFolder();
       this.generatedFolder = properties.getGeneratedFolder();
       this.excelInputFile = properties.getExcelFileName();
       
+      this.outputLayout = Optional.ofNullable(properties.getOutputLayout())
+                                  .orElse(OutputLayout.FLAT);
+      this.outputFanOut = properties.getOutputFanOut();
+      this.outputIndexName = properties.getOutputIndexFileName();
+      
       this.groupColumns = properties.getGroupColumns();
+      this.groupMemoryLimit = properties.getGroupMemoryLimit() * 1024L * 1024L;
+      this.groupSpillFolder = properties.getGroupSpillFolder();
       
       this.rowReader = rowReader;
       this.textBuilder = textBuilder;
       this.pdfFormFiller = pdfFormFiller;
+      this.metadataCache = metadataCache;
       
       this.fileNameTemplate = properties.getFileNameTemplate();
       this.fileGroupNameTemplate = properties.getFileGroupNameTemplate();
       
+      this.threads = Math.max(1, threads);
+      
+      this.manifestName = properties.getManifestFileName();
+      
+      this.inMemory = properties.isInMemoryOutput();
+      // buffers of documents waiting in the delivery pipeline are reused
+      int documentsInFlight = properties.getPipelineQueueSize() + this.threads;
+      this.bufferPool = new DocumentBufferPool(documentsInFlight);
+      this.documentWriter = this.inMemory && properties.isWriteBehind()
+                               ? Optional.of(new DocumentWriter(documentsInFlight))
+                               : Optional.empty();
+      
+      this.archiveName = properties.getArchiveName();
+      this.archiveSizeLimit = properties.getArchiveSizeLimit() * 1024L * 1024L;
+      this.archiveCompression = properties.getArchiveCompression();
+      
       this.outstream = outstream;
    }
    
    public BulkPdf(final AppProperties properties) {
-      this(properties, new ExcelReader(properties), new TextBuilder(),
-           new PdfFormFiller(), System.out);
+      this(properties, new PdfFormFiller(properties.isTemplateBuffered(),
+                                         new PdfMemoryPolicy(properties, "")));
+   }
+   
+   private BulkPdf(final AppProperties properties,
+                   final PdfFormFiller pdfFormFiller) {
+      this(properties, pdfFormFiller, new TemplateMetadataCache(pdfFormFiller));
+   }
+   
+   /**
+    * @param pdfFormFiller filler that also acts as the inspector of
+    *                      <code>metadataCache</code>
+    * @param metadataCache cache shared with the template builder that
+    *                      resolved the templates
+    */
+   public BulkPdf(final AppProperties properties,
+                  final PdfFormFiller pdfFormFiller,
+                  final TemplateMetadataCache metadataCache) {
+      this(properties, pdfFormFiller, metadataCache, properties.getPdfThreads());
+   }
+   
+   /**
+    * @param threads number of row groups processed in parallel; 1 processes
+    *                groups sequentially in the calling thread
+    */
+   public BulkPdf(final AppProperties properties,
+                  final PdfFormFiller pdfFormFiller,
+                  final TemplateMetadataCache metadataCache,
+                  final int threads) {
+      this(properties, RowSource.of(properties), new TextBuilder(),
+           pdfFormFiller, metadataCache, threads, System.out);
    }
    
    private void printProgress(final int count, final char character) {
@@ -127,64 +266,110 @@ public class BulkPdf {
       }
    }
    
-   private List<RowGroup> groupRows(final List<ExcelRow> allRows,
-                                    final Optional<String> groupId,
-                                    final boolean singleRecord) {
-      if (allRows.isEmpty()) {
-         return Collections.emptyList();
+   private Path getSpillFolder(final String rootPath) {
+      return this.groupSpillFolder
+                 .map(f -> Paths.get(rootPath).resolve(f))
+                 .orElseGet(() -> Paths.get(System.getProperty("java.io.tmpdir")));
+   }
+   
+   /**
+    * Groups the rows by the first group column in the order of the group
+    * ids. Rows are sorted in runs that are spilled to disk once they exceed
+    * the memory limit, so the stream holds the input and the runs open and
+    * must be closed by the caller.
+    */
+   private Stream<RowGroup> groupRows(final String rootPath, final File excelFile,
+                                      final String sheetName,
+                                      final Optional<String> groupId)
+                            throws IOException, InvalidFormatException {
+      String groupColumn = this.groupColumns != null && !this.groupColumns.isEmpty()
+                              ? this.groupColumns.get(0) : null;
+      RowGroupSorter sorter = new RowGroupSorter(groupColumn, this.groupMemoryLimit,
+                                                 getSpillFolder(rootPath));
+      return sorter.group(this.rowReader.stream(excelFile, sheetName, this.projection),
+                          groupId);
+   }
+   
+   private void addVariables(final String template, final Set<String> names) {
+      if (template != null) {
+         names.addAll(this.textBuilder.getVariables(template));
       }
-      
-      // grouping column not found -> process row by row
-      if (this.groupColumns==null || this.groupColumns.isEmpty() ||
-          allRows.get(0).getValue(this.groupColumns.get(0)) == null) {
-         return allRows.stream()
-                       .map(r -> new RowGroup(null, Arrays.asList(r)))
-                       .collect(Collectors.toList());
+   }
+   
+   /**
+    * Collects the columns that documents are created from: the group and
+    * secret columns, the choice columns, the columns of the form fields of
+    * all templates and the variables of the file name templates. A form
+    * field of a repeated record, such as <code>Name_2</code>, also refers
+    * to the column <code>Name</code>.
+    * 
+    * @param otherColumns further columns read by the run, such as the
+    *                     columns of the emails
+    */
+   public ColumnProjection createColumnProjection(final String secretColumnName,
+                                                  final List<Template> alwaysInclude,
+                                                  final List<Choice> choices,
+                                                  final Map<String, Map<String, String>> formFieldMaps,
+                                                  final Set<String> otherColumns) {
+      Set<String> names = new HashSet<>(otherColumns);
+      names.add(secretColumnName);
+      if (this.groupColumns != null) {
+         names.addAll(this.groupColumns);
       }
+      addVariables(this.fileNameTemplate, names);
+      addVariables(this.fileGroupNameTemplate, names);
       
-      String groupColumn = this.groupColumns.get(0);
-      Map<String, List<ExcelRow>> groups =
-            allRows.stream()
-                   .collect(Collectors.groupingBy(r -> r.getValue(groupColumn)
-                                                        .getColumnValue()));
-      
-      Comparator<RowGroup> comp = 
-            (g1, g2) -> g1.getHeadRow()
-                          .getValue(groupColumn)
-                          .getColumnValue()
-                          .compareTo(g2.getHeadRow()
-                                       .getValue(groupColumn)
-                                       .getColumnValue());
+      List<Template> templates = new ArrayList<>(alwaysInclude);
+      for (Choice choice : choices) {
+         names.add(choice.getSelectionColumn());
+         choice.getKeys().forEach(k -> choice.select(k).ifPresent(templates::add));
+      }
+      for (Template template : templates) {
+         TemplateMetadata metadata = getMetadata(template,
+                                                 formFieldMaps.get(template.getKey()));
+         names.addAll(metadata.getFieldColumns().values());
+      }
       
-       List<RowGroup> groupRows =
-             groups.entrySet()
-                   .stream()
-                   .map(l -> new RowGroup(groupColumn, l.getValue()))
-                   .sorted(comp)
-                   .collect(Collectors.toList());
-       
-       List<RowGroup> resultRows = new ArrayList<>();
-       boolean foundFirst = !groupId.isPresent();
-       for (RowGroup rowGroup : groupRows) {
-          foundFirst = foundFirst ||
-                       groupId.isPresent() &&
-                       rowGroup.getGroupId().isPresent() &&
-                       rowGroup.getGroupId().get().equals(groupId.get());
-          if (foundFirst) {
-             resultRows.add(rowGroup);
-          }
-       }
-       return resultRows;
-   }
-   
-   protected List<RowGroup> createGroups(final File excelFile,
+      Set<String> columns = new HashSet<>();
+      for (String name : names) {
+         if (name == null) continue;
+         columns.add(name);
+         Matcher matcher = INDEXED_NAME.matcher(name);
+         if (matcher.matches()) {
+            columns.add(matcher.group(1));
+         }
+      }
+      return ColumnProjection.of(columns);
+   }
+   
+   /**
+    * Restricts reading the spreadsheet to the projected columns.
+    */
+   public void setColumnProjection(final ColumnProjection projection) {
+      this.projection = Objects.requireNonNull(projection);
+   }
+   
+   protected List<RowGroup> createGroups(final String rootPath,
+                                         final File excelFile,
                                          final String sheetName,
                                          final Optional<String> startGroupId,
                                          final boolean singleRecord) {
-      List<RowGroup> groups = null;
+      try (Stream<RowGroup> groups = streamGroups(rootPath, excelFile, sheetName,
+                                                  startGroupId)) {
+         return groups.collect(Collectors.toList());
+      } catch (UncheckedIOException e) {
+         String msg = e.getMessage();
+         logger.error(msg, e);
+         throw new UnrecoverableException(msg, e);
+      }
+   }
+   
+   private Stream<RowGroup> streamGroups(final String rootPath,
+                                         final File excelFile,
+                                         final String sheetName,
+                                         final Optional<String> startGroupId) {
       try {
-         groups = groupRows(this.rowReader.read(excelFile, sheetName),
-                            startGroupId, singleRecord);
+         return groupRows(rootPath, excelFile, sheetName, startGroupId);
       } catch (EncryptedDocumentException e) {
          String msg = "PDF Template is encrypted.";
          logger.error(msg, e);
@@ -198,7 +383,6 @@ public class BulkPdf {
          logger.error(msg, e);
          throw new UnrecoverableException(msg, e);
       }
-      return groups;
    }
    
    // TODO: externalize expression for name
@@ -226,39 +410,255 @@ public class BulkPdf {
       return name;
    }
 
+   /**
+    * @param group group of the document; places the document in the
+    *              subfolder of a sharded layout
+    */
    protected File getTargetPdf(final String rootPath,
                                final Map<String, String> formMap,
                                final Path templatePath,
                                final String baseFileName,
-                               final boolean isGroup) {
+                               final boolean isGroup,
+                               final RowGroup group) throws IOException {
 	   // define additional key-value pair for file base name
-	   Map<String, String> nameValuePairs = new HashMap<>(formMap);
-	   nameValuePairs.put(BASE_NAME, baseFileName);
-      String targetPath = rootPath + File.separator + 
-                          this.generatedFolder + File.separator +
-                          getTargetFileName(formMap, templatePath, 
-                                            nameValuePairs, isGroup);
-      return new File(targetPath);
+	   Map<String, String> nameValuePairs = new OverlayMap(formMap, BASE_NAME,
+	                                                       baseFileName);
+      String fileName = getTargetFileName(formMap, templatePath, nameValuePairs,
+                                          isGroup);
+      return getOutputDirectory(rootPath).resolve(fileName, RunJournal.getKey(group),
+                                                  group.getGroupId());
    }
 
+   private TemplateMetadata getMetadata(final Template template,
+                                        final Map<String, String> formFieldMap) {
+      Optional<TemplateMetadata> metadata = template.getMetadata();
+      if (metadata.isPresent()) {
+         return metadata.get();
+      }
+      Path templatePath = template.getTemplatePath();
+      try {
+         return this.metadataCache.get(templatePath, formFieldMap);
+      } catch (InvalidPasswordException e) {
+         String msg = "PDF template '" + templatePath.toFile().getAbsolutePath() +
+                      "' is encrypted.";
+         logger.error(msg, e);
+         throw new UnrecoverableException(msg, e);
+      } catch (IOException e) {
+         String msg = "Error while reading PDF template '" +
+                      templatePath.toFile().getAbsolutePath() + "'.";
+         logger.error(msg, e);
+         throw new UnrecoverableException(msg, e);
+      }
+   }
+
+   /**
+    * Digest of everything that determines the content of a document: the
+    * template, the mapping of form fields to columns, the values of these
+    * columns, the name template and the encryption keys.
+    */
+   private String getFingerprint(final Map<String, String> formMap,
+                                 final String masterKey,
+                                 final String secret,
+                                 final Path templatePath,
+                                 final String baseFileName,
+                                 final TemplateMetadata metadata,
+                                 final boolean isGroup) throws IOException {
+      Map<String, String> values = new HashMap<>();
+      for (String column : metadata.getFieldColumns().values()) {
+         values.put(column, formMap.get(column));
+      }
+      return new Fingerprint().add(this.manifest.getFileHash(templatePath))
+                              .add(metadata.getFieldColumns())
+                              .add(values)
+                              .add(isGroup ? this.fileGroupNameTemplate
+                                           : this.fileNameTemplate)
+                              .add(baseFileName)
+                              .add(masterKey)
+                              .add(secret)
+                              .build();
+   }
+
+   /**
+    * Fills the form into a pooled buffer instead of a file.
+    *
+    * @return the buffer with the document; empty if the document could not
+    *         be created
+    */
+   private Optional<DocumentBufferPool.Buffer> populateBuffer(final Path templatePath,
+                                                              final File targetPdf,
+                                                              final Map<String, String> formMap,
+                                                              final Optional<ExcelRow> row,
+                                                              final String masterKey,
+                                                              final TemplateMetadata metadata,
+                                                              final String secret)
+                                               throws IOException {
+      DocumentBufferPool.Buffer buffer = this.bufferPool.acquire();
+      boolean created =
+            row.isPresent()
+               ? this.pdfFormFiller.populateAndWrite(templatePath.toFile(),
+                                                     targetPdf.getName(), buffer,
+                                                     row.get(), masterKey, metadata,
+                                                     secret)
+               : this.pdfFormFiller.populateAndWrite(templatePath.toFile(),
+                                                     targetPdf.getName(), buffer,
+                                                     formMap, masterKey, metadata,
+                                                     secret);
+      if (!created) {
+         this.bufferPool.release(buffer);
+         return Optional.empty();
+      }
+      return Optional.of(buffer);
+   }
+
+   /**
+    * Fills the form into a pooled buffer instead of a file. The document is
+    * added to the archive and written to disk in the background if
+    * write-behind is enabled.
+    */
+   private Optional<InMemoryDocument> createInMemoryDocument(final Path templatePath,
+                                                             final File targetPdf,
+                                                             final Map<String, String> formMap,
+                                                             final Optional<ExcelRow> row,
+                                                             final String masterKey,
+                                                             final TemplateMetadata metadata,
+                                                             final String secret,
+                                                             final String fingerprint,
+                                                             final String groupKey)
+                                      throws IOException {
+      Optional<DocumentBufferPool.Buffer> filled =
+            populateBuffer(templatePath, targetPdf, formMap, row, masterKey, metadata,
+                           secret);
+      if (!filled.isPresent()) {
+         return Optional.empty();
+      }
+      DocumentBufferPool.Buffer buffer = filled.get();
+      IN_MEMORY_COUNTER.increment();
+      InMemoryDocument document = new InMemoryDocument(targetPdf, this.bufferPool,
+                                                       buffer);
+      Optional<ArchiveSink> sink = this.archive;
+      if (sink.isPresent()) {
+         try (InputStream in = document.openStream()) {
+            sink.get().add(groupKey, targetPdf, in);
+         } catch (IOException | RuntimeException e) {
+            document.release();
+            throw e;
+         }
+      }
+      this.documentWriter.ifPresent(w -> w.write(document,
+                                                 d -> this.manifest.record(d.getTargetFile(),
+                                                                           fingerprint)));
+      return Optional.of(document);
+   }
+
+   /**
+    * Fills the form into a pooled buffer that is saved to the target file
+    * and added to the archive, so the archive never reads the document back
+    * from disk.
+    */
+   private boolean createArchivedFile(final ArchiveSink sink,
+                                      final Path templatePath, final File targetPdf,
+                                      final Map<String, String> formMap,
+                                      final Optional<ExcelRow> row,
+                                      final String masterKey,
+                                      final TemplateMetadata metadata,
+                                      final String secret,
+                                      final String groupKey) throws IOException {
+      Optional<DocumentBufferPool.Buffer> filled =
+            populateBuffer(templatePath, targetPdf, formMap, row, masterKey, metadata,
+                           secret);
+      if (!filled.isPresent()) {
+         return false;
+      }
+      DocumentBufferPool.Buffer buffer = filled.get();
+      try {
+         try (InputStream in = buffer.openStream()) {
+            Files.copy(in, targetPdf.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         }
+         try (InputStream in = buffer.openStream()) {
+            sink.add(groupKey, targetPdf, in);
+         }
+      } finally {
+         this.bufferPool.release(buffer);
+      }
+      return true;
+   }
+
+   private boolean populateAndCopy(final Path templatePath, final File targetPdf,
+                                   final Map<String, String> formMap,
+                                   final Optional<ExcelRow> row,
+                                   final String masterKey,
+                                   final TemplateMetadata metadata,
+                                   final String secret)
+                   throws IOException {
+      if (row.isPresent()) {
+         return this.pdfFormFiller.populateAndCopy(templatePath.toFile(), targetPdf,
+                                                   row.get(), masterKey, metadata,
+                                                   secret);
+      }
+      return this.pdfFormFiller.populateAndCopy(templatePath.toFile(), targetPdf,
+                                                formMap, masterKey, metadata, secret);
+   }
+
+   /**
+    * @param row               record of a single-record document; its values
+    *                          are filled in through the fill plan of the
+    *                          template without building a form map
+    * @param inMemoryDocuments collects the documents created in memory;
+    *                          empty if documents are saved to disk
+    */
    private File createFilledFile(final String rootPath,
+                                 final RowGroup group,
                                  final Map<String, String> formMap,
+                                 final Optional<ExcelRow> row,
                                  final String masterKey,
                                  final String secretColumnName,
                                  final Path templatePath, 
                                  final String baseFileName,
-                                 final Map<String, String> formFieldMap,
-                                 final boolean isGroup) {
+                                 final TemplateMetadata metadata,
+                                 final boolean isGroup,
+                                 final Optional<Map<File, InMemoryDocument>> inMemoryDocuments) {
       // uses by default reference to PDF file if it does not contain a form
       File targetPdf = templatePath.toFile();
       try {
-         if (this.pdfFormFiller.isPdfForm(templatePath.toFile())) {
+         if (metadata.isPdfForm()) {
             targetPdf = getTargetPdf(rootPath, formMap, templatePath,
-                                     baseFileName, isGroup);
+                                     baseFileName, isGroup, group);
             String secret = formMap.get(secretColumnName);
-            this.pdfFormFiller
-                .populateAndCopy(templatePath.toFile(), targetPdf, formMap,
-                                 masterKey, formFieldMap, secret);
+            String fingerprint = this.manifest.isEnabled()
+                                    ? getFingerprint(formMap, masterKey, secret,
+                                                     templatePath, baseFileName,
+                                                     metadata, isGroup)
+                                    : "";
+            String groupKey = RunJournal.getKey(group);
+            Optional<ArchiveSink> sink = this.archive;
+            if (this.manifest.isCurrent(targetPdf, fingerprint)) {
+               logger.debug("Reuse unchanged document " + targetPdf.toString() + ".");
+               REUSED_COUNTER.increment();
+               if (sink.isPresent()) {
+                  sink.get().add(groupKey, targetPdf);
+               }
+            } else if (inMemoryDocuments.isPresent()) {
+               File target = targetPdf;
+               Optional<InMemoryDocument> document =
+                     createInMemoryDocument(templatePath, targetPdf, formMap, row,
+                                            masterKey, metadata, secret, fingerprint,
+                                            groupKey);
+               document.ifPresent(d -> inMemoryDocuments.get().put(target, d));
+               // a document kept in memory only is never saved to disk
+               if (!document.isPresent() || !this.documentWriter.isPresent()) {
+                  getOutputDirectory(rootPath).remove(groupKey, targetPdf);
+               }
+            } else if (sink.isPresent()
+                          ? createArchivedFile(sink.get(), templatePath, targetPdf,
+                                               formMap, row, masterKey, metadata,
+                                               secret, groupKey)
+                          : populateAndCopy(templatePath, targetPdf, formMap, row,
+                                            masterKey, metadata, secret)) {
+               this.manifest.record(targetPdf, fingerprint);
+            } else {
+               this.manifest.remove(targetPdf);
+               getOutputDirectory(rootPath).remove(groupKey, targetPdf);
+            }
          } else {
             logger.debug("Include plain PDF document " + 
                          targetPdf.toString() + " into UoW.");
@@ -322,57 +722,32 @@ public class BulkPdf {
                     .collect(Collectors.toList());
    }
    
-   private boolean containsOnlyGroupFields(final Path templatePath,
-                                           final Map<String, String> formFieldMap) {
-      Set<String> fields;
-      try {
-         fields = this.pdfFormFiller.getFields(templatePath.toFile());
-      } catch (IOException e) {
-         return false;
-      }
-      
-      // map form field names to the excel column names if specified
-      Set<String> mappedFields = 
-            fields.stream()
-                  .map(f -> formFieldMap.getOrDefault(f,f))
-                  .collect(Collectors.toSet());
+   private boolean containsOnlyGroupFields(final TemplateMetadata metadata) {
+      // form field names mapped to the excel column names if specified
+      Set<String> mappedFields = new HashSet<>(metadata.getFieldColumns()
+                                                       .values());
       return this.groupColumns.containsAll(mappedFields);
    }
    
-   private boolean isPdfForm(final Path templatePath) {
-      try {
-         return this.pdfFormFiller.isPdfForm(templatePath.toFile());
-      } catch (IOException e) {
-         return false;
-      }
-   }
-
-   private boolean useOneRecordPerForm(final Path templatePath) {
-      try {
-         return this.pdfFormFiller
-                    .containsRepeatedFieldNames(templatePath.toFile());
-      } catch (IOException e) {
-         return false;
-      }
-   }
-   
    private List<File> createFilledFiles(final String rootPath,
                                         final RowGroup group,
                                         final String masterKey,
                                         final String secretColumnName,
                                         final List<Choice> choices,
-                                        final Map<String, Map<String, String>> formFieldMaps) {
+                                        final Map<String, Map<String, String>> formFieldMaps,
+                                        final Optional<Map<File, InMemoryDocument>> inMemoryDocuments) {
       List<File> files = new ArrayList<>();
       for (ExcelRow row : group.getRows()) {
          List<Target> targets = findMatchingTemplates(row, choices);
          for (Target target : targets) {
-            files.add(createFilledFile(rootPath, row.createRowMap(), masterKey,
-                                       secretColumnName,
-                                       target.getTemplate().getTemplatePath(),
+            Template template = target.getTemplate();
+            TemplateMetadata metadata =
+                  getMetadata(template, formFieldMaps.get(template.getKey()));
+            files.add(createFilledFile(rootPath, group, row.createRowMap(),
+                                       Optional.of(row), masterKey, secretColumnName,
+                                       template.getTemplatePath(),
                                        target.getBaseFileName(),
-                                       formFieldMaps.get(target.getTemplate()
-                                                               .getKey()),
-                                       false));
+                                       metadata, false, inMemoryDocuments));
          }
       }
       
@@ -383,25 +758,31 @@ public class BulkPdf {
                                         final RowGroup group,
                                         final String masterKey,
                                         final String secretColumnName,
-                                        final Path templatePath, 
+                                        final Template template, 
                                         final String baseFileName,
-                                        final Map<String, String> formFieldMap) {
+                                        final Map<String, String> formFieldMap,
+                                        final Optional<Map<File, InMemoryDocument>> inMemoryDocuments) {
       List<File> files = new ArrayList<>();
-      if (!isPdfForm(templatePath)) {
-         files.add(createFilledFile(rootPath, group.getHeadRow().getRowMap(),
-                                    masterKey, secretColumnName, templatePath,
-                                    baseFileName, formFieldMap, false));
-      } else if (useOneRecordPerForm(templatePath) ||
-                 containsOnlyGroupFields(templatePath, formFieldMap)) {
-         files.add(createFilledFile(rootPath,
+      Path templatePath = template.getTemplatePath();
+      TemplateMetadata metadata = getMetadata(template, formFieldMap);
+      if (!metadata.isPdfForm()) {
+         files.add(createFilledFile(rootPath, group, group.getHeadRow().getRowMap(),
+                                    Optional.empty(), masterKey, secretColumnName,
+                                    templatePath, baseFileName, metadata, false,
+                                    inMemoryDocuments));
+      } else if (metadata.containsRepeatedFieldNames() ||
+                 containsOnlyGroupFields(metadata)) {
+         files.add(createFilledFile(rootPath, group,
                                     group.createFormMap(new HashSet<>(this.groupColumns)),
-                                    masterKey, secretColumnName, templatePath,
-                                    baseFileName, formFieldMap, true));
+                                    Optional.empty(), masterKey, secretColumnName,
+                                    templatePath, baseFileName, metadata, true,
+                                    inMemoryDocuments));
       } else {
          for (ExcelRow row : group.getRows()) {
-            files.add(createFilledFile(rootPath, row.createRowMap(), masterKey,
-                                       secretColumnName, templatePath, baseFileName,
-                                       formFieldMap, false));
+            files.add(createFilledFile(rootPath, group, row.createRowMap(),
+                                       Optional.of(row), masterKey, secretColumnName,
+                                       templatePath, baseFileName, metadata, false,
+                                       inMemoryDocuments));
          }
       }
       return files;
@@ -412,35 +793,234 @@ public class BulkPdf {
                                      final String secretColumnName,
                                      final List<Template> alwaysInclude,
                                      final List<Choice> choices,
-                                     final Map<String, Map<String, String>> formFieldMaps) {
+                                     final Map<String, Map<String, String>> formFieldMaps,
+                                     final Optional<Map<File, InMemoryDocument>> inMemoryDocuments) {
       List<File> createdFiles =
             alwaysInclude.stream()
                          .map(a -> new Target(a, Optional.empty()))
                          .flatMap(t -> createFilledFiles(rootPath, group, 
                                                          masterKey, secretColumnName, 
-                                                         t.getTemplate()
-                                                          .getTemplatePath(),
+                                                         t.getTemplate(),
                                                          t.getBaseFileName(),
                                                          formFieldMaps.get(t.getTemplate()
-                                                                            .getKey()))
+                                                                            .getKey()),
+                                                         inMemoryDocuments)
                                                        .stream())
                          .collect(Collectors.toList());
       
       createdFiles.addAll(createFilledFiles(rootPath, group, masterKey, secretColumnName,
-                                            choices, formFieldMaps));
+                                            choices, formFieldMaps, inMemoryDocuments));
       return createdFiles;
    }
+   
+   /**
+    * Adds the documents of a group completed by an interrupted run to the
+    * archives, which are started again by every run. Templates without form
+    * fields are not archived, as for groups created by this run.
+    */
+   private void archiveResumed(final String rootPath, final String groupKey,
+                               final List<File> files) {
+      Optional<ArchiveSink> sink = this.archive;
+      if (!sink.isPresent()) {
+         return;
+      }
+      Path generated = Paths.get(rootPath, this.generatedFolder).toAbsolutePath()
+                                                               .normalize();
+      for (File file : files) {
+         if (!file.toPath().toAbsolutePath().normalize().startsWith(generated)) {
+            continue;
+         }
+         try {
+            sink.get().add(groupKey, file);
+         } catch (IOException e) {
+            String msg = String.format(ARCHIVE_ADD_ERROR, file.getAbsolutePath(),
+                                       this.archiveName.orElse(""));
+            logger.error(msg, e);
+            throw new UnrecoverableException(msg, e);
+         }
+      }
+   }
+   
+   /**
+    * Reuses the files of a group completed by an interrupted run, otherwise
+    * creates them and records the group in the journal.
+    *
+    * @param inMemory if true, form documents are created in memory instead
+    *                 of being saved to disk
+    */
+   private UnitOfWork createOrResumeUnit(final String rootPath,
+                                         final RowGroup group,
+                                         final String masterKey,
+                                         final String secretColumnName,
+                                         final List<Template> alwaysInclude,
+                                         final List<Choice> choices,
+                                         final Map<String, Map<String, String>> formFieldMaps,
+                                         final RunJournal journal,
+                                         final boolean inMemory) {
+      String key = RunJournal.getKey(group);
+      OutputDirectory directory = getOutputDirectory(rootPath);
+      Optional<List<File>> resumed =
+            journal.getCreatedFiles(key, f -> directory.exists(key, f));
+      if (resumed.isPresent()) {
+         archiveResumed(rootPath, key, resumed.get());
+         return new UnitOfWork(group, resumed.get(), Collections.emptyMap(),
+                               f -> directory.exists(key, f));
+      }
+      Map<File, InMemoryDocument> inMemoryDocuments = new HashMap<>();
+      List<File> files = createPdfFiles(rootPath, group, masterKey, secretColumnName,
+                                        alwaysInclude, choices, formFieldMaps,
+                                        inMemory ? Optional.of(inMemoryDocuments)
+                                                 : Optional.empty());
+      journal.recordCreated(key, files);
+      return new UnitOfWork(group, files, inMemoryDocuments,
+                            f -> directory.exists(key, f));
+   }
 
-   public List<UnitOfWork> createPdfs(final String rootPath,
-                                      final String sheetName,
-                                      final String masterKey,
-                                      final String secretColumnName,
-                                      final List<Template> alwaysInclude,
-                                      final List<Choice> choices,
-                                      final Map<String, Map<String, String>> formFieldMaps,
-                                      final Optional<String> startGroupId,
-                                      final boolean singleRecord) {
-	   
+   private List<UnitOfWork> createUnits(final String rootPath,
+                                        final Iterator<RowGroup> groups,
+                                        final String masterKey,
+                                        final String secretColumnName,
+                                        final List<Template> alwaysInclude,
+                                        final List<Choice> choices,
+                                        final Map<String, Map<String, String>> formFieldMaps,
+                                        final RunJournal journal) {
+      int processed = 0;
+      List<UnitOfWork> resultSets = new ArrayList<>();
+      while (groups.hasNext()) {
+         RowGroup group = groups.next();
+         if (processed == 0) {
+            checkSecretColumn(group, masterKey, secretColumnName);
+         }
+         try {
+            resultSets.add(createOrResumeUnit(rootPath, group, masterKey, 
+                                              secretColumnName, alwaysInclude,
+                                              choices, formFieldMaps, journal, false));
+         } catch (RuntimeException e) {
+            throw groupFailed(group, processed, e);
+         }
+         
+         processed++;
+         printProgress(processed, '.');
+      }
+      return resultSets;
+   }
+   
+   private String getGroupLabel(final RowGroup group, final int index) {
+      return group.getGroupId()
+                  .map(id -> "group ID " + id)
+                  .orElse("record " + (index + 1));
+   }
+   
+   /**
+    * The first group that fails stops the run, in sequential and parallel
+    * runs alike.
+    *
+    * @return the failure of the group, which is the cause unless it is an
+    *         {@link UnrecoverableException} already
+    */
+   private UnrecoverableException groupFailed(final RowGroup group, final int index,
+                                              final Throwable cause) {
+      if (cause instanceof UnrecoverableException) {
+         return (UnrecoverableException) cause;
+      }
+      String msg = String.format(GROUP_FAILED, getGroupLabel(group, index));
+      logger.error(msg, cause);
+      return new UnrecoverableException(msg, cause);
+   }
+   
+   /**
+    * Waits for the oldest group in progress and prints its progress.
+    *
+    * @return the number of groups processed so far
+    */
+   private int collectUnit(final Deque<RowGroup> pendingGroups,
+                           final Deque<Future<UnitOfWork>> futures,
+                           final int processed,
+                           final List<UnitOfWork> resultSets) {
+      RowGroup group = pendingGroups.poll();
+      try {
+         resultSets.add(futures.poll().get());
+      } catch (ExecutionException e) {
+         throw groupFailed(group, processed, e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         String msg = "Interrupted while creating PDF documents.";
+         logger.error(msg, e);
+         throw new UnrecoverableException(msg, e);
+      }
+      printProgress(processed + 1, '.');
+      return processed + 1;
+   }
+   
+   /**
+    * Stops the workers and waits for the groups in progress, so that no
+    * document is written after the run ended.
+    */
+   private void stopWorkers(final ExecutorService executor) {
+      executor.shutdownNow();
+      try {
+         executor.awaitTermination(WORKER_STOP_TIMEOUT, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+   
+   /**
+    * Fans groups out to a fixed pool of workers. Groups are taken from the
+    * spreadsheet as workers become free, so only a few groups beyond those
+    * in progress are held in memory. Results are collected in the calling
+    * thread in the original group order, so progress output and the
+    * returned units match the sequential run. Like the sequential run, the
+    * run stops at the first group that fails; groups still in progress are
+    * abandoned.
+    */
+   private List<UnitOfWork> createUnitsInParallel(final String rootPath,
+                                                  final Iterator<RowGroup> groups,
+                                                  final String masterKey,
+                                                  final String secretColumnName,
+                                                  final List<Template> alwaysInclude,
+                                                  final List<Choice> choices,
+                                                  final Map<String, Map<String, String>> formFieldMaps,
+                                                  final RunJournal journal) {
+      // the workers share the output directory of the run
+      getOutputDirectory(rootPath);
+      ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+      try {
+         // bounds the groups in progress; results keep the group order
+         int window = 2 * this.threads;
+         Deque<RowGroup> pendingGroups = new ArrayDeque<>(window);
+         Deque<Future<UnitOfWork>> futures = new ArrayDeque<>(window);
+         int submitted = 0;
+         int processed = 0;
+         List<UnitOfWork> resultSets = new ArrayList<>();
+         while (groups.hasNext()) {
+            RowGroup group = groups.next();
+            if (submitted == 0) {
+               checkSecretColumn(group, masterKey, secretColumnName);
+            }
+            pendingGroups.add(group);
+            futures.add(executor.submit(() -> createOrResumeUnit(rootPath, group,
+                                                                 masterKey,
+                                                                 secretColumnName,
+                                                                 alwaysInclude,
+                                                                 choices,
+                                                                 formFieldMaps,
+                                                                 journal, false)));
+            submitted++;
+            if (futures.size() >= window) {
+               processed = collectUnit(pendingGroups, futures, processed, resultSets);
+            }
+         }
+         while (!futures.isEmpty()) {
+            processed = collectUnit(pendingGroups, futures, processed, resultSets);
+         }
+         return resultSets;
+      } finally {
+         stopWorkers(executor);
+      }
+   }
+
+   private void prepareGeneratedFolder(final String rootPath) {
       String generatedFolderPath = rootPath + File.separator + this.generatedFolder;
       File generateFolder = new File(generatedFolderPath);
       if (!generateFolder.exists() && !generateFolder.mkdir()) {
@@ -449,39 +1029,215 @@ public class BulkPdf {
     	   logger.error(msg);
          throw new UnrecoverableException(msg);
       }
-	   
+      this.outputDirectory = new OutputDirectory(generateFolder.toPath(),
+                                                 this.outputLayout, this.outputFanOut,
+                                                 this.outputIndexName);
+   }
+   
+   private OutputDirectory getOutputDirectory(final String rootPath) {
+      OutputDirectory directory = this.outputDirectory;
+      if (directory == null) {
+         synchronized (this) {
+            directory = this.outputDirectory;
+            if (directory == null) {
+               directory = OutputDirectory.flat(Paths.get(rootPath, this.generatedFolder));
+               this.outputDirectory = directory;
+            }
+         }
+      }
+      return directory;
+   }
+   
+   /**
+    * Starts the archives of a run; archives of an earlier run are replaced.
+    */
+   private void openArchive(final String rootPath) {
+      closeArchive();
+      if (!this.archiveName.isPresent()) {
+         return;
+      }
+      Path folder = Paths.get(rootPath, this.generatedFolder);
+      try {
+         this.archive = Optional.of(ArchiveSink.open(folder, this.archiveName.get(),
+                                                     this.archiveSizeLimit,
+                                                     this.archiveCompression));
+      } catch (IOException e) {
+         String msg = String.format(ARCHIVE_OPEN_ERROR, this.archiveName.get(), folder);
+         logger.error(msg, e);
+         throw new UnrecoverableException(msg, e);
+      }
+   }
+   
+   private void closeArchive() {
+      Optional<ArchiveSink> sink = this.archive;
+      this.archive = Optional.empty();
+      if (sink.isPresent()) {
+         try {
+            sink.get().close();
+         } catch (IOException e) {
+            String msg = String.format(ARCHIVE_CLOSE_ERROR, this.archiveName.orElse(""));
+            logger.error(msg, e);
+            throw new UnrecoverableException(msg, e);
+         }
+      }
+   }
+   
+   private void loadManifest(final String rootPath) {
+      this.manifest = 
+            this.manifestName
+                .map(n -> OutputManifest.load(Paths.get(rootPath, this.generatedFolder, n)))
+                .orElse(OutputManifest.disabled());
+   }
+   
+   /**
+    * Ends the creation of documents: waits for in-memory documents still
+    * being written to disk, saves the fingerprints of the documents created
+    * so far, so that the next run reuses unchanged documents, and the index
+    * of a sharded layout, completes the archives of the run and releases
+    * the buffered templates.
+    */
+   public void finishRun() {
+      this.documentWriter.ifPresent(DocumentWriter::flush);
+      try {
+         this.manifest.save();
+      } catch (IOException e) {
+         logger.warn(String.format(MANIFEST_WARN, this.manifestName.orElse("")), e);
+      }
+      OutputDirectory directory = this.outputDirectory;
+      if (directory != null) {
+         try {
+            directory.save();
+         } catch (IOException e) {
+            logger.warn(String.format(INDEX_WARN, this.outputIndexName.orElse("")), e);
+         }
+      }
+      closeArchive();
+      this.pdfFormFiller.releaseTemplates();
+   }
+   
+   private File getExcelFile(final String rootPath) {
       String excelPath = rootPath + File.separator + this.sourceFolder +
                          File.separator + this.excelInputFile;
-      List<RowGroup> groups = createGroups(new File(excelPath), sheetName,
-                                           startGroupId, singleRecord);
-      
+      return new File(excelPath);
+   }
+   
+   private void checkSecretColumn(final RowGroup group, final String masterKey,
+                                  final String secretColumnName) {
       if (masterKey != null && !masterKey.isEmpty() && 
-          !secretColumnName.isEmpty() && !groups.isEmpty() &&
-          groups.get(0).getHeadRow().getValue(secretColumnName) == null) {
+          !secretColumnName.isEmpty() &&
+          group.getHeadRow().getValue(secretColumnName) == null) {
          String msg = String.format(SECRET_COLUMN_DOES_NOT_EXISTS,
                                     secretColumnName);
          logger.error(msg);
          throw new UnrecoverableException(msg);
       }
+   }
+   
+   /**
+    * Streams the row groups of the spreadsheet. Without group columns every
+    * row is a group of its own and rows are read one at a time; grouped
+    * rows are sorted by group id, where rows beyond the memory limit are
+    * sorted on disk. The stream may hold the workbook and the sorted rows
+    * open and must be closed by the caller.
+    */
+   public Stream<RowGroup> streamGroups(final String rootPath,
+                                        final String sheetName,
+                                        final Optional<String> startGroupId) {
+      prepareGeneratedFolder(rootPath);
+      loadManifest(rootPath);
+      openArchive(rootPath);
+      return streamGroups(rootPath, getExcelFile(rootPath), sheetName, startGroupId);
+   }
+
+   /**
+    * Streams all row groups of the spreadsheet without preparing the
+    * generated folder, so the rows can be checked before any document is
+    * created. The stream must be closed by the caller.
+    */
+   public Stream<RowGroup> scanGroups(final String rootPath, final String sheetName) {
+      return streamGroups(rootPath, getExcelFile(rootPath), sheetName, Optional.empty());
+   }
+
+   /**
+    * Creates the PDF documents of one group. Used by the delivery pipeline,
+    * which hands over groups one at a time. Documents of a group recorded in
+    * the journal are reused. If in-memory output is configured, form
+    * documents are kept in memory for the email and the unit of work must be
+    * released after the email was sent.
+    */
+   public UnitOfWork createUnitOfWork(final String rootPath, final RowGroup group,
+                                      final String masterKey,
+                                      final String secretColumnName,
+                                      final List<Template> alwaysInclude,
+                                      final List<Choice> choices,
+                                      final Map<String, Map<String, String>> formFieldMaps,
+                                      final RunJournal journal) {
+      checkSecretColumn(group, masterKey, secretColumnName);
+      return createOrResumeUnit(rootPath, group, masterKey, secretColumnName,
+                                alwaysInclude, choices, formFieldMaps, journal,
+                                this.inMemory);
+   }
+
+   public List<UnitOfWork> createPdfs(final String rootPath,
+                                      final String sheetName,
+                                      final String masterKey,
+                                      final String secretColumnName,
+                                      final List<Template> alwaysInclude,
+                                      final List<Choice> choices,
+                                      final Map<String, Map<String, String>> formFieldMaps,
+                                      final Optional<String> startGroupId,
+                                      final boolean singleRecord) {
+      return createPdfs(rootPath, sheetName, masterKey, secretColumnName,
+                        alwaysInclude, choices, formFieldMaps, startGroupId,
+                        singleRecord, RunJournal.disabled());
+   }
+
+   /**
+    * @param journal records completed groups; groups completed by an
+    *                interrupted run are not created again
+    */
+   public List<UnitOfWork> createPdfs(final String rootPath,
+                                      final String sheetName,
+                                      final String masterKey,
+                                      final String secretColumnName,
+                                      final List<Template> alwaysInclude,
+                                      final List<Choice> choices,
+                                      final Map<String, Map<String, String>> formFieldMaps,
+                                      final Optional<String> startGroupId,
+                                      final boolean singleRecord,
+                                      final RunJournal journal) {
+      prepareGeneratedFolder(rootPath);
+      loadManifest(rootPath);
+      openArchive(rootPath);
       
       this.outstream.println();
-      int processed = 0;
+      List<UnitOfWork> resultSets;
+      // groups are read from the spreadsheet as they are processed
+      try (Stream<RowGroup> groups = streamGroups(rootPath, getExcelFile(rootPath),
+                                                  sheetName, startGroupId)) {
+         resultSets = 
+               this.threads > 1 ? createUnitsInParallel(rootPath, groups.iterator(),
+                                                        masterKey, secretColumnName,
+                                                        alwaysInclude, choices,
+                                                        formFieldMaps, journal)
+                                : createUnits(rootPath, groups.iterator(), masterKey,
+                                              secretColumnName, alwaysInclude,
+                                              choices, formFieldMaps, journal);
+      } catch (UncheckedIOException e) {
+         String msg = e.getMessage();
+         logger.error(msg, e);
+         throw new UnrecoverableException(msg, e);
+      } finally {
+         finishRun();
+      }
       int count = 0;
       int recordCount = 0;
-      List<UnitOfWork> resultSets = new ArrayList<>();
-      for (RowGroup group : groups) {
-         List<File> generated = createPdfFiles(rootPath, group, masterKey, 
-                                               secretColumnName, alwaysInclude,
-                                               choices, formFieldMaps);
-         resultSets.add(new UnitOfWork(group, generated));
-         
-         processed++;
-         count+=generated.size();
-         recordCount+=group.getRows().size();
-         printProgress(processed, '.');
+      for (UnitOfWork unit : resultSets) {
+         count+=unit.getGeneratedFiles().size();
+         recordCount+=unit.getRow().getRows().size();
       }
       this.outstream.println();
-      this.outstream.println("Created " + count + " files for " + groups.size() +
+      this.outstream.println("Created " + count + " files for " + resultSets.size() +
                              " groups with " + recordCount + " records.");
       
       return resultSets;
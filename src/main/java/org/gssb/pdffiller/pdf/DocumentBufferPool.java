@@ -0,0 +1,78 @@
+package org.gssb.pdffiller.pdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of growable byte buffers that PDF documents are serialized into when
+ * they are not written to disk. A released buffer keeps its capacity and is
+ * handed out again, so a run allocates roughly as many buffers as documents
+ * are in flight at the same time. Buffers that are never released are
+ * simply collected by the garbage collector.
+ */
+class DocumentBufferPool {
+
+   /**
+    * Byte buffer whose content is read without copying it.
+    */
+   static class Buffer extends ByteArrayOutputStream {
+
+      Buffer(final int initialSize) {
+         super(initialSize);
+      }
+
+      int capacity() {
+         return this.buf.length;
+      }
+
+      InputStream openStream() {
+         return new ByteArrayInputStream(this.buf, 0, this.count);
+      }
+   }
+
+   private static final int INITIAL_SIZE = 256 * 1024;
+
+   // very large documents are rare; their buffers are not kept
+   private static final int MAX_RETAINED_SIZE = 16 * 1024 * 1024;
+
+   private final int maxPooled;
+   private final ConcurrentLinkedQueue<Buffer> free = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger pooled = new AtomicInteger();
+
+   /**
+    * @param maxPooled number of released buffers kept for reuse
+    */
+   DocumentBufferPool(final int maxPooled) {
+      super();
+      this.maxPooled = Math.max(0, maxPooled);
+   }
+
+   Buffer acquire() {
+      Buffer buffer = this.free.poll();
+      if (buffer == null) {
+         return new Buffer(INITIAL_SIZE);
+      }
+      this.pooled.decrementAndGet();
+      return buffer;
+   }
+
+   void release(final Buffer buffer) {
+      if (buffer.capacity() > MAX_RETAINED_SIZE) {
+         return;
+      }
+      buffer.reset();
+      if (this.pooled.incrementAndGet() <= this.maxPooled) {
+         this.free.offer(buffer);
+      } else {
+         this.pooled.decrementAndGet();
+      }
+   }
+
+   int getPooledCount() {
+      return this.pooled.get();
+   }
+
+}
@@ -0,0 +1,119 @@
+package org.gssb.pdffiller.pdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.metrics.Metrics;
+import org.gssb.pdffiller.metrics.Timer;
+
+/**
+ * Archives in-memory documents to disk in a background thread, so that
+ * creating and sending documents never waits for the disk. A document is
+ * written to a temporary file that is moved to the target file once it is
+ * complete. A document that cannot be written is logged; the run continues
+ * because the document was already handed to email.
+ * <p>
+ * Every waiting document holds a pooled buffer, so only a limited number of
+ * documents may wait; further documents are accepted once earlier ones are
+ * written.
+ */
+class DocumentWriter {
+
+   private final static Logger logger = LogManager.getLogger(DocumentWriter.class);
+
+   private static final String WRITE_ERROR =
+         "Unable to write document %s to disk. The document is not archived.";
+
+   private static final String FLUSH_WARN =
+         "Stopped waiting for documents to be written to disk.";
+
+   private static final Timer WRITE_TIMER =
+         Metrics.timer("pdf.write_behind", "Time to write an in-memory PDF document to disk.");
+
+   private final ExecutorService writer;
+   // documents submitted but not written yet
+   private final Semaphore pending;
+
+   /**
+    * @param capacity number of documents that may wait to be written
+    */
+   DocumentWriter(final int capacity) {
+      super();
+      this.pending = new Semaphore(Math.max(1, capacity));
+      this.writer = Executors.newSingleThreadExecutor(r -> {
+         Thread t = new Thread(r, "document-writer");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   /**
+    * Writes the document to its target file after all documents submitted
+    * earlier. Waits while the maximum number of documents is waiting to be
+    * written.
+    *
+    * @param onWritten called with the written document after it was moved
+    *                  to its target file
+    */
+   void write(final InMemoryDocument document,
+              final Consumer<InMemoryDocument> onWritten) {
+      // the writer always finishes waiting documents, so this cannot hang
+      this.pending.acquireUninterruptibly();
+      InMemoryDocument retained = document.retain();
+      this.writer.execute(() -> {
+         try {
+            if (writeFile(retained)) {
+               onWritten.accept(retained);
+            }
+         } finally {
+            retained.release();
+            this.pending.release();
+         }
+      });
+   }
+
+   private boolean writeFile(final InMemoryDocument document) {
+      Path target = document.getTargetFile().toPath();
+      Path temp = target.resolveSibling(target.getFileName() + ".part");
+      try (Timer.Sample sample = WRITE_TIMER.start();
+           InputStream in = document.openStream()) {
+         Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+         Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+         return true;
+      } catch (IOException e) {
+         logger.error(String.format(WRITE_ERROR, target), e);
+         try {
+            Files.deleteIfExists(temp);
+         } catch (IOException suppressed) {
+            e.addSuppressed(suppressed);
+         }
+         return false;
+      }
+   }
+
+   /**
+    * Waits until all documents submitted so far are written.
+    */
+   void flush() {
+      try {
+         this.writer.submit(() -> { }).get();
+      } catch (InterruptedException | ExecutionException e) {
+         if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+         }
+         logger.warn(FLUSH_WARN, e);
+      }
+   }
+
+}
@@ -0,0 +1,127 @@
+package org.gssb.pdffiller.pdf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDField;
+import org.apache.pdfbox.pdmodel.interactive.form.PDVariableText;
+
+/**
+ * Fonts of the text fields of a PDF template. A value can only be filled
+ * into a field if the font of the field has a glyph for every character of
+ * the value; otherwise PDFBox rejects the value while the document is
+ * created. The fonts are read from the default appearance of each field.
+ * <p>
+ * Whether a font has a glyph for a character is determined once per font
+ * and character and is safe for concurrent use. The template stays open
+ * until this object is closed.
+ */
+public class FieldFonts implements Closeable {
+
+   // the font operator of a default appearance, such as "/Helv 12 Tf"
+   private static final Pattern FONT_OPERATOR =
+         Pattern.compile("/([^\\s/\\[\\]<>()]+)\\s+[-+]?(?:\\d+\\.?\\d*|\\.\\d+)\\s+Tf");
+
+   private final PDDocument document;
+   private final Map<String, PDFont> fonts;
+   private final ConcurrentMap<PDFont, ConcurrentMap<Integer, Boolean>> coverage =
+         new ConcurrentHashMap<>();
+
+   private FieldFonts(final PDDocument document, final Map<String, PDFont> fonts) {
+      super();
+      this.document = document;
+      this.fonts = fonts;
+   }
+
+   /**
+    * @return fonts of a document without form fields
+    */
+   static FieldFonts none() {
+      return new FieldFonts(null, Collections.emptyMap());
+   }
+
+   /**
+    * @param document template that is closed with the returned object
+    */
+   static FieldFonts of(final PDDocument document) throws IOException {
+      PDAcroForm acroForm = document.getDocumentCatalog().getAcroForm();
+      PDResources resources = acroForm != null ? acroForm.getDefaultResources() : null;
+      if (resources == null) {
+         return new FieldFonts(document, Collections.emptyMap());
+      }
+      Map<String, PDFont> fonts = new HashMap<>();
+      for (PDField field : acroForm.getFieldTree()) {
+         if (!(field instanceof PDVariableText)) {
+            continue;
+         }
+         String appearance = ((PDVariableText) field).getDefaultAppearance();
+         Matcher matcher = FONT_OPERATOR.matcher(appearance != null ? appearance : "");
+         if (matcher.find()) {
+            PDFont font = resources.getFont(COSName.getPDFName(matcher.group(1)));
+            if (font != null) {
+               fonts.put(field.getFullyQualifiedName(), font);
+            }
+         }
+      }
+      return new FieldFonts(document, fonts);
+   }
+
+   /**
+    * @return true if the font of the field is known
+    */
+   public boolean hasFont(final String fieldName) {
+      return this.fonts.containsKey(fieldName);
+   }
+
+   private static boolean canEncode(final PDFont font, final int codePoint) {
+      // fonts of a document are not meant to be shared by threads
+      synchronized (font) {
+         try {
+            font.encode(new String(Character.toChars(codePoint)));
+            return true;
+         } catch (IllegalArgumentException | IOException e) {
+            return false;
+         }
+      }
+   }
+
+   /**
+    * @return the first character of the value the font of the field has no
+    *         glyph for; empty if the value can be filled into the field or
+    *         the font of the field is unknown
+    */
+   public OptionalInt findUnsupported(final String fieldName, final String value) {
+      PDFont font = this.fonts.get(fieldName);
+      if (font == null || value == null) {
+         return OptionalInt.empty();
+      }
+      ConcurrentMap<Integer, Boolean> known =
+            this.coverage.computeIfAbsent(font, f -> new ConcurrentHashMap<>());
+      // line breaks and tabs are laid out, not drawn
+      return value.codePoints()
+                  .filter(c -> !Character.isISOControl(c))
+                  .filter(c -> !known.computeIfAbsent(c, k -> canEncode(font, k)))
+                  .findFirst();
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (this.document != null) {
+         this.document.close();
+      }
+   }
+
+}
@@ -0,0 +1,69 @@
+package org.gssb.pdffiller.pdf;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PDF document created in memory instead of being saved to the generated
+ * folder. The document keeps the file it would have been saved to, which
+ * names the email attachment and is the target of an optional write to
+ * disk.
+ * <p>
+ * The content lives in a pooled buffer. Every holder of the document
+ * releases it once when done; the buffer returns to the pool after the
+ * last release.
+ */
+public class InMemoryDocument {
+
+   private static final String RELEASED_ERROR =
+         "The content of document %s was already released.";
+
+   private final File targetFile;
+   private final DocumentBufferPool pool;
+   private final DocumentBufferPool.Buffer buffer;
+   private final AtomicInteger references = new AtomicInteger(1);
+
+   InMemoryDocument(final File targetFile, final DocumentBufferPool pool,
+                    final DocumentBufferPool.Buffer buffer) {
+      super();
+      this.targetFile = targetFile;
+      this.pool = pool;
+      this.buffer = buffer;
+   }
+
+   public File getTargetFile() {
+      return this.targetFile;
+   }
+
+   public String getName() {
+      return this.targetFile.getName();
+   }
+
+   public int getSize() {
+      return this.buffer.size();
+   }
+
+   /**
+    * @return stream of the document content; may be opened more than once
+    */
+   public InputStream openStream() {
+      if (this.references.get() <= 0) {
+         throw new IllegalStateException(String.format(RELEASED_ERROR,
+                                                       getName()));
+      }
+      return this.buffer.openStream();
+   }
+
+   InMemoryDocument retain() {
+      this.references.incrementAndGet();
+      return this;
+   }
+
+   public void release() {
+      if (this.references.decrementAndGet() == 0) {
+         this.pool.release(this.buffer);
+      }
+   }
+
+}
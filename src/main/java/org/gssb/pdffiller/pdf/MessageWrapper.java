@@ -1,25 +1,59 @@
 package org.gssb.pdffiller.pdf;
 
+import java.util.Optional;
+
 import javax.mail.Message;
 
 public class MessageWrapper {
    
    private final String groudId;
+   private final String groupKey;
    private final Message message;
+   private final Optional<UnitOfWork> unit;
    
    public MessageWrapper(final String groudId, final Message message) {
+      this(groudId, groudId, message);
+   }
+   
+   /**
+    * @param groupKey identifies the group in the run journal
+    */
+   public MessageWrapper(final String groudId, final String groupKey,
+                         final Message message) {
+      this(groudId, groupKey, message, Optional.empty());
+   }
+
+   /**
+    * @param unit unit of work whose documents are attached to the message
+    *             and released after the message was sent
+    */
+   public MessageWrapper(final String groudId, final String groupKey,
+                         final Message message, final Optional<UnitOfWork> unit) {
       super();
       assert(message!=null);
       this.groudId = groudId;
+      this.groupKey = groupKey;
       this.message = message;
+      this.unit = unit;
    }
 
    public String getGroudId() {
       return groudId;
    }
 
+   public String getGroupKey() {
+      return groupKey;
+   }
+
    public Message getMessage() {
       return message;
    }
 
+   /**
+    * Releases the in-memory documents attached to the message.
+    */
+   public void release() {
+      this.unit.ifPresent(UnitOfWork::release);
+   }
+
 }
@@ -0,0 +1,255 @@
+package org.gssb.pdffiller.pdf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.config.OutputLayout;
+import org.gssb.pdffiller.manifest.Fingerprint;
+import org.gssb.pdffiller.text.TabSeparated;
+
+/**
+ * Places generated documents in the generated folder. A flat layout puts
+ * every document into the folder itself. Runs with many thousand documents
+ * can spread them across a fixed number of subfolders instead, so no
+ * folder holds more than a few hundred entries: a hashed layout chooses the
+ * subfolder by a hash of the file name, a grouped layout keeps the
+ * documents of a group in a folder named by the group ID below a subfolder
+ * chosen by a hash of the group ID. The folder name of a group ends with a
+ * short hash of the group ID, so group IDs that differ only in characters
+ * that are not safe in a folder name, or only in case, never share a folder.
+ * <p>
+ * The documents of a sharded layout are recorded in an index with the key
+ * of their group, so later stages find the documents of a group without
+ * scanning the subfolders. The index is a text file with one line per
+ * document: group key and path relative to the generated folder, separated
+ * by a tab.
+ */
+public class OutputDirectory {
+
+   private final static Logger logger = LogManager.getLogger(OutputDirectory.class);
+
+   private static final String READ_WARN =
+         "Unable to read output index %s. It is created again.";
+
+   private static final char SEPARATOR = '\t';
+   private static final char EOL = '\n';
+   private static final char PATH_SEPARATOR = '/';
+   private static final char HASH_SEPARATOR = '-';
+   private static final int HASH_LENGTH = 8;
+
+   private final Path folder;
+   private final Path absoluteFolder;
+   private final OutputLayout layout;
+   private final int fanOut;
+   private final int shardDigits;
+   private final Path indexFile;
+
+   // subfolders known to exist, so a folder is created once per run
+   private final Set<Path> subfolders = ConcurrentHashMap.newKeySet();
+   private final ConcurrentMap<String, Set<String>> groupFiles = new ConcurrentHashMap<>();
+
+   /**
+    * @param folder    the generated folder
+    * @param fanOut    number of subfolders of a sharded layout
+    * @param indexName name of the index in the generated folder; empty if
+    *                  no index is kept
+    */
+   public OutputDirectory(final Path folder, final OutputLayout layout,
+                          final int fanOut, final Optional<String> indexName) {
+      super();
+      this.folder = Objects.requireNonNull(folder);
+      this.absoluteFolder = folder.toAbsolutePath().normalize();
+      this.layout = Objects.requireNonNull(layout);
+      this.fanOut = Math.max(1, fanOut);
+      this.shardDigits = Integer.toHexString(this.fanOut - 1).length();
+      this.indexFile = layout != OutputLayout.FLAT
+                          ? indexName.map(folder::resolve).orElse(null)
+                          : null;
+      if (this.indexFile != null) {
+         load();
+      }
+   }
+
+   /**
+    * @return all documents directly in the generated folder
+    */
+   public static OutputDirectory flat(final Path folder) {
+      return new OutputDirectory(folder, OutputLayout.FLAT, 1, Optional.empty());
+   }
+
+   public OutputLayout getLayout() {
+      return this.layout;
+   }
+
+   private void load() {
+      if (!Files.exists(this.indexFile)) {
+         return;
+      }
+      try (BufferedReader reader = Files.newBufferedReader(this.indexFile,
+                                                           StandardCharsets.UTF_8)) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int separator = line.indexOf(SEPARATOR);
+            if (separator > 0) {
+               addFile(TabSeparated.unescape(line.substring(0, separator)),
+                       TabSeparated.unescape(line.substring(separator + 1)));
+            }
+         }
+      } catch (IOException | RuntimeException e) {
+         logger.warn(String.format(READ_WARN, this.indexFile), e);
+         this.groupFiles.clear();
+      }
+   }
+
+   private void addFile(final String groupKey, final String relativePath) {
+      this.groupFiles.computeIfAbsent(groupKey, k -> new ConcurrentSkipListSet<>())
+                     .add(relativePath);
+   }
+
+   private String getShard(final String name) {
+      String shard = Integer.toHexString(Math.floorMod(name.hashCode(), this.fanOut));
+      StringBuilder sb = new StringBuilder(this.shardDigits);
+      for (int i = shard.length(); i < this.shardDigits; i++) {
+         sb.append('0');
+      }
+      return sb.append(shard).toString();
+   }
+
+   /**
+    * @return the group ID with all characters that are not safe in a folder
+    *         name on every file system replaced, followed by a short hash of
+    *         the group ID that keeps the names of different IDs apart
+    */
+   static String toFolderName(final String groupId) {
+      String name = groupId.replaceAll("[^\\p{L}\\p{N}._ -]", "_").trim();
+      String hash = new Fingerprint().add(groupId).build().substring(0, HASH_LENGTH);
+      return name + HASH_SEPARATOR + hash;
+   }
+
+   private String getRelativeFolder(final String fileName,
+                                    final Optional<String> groupId) {
+      switch (this.layout) {
+         case HASHED:
+            return getShard(fileName);
+         case GROUP:
+            return groupId.map(id -> getShard(id) + PATH_SEPARATOR + toFolderName(id))
+                          .orElseGet(() -> getShard(fileName));
+         default:
+            return "";
+      }
+   }
+
+   /**
+    * Determines the file of a document and creates its subfolder.
+    *
+    * @param groupKey key of the group of the document in the index
+    * @param groupId  ID of the group; empty if the run is not grouped
+    */
+   public File resolve(final String fileName, final String groupKey,
+                       final Optional<String> groupId) throws IOException {
+      String relativeFolder = getRelativeFolder(fileName, groupId);
+      if (relativeFolder.isEmpty()) {
+         return this.folder.resolve(fileName).toFile();
+      }
+      Path subfolder = this.folder.resolve(relativeFolder);
+      if (!this.subfolders.contains(subfolder)) {
+         Files.createDirectories(subfolder);
+         this.subfolders.add(subfolder);
+      }
+      if (this.indexFile != null) {
+         addFile(groupKey, relativeFolder + PATH_SEPARATOR + fileName);
+      }
+      return subfolder.resolve(fileName).toFile();
+   }
+
+   private Optional<String> getRelativePath(final File file) {
+      Path path = file.toPath().toAbsolutePath().normalize();
+      if (!path.startsWith(this.absoluteFolder)) {
+         return Optional.empty();
+      }
+      return Optional.of(this.absoluteFolder.relativize(path)
+                                            .toString()
+                                            .replace(File.separatorChar, PATH_SEPARATOR));
+   }
+
+   /**
+    * Removes a document that was not saved to disk from the index, such as
+    * a document kept in memory only.
+    */
+   public void remove(final String groupKey, final File file) {
+      Set<String> files = this.groupFiles.get(groupKey);
+      if (files != null) {
+         getRelativePath(file).ifPresent(files::remove);
+      }
+   }
+
+   /**
+    * @return true if a document of the group is saved to disk. A document in
+    *         the index is checked on disk as well, since it may have been
+    *         deleted after the index was saved; a missing document is
+    *         removed from the index.
+    */
+   public boolean exists(final String groupKey, final File file) {
+      if (file.exists()) {
+         return true;
+      }
+      remove(groupKey, file);
+      return false;
+   }
+
+   /**
+    * @return the documents of a group recorded in the index, by this or an
+    *         earlier run; empty if the group is not in the index
+    */
+   public List<File> getFiles(final String groupKey) {
+      Set<String> files = this.groupFiles.get(groupKey);
+      if (files == null) {
+         return Collections.emptyList();
+      }
+      return files.stream()
+                  .map(f -> this.folder.resolve(f).toFile())
+                  .collect(Collectors.toList());
+   }
+
+   /**
+    * Writes the index to a temporary file that replaces the previous index,
+    * so an interrupted write never leaves a corrupt index.
+    */
+   public synchronized void save() throws IOException {
+      if (this.indexFile == null) {
+         return;
+      }
+      Path tempFile = this.indexFile.resolveSibling(this.indexFile.getFileName() +
+                                                    ".tmp");
+      try (Writer out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+         for (Map.Entry<String, Set<String>> e : new TreeMap<>(this.groupFiles).entrySet()) {
+            String groupKey = TabSeparated.escape(e.getKey());
+            for (String file : e.getValue()) {
+               out.write(groupKey + SEPARATOR + TabSeparated.escape(file) + EOL);
+            }
+         }
+      }
+      Files.move(tempFile, this.indexFile, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+   }
+
+}
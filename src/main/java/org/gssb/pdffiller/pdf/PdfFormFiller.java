@@ -2,16 +2,21 @@ package org.gssb.pdffiller.pdf;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
 import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
@@ -19,8 +24,48 @@ import org.apache.pdfbox.pdmodel.encryption.InvalidPasswordException;
 import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
 import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
 import org.apache.pdfbox.pdmodel.interactive.form.PDField;
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.metrics.Counter;
+import org.gssb.pdffiller.metrics.Metrics;
+import org.gssb.pdffiller.metrics.Timer;
+import org.gssb.pdffiller.template.FillPlan;
+import org.gssb.pdffiller.template.TemplateInspector;
+import org.gssb.pdffiller.template.TemplateMetadata;
+import org.gssb.pdffiller.template.TemplateMetadataCache;
 
-public class PdfFormFiller {
+public class PdfFormFiller implements TemplateInspector {
+   
+   /**
+    * Final destination of a filled document.
+    */
+   private interface DocumentSink {
+      void save(PDDocument pdf) throws IOException;
+   }
+   
+   /**
+    * Immutable copy of a template file. Each document is parsed from the
+    * shared buffer so the template is read from disk only once.
+    */
+   private static class TemplateMaster {
+      private final long   size;
+      private final long   lastModified;
+      private final byte[] content;
+      
+      TemplateMaster(final long size, final long lastModified,
+                     final byte[] content) {
+         this.size = size;
+         this.lastModified = lastModified;
+         this.content = content;
+      }
+      
+      boolean isCurrent(final long size, final long lastModified) {
+         return this.size == size && this.lastModified == lastModified;
+      }
+      
+      PDDocument load(final MemoryUsageSetting setting) throws IOException {
+         return PDDocument.load(this.content, "", null, null, setting);
+      }
+   }
    
    private final static Logger logger =
                         LogManager.getLogger(PdfFormFiller.class);
@@ -36,6 +81,80 @@ public class PdfFormFiller {
    
    private static final int    KEY_STRENGTH = 128;
    
+   private static final Timer LOAD_TIMER =
+         Metrics.timer("pdf.load", "Time to load a PDF template.");
+   private static final Timer FILL_TIMER =
+         Metrics.timer("pdf.fill", "Time to fill the form fields of a PDF document.");
+   private static final Timer FLATTEN_TIMER =
+         Metrics.timer("pdf.flatten", "Time to flatten the form of a PDF document.");
+   private static final Timer ENCRYPT_TIMER =
+         Metrics.timer("pdf.encrypt", "Time to encrypt a PDF document.");
+   private static final Timer SAVE_TIMER =
+         Metrics.timer("pdf.save", "Time to save a PDF document.");
+   private static final Counter CREATED_COUNTER =
+         Metrics.counter("pdf.created", "PDF documents created.");
+   private static final Counter FAILED_COUNTER =
+         Metrics.counter("pdf.failed", "PDF documents not created due to unsupported characters.");
+   
+   private final boolean bufferTemplates;
+   private final PdfMemoryPolicy memoryPolicy;
+   private final ConcurrentMap<Path, TemplateMaster> templateMasters =
+         new ConcurrentHashMap<>();
+   
+   public PdfFormFiller() {
+      this(false);
+   }
+   
+   /**
+    * @param bufferTemplates if true, every template is read once into memory
+    *                        and each document is parsed from that buffer
+    */
+   public PdfFormFiller(final boolean bufferTemplates) {
+      this(bufferTemplates, PdfMemoryPolicy.mainMemoryOnly());
+   }
+   
+   /**
+    * @param bufferTemplates if true, every template is read once into memory
+    *                        and each document is parsed from that buffer
+    * @param memoryPolicy    where documents are kept while they are loaded,
+    *                        filled and saved
+    */
+   public PdfFormFiller(final boolean bufferTemplates,
+                        final PdfMemoryPolicy memoryPolicy) {
+      super();
+      this.bufferTemplates = bufferTemplates;
+      this.memoryPolicy = memoryPolicy;
+   }
+   
+   private TemplateMaster getTemplateMaster(final File templatePdf)
+                          throws IOException {
+      Path path = templatePdf.toPath().toAbsolutePath().normalize();
+      long size = Files.size(path);
+      long lastModified = Files.getLastModifiedTime(path).toMillis();
+      TemplateMaster master = this.templateMasters.get(path);
+      if (master == null || !master.isCurrent(size, lastModified)) {
+         master = new TemplateMaster(size, lastModified, Files.readAllBytes(path));
+         this.templateMasters.put(path, master);
+      }
+      return master;
+   }
+   
+   /**
+    * Drops the buffered templates at the end of a run; templates used
+    * afterwards are read again.
+    */
+   public void releaseTemplates() {
+      this.templateMasters.clear();
+   }
+   
+   private PDDocument loadTemplate(final File templatePdf)
+                      throws IOException, InvalidPasswordException {
+      if (this.bufferTemplates) {
+         return getTemplateMaster(templatePdf).load(this.memoryPolicy.createSetting());
+      }
+      return PDDocument.load(templatePdf, this.memoryPolicy.createSetting());
+   }
+   
    private void encrypt(final PDDocument pdf, final String masterKey,
                         final String key) throws IOException {
       AccessPermission ap = new AccessPermission();
@@ -64,73 +183,43 @@ public class PdfFormFiller {
 //    field.setReadOnly(true);
    }
 
-   private Map<String, List<PDField>> getPdfFieldMap(final PDAcroForm acroForm) {
-      return acroForm.getFields()
-                     .stream()
-                     .collect(Collectors.groupingBy(PDField::getFullyQualifiedName));
-   }
-   
+   /**
+    * Probes the template with {@link #inspect}; callers that check several
+    * properties or templates should use a {@link TemplateMetadataCache}.
+    */
    public Set<String> getFields(final File pdfFile) 
                       throws IOException, InvalidPasswordException {
-      Set<String> result;
-      try (PDDocument pdf = PDDocument.load(pdfFile)) {
-         PDDocumentCatalog docCatalog = pdf.getDocumentCatalog();
-         PDAcroForm acroForm = docCatalog.getAcroForm();
-         result = acroForm.getFields()
-                          .stream()
-                          .map(f -> f.getFullyQualifiedName())
-                          .collect(Collectors.toSet());         
-      } catch (IOException e) {
-         if (e.getMessage().contains(NOT_PDF_ERROR)) {
-            // not a PDF document
-            result = Collections.emptySet();
-         } else {
-            throw e;
-         }
-      }
-      return result;
-   }
-   
-   private boolean condition(final File pdfFile,
-                             final Predicate<PDAcroForm> formPredicate) 
-                   throws IOException, InvalidPasswordException{
-      boolean result;
-      try (PDDocument pdf = PDDocument.load(pdfFile)) {
-         PDDocumentCatalog docCatalog = pdf.getDocumentCatalog();
-         PDAcroForm acroForm = docCatalog.getAcroForm();
-         result = formPredicate.test(acroForm);
-      } catch (IOException e) {
-         if (e.getMessage().contains(NOT_PDF_ERROR)) {
-            // not a PDF document
-            result = false;
-         } else {
-            throw e;
-         }
-      }
-      return result;
+      return inspect(pdfFile.toPath(), Collections.emptyMap()).getFields();
    }
    
    public boolean isPdfForm(final File pdfFile) 
                   throws IOException, InvalidPasswordException{
-      return condition(pdfFile, a -> a!=null);
+      return inspect(pdfFile.toPath(), Collections.emptyMap()).isPdfForm();
    }
 
-   private void fillFormFields(final Map<String, String> formMap,
-                               final Map<String, String> formFieldMap,
-                               final Map<String, List<PDField>> pdfFields)
+   /**
+    * @return the plan compiled for the template if it matches the fields of
+    *         the document; otherwise a plan compiled for the document
+    */
+   private FillPlan getFillPlan(final List<PDField> pdfFields,
+                                final FillPlan compiled,
+                                final Function<String, String> fieldColumns) {
+      if (compiled != null && compiled.size() == pdfFields.size()) {
+         return compiled;
+      }
+      return FillPlan.compile(pdfFields.stream()
+                                       .map(PDField::getFullyQualifiedName)
+                                       .collect(Collectors.toList()),
+                              fieldColumns);
+   }
+   
+   private void fillFormFields(final List<PDField> pdfFields,
+                               final String[] values)
                 throws IOException {
-      for (Entry<String, List<PDField>> pdfField : pdfFields.entrySet()) {
-         assert(pdfField.getValue().size() >0);
-         String acroFieldName = pdfField.getKey();
-         String columnName = formFieldMap.getOrDefault(acroFieldName,
-                                                       acroFieldName);
-         String value = formMap.get(columnName);
-         if (value==null) continue;
-         
-         // handle multiple fields with the same name
-         for (PDField field : pdfField.getValue()) {
-            setField(field, value);
-         }
+      // fields that share a name have an entry each
+      for (int i = 0; i < values.length; i++) {
+         if (values[i]==null) continue;
+         setField(pdfFields.get(i), values[i]);
       }
    }
    
@@ -181,49 +270,216 @@ public class PdfFormFiller {
    
    public boolean containsRepeatedFieldNames(final File pdfFile)
                   throws IOException, InvalidPasswordException {
-      return condition(pdfFile,
-                       a -> (a != null) && containsRepeatedFieldNames(a));
+      return inspect(pdfFile.toPath(), Collections.emptyMap())
+                  .containsRepeatedFieldNames();
+   }
+   
+   /**
+    * Probes the template with a single parse and collects everything
+    * {@link BulkPdf} needs to decide how the template is processed.
+    */
+   @Override
+   public TemplateMetadata inspect(final Path templatePath,
+                                   final Map<String, String> formFieldMap)
+                           throws IOException, InvalidPasswordException {
+      TemplateMetadata result;
+      try (PDDocument pdf = loadTemplate(templatePath.toFile())) {
+         PDDocumentCatalog docCatalog = pdf.getDocumentCatalog();
+         PDAcroForm acroForm = docCatalog.getAcroForm();
+         if (acroForm != null) {
+            List<String> fieldNames = 
+                  acroForm.getFields()
+                          .stream()
+                          .map(f -> f.getFullyQualifiedName())
+                          .collect(Collectors.toList());
+            result = new TemplateMetadata(true, fieldNames,
+                                          containsRepeatedFieldNames(acroForm),
+                                          formFieldMap);
+         } else {
+            result = TemplateMetadata.plainDocument();
+         }
+      } catch (IOException e) {
+         if (e.getMessage() != null && e.getMessage().contains(NOT_PDF_ERROR)) {
+            // not a PDF document
+            result = TemplateMetadata.plainDocument();
+         } else {
+            throw e;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Reads the fonts of the form fields of a template, so values can be
+    * checked before documents are created. The template stays open until
+    * the returned fonts are closed.
+    */
+   public FieldFonts inspectFonts(final File templatePdf)
+                     throws IOException, InvalidPasswordException {
+      PDDocument pdf;
+      try {
+         pdf = loadTemplate(templatePdf);
+      } catch (IOException e) {
+         if (e.getMessage() != null && e.getMessage().contains(NOT_PDF_ERROR)) {
+            // not a PDF document
+            return FieldFonts.none();
+         }
+         throw e;
+      }
+      try {
+         return FieldFonts.of(pdf);
+      } catch (IOException | RuntimeException e) {
+         pdf.close();
+         throw e;
+      }
    }
-      
 
-   public void populateAndCopy(final File templatePdf,
-                               final File targetPdf,
-                               final Map<String, String> formMap,
-                               final String masterKey,
-                               final Map<String, String> formFieldMap,
-                               final String secret) 
+   public boolean populateAndCopy(final File templatePdf,
+                                  final File targetPdf,
+                                  final Map<String, String> formMap,
+                                  final String masterKey,
+                                  final Map<String, String> formFieldMap,
+                                  final String secret) 
                throws IOException, InvalidPasswordException {
-      PDDocument pdf = PDDocument.load(templatePdf);
-      PDDocumentCatalog docCatalog = pdf.getDocumentCatalog();
-      PDAcroForm acroForm = docCatalog.getAcroForm();
-      
-      if (acroForm!=null) {
-         logFormFields(acroForm);
+      return populate(templatePdf, targetPdf.getName(), masterKey, null,
+                      f -> formFieldMap.getOrDefault(f, f),
+                      plan -> plan.resolve(formMap), secret,
+                      pdf -> pdf.save(targetPdf));
+   }
+
+   public boolean populateAndCopy(final File templatePdf,
+                                  final File targetPdf,
+                                  final Map<String, String> formMap,
+                                  final String masterKey,
+                                  final TemplateMetadata metadata,
+                                  final String secret) 
+               throws IOException, InvalidPasswordException {
+      return populate(templatePdf, targetPdf.getName(), masterKey,
+                      metadata.getFillPlan(), metadata::getColumn,
+                      plan -> plan.resolve(formMap), secret,
+                      pdf -> pdf.save(targetPdf));
+   }
+
+   /**
+    * Fills the form with the values of a single record, which are looked up
+    * by column position without building a form map.
+    */
+   public boolean populateAndCopy(final File templatePdf,
+                                  final File targetPdf,
+                                  final ExcelRow row,
+                                  final String masterKey,
+                                  final TemplateMetadata metadata,
+                                  final String secret) 
+               throws IOException, InvalidPasswordException {
+      return populate(templatePdf, targetPdf.getName(), masterKey,
+                      metadata.getFillPlan(), metadata::getColumn,
+                      plan -> plan.resolve(row), secret,
+                      pdf -> pdf.save(targetPdf));
+   }
+
+   /**
+    * Fills the form like {@link #populateAndCopy} but writes the document to
+    * a stream instead of saving it to disk.
+    *
+    * @param documentName names the document in error messages
+    */
+   public boolean populateAndWrite(final File templatePdf,
+                                   final String documentName,
+                                   final OutputStream target,
+                                   final Map<String, String> formMap,
+                                   final String masterKey,
+                                   final TemplateMetadata metadata,
+                                   final String secret) 
+               throws IOException, InvalidPasswordException {
+      return populate(templatePdf, documentName, masterKey,
+                      metadata.getFillPlan(), metadata::getColumn,
+                      plan -> plan.resolve(formMap), secret,
+                      pdf -> pdf.save(target));
+   }
+
+   /**
+    * Fills the form with the values of a single record like
+    * {@link #populateAndCopy(File, File, ExcelRow, String, TemplateMetadata, String)}
+    * but writes the document to a stream.
+    */
+   public boolean populateAndWrite(final File templatePdf,
+                                   final String documentName,
+                                   final OutputStream target,
+                                   final ExcelRow row,
+                                   final String masterKey,
+                                   final TemplateMetadata metadata,
+                                   final String secret) 
+               throws IOException, InvalidPasswordException {
+      return populate(templatePdf, documentName, masterKey,
+                      metadata.getFillPlan(), metadata::getColumn,
+                      plan -> plan.resolve(row), secret,
+                      pdf -> pdf.save(target));
+   }
+
+   private PDDocument loadTimed(final File templatePdf) throws IOException {
+      try (Timer.Sample sample = LOAD_TIMER.start()) {
+         return loadTemplate(templatePdf);
+      }
+   }
+
+   /**
+    * @param fillPlan     plan compiled for the template; null to compile a
+    *                     plan for the document from <code>fieldColumns</code>
+    * @param fieldValues  value of every entry of the plan
+    * @return false if the document was not created because a value cannot
+    *         be written into the form
+    */
+   private boolean populate(final File templatePdf,
+                            final String documentName,
+                            final String masterKey,
+                            final FillPlan fillPlan,
+                            final Function<String, String> fieldColumns,
+                            final Function<FillPlan, String[]> fieldValues,
+                            final String secret,
+                            final DocumentSink sink) 
+                throws IOException, InvalidPasswordException {
+      // the template is closed on every path, including failures
+      try (PDDocument pdf = loadTimed(templatePdf)) {
+         PDDocumentCatalog docCatalog = pdf.getDocumentCatalog();
+         PDAcroForm acroForm = docCatalog.getAcroForm();
          
-         acroForm.setNeedAppearances(false);
-         try {
-            fillFormFields(formMap, formFieldMap, getPdfFieldMap(acroForm));
-         } catch (PdfUnsupportedCharacterException e) {
-            // do not create file and close template
-            pdf.close();
-            String msg = String.format(ILLEGAL_CHAR_ERROR,  
-                                       e.getValue(), e.getFormField(),
-                                       targetPdf.getName());
-            logger.error(msg, e);
-            return;
+         if (acroForm!=null) {
+            logFormFields(acroForm);
+            
+            acroForm.setNeedAppearances(false);
+            try (Timer.Sample sample = FILL_TIMER.start()) {
+               List<PDField> pdfFields = acroForm.getFields();
+               FillPlan plan = getFillPlan(pdfFields, fillPlan, fieldColumns);
+               fillFormFields(pdfFields, fieldValues.apply(plan));
+            } catch (PdfUnsupportedCharacterException e) {
+               // do not create file
+               String msg = String.format(ILLEGAL_CHAR_ERROR,  
+                                          e.getValue(), e.getFormField(),
+                                          documentName);
+               logger.error(msg, e);
+               FAILED_COUNTER.increment();
+               return false;
+            }
+            try (Timer.Sample sample = FLATTEN_TIMER.start()) {
+               acroForm.flatten();
+            }
+         
+            if (masterKey!=null && !masterKey.isEmpty() && 
+                secret!=null && !secret.isEmpty() && !secret.equals("0")) {
+               try (Timer.Sample sample = ENCRYPT_TIMER.start()) {
+                  encrypt(pdf, masterKey, secret);
+               }
+            }
+         } else {
+            String msg = String.format(NON_FORM_WARN, templatePdf.getName());
+            logger.warn(msg);
          }
-         acroForm.flatten();
-      
-         if (masterKey!=null && !masterKey.isEmpty() && 
-             secret!=null && !secret.isEmpty() && !secret.equals("0")) {
-           encrypt(pdf, masterKey, secret);
+         try (Timer.Sample sample = SAVE_TIMER.start()) {
+            sink.save(pdf);
          }
-      } else {
-         String msg = String.format(NON_FORM_WARN, templatePdf.getName());
-         logger.warn(msg);
       }
-      pdf.save(targetPdf);
-      pdf.close();
+      CREATED_COUNTER.increment();
+      return true;
    }
 
 }
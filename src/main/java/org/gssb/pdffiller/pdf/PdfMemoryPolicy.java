@@ -0,0 +1,95 @@
+package org.gssb.pdffiller.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.gssb.pdffiller.config.AppProperties;
+import org.gssb.pdffiller.config.PdfMemoryUsage;
+import org.gssb.pdffiller.exception.UnrecoverableException;
+
+/**
+ * Memory policy of the PDF documents of a run. Every document is loaded
+ * with its own PDFBox scratch buffer following this policy, and streams
+ * created while the form is filled and flattened use the same buffer until
+ * the document is saved.
+ */
+public class PdfMemoryPolicy {
+
+   private final static Logger logger = LogManager.getLogger(PdfMemoryPolicy.class);
+
+   private static final String SCRATCH_FOLDER_ERROR =
+         "Unable to create the folder %s for PDF scratch files.";
+
+   private static final long BYTES_PER_MB = 1024L * 1024L;
+
+   private final PdfMemoryUsage usage;
+   private final long maxMainMemoryBytes;
+   private final Optional<File> scratchFolder;
+
+   PdfMemoryPolicy(final PdfMemoryUsage usage, final long maxMainMemoryBytes,
+                   final Optional<File> scratchFolder) {
+      super();
+      this.usage = Objects.requireNonNull(usage);
+      this.maxMainMemoryBytes = maxMainMemoryBytes;
+      this.scratchFolder = Objects.requireNonNull(scratchFolder);
+   }
+
+   /**
+    * @param rootPath folder a relative scratch folder is resolved against
+    */
+   public PdfMemoryPolicy(final AppProperties properties, final String rootPath) {
+      this(properties.getPdfMemoryUsage(),
+           properties.getPdfMemoryLimit() * BYTES_PER_MB,
+           properties.getPdfScratchFolder()
+                     .map(f -> prepareScratchFolder(Paths.get(rootPath).resolve(f))));
+   }
+
+   /**
+    * @return the PDFBox default: documents are kept on the heap
+    */
+   public static PdfMemoryPolicy mainMemoryOnly() {
+      return new PdfMemoryPolicy(PdfMemoryUsage.MAIN, -1, Optional.empty());
+   }
+
+   private static File prepareScratchFolder(final Path folder) {
+      try {
+         return Files.createDirectories(folder).toFile();
+      } catch (IOException e) {
+         String msg = String.format(SCRATCH_FOLDER_ERROR, folder);
+         logger.error(msg, e);
+         throw new UnrecoverableException(msg, e);
+      }
+   }
+
+   public PdfMemoryUsage getUsage() {
+      return this.usage;
+   }
+
+   /**
+    * @return a new setting for one document
+    */
+   MemoryUsageSetting createSetting() {
+      MemoryUsageSetting setting;
+      switch (this.usage) {
+         case MIXED:
+            setting = MemoryUsageSetting.setupMixed(this.maxMainMemoryBytes);
+            break;
+         case TEMP_FILE:
+            setting = MemoryUsageSetting.setupTempFileOnly();
+            break;
+         default:
+            setting = MemoryUsageSetting.setupMainMemoryOnly();
+      }
+      this.scratchFolder.ifPresent(setting::setTempDir);
+      return setting;
+   }
+
+}
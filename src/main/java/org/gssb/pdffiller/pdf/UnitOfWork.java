@@ -3,25 +3,71 @@ package org.gssb.pdffiller.pdf;
 import java.io.File;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
 
 import org.gssb.pdffiller.excel.RowGroup;
 
 public class UnitOfWork {
    private final RowGroup   rowGroup;
    private final List<File> generatedFiles;
+   private final Map<File, InMemoryDocument> inMemoryDocuments;
+   private final Predicate<File> savedFiles;
    
    UnitOfWork(final RowGroup rowGroup, final List<File> generatedFiles) {
+      this(rowGroup, generatedFiles, Collections.emptyMap(), File::exists);
+   }
+
+   /**
+    * @param inMemoryDocuments documents of <code>generatedFiles</code> that
+    *                          were created in memory and not saved to disk
+    * @param savedFiles        tells whether a generated file is saved to disk
+    */
+   UnitOfWork(final RowGroup rowGroup, final List<File> generatedFiles,
+              final Map<File, InMemoryDocument> inMemoryDocuments,
+              final Predicate<File> savedFiles) {
       super();
       this.rowGroup = rowGroup;
       this.generatedFiles = generatedFiles;
+      this.inMemoryDocuments = inMemoryDocuments;
+      this.savedFiles = savedFiles;
    }
 
    public RowGroup getRow() {
       return rowGroup;
    }
 
+   /**
+    * @return all documents of the unit in creation order, including the
+    *         target files of in-memory documents
+    */
    public List<File> getGeneratedFiles() {
       return Collections.unmodifiableList(generatedFiles);
    }
 
+   /**
+    * @return the in-memory content of a generated file; empty if the file
+    *         was saved to disk
+    */
+   public Optional<InMemoryDocument> getInMemoryDocument(final File generatedFile) {
+      return Optional.ofNullable(this.inMemoryDocuments.get(generatedFile));
+   }
+
+   /**
+    * @return true if the generated file is held in memory or saved to disk
+    */
+   public boolean isAvailable(final File generatedFile) {
+      return this.inMemoryDocuments.containsKey(generatedFile) ||
+             this.savedFiles.test(generatedFile);
+   }
+
+   /**
+    * Returns the buffers of the in-memory documents to their pool. Called
+    * once after the documents were attached and sent, or discarded.
+    */
+   public void release() {
+      this.inMemoryDocuments.values().forEach(InMemoryDocument::release);
+   }
+
 }
@@ -0,0 +1,199 @@
+package org.gssb.pdffiller.pipeline;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.exception.UnrecoverableException;
+
+/**
+ * Runs the stages of a mail merge concurrently and connects them with
+ * bounded queues:
+ * <ol>
+ * <li>a reader thread takes row groups from the source and submits them to
+ *     the document workers,</li>
+ * <li>document workers create the PDF documents of a group,</li>
+ * <li>a message thread collects the documents in group order and builds
+ *     the email message,</li>
+ * <li>the calling thread sends each message as soon as it is built,
+ *     together with the other messages ready at that time.</li>
+ * </ol>
+ * Downstream stages start with the first group, and a full queue blocks
+ * the stage in front of it. The number of groups, documents and messages
+ * held in memory is therefore bounded by the queue size and not by the
+ * size of the spreadsheet. The first failure of any stage stops the
+ * pipeline.
+ *
+ * @param <G> row group
+ * @param <U> unit of work with the documents of a group
+ * @param <M> message created for a unit of work
+ */
+public class DeliveryPipeline<G, U, M> {
+
+   private final static Logger logger = LogManager.getLogger(DeliveryPipeline.class);
+
+   private static final String INTERRUPTED = "Interrupted while delivering emails.";
+
+   private static final String STAGE_FAILED = "The delivery pipeline stopped: %s";
+
+   private final int queueSize;
+   private final int workers;
+
+   private final Function<G, U> documentStage;
+   private final Function<U, Optional<M>> messageStage;
+   private final Consumer<List<M>> sendStage;
+
+   /**
+    * @param queueSize     capacity of each queue and maximal size of a batch
+    *                      of messages sent at once
+    * @param workers       number of threads creating documents
+    * @param documentStage creates the documents of a row group
+    * @param messageStage  creates the message for a unit of work; empty if
+    *                      no message is sent
+    * @param sendStage     sends a batch of messages
+    */
+   public DeliveryPipeline(final int queueSize, final int workers,
+                           final Function<G, U> documentStage,
+                           final Function<U, Optional<M>> messageStage,
+                           final Consumer<List<M>> sendStage) {
+      super();
+      this.queueSize = Math.max(1, queueSize);
+      this.workers = Math.max(1, workers);
+      this.documentStage = documentStage;
+      this.messageStage = messageStage;
+      this.sendStage = sendStage;
+   }
+
+   private void readGroups(final Iterator<G> groups,
+                           final ExecutorService documentWorkers,
+                           final BlockingQueue<Future<U>> units,
+                           final Future<U> endOfUnits)
+                throws InterruptedException {
+      try {
+         while (groups.hasNext()) {
+            G group = groups.next();
+            units.put(documentWorkers.submit(() -> this.documentStage.apply(group)));
+         }
+      } catch (RuntimeException e) {
+         // let the message stage finish the groups read so far
+         units.put(endOfUnits);
+         throw e;
+      }
+      units.put(endOfUnits);
+   }
+
+   private void buildMessages(final BlockingQueue<Future<U>> units,
+                              final Future<U> endOfUnits,
+                              final BlockingQueue<Optional<M>> messages)
+                throws InterruptedException, ExecutionException {
+      // an empty message marks the end of the queue
+      try {
+         while (true) {
+            Future<U> unit = units.take();
+            if (unit == endOfUnits) {
+               break;
+            }
+            Optional<M> message = this.messageStage.apply(unit.get());
+            if (message.isPresent()) {
+               messages.put(message);
+            }
+         }
+      } catch (ExecutionException | RuntimeException e) {
+         messages.put(Optional.empty());
+         throw e;
+      }
+      messages.put(Optional.empty());
+   }
+
+   /**
+    * Sends each message as soon as it is built, together with all other
+    * messages that are ready at that time.
+    */
+   private void sendMessages(final BlockingQueue<Optional<M>> messages)
+                throws InterruptedException {
+      List<Optional<M>> ready = new ArrayList<>(this.queueSize);
+      boolean done = false;
+      while (!done) {
+         ready.add(messages.take());
+         messages.drainTo(ready, this.queueSize - 1);
+         List<M> batch = new ArrayList<>(ready.size());
+         for (Optional<M> message : ready) {
+            if (message.isPresent()) {
+               batch.add(message.get());
+            } else {
+               done = true;
+            }
+         }
+         ready.clear();
+         if (!batch.isEmpty()) {
+            this.sendStage.accept(batch);
+         }
+      }
+   }
+
+   private void checkStage(final Future<?> stage) throws InterruptedException {
+      try {
+         stage.get();
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof ExecutionException && cause.getCause() != null) {
+            // failure of a document worker
+            cause = cause.getCause();
+         }
+         if (cause instanceof UnrecoverableException) {
+            throw (UnrecoverableException) cause;
+         }
+         String msg = String.format(STAGE_FAILED, cause.getMessage());
+         logger.error(msg, cause);
+         throw new UnrecoverableException(msg, cause);
+      }
+   }
+
+   /**
+    * Delivers all groups and returns after the last batch was sent.
+    */
+   public void run(final Iterator<G> groups) {
+      BlockingQueue<Future<U>> units = new ArrayBlockingQueue<>(this.queueSize);
+      BlockingQueue<Optional<M>> messages = new ArrayBlockingQueue<>(this.queueSize);
+      Future<U> endOfUnits = new CompletableFuture<>();
+
+      ExecutorService documentWorkers = Executors.newFixedThreadPool(this.workers);
+      ExecutorService stages = Executors.newFixedThreadPool(2);
+      try {
+         Future<?> reader = stages.submit(() -> {
+            readGroups(groups, documentWorkers, units, endOfUnits);
+            return null;
+         });
+         Future<?> builder = stages.submit(() -> {
+            buildMessages(units, endOfUnits, messages);
+            return null;
+         });
+
+         sendMessages(messages);
+
+         // the end of the message queue is reached after success or failure
+         checkStage(builder);
+         checkStage(reader);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         logger.error(INTERRUPTED, e);
+         throw new UnrecoverableException(INTERRUPTED, e);
+      } finally {
+         stages.shutdownNow();
+         documentWorkers.shutdownNow();
+      }
+   }
+
+}
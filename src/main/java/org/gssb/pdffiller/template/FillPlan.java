@@ -0,0 +1,150 @@
+package org.gssb.pdffiller.template;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.excel.IndexedMap;
+import org.gssb.pdffiller.excel.KeyLayout;
+
+/**
+ * Assignment of spreadsheet columns to the form fields of a template,
+ * compiled once per template. Entry <code>i</code> belongs to the field at
+ * position <code>i</code> of the form's field list, so a document is filled
+ * by one pass over its fields without looking fields up by name.
+ * <p>
+ * Values of an {@link IndexedMap}, such as the values of a record or the
+ * form map of a group, are resolved by slot. The slots are bound to the
+ * key layout of the first map and reused for all maps that share the
+ * layout: all records of a sheet share their header, and all groups of the
+ * same size share their group layout.
+ */
+public class FillPlan {
+
+   /**
+    * Slot of every entry in one layout; -1 if the layout does not contain
+    * the column.
+    */
+   private static class Binding {
+      private final KeyLayout layout;
+      private final int[]     slots;
+
+      Binding(final KeyLayout layout, final int[] slots) {
+         this.layout = layout;
+         this.slots = slots;
+      }
+   }
+
+   // groups of different sizes have layouts of their own
+   private static final int BINDING_LIMIT = 64;
+
+   private final String[] fieldNames;
+   private final String[] columns;
+   private volatile Binding lastBinding;
+   // recently used bindings; the least recently used one is dropped
+   private final Map<KeyLayout, int[]> bindings =
+         new LinkedHashMap<KeyLayout, int[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<KeyLayout, int[]> eldest) {
+               return size() > BINDING_LIMIT;
+            }
+         };
+
+   private FillPlan(final String[] fieldNames, final String[] columns) {
+      super();
+      this.fieldNames = fieldNames;
+      this.columns = columns;
+   }
+
+   /**
+    * @param fieldNames fully qualified field names in the order of the form,
+    *                   including fields that share a name
+    * @param columnOf   column supplying the value of a field
+    */
+   public static FillPlan compile(final List<String> fieldNames,
+                                  final Function<String, String> columnOf) {
+      String[] names = fieldNames.toArray(new String[0]);
+      String[] columns = new String[names.length];
+      for (int i = 0; i < names.length; i++) {
+         columns[i] = columnOf.apply(names[i]);
+      }
+      return new FillPlan(names, columns);
+   }
+
+   /**
+    * @return number of form fields, which is the number of entries
+    */
+   public int size() {
+      return this.fieldNames.length;
+   }
+
+   public String getFieldName(final int entry) {
+      return this.fieldNames[entry];
+   }
+
+   public String getColumn(final int entry) {
+      return this.columns[entry];
+   }
+
+   private int[] createSlots(final KeyLayout layout) {
+      int[] slots = new int[this.columns.length];
+      for (int i = 0; i < this.columns.length; i++) {
+         slots[i] = layout.slotOf(this.columns[i]);
+      }
+      return slots;
+   }
+
+   private int[] bind(final KeyLayout layout) {
+      Binding last = this.lastBinding;
+      if (last != null && last.layout == layout) {
+         return last.slots;
+      }
+      int[] slots;
+      synchronized (this.bindings) {
+         slots = this.bindings.computeIfAbsent(layout, this::createSlots);
+      }
+      this.lastBinding = new Binding(layout, slots);
+      return slots;
+   }
+
+   /**
+    * @return value of every entry taken from the record; null if the record
+    *         does not contain the column
+    */
+   public String[] resolve(final ExcelRow row) {
+      return resolve(row.getRowMap());
+   }
+
+   /**
+    * @return value of every entry read by slot; null if the map does not
+    *         contain the column
+    */
+   public String[] resolve(final IndexedMap formMap) {
+      int[] slots = bind(formMap.getLayout());
+      String[] values = new String[slots.length];
+      for (int i = 0; i < slots.length; i++) {
+         values[i] = slots[i] >= 0 ? formMap.getValue(slots[i]) : null;
+      }
+      return values;
+   }
+
+   /**
+    * @return value of every entry taken from a form map, such as the map
+    *         of a group; null if the map does not contain the column
+    */
+   public String[] resolve(final Map<String, String> formMap) {
+      if (formMap instanceof IndexedMap) {
+         return resolve((IndexedMap) formMap);
+      }
+      String[] values = new String[this.columns.length];
+      for (int i = 0; i < this.columns.length; i++) {
+         values[i] = formMap.get(this.columns[i]);
+      }
+      return values;
+   }
+
+}
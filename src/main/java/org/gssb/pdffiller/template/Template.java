@@ -2,21 +2,30 @@ package org.gssb.pdffiller.template;
 
 import java.nio.file.Path;
 import java.util.Objects;
+import java.util.Optional;
 
 public class Template {
 
    private final String key;
    private final Path   templatePath;
+   private final Optional<TemplateMetadata> metadata;
 
    Template(final String key, final Path templatePath) {
+      this(key, templatePath, Optional.empty());
+   }
+
+   Template(final String key, final Path templatePath,
+            final Optional<TemplateMetadata> metadata) {
       super();
       Objects.requireNonNull(key);
       assert (!key.isEmpty());
       Objects.requireNonNull(templatePath);
       assert (!templatePath.toString().isEmpty());
-   
+      Objects.requireNonNull(metadata);
+
       this.key = key;
       this.templatePath = templatePath;
+      this.metadata = metadata;
    }
 
    public String getKey() {
@@ -30,5 +39,13 @@ public class Template {
    public String getTemplateFileName() {
       return this.templatePath.getFileName().toString();
    }
-	
+
+   /**
+    * @return metadata resolved when the template was built; empty if the
+    *         template could not be probed at that time
+    */
+   public Optional<TemplateMetadata> getMetadata() {
+      return this.metadata;
+   }
+
 }
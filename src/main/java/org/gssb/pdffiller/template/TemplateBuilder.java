@@ -1,5 +1,6 @@
 package org.gssb.pdffiller.template;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
@@ -11,11 +12,15 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.gssb.pdffiller.config.AppProperties;
 import org.gssb.pdffiller.exception.UnrecoverableException;
 
 public class TemplateBuilder {
    
+   private final static Logger logger = LogManager.getLogger(TemplateBuilder.class);
+   
    private final static String UNDEFINED_CHOICE      = 
          "The choice configuration '%s' does not define a mapping.";
    private final static String UNDEFINED_TEMPLATE   =
@@ -27,11 +32,23 @@ public class TemplateBuilder {
    
    private final String folderPath;
    private final AppProperties props;
+   private final Optional<TemplateMetadataCache> metadataCache;
 
    public TemplateBuilder(final AppProperties props, final String folderPath) {
+      this(props, folderPath, Optional.empty());
+   }
+
+   public TemplateBuilder(final AppProperties props, final String folderPath,
+                          final TemplateMetadataCache metadataCache) {
+      this(props, folderPath, Optional.of(metadataCache));
+   }
+
+   private TemplateBuilder(final AppProperties props, final String folderPath,
+                           final Optional<TemplateMetadataCache> metadataCache) {
       super();
       this.props = props;
       this.folderPath = folderPath;
+      this.metadataCache = metadataCache;
    }
    
    private Path getTemplatePath(final String key) {
@@ -39,12 +56,31 @@ public class TemplateBuilder {
                        this.props.getFullTemplateKey(key));
    }
    
+   private Optional<TemplateMetadata> getMetadata(final String key,
+                                                  final Path templatePath) {
+      if (!this.metadataCache.isPresent()) {
+         return Optional.empty();
+      }
+      try {
+         return Optional.of(this.metadataCache.get()
+                                .get(templatePath, this.props.getMappings(key)));
+      } catch (IOException e) {
+         // template is probed again and reported when it is first used
+         logger.debug("Unable to probe template " + templatePath + ".", e);
+         return Optional.empty();
+      }
+   }
+   
+   private Template createTemplate(final String key) {
+      Path templatePath = getTemplatePath(key);
+      return new Template(key, templatePath, getMetadata(key, templatePath));
+   }
+   
    private Map<String, Template> getTemplates() {
       return this.props
                  .getTemplateKeys()
                  .stream()
-                 .collect(Collectors.toMap(n -> n, 
-                                           n -> new Template(n, getTemplatePath(n))));
+                 .collect(Collectors.toMap(n -> n, n -> createTemplate(n)));
    }
    
    private Optional<String> findUndefinedTemplate(final Map<String, String> choices,
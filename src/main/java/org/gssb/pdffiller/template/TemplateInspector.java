@@ -0,0 +1,14 @@
+package org.gssb.pdffiller.template;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+@FunctionalInterface
+public interface TemplateInspector {
+
+   TemplateMetadata inspect(final Path templatePath,
+                            final Map<String, String> formFieldMap)
+                    throws IOException;
+
+}
@@ -0,0 +1,92 @@
+package org.gssb.pdffiller.template;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Immutable result of probing a PDF template once: whether it contains a
+ * form, the fully qualified names of its form fields, whether fields follow
+ * the repeated <code>name_i</code> convention, and the plan that maps each
+ * form field to the spreadsheet column supplying its value.
+ */
+public class TemplateMetadata {
+
+   private static final TemplateMetadata PLAIN_DOCUMENT =
+         new TemplateMetadata(false, Collections.emptyList(), false,
+                              Collections.emptyMap());
+
+   private final boolean pdfForm;
+   private final List<String> fieldNames;
+   private final Set<String> fields;
+   private final boolean repeatedFieldNames;
+   private final Map<String, String> fieldColumns;
+   private final FillPlan fillPlan;
+
+   public TemplateMetadata(final boolean pdfForm,
+                           final List<String> fieldNames,
+                           final boolean repeatedFieldNames,
+                           final Map<String, String> formFieldMap) {
+      super();
+      Objects.requireNonNull(fieldNames);
+      Objects.requireNonNull(formFieldMap);
+      this.pdfForm = pdfForm;
+      this.fieldNames = Collections.unmodifiableList(new ArrayList<>(fieldNames));
+      this.fields = Collections.unmodifiableSet(new LinkedHashSet<>(fieldNames));
+      this.repeatedFieldNames = repeatedFieldNames;
+
+      // map form field names to the excel column names if specified
+      Map<String, String> columns = new LinkedHashMap<>();
+      for (String field : this.fields) {
+         columns.put(field, formFieldMap.getOrDefault(field, field));
+      }
+      this.fieldColumns = Collections.unmodifiableMap(columns);
+      this.fillPlan = FillPlan.compile(this.fieldNames, this::getColumn);
+   }
+
+   public static TemplateMetadata plainDocument() {
+      return PLAIN_DOCUMENT;
+   }
+
+   public boolean isPdfForm() {
+      return this.pdfForm;
+   }
+
+   /**
+    * @return field names in the order defined by the form, including
+    *         duplicates of fields that share the same name
+    */
+   public List<String> getFieldNames() {
+      return this.fieldNames;
+   }
+
+   public Set<String> getFields() {
+      return this.fields;
+   }
+
+   public boolean containsRepeatedFieldNames() {
+      return this.repeatedFieldNames;
+   }
+
+   public Map<String, String> getFieldColumns() {
+      return this.fieldColumns;
+   }
+
+   /**
+    * @return the column of every field in the order of
+    *         {@link #getFieldNames()}
+    */
+   public FillPlan getFillPlan() {
+      return this.fillPlan;
+   }
+
+   public String getColumn(final String fieldName) {
+      return this.fieldColumns.getOrDefault(fieldName, fieldName);
+   }
+
+}
@@ -0,0 +1,83 @@
+package org.gssb.pdffiller.template;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches template metadata so that every template file is parsed once per
+ * run. Entries are keyed by template path, file size, modification time and
+ * field mapping, so a template that changes on disk is probed again.
+ */
+public class TemplateMetadataCache {
+
+   private static class Key {
+      private final Path   templatePath;
+      private final long   size;
+      private final long   lastModified;
+      private final Map<String, String> formFieldMap;
+
+      Key(final Path templatePath, final Map<String, String> formFieldMap)
+          throws IOException {
+         this.templatePath = templatePath.toAbsolutePath().normalize();
+         this.size = Files.size(templatePath);
+         this.lastModified = Files.getLastModifiedTime(templatePath).toMillis();
+         this.formFieldMap = formFieldMap;
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hash(this.templatePath, this.size, this.lastModified,
+                             this.formFieldMap);
+      }
+
+      @Override
+      public boolean equals(final Object obj) {
+         if (this == obj) {
+            return true;
+         }
+         if (!(obj instanceof Key)) {
+            return false;
+         }
+         Key other = (Key) obj;
+         return this.size == other.size &&
+                this.lastModified == other.lastModified &&
+                this.templatePath.equals(other.templatePath) &&
+                this.formFieldMap.equals(other.formFieldMap);
+      }
+   }
+
+   private final ConcurrentMap<Key, TemplateMetadata> cache =
+         new ConcurrentHashMap<>();
+
+   private final TemplateInspector inspector;
+
+   public TemplateMetadataCache(final TemplateInspector inspector) {
+      super();
+      this.inspector = Objects.requireNonNull(inspector);
+   }
+
+   public TemplateMetadata get(final Path templatePath,
+                               final Map<String, String> formFieldMap)
+                          throws IOException {
+      Objects.requireNonNull(templatePath);
+      Map<String, String> fieldMap = formFieldMap != null ? formFieldMap
+                                                          : Collections.emptyMap();
+      Key key = new Key(templatePath, fieldMap);
+      TemplateMetadata metadata = this.cache.get(key);
+      if (metadata == null) {
+         metadata = this.inspector.inspect(templatePath, fieldMap);
+         TemplateMetadata previous = this.cache.putIfAbsent(key, metadata);
+         if (previous != null) {
+            metadata = previous;
+         }
+      }
+      return metadata;
+   }
+
+}
@@ -0,0 +1,69 @@
+package org.gssb.pdffiller.text;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Unmodifiable map that adds one key to another map without copying it,
+ * such as the system variable <code>_BaseName_</code> added to the values
+ * of a row. The added key hides a key of the same name in the other map.
+ */
+public final class OverlayMap extends AbstractMap<String, String> {
+
+   private final Map<String, String> base;
+   private final String key;
+   private final String value;
+
+   public OverlayMap(final Map<String, String> base, final String key,
+                     final String value) {
+      super();
+      this.base = base;
+      this.key = Objects.requireNonNull(key);
+      this.value = value;
+   }
+
+   @Override
+   public String get(final Object name) {
+      return this.key.equals(name) ? this.value : this.base.get(name);
+   }
+
+   @Override
+   public boolean containsKey(final Object name) {
+      return this.key.equals(name) || this.base.containsKey(name);
+   }
+
+   @Override
+   public int size() {
+      return this.base.containsKey(this.key) ? this.base.size()
+                                             : this.base.size() + 1;
+   }
+
+   @Override
+   public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+         @Override
+         public Iterator<Map.Entry<String, String>> iterator() {
+            Map.Entry<String, String> added =
+                  new SimpleImmutableEntry<>(OverlayMap.this.key, OverlayMap.this.value);
+            return Stream.concat(Stream.of(added),
+                                 OverlayMap.this.base
+                                            .entrySet()
+                                            .stream()
+                                            .filter(e -> !OverlayMap.this.key
+                                                                        .equals(e.getKey())))
+                         .iterator();
+         }
+
+         @Override
+         public int size() {
+            return OverlayMap.this.size();
+         }
+      };
+   }
+
+}
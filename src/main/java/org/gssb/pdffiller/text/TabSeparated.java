@@ -0,0 +1,36 @@
+package org.gssb.pdffiller.text;
+
+/**
+ * Escaping of the values of the tab-separated text files written by a run,
+ * such as the journal and the output index. Backslashes, tabs and line
+ * breaks are written as <code>\\</code>, <code>\t</code>, <code>\n</code>
+ * and <code>\r</code>, so every value fits into one field of one line.
+ */
+public final class TabSeparated {
+
+   private TabSeparated() {
+   }
+
+   public static String escape(final String value) {
+      return value.replace("\\", "\\\\")
+                  .replace("\t", "\\t")
+                  .replace("\n", "\\n")
+                  .replace("\r", "\\r");
+   }
+
+   public static String unescape(final String value) {
+      StringBuilder sb = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '\\' && i + 1 < value.length()) {
+            char next = value.charAt(++i);
+            sb.append(next == 't' ? '\t' : next == 'n' ? '\n'
+                                          : next == 'r' ? '\r' : next);
+         } else {
+            sb.append(c);
+         }
+      }
+      return sb.toString();
+   }
+
+}
@@ -6,15 +6,71 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.file.Path;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.gssb.pdffiller.metrics.Counter;
+import org.gssb.pdffiller.metrics.Metrics;
+import org.gssb.pdffiller.metrics.Timer;
+
+import com.github.mustachejava.Code;
 import com.github.mustachejava.DefaultMustacheFactory;
 import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheException;
 import com.github.mustachejava.MustacheFactory;
 
+/**
+ * Substitutes row values in Mustache templates. Templates are compiled once
+ * per distinct template text or file and shared by all threads using the
+ * same builder, so substitution only executes the compiled template.
+ */
 public class TextBuilder {
    
+   private static class FileKey {
+      private final Path templatePath;
+      private final long lastModified;
+      
+      FileKey(final File template) {
+         this.templatePath = template.toPath().toAbsolutePath().normalize();
+         this.lastModified = template.lastModified();
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hash(this.templatePath, this.lastModified);
+      }
+
+      @Override
+      public boolean equals(final Object obj) {
+         if (this == obj) {
+            return true;
+         }
+         if (!(obj instanceof FileKey)) {
+            return false;
+         }
+         FileKey other = (FileKey) obj;
+         return this.lastModified == other.lastModified &&
+                this.templatePath.equals(other.templatePath);
+      }
+   }
+   
+   private static final Timer SUBSTITUTE_TIMER =
+         Metrics.timer("text.substitute", "Time to substitute row values in a template.");
+   private static final Counter COMPILE_COUNTER =
+         Metrics.counter("text.compile", "Mustache templates compiled.");
+   
+   private final MustacheFactory mustacheFactory = createSimpleMustacheFactory();
+   
+   private final ConcurrentMap<String, Mustache> compiledTexts =
+         new ConcurrentHashMap<>();
+   private final ConcurrentMap<FileKey, Mustache> compiledFiles =
+         new ConcurrentHashMap<>();
+   
    private MustacheFactory createSimpleMustacheFactory() {
      return new DefaultMustacheFactory() {
                   @Override
@@ -33,28 +89,84 @@ public class TextBuilder {
                };
    }
    
-   public String substitute(final String message, 
-                            final Map<String, String> row) throws IOException {
-      MustacheFactory mf = createSimpleMustacheFactory();
-      Mustache mustache = 
-            mf.compile(new StringReader(message), "message.text");
-      try (StringWriter stringWriter = new StringWriter()) {
+   private Mustache compile(final String message) {
+      Mustache mustache = this.compiledTexts.get(message);
+      if (mustache == null) {
+         mustache = this.mustacheFactory.compile(new StringReader(message),
+                                                 "message.text");
+         COMPILE_COUNTER.increment();
+         Mustache previous = this.compiledTexts.putIfAbsent(message, mustache);
+         if (previous != null) {
+            mustache = previous;
+         }
+      }
+      return mustache;
+   }
+   
+   private Mustache compile(final File template) throws IOException {
+      // a template file that changes on disk is compiled again
+      FileKey key = new FileKey(template);
+      Mustache mustache = this.compiledFiles.get(key);
+      if (mustache == null) {
+         try (FileReader templateReader = new FileReader(template)) {
+            mustache = this.mustacheFactory.compile(templateReader, "message.file");
+         }
+         COMPILE_COUNTER.increment();
+         Mustache previous = this.compiledFiles.putIfAbsent(key, mustache);
+         if (previous != null) {
+            mustache = previous;
+         }
+      }
+      return mustache;
+   }
+   
+   private String execute(final Mustache mustache,
+                          final Map<String, String> row) throws IOException {
+      try (Timer.Sample sample = SUBSTITUTE_TIMER.start();
+           StringWriter stringWriter = new StringWriter()) {
          mustache.execute(stringWriter, new MustacheMapDecorator(row))
                  .flush();
          return stringWriter.toString();
       }
    }
+   
+   public String substitute(final String message, 
+                            final Map<String, String> row) throws IOException {
+      return execute(compile(message), row);
+   }
+   
+   private static void collectVariables(final Code[] codes,
+                                        final Set<String> variables) {
+      if (codes == null) {
+         return;
+      }
+      for (Code code : codes) {
+         String name = code.getName();
+         if (name != null && !name.equals(".")) {
+            variables.add(name);
+            // dotted names are looked up part by part
+            int dot = name.indexOf('.');
+            if (dot > 0) {
+               variables.add(name.substring(0, dot));
+            }
+         }
+         collectVariables(code.getCodes(), variables);
+      }
+   }
+   
+   /**
+    * @return names of the variables and sections of a template, which are
+    *         the row values it reads
+    */
+   public Set<String> getVariables(final String message) {
+      Set<String> variables = new HashSet<>();
+      collectVariables(compile(message).getCodes(), variables);
+      return variables;
+   }
 
    public String substitute(final File template,
                             final Map<String, String> row) throws IOException {
-      FileReader templateReader =  new FileReader(template);
-      MustacheFactory mf = createSimpleMustacheFactory();
-      Mustache mustache = mf.compile(templateReader, "message.file");
-      try (StringWriter stringWriter = new StringWriter()) {
-	     mustache.execute(stringWriter, new MustacheMapDecorator(row))
-	             .flush();
-	     return stringWriter.toString();
-      }
+      return execute(compile(template), row);
    }
       
 }
@@ -0,0 +1,432 @@
+package org.gssb.pdffiller.validation;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.gssb.pdffiller.config.AppProperties;
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.excel.RowGroup;
+import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.gssb.pdffiller.metrics.Metrics;
+import org.gssb.pdffiller.metrics.Timer;
+import org.gssb.pdffiller.pdf.FieldFonts;
+import org.gssb.pdffiller.pdf.PdfFormFiller;
+import org.gssb.pdffiller.template.Choice;
+import org.gssb.pdffiller.template.Template;
+import org.gssb.pdffiller.template.TemplateMetadata;
+import org.gssb.pdffiller.template.TemplateMetadataCache;
+import org.gssb.pdffiller.validation.ValidationReport.Issue;
+import org.gssb.pdffiller.validation.ValidationReport.Severity;
+
+/**
+ * Checks all records before any document is created, so a run stops with a
+ * complete list of problems instead of failing at the first bad record
+ * after documents and emails of earlier records were already produced.
+ * <p>
+ * The columns of the spreadsheet are checked once. Every record is checked
+ * for an undefined choice value and for characters the font of a form field
+ * it is filled into cannot show; every group that is sent by email is
+ * checked for an email address. Records are checked in batches by a fixed
+ * pool of workers; only a few batches are held in memory at a time.
+ */
+public class PreflightValidator {
+
+   private final static Logger logger = LogManager.getLogger(PreflightValidator.class);
+
+   private static final String CONFIGURATION = "configuration";
+
+   private static final String MISSING_GROUP_COLUMN_WARN =
+         "The group column is not available in the spreadsheet. Every record is " +
+         "processed as a group of its own.";
+
+   private static final String MISSING_SECRET_COLUMN_ERROR =
+         "The secret column is not available in the spreadsheet. Documents " +
+         "cannot be encrypted.";
+
+   private static final String MISSING_CHOICE_COLUMN_ERROR =
+         "The selection column of a choice is not available in the spreadsheet.";
+
+   private static final String MISSING_EMAIL_COLUMN_ERROR =
+         "The email column is not available in the spreadsheet.";
+
+   private static final String MISSING_FIELD_COLUMN_WARN =
+         "The column of form field '%s' of template '%s' is not available in " +
+         "the spreadsheet. The field stays empty.";
+
+   private static final String TEMPLATE_ERROR =
+         "The template cannot be read: %s";
+
+   private static final String UNDEFINED_CHOICE_ERROR =
+         "Choice value '%s' is undefined. Defined values are %s.";
+
+   private static final String UNSUPPORTED_CHARACTER_ERROR =
+         "Character '%s' (U+%04X) cannot be shown with the font of form field " +
+         "'%s' of template '%s'.";
+
+   private static final String NO_EMAIL_WARN =
+         "The record has no email address. No email is sent for this group.";
+
+   private static final String RECORD_ERROR =
+         "The record cannot be checked: %s";
+
+   private static final String INTERRUPTED_ERROR = "Interrupted while validating records.";
+
+   private static final Pattern INDEXED_NAME = Pattern.compile("(.+)_\\d+");
+
+   // groups checked by a single task
+   private static final int BATCH_SIZE = 512;
+
+   private static final Timer VALIDATE_TIMER =
+         Metrics.timer("validation.run", "Validation of all records before a run.");
+
+   /**
+    * Form fields of a template together with the fonts of its fields.
+    */
+   private static final class TemplateFields {
+      private final String name;
+      private final TemplateMetadata metadata;
+      private final FieldFonts fonts;
+
+      TemplateFields(final String name, final TemplateMetadata metadata,
+                     final FieldFonts fonts) {
+         this.name = name;
+         this.metadata = metadata;
+         this.fonts = fonts;
+      }
+   }
+
+   private final PdfFormFiller pdfFormFiller;
+   private final TemplateMetadataCache metadataCache;
+   private final String groupColumn;
+   private final List<String> emailColumns;
+   private final int threads;
+
+   public PreflightValidator(final AppProperties properties,
+                             final PdfFormFiller pdfFormFiller,
+                             final TemplateMetadataCache metadataCache,
+                             final int threads) {
+      super();
+      this.pdfFormFiller = Objects.requireNonNull(pdfFormFiller);
+      this.metadataCache = Objects.requireNonNull(metadataCache);
+      List<String> groupColumns = properties.getGroupColumns();
+      this.groupColumn = groupColumns != null && !groupColumns.isEmpty()
+                            ? groupColumns.get(0) : null;
+      List<String> emailColumns = properties.getTargetEmailColumns();
+      this.emailColumns = emailColumns != null ? emailColumns
+                                               : Collections.emptyList();
+      this.threads = Math.max(1, threads);
+   }
+
+   private static Issue error(final String location, final String column,
+                              final String message) {
+      return new Issue(Severity.ERROR, location, column, message);
+   }
+
+   private static Issue warning(final String location, final String column,
+                                final String message) {
+      return new Issue(Severity.WARNING, location, column, message);
+   }
+
+   private static String getValue(final ExcelRow row, final String column) {
+      return row.getColumnValue(row.getHeader().indexOf(column));
+   }
+
+   /**
+    * @return the column itself or, for a field of a repeated record such as
+    *         <code>Name_2</code>, the column <code>Name</code>; empty if
+    *         neither is available
+    */
+   private static Optional<String> findColumn(final ExcelRow row, final String column) {
+      if (row.containsColumn(column)) {
+         return Optional.of(column);
+      }
+      Matcher matcher = INDEXED_NAME.matcher(column);
+      if (matcher.matches() && row.containsColumn(matcher.group(1))) {
+         return Optional.of(matcher.group(1));
+      }
+      return Optional.empty();
+   }
+
+   private Map<Template, TemplateFields> inspectTemplates(final List<Template> templates,
+                                                          final Map<String, Map<String, String>> formFieldMaps,
+                                                          final List<Issue> issues) {
+      Map<Template, TemplateFields> result = new IdentityHashMap<>();
+      for (Template template : templates) {
+         if (result.containsKey(template)) {
+            continue;
+         }
+         Path templatePath = template.getTemplatePath();
+         String name = template.getTemplateFileName();
+         try {
+            Map<String, String> formFieldMap = formFieldMaps.get(template.getKey());
+            TemplateMetadata metadata = template.getMetadata().isPresent()
+                  ? template.getMetadata().get()
+                  : this.metadataCache.get(templatePath,
+                                           formFieldMap != null ? formFieldMap
+                                                                : Collections.emptyMap());
+            if (metadata.isPdfForm()) {
+               FieldFonts fonts = this.pdfFormFiller.inspectFonts(templatePath.toFile());
+               result.put(template, new TemplateFields(name, metadata, fonts));
+            }
+         } catch (IOException | RuntimeException e) {
+            logger.error(String.format(TEMPLATE_ERROR, templatePath), e);
+            issues.add(error("template " + name, "",
+                             String.format(TEMPLATE_ERROR, e.getMessage())));
+         }
+      }
+      return result;
+   }
+
+   private void checkColumns(final ExcelRow head, final String masterKey,
+                             final String secretColumnName,
+                             final List<Choice> choices,
+                             final Map<Template, TemplateFields> templates,
+                             final boolean emails, final List<Issue> issues) {
+      if (this.groupColumn != null && !head.containsColumn(this.groupColumn)) {
+         issues.add(warning(CONFIGURATION, this.groupColumn, MISSING_GROUP_COLUMN_WARN));
+      }
+      if (masterKey != null && !masterKey.isEmpty() &&
+          secretColumnName != null && !secretColumnName.isEmpty() &&
+          !head.containsColumn(secretColumnName)) {
+         issues.add(error(CONFIGURATION, secretColumnName, MISSING_SECRET_COLUMN_ERROR));
+      }
+      Set<String> selectionColumns = new LinkedHashSet<>();
+      choices.forEach(c -> selectionColumns.add(c.getSelectionColumn()));
+      for (String column : selectionColumns) {
+         if (!head.containsColumn(column)) {
+            issues.add(error(CONFIGURATION, column, MISSING_CHOICE_COLUMN_ERROR));
+         }
+      }
+      if (emails) {
+         for (String column : this.emailColumns) {
+            if (!head.containsColumn(column.trim())) {
+               issues.add(error(CONFIGURATION, column, MISSING_EMAIL_COLUMN_ERROR));
+            }
+         }
+      }
+      for (TemplateFields template : templates.values()) {
+         for (Map.Entry<String, String> e : template.metadata.getFieldColumns()
+                                                             .entrySet()) {
+            if (!findColumn(head, e.getValue()).isPresent()) {
+               issues.add(warning(CONFIGURATION, e.getValue(),
+                                  String.format(MISSING_FIELD_COLUMN_WARN, e.getKey(),
+                                                template.name)));
+            }
+         }
+      }
+   }
+
+   private void checkFields(final ExcelRow row, final String location,
+                            final TemplateFields template, final List<Issue> issues) {
+      for (String field : template.metadata.getFields()) {
+         if (!template.fonts.hasFont(field)) {
+            continue;
+         }
+         Optional<String> column = findColumn(row, template.metadata.getColumn(field));
+         if (!column.isPresent()) {
+            continue;
+         }
+         String value = getValue(row, column.get());
+         OptionalInt unsupported = template.fonts.findUnsupported(field, value);
+         if (unsupported.isPresent()) {
+            int c = unsupported.getAsInt();
+            issues.add(error(location, column.get(),
+                             String.format(UNSUPPORTED_CHARACTER_ERROR,
+                                           new String(Character.toChars(c)), c,
+                                           field, template.name)));
+         }
+      }
+   }
+
+   private void checkRow(final ExcelRow row, final String location,
+                         final List<TemplateFields> alwaysInclude,
+                         final List<Choice> choices,
+                         final Map<Template, TemplateFields> templates,
+                         final List<Issue> issues) {
+      List<TemplateFields> targets = new ArrayList<>(alwaysInclude);
+      for (Choice choice : choices) {
+         String column = choice.getSelectionColumn();
+         String value = getValue(row, column);
+         // same rules as the selection of the template of a record
+         if (value == null || value.isEmpty() || value.equals("0")) {
+            continue;
+         }
+         if (!choice.getKeys().contains(value)) {
+            issues.add(error(location, column,
+                             String.format(UNDEFINED_CHOICE_ERROR, value,
+                                           new TreeSet<>(choice.getKeys()))));
+            continue;
+         }
+         choice.select(value)
+               .map(templates::get)
+               .ifPresent(targets::add);
+      }
+      for (TemplateFields template : targets) {
+         checkFields(row, location, template, issues);
+      }
+   }
+
+   private void checkEmail(final ExcelRow head, final String location,
+                           final List<Issue> issues) {
+      boolean found = this.emailColumns
+                          .stream()
+                          .map(c -> getValue(head, c.trim()))
+                          .anyMatch(v -> v != null && v.contains("@"));
+      if (!found) {
+         issues.add(warning(location, String.join(", ", this.emailColumns),
+                            NO_EMAIL_WARN));
+      }
+   }
+
+   private static String getLocation(final RowGroup group, final long firstRecord,
+                                     final int row) {
+      Optional<String> groupId = group.getGroupId();
+      return groupId.isPresent() ? "group ID " + groupId.get() + ", row " + (row + 1)
+                                 : "record " + (firstRecord + row);
+   }
+
+   private List<Issue> checkBatch(final List<RowGroup> batch, final long firstRecord,
+                                  final List<TemplateFields> alwaysInclude,
+                                  final List<Choice> choices,
+                                  final Map<Template, TemplateFields> templates,
+                                  final boolean emails) {
+      List<Issue> issues = new ArrayList<>();
+      long record = firstRecord;
+      for (RowGroup group : batch) {
+         List<ExcelRow> rows = group.getRows();
+         try {
+            if (emails) {
+               checkEmail(group.getHeadRow(), getLocation(group, record, 0), issues);
+            }
+            for (int i = 0; i < rows.size(); i++) {
+               checkRow(rows.get(i), getLocation(group, record, i), alwaysInclude,
+                        choices, templates, issues);
+            }
+         } catch (RuntimeException e) {
+            String location = getLocation(group, record, 0);
+            logger.error(String.format(RECORD_ERROR, location), e);
+            issues.add(error(location, "", String.format(RECORD_ERROR, e.getMessage())));
+         }
+         record += rows.size();
+      }
+      return issues;
+   }
+
+   private void collect(final List<Future<List<Issue>>> futures, final List<Issue> issues)
+                throws ExecutionException, InterruptedException {
+      for (Future<List<Issue>> future : futures) {
+         issues.addAll(future.get());
+      }
+   }
+
+   /**
+    * Checks all groups. The stream is read once and is not closed.
+    *
+    * @param masterKey key the documents are encrypted with; empty if the
+    *                  documents are not encrypted
+    * @param emails    true if the documents are sent by email
+    */
+   public ValidationReport validate(final Stream<RowGroup> groups,
+                                    final String masterKey,
+                                    final String secretColumnName,
+                                    final List<Template> alwaysInclude,
+                                    final List<Choice> choices,
+                                    final Map<String, Map<String, String>> formFieldMaps,
+                                    final boolean emails) {
+      List<Issue> issues = new ArrayList<>();
+      List<Template> allTemplates = new ArrayList<>(alwaysInclude);
+      for (Choice choice : choices) {
+         choice.getKeys().forEach(k -> choice.select(k).ifPresent(allTemplates::add));
+      }
+      Map<Template, TemplateFields> templates =
+            inspectTemplates(allTemplates, formFieldMaps, issues);
+      List<TemplateFields> always = new ArrayList<>();
+      alwaysInclude.forEach(t -> Optional.ofNullable(templates.get(t))
+                                         .ifPresent(always::add));
+
+      Iterator<RowGroup> iterator = groups.iterator();
+      long records = 0;
+      ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+      try (Timer.Sample sample = VALIDATE_TIMER.start()) {
+         if (iterator.hasNext()) {
+            RowGroup first = iterator.next();
+            checkColumns(first.getHeadRow(), masterKey, secretColumnName, choices,
+                         templates, emails, issues);
+
+            // bounds the batches held in memory; results keep the input order
+            Semaphore permits = new Semaphore(2 * this.threads);
+            List<Future<List<Issue>>> futures = new ArrayList<>();
+            List<RowGroup> batch = new ArrayList<>(BATCH_SIZE);
+            batch.add(first);
+            long firstRecord = 1;
+            records = first.getRows().size();
+            while (!batch.isEmpty()) {
+               while (batch.size() < BATCH_SIZE && iterator.hasNext()) {
+                  RowGroup group = iterator.next();
+                  batch.add(group);
+                  records += group.getRows().size();
+               }
+               List<RowGroup> task = batch;
+               long taskRecord = firstRecord;
+               firstRecord = records + 1;
+               permits.acquire();
+               futures.add(executor.submit(() -> {
+                  try {
+                     return checkBatch(task, taskRecord, always, choices, templates,
+                                       emails);
+                  } finally {
+                     permits.release();
+                  }
+               }));
+               batch = new ArrayList<>(BATCH_SIZE);
+            }
+            collect(futures, issues);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         logger.error(INTERRUPTED_ERROR, e);
+         throw new UnrecoverableException(INTERRUPTED_ERROR, e);
+      } catch (ExecutionException e) {
+         String msg = String.format(RECORD_ERROR, e.getCause().getMessage());
+         logger.error(msg, e.getCause());
+         throw new UnrecoverableException(msg, e.getCause());
+      } finally {
+         executor.shutdownNow();
+         closeFonts(templates);
+      }
+      return new ValidationReport(issues, records);
+   }
+
+   private static void closeFonts(final Map<Template, TemplateFields> templates) {
+      for (TemplateFields template : templates.values()) {
+         try {
+            template.fonts.close();
+         } catch (IOException e) {
+            logger.warn("Unable to close template " + template.name + ".", e);
+         }
+      }
+   }
+
+}
@@ -0,0 +1,159 @@
+package org.gssb.pdffiller.validation;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.gssb.pdffiller.text.TabSeparated;
+
+/**
+ * Findings of a validation pass in the order of the records. Errors stop
+ * the run before any document is created; warnings describe records that
+ * are processed differently than the configuration suggests, such as
+ * groups without email address.
+ * <p>
+ * The report is a text file with one line per finding: severity, location,
+ * column and message, separated by tabs.
+ */
+public class ValidationReport {
+
+   private static final int SUMMARY_LIMIT = 20;
+
+   private static final char SEPARATOR = '\t';
+   private static final char EOL = '\n';
+
+   public enum Severity {
+      ERROR, WARNING
+   }
+
+   /**
+    * A single finding of the validation pass.
+    */
+   public static final class Issue {
+      private final Severity severity;
+      private final String location;
+      private final String column;
+      private final String message;
+
+      public Issue(final Severity severity, final String location,
+                   final String column, final String message) {
+         this.severity = Objects.requireNonNull(severity);
+         this.location = Objects.requireNonNull(location);
+         this.column = column != null ? column : "";
+         this.message = Objects.requireNonNull(message);
+      }
+
+      public Severity getSeverity() {
+         return this.severity;
+      }
+
+      /**
+       * @return the record or configuration the finding refers to, such as
+       *         <code>group ID 17, row 2</code>
+       */
+      public String getLocation() {
+         return this.location;
+      }
+
+      /**
+       * @return the column the finding refers to; empty if it refers to no
+       *         column
+       */
+      public String getColumn() {
+         return this.column;
+      }
+
+      public String getMessage() {
+         return this.message;
+      }
+
+      @Override
+      public String toString() {
+         return this.severity + " " + this.location +
+                (this.column.isEmpty() ? "" : " [" + this.column + "]") +
+                ": " + this.message;
+      }
+   }
+
+   private final List<Issue> issues;
+   private final long recordCount;
+   private final long errorCount;
+
+   public ValidationReport(final List<Issue> issues, final long recordCount) {
+      super();
+      this.issues = Collections.unmodifiableList(new ArrayList<>(issues));
+      this.recordCount = recordCount;
+      this.errorCount = issues.stream()
+                              .filter(i -> i.getSeverity() == Severity.ERROR)
+                              .count();
+   }
+
+   public List<Issue> getIssues() {
+      return this.issues;
+   }
+
+   /**
+    * @return number of records checked
+    */
+   public long getRecordCount() {
+      return this.recordCount;
+   }
+
+   public long getErrorCount() {
+      return this.errorCount;
+   }
+
+   public long getWarningCount() {
+      return this.issues.size() - this.errorCount;
+   }
+
+   /**
+    * @return true if documents can be created for all records
+    */
+   public boolean isValid() {
+      return this.errorCount == 0;
+   }
+
+   /**
+    * Writes all findings to a temporary file that replaces the previous
+    * report.
+    */
+   public void write(final Path reportFile) throws IOException {
+      Path tempFile = reportFile.resolveSibling(reportFile.getFileName() + ".tmp");
+      try (Writer out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+         for (Issue issue : this.issues) {
+            out.write(issue.getSeverity().toString() + SEPARATOR +
+                      TabSeparated.escape(issue.getLocation()) + SEPARATOR +
+                      TabSeparated.escape(issue.getColumn()) + SEPARATOR +
+                      TabSeparated.escape(issue.getMessage()) + EOL);
+         }
+      }
+      Files.move(tempFile, reportFile, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   /**
+    * Prints the counts and the first findings.
+    */
+   public void printSummary(final PrintStream out) {
+      out.println(String.format("Validated %d records: %d errors, %d warnings.",
+                                this.recordCount, this.errorCount,
+                                getWarningCount()));
+      this.issues.stream()
+                 .limit(SUMMARY_LIMIT)
+                 .forEach(i -> out.println("  " + i));
+      if (this.issues.size() > SUMMARY_LIMIT) {
+         out.println(String.format("  ... and %d more.",
+                                   this.issues.size() - SUMMARY_LIMIT));
+      }
+   }
+
+}
@@ -2,11 +2,24 @@ package org.gssb.pdffiller;
 
 import org.gssb.pdffiller.config.PropertiesTest;
 import org.gssb.pdffiller.email.BulkEmailTest;
+import org.gssb.pdffiller.excel.DelimitedReaderTest;
+import org.gssb.pdffiller.excel.GroupLayoutTest;
+import org.gssb.pdffiller.excel.RowGroupSorterTest;
 import org.gssb.pdffiller.excel.RowReaderTest;
+import org.gssb.pdffiller.journal.RunJournalTest;
+import org.gssb.pdffiller.manifest.OutputManifestTest;
+import org.gssb.pdffiller.metrics.MetricsTest;
+import org.gssb.pdffiller.pdf.ArchiveSinkTest;
 import org.gssb.pdffiller.pdf.BulkPdfTest;
+import org.gssb.pdffiller.pdf.DocumentWriterTest;
+import org.gssb.pdffiller.pdf.OutputDirectoryTest;
 import org.gssb.pdffiller.pdf.PdfFormFillerTest;
+import org.gssb.pdffiller.pipeline.DeliveryPipelineTest;
+import org.gssb.pdffiller.template.FillPlanTest;
 import org.gssb.pdffiller.template.TemplateBuilderTest;
+import org.gssb.pdffiller.text.OverlayMapTest;
 import org.gssb.pdffiller.text.TextBuilderTest;
+import org.gssb.pdffiller.validation.PreflightValidatorTest;
 import org.junit.platform.suite.api.SelectClasses;
 import org.junit.platform.suite.api.Suite;
 
@@ -14,6 +27,12 @@ import org.junit.platform.suite.api.Suite;
 @SelectClasses({PropertiesTest.class, RowReaderTest.class,
                 PdfFormFillerTest.class, TemplateBuilderTest.class,
                 TextBuilderTest.class, BulkPdfTest.class,
-                BulkEmailTest.class})
+                BulkEmailTest.class, DeliveryPipelineTest.class,
+                MetricsTest.class, RunJournalTest.class,
+                OutputManifestTest.class, FillPlanTest.class,
+                DelimitedReaderTest.class, RowGroupSorterTest.class,
+                OutputDirectoryTest.class, ArchiveSinkTest.class,
+                PreflightValidatorTest.class, DocumentWriterTest.class,
+                GroupLayoutTest.class, OverlayMapTest.class})
 public class AllTests {
 }
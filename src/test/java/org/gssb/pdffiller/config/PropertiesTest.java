@@ -4,23 +4,33 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 import org.gssb.pdffiller.exception.UnrecoverableException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class PropertiesTest {
 
 	private final static String P_PATH   = "src/test/resources/2018/config";
 	private final static String PROPS1   = "test1.properties";
 	private final static String PROPS2   = "test2.properties";
+	private final static String PROPS_MEMORY = "memory.properties";
 	private final static File   propFile1 = new File(P_PATH, PROPS1);
 
 	private AppProperties props;
 
+	@TempDir
+	Path tempDir;
+
 	@BeforeEach
 	public void setup() {
 	    this.props = new AppProperties(propFile1.toPath());
@@ -142,4 +152,120 @@ public class PropertiesTest {
 		assertEquals("test@xyz.org", props.getEmailReturnAddress());
 	}
 
+	@Test
+	public void testMetricsReport() throws IOException {
+		// the report is only written if it is named
+		assertFalse(this.props.getMetricsReportName().isPresent());
+
+		Path propFile = this.tempDir.resolve("metrics.properties");
+		Files.write(propFile, "metrics.report = run-metrics ".getBytes());
+		assertEquals("run-metrics", new AppProperties(propFile).getMetricsReportName().get());
+	}
+
+	@Test
+	public void testExcelStreaming() throws IOException {
+		AppProperties defaults = new AppProperties(new File(P_PATH, PROPS2).toPath());
+		assertTrue(defaults.isExcelStreaming());
+		assertFalse(defaults.isCachedFormulaResults());
+
+		Path propFile = this.tempDir.resolve("streaming.properties");
+		Files.write(propFile, "excel.streaming = false".getBytes());
+		assertFalse(new AppProperties(propFile).isExcelStreaming());
+	}
+
+	@Test
+	public void testExcelSnapshotFolder() throws IOException {
+		// snapshots are only saved if their folder is named
+		assertFalse(this.props.getExcelSnapshotFolder().isPresent());
+
+		Path propFile = this.tempDir.resolve("snapshot.properties");
+		Files.write(propFile, "excel.snapshot_folder = snapshots ".getBytes());
+		assertEquals("snapshots", new AppProperties(propFile).getExcelSnapshotFolder().get());
+	}
+
+	@Test
+	public void testPdfMemoryUsage() {
+		AppProperties memory = new AppProperties(new File(P_PATH, PROPS_MEMORY).toPath());
+		assertEquals(PdfMemoryUsage.TEMP_FILE, memory.getPdfMemoryUsage());
+		assertEquals(16, memory.getPdfMemoryLimit());
+		assertFalse(memory.getPdfScratchFolder().isPresent());
+
+		AppProperties defaults = new AppProperties(new File(P_PATH, PROPS2).toPath());
+		assertEquals(PdfMemoryUsage.MAIN, defaults.getPdfMemoryUsage());
+		assertEquals(64, defaults.getPdfMemoryLimit());
+	}
+
+	@Test
+	public void testInvalidPdfMemoryUsage() throws IOException {
+		Path propFile = this.tempDir.resolve("memory.properties");
+		Files.write(propFile, "pdf.memory = disk".getBytes());
+		AppProperties props = new AppProperties(propFile);
+		assertThrows(UnrecoverableException.class, () -> props.getPdfMemoryUsage());
+	}
+
+	@Test
+	public void testInputFormat() throws IOException {
+		assertEquals(InputFormat.WORKBOOK, this.props.getInputFormat());
+		assertEquals(StandardCharsets.UTF_8, this.props.getInputEncoding());
+
+		Path propFile = this.tempDir.resolve("input.properties");
+		Files.write(propFile, ("excel.file_name = Export.CSV\n" +
+		                       "excel.encoding = ISO-8859-1").getBytes());
+		AppProperties csv = new AppProperties(propFile);
+		assertEquals(InputFormat.CSV, csv.getInputFormat());
+		assertEquals(StandardCharsets.ISO_8859_1, csv.getInputEncoding());
+
+		Files.write(propFile, ("excel.file_name = Export.txt\n" +
+		                       "excel.format = TSV\n" +
+		                       "excel.encoding = EBCDIC-42").getBytes());
+		AppProperties tsv = new AppProperties(propFile);
+		assertEquals(InputFormat.TSV, tsv.getInputFormat());
+		assertThrows(UnrecoverableException.class, () -> tsv.getInputEncoding());
+	}
+
+	@Test
+	public void testOutputLayout() throws IOException {
+		assertEquals(OutputLayout.FLAT, this.props.getOutputLayout());
+		assertEquals(256, this.props.getOutputFanOut());
+		assertEquals("pdffiller-index.txt", this.props.getOutputIndexFileName().get());
+
+		Path propFile = this.tempDir.resolve("layout.properties");
+		Files.write(propFile, ("folder.generated_layout = Group\n" +
+		                       "folder.generated_fan_out = 0\n" +
+		                       "folder.generated_index = ").getBytes());
+		AppProperties grouped = new AppProperties(propFile);
+		assertEquals(OutputLayout.GROUP, grouped.getOutputLayout());
+		assertEquals(1, grouped.getOutputFanOut());
+		assertFalse(grouped.getOutputIndexFileName().isPresent());
+
+		Files.write(propFile, "folder.generated_layout = tree".getBytes());
+		AppProperties invalid = new AppProperties(propFile);
+		assertThrows(UnrecoverableException.class, () -> invalid.getOutputLayout());
+	}
+
+	@Test
+	public void testArchive() throws IOException {
+		assertFalse(this.props.getArchiveName().isPresent());
+		assertEquals(1024, this.props.getArchiveSizeLimit());
+		assertEquals(6, this.props.getArchiveCompression());
+
+		Path propFile = this.tempDir.resolve("archive.properties");
+		Files.write(propFile, ("pdf.archive = print-shop \n" +
+		                       "pdf.archive_size_limit = 200\n" +
+		                       "pdf.archive_compression = 12").getBytes());
+		AppProperties archived = new AppProperties(propFile);
+		assertEquals("print-shop", archived.getArchiveName().get());
+		assertEquals(200, archived.getArchiveSizeLimit());
+		assertEquals(9, archived.getArchiveCompression());
+	}
+
+	@Test
+	public void testValidationReport() throws IOException {
+		assertEquals("pdffiller-validation.txt", this.props.getValidationReportName());
+
+		Path propFile = this.tempDir.resolve("validation.properties");
+		Files.write(propFile, "validation.report = checks.txt ".getBytes());
+		assertEquals("checks.txt", new AppProperties(propFile).getValidationReportName());
+	}
+
 }
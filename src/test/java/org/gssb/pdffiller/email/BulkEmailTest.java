@@ -34,6 +34,7 @@ import org.gssb.pdffiller.excel.ExcelCell;
 import org.gssb.pdffiller.excel.ExcelRow;
 import org.gssb.pdffiller.excel.RowGroup;
 import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.gssb.pdffiller.pdf.MessageWrapper;
 import org.gssb.pdffiller.pdf.UnitOfWork;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -52,7 +53,8 @@ public class BulkEmailTest {
          new MockProvider(Type.TRANSPORT, "smtp",
                           MockTransport.class.getCanonicalName(), "GSSB", "0.1");
 
-   private List<MockTransport> usedTransports = new ArrayList<>();
+   private List<MockTransport> usedTransports =
+         Collections.synchronizedList(new ArrayList<>());
 
    @BeforeEach
    public void setUp() throws Exception {
@@ -75,7 +77,15 @@ public class BulkEmailTest {
    }
 
    private BulkEmail createBulkEmail(final boolean oneRecipient) {
+      return createBulkEmail(oneRecipient, 1, 1);
+   }
+
+   private BulkEmail createBulkEmail(final boolean oneRecipient,
+                                     final int connections,
+                                     final int connectionLimit) {
       AppProperties props = mock(AppProperties.class);
+      when(props.getEmailConnections()).thenReturn(connections);
+      when(props.getEmailServerConnectionLimit()).thenReturn(connectionLimit);
       when(props.getEmailSendRetries()).thenReturn(RETRIES);
       when(props.getEmailWaitTime()).thenReturn(10);
       when(props.getEmailTimeout()).thenReturn(100);
@@ -199,6 +209,11 @@ public class BulkEmailTest {
    }
 
    private void sendEmails(final int emailCount, boolean oneRecipient) {
+      sendEmails(emailCount, oneRecipient, 1, 1);
+   }
+
+   private List<UnitOfWork> createUnits(final int emailCount,
+                                        final boolean oneRecipient) {
       String[] rowDesc;
       if (oneRecipient) {
          rowDesc = new String[] { "email1:p1@domain1.ccc",
@@ -223,9 +238,16 @@ public class BulkEmailTest {
       for (int i=0; i< emailCount; i++) {
          UnitOfWork uow = mock(UnitOfWork.class);
          when(uow.getGeneratedFiles()).thenReturn(Arrays.asList(attachment1));
+         when(uow.isAvailable(attachment1)).thenReturn(attachment1.exists());
          when(uow.getRow()).thenReturn(rowGroup);
          work.add(uow);
       }
+      return work;
+   }
+
+   private void sendEmails(final int emailCount, final boolean oneRecipient,
+                           final int connections, final int connectionLimit) {
+      List<UnitOfWork> work = createUnits(emailCount, oneRecipient);
 
       String host = "localhost";
       String port = "0";
@@ -233,7 +255,8 @@ public class BulkEmailTest {
       String fromAddress = "from@userdomain.abc";
       String password = "abc";
 
-      BulkEmail bulkEmail = createBulkEmail(oneRecipient);
+      BulkEmail bulkEmail = createBulkEmail(oneRecipient, connections,
+                                            connectionLimit);
 
       bulkEmail.sendEmails(work, false, host, port, userName, fromAddress,
                            password, this.bodyTemplateText);
@@ -404,4 +427,53 @@ public class BulkEmailTest {
       assertTrue(data.contains("..A"));
    }
 
+   @Test
+   public void testSendSixEmailsInParallel() throws MessagingException, IOException {
+      try {
+         sendEmails(6, false, 3, 4);
+      } catch (UnrecoverableException e) {
+         fail("unexpected error ocured when sending email" + e.getMessage());
+      }
+      String data = new String(this.baos.toByteArray(), StandardCharsets.UTF_8);
+      assertTrue(data.contains("Sent 6 of 6 possible emails."));
+      assertEquals(3, this.usedTransports.size());
+      assertTrue(this.usedTransports.stream().anyMatch(t -> t.getLastMessage() != null));
+   }
+
+   @Test
+   public void testConnectionsKeptForDelivery() throws MessagingException, IOException {
+      BulkEmail bulkEmail = createBulkEmail(false, 3, 4);
+      try (BulkEmail.Delivery delivery =
+                 bulkEmail.startDelivery(false, "localhost", "0", "user",
+                                         "from@userdomain.abc", "abc",
+                                         this.bodyTemplateText)) {
+         // every batch is sent over the connections opened for the first one
+         for (int batch = 0; batch < 3; batch++) {
+            List<MessageWrapper> messages = new ArrayList<>();
+            for (UnitOfWork unit : createUnits(4, false)) {
+               delivery.createMessage(unit).ifPresent(messages::add);
+            }
+            delivery.send(messages);
+            assertEquals(3, this.usedTransports.size());
+         }
+         delivery.printSummary();
+      }
+      String data = new String(this.baos.toByteArray(), StandardCharsets.UTF_8);
+      assertTrue(data.contains("Sent 12 of 12 possible emails."));
+      assertEquals(3, this.usedTransports.size());
+   }
+
+   @Test
+   public void testParallelConnectionsLimitedByServer()
+               throws MessagingException, IOException {
+      try {
+         sendEmails(6, false, 5, 2);
+      } catch (UnrecoverableException e) {
+         fail("unexpected error ocured when sending email" + e.getMessage());
+      }
+      String data = new String(this.baos.toByteArray(), StandardCharsets.UTF_8);
+      assertTrue(data.contains("Sent 6 of 6 possible emails."));
+      assertEquals(2, this.usedTransports.size());
+   }
+
 }
@@ -0,0 +1,126 @@
+package org.gssb.pdffiller.excel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DelimitedReaderTest {
+
+   private static final String CSV =
+         "\uFEFFName,Klasse,Comment\r\n" +
+         "\"Sasson, Leo\",6B,\"He said \"\"Hallo\"\"\"\r\n" +
+         ",,\r\n" +
+         "M\u00fcller,\"7\nA\",\r\n" +
+         "Gwen,2B\n" +
+         "Helene,3B,ok,extra";
+
+   @TempDir
+   Path folder;
+
+   private File createFile(final String content, final Charset charset)
+                throws IOException {
+      Path file = this.folder.resolve("input.csv");
+      Files.write(file, content.getBytes(charset));
+      return file.toFile();
+   }
+
+   private List<List<String>> getValues(final List<ExcelRow> rows) {
+      return rows.stream()
+                 .map(r -> Arrays.asList(r.printValues().split(", ", -1)))
+                 .collect(Collectors.toList());
+   }
+
+   @Test
+   public void testReadCsv() throws IOException {
+      File file = createFile(CSV, StandardCharsets.UTF_8);
+
+      // tiny blocks make values span several reads
+      for (int blockSize : Arrays.asList(DelimitedParser.BLOCK_SIZE, 4, 1)) {
+         List<ExcelRow> rows = new DelimitedReader(',', StandardCharsets.UTF_8,
+                                                   blockSize).read(file, null);
+         assertEquals(4, rows.size());
+         assertEquals("Name, Klasse, Comment", rows.get(0).printHeaders());
+         assertEquals("Sasson, Leo", rows.get(0).getValue("Name").getColumnValue());
+         assertEquals("He said \"Hallo\"", rows.get(0).getValue("Comment").getColumnValue());
+         assertEquals("M\u00fcller", rows.get(1).getValue("Name").getColumnValue());
+         assertEquals("7\nA", rows.get(1).getValue("Klasse").getColumnValue());
+         // records count from the header, the empty record is skipped
+         assertEquals(2, rows.get(0).getRowNumber());
+         assertEquals(4, rows.get(1).getRowNumber());
+         assertEquals(5, rows.get(2).getRowNumber());
+         // missing values are empty, values beyond the header are ignored
+         assertEquals("", rows.get(2).getValue("Comment").getColumnValue());
+         assertEquals("ok", rows.get(3).getValue("Comment").getColumnValue());
+         assertEquals(3, rows.get(3).getHeader().size());
+         assertSame(rows.get(0).getHeader(), rows.get(3).getHeader());
+      }
+   }
+
+   @Test
+   public void testReadProjectedCsv() throws IOException {
+      File file = createFile(CSV, StandardCharsets.UTF_8);
+
+      List<ExcelRow> rows =
+            new DelimitedReader(',', StandardCharsets.UTF_8)
+                  .read(file, null, ColumnProjection.of(Arrays.asList("Comment", "Name")));
+      assertEquals(Arrays.asList(Arrays.asList("Sasson, Leo", "He said \"Hallo\""),
+                                 Arrays.asList("M\u00fcller", ""),
+                                 Arrays.asList("Gwen", ""),
+                                 Arrays.asList("Helene", "ok")),
+                   rows.stream()
+                       .map(r -> Arrays.asList(r.getColumnValue(0), r.getColumnValue(1)))
+                       .collect(Collectors.toList()));
+      assertEquals("Name, Comment", rows.get(0).printHeaders());
+      assertNull(rows.get(0).getValue("Klasse"));
+
+      // a value in a column that is not read keeps the row
+      rows = new DelimitedReader(',', StandardCharsets.UTF_8)
+                   .read(file, null, ColumnProjection.of(Arrays.asList("Comment")));
+      assertEquals(Arrays.asList(Arrays.asList("He said \"Hallo\""), Arrays.asList(""),
+                                 Arrays.asList(""), Arrays.asList("ok")),
+                   getValues(rows));
+   }
+
+   @Test
+   public void testReadLatin1Tsv() throws IOException {
+      File file = createFile("Name\tOrt\nM\u00fcller\tGro\u00df-Gerau\n\"Tab\tbed\"\t\"\"\n",
+                             StandardCharsets.ISO_8859_1);
+
+      List<ExcelRow> rows;
+      try (Stream<ExcelRow> stream = new DelimitedReader('\t', StandardCharsets.ISO_8859_1)
+                                           .stream(file, null)) {
+         rows = stream.collect(Collectors.toList());
+      }
+      assertEquals(Arrays.asList(Arrays.asList("M\u00fcller", "Gro\u00df-Gerau"),
+                                 Arrays.asList("Tab\tbed", "")),
+                   getValues(rows));
+   }
+
+   @Test
+   public void testMalformedInput() throws IOException {
+      DelimitedReader reader = new DelimitedReader(',', StandardCharsets.UTF_8);
+
+      File unterminated = createFile("Name,Klasse\n\"Leo,6B\n", StandardCharsets.UTF_8);
+      assertThrows(IOException.class, () -> reader.read(unterminated, null));
+
+      File empty = createFile("\n\n", StandardCharsets.UTF_8);
+      assertThrows(UnrecoverableException.class, () -> reader.read(empty, null));
+   }
+
+}
@@ -0,0 +1,105 @@
+package org.gssb.pdffiller.excel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class GroupLayoutTest {
+
+   private static final ExcelHeader HEADER =
+         ExcelHeader.of(Arrays.asList("Family", "Name", null, "Klasse"));
+   private static final Set<String> GROUP_COLUMNS = Collections.singleton("Family");
+
+   @Test
+   public void testKeys() {
+      GroupLayout layout = GroupLayout.of(HEADER, GROUP_COLUMNS, 2);
+
+      // the group columns of the head row come first, positions without a
+      // name are no columns
+      assertEquals(Arrays.asList("Family", "Name_1", "Klasse_1", "Name_2", "Klasse_2"),
+                   Arrays.asList(layout.getKeys().toArray()));
+      assertEquals(5, layout.size());
+      assertEquals(0, layout.slotOf("Family"));
+      assertEquals(3, layout.slotOf("Name_2"));
+      assertEquals(-1, layout.slotOf("Name"));
+      assertEquals(-1, layout.slotOf("Family_1"));
+      assertEquals(-1, layout.slotOf(3));
+   }
+
+   @Test
+   public void testValues() {
+      List<ExcelRow> rows = Arrays.asList(
+            new ExcelRow(HEADER, new String[] {"S", "Leo", "x", "6B"}),
+            new ExcelRow(HEADER, new String[] {"T", "Gwen", "y", "2B"}));
+      GroupLayout layout = GroupLayout.of(HEADER, GROUP_COLUMNS, rows.size());
+      GroupFormMap formMap = new GroupFormMap(layout, rows);
+
+      // group columns are read from the head row
+      assertEquals("S", formMap.getValue(layout.slotOf("Family")));
+      assertEquals("Gwen", formMap.getValue(layout.slotOf("Name_2")));
+      assertEquals("6B", formMap.get("Klasse_1"));
+      assertNull(formMap.get("Family_2"));
+
+      Map<String, String> expected = new HashMap<>();
+      expected.put("Family", "S");
+      expected.put("Name_1", "Leo");
+      expected.put("Klasse_1", "6B");
+      expected.put("Name_2", "Gwen");
+      expected.put("Klasse_2", "2B");
+      assertEquals(expected, formMap);
+   }
+
+   @Test
+   public void testLayoutsAreShared() {
+      GroupLayout layout = GroupLayout.of(HEADER, GROUP_COLUMNS, 3);
+
+      // groups of the same shape share the layout of their header
+      assertSame(layout, GroupLayout.of(HEADER, new HashSet<>(GROUP_COLUMNS), 3));
+      assertNotSame(layout, GroupLayout.of(HEADER, GROUP_COLUMNS, 2));
+      assertNotSame(layout, GroupLayout.of(HEADER, Collections.emptySet(), 3));
+
+      // layouts are kept by their header, not by equal headers of other sheets
+      ExcelHeader other = ExcelHeader.of(Arrays.asList("Family", "Name", null, "Klasse"));
+      GroupLayout otherLayout = GroupLayout.of(other, GROUP_COLUMNS, 3);
+      assertNotSame(layout, otherLayout);
+      assertEquals(layout.getKeys(), otherLayout.getKeys());
+   }
+
+   @Test
+   public void testGroupColumnsAreCopied() {
+      Set<String> groupColumns = new HashSet<>(GROUP_COLUMNS);
+      ExcelHeader header = ExcelHeader.of(Arrays.asList("Family", "Name"));
+      GroupLayout layout = GroupLayout.of(header, groupColumns, 1);
+
+      // changing the set afterwards changes neither the layout nor the key
+      groupColumns.add("Name");
+      assertEquals(Arrays.asList("Family", "Name_1"),
+                   Arrays.asList(layout.getKeys().toArray()));
+      assertSame(layout, GroupLayout.of(header, GROUP_COLUMNS, 1));
+      assertNotSame(layout, GroupLayout.of(header, groupColumns, 1));
+   }
+
+   @Test
+   public void testRepeatedColumnName() {
+      ExcelHeader header = ExcelHeader.of(Arrays.asList("Family", "Name", "Name"));
+      GroupLayout layout = GroupLayout.of(header, GROUP_COLUMNS, 1);
+      GroupFormMap formMap = new GroupFormMap(layout, Arrays.asList(
+            new ExcelRow(header, new String[] {"S", "first", "last"})));
+
+      // the key refers to the last column of the name
+      assertEquals(2, layout.size());
+      assertEquals("last", formMap.get("Name_1"));
+   }
+
+}
@@ -0,0 +1,137 @@
+package org.gssb.pdffiller.excel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RowGroupSorterTest {
+
+   private static final ExcelHeader HEADER =
+         ExcelHeader.of(Arrays.asList("Family", "Name", "Comment"));
+
+   @TempDir
+   Path folder;
+
+   private List<ExcelRow> createRows(final int count) {
+      List<ExcelRow> rows = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+         String family = String.format("F%03d", (i * 7919) % 101);
+         rows.add(new ExcelRow(HEADER, new String[] {family, "Child" + i,
+                                                     i % 5 == 0 ? null : "\u00e4" + i},
+                               i + 2));
+      }
+      return rows;
+   }
+
+   private static String describe(final ExcelRow row) {
+      return row.getRowNumber() + ": " + row.printValues();
+   }
+
+   private List<List<String>> group(final RowGroupSorter sorter,
+                                    final List<ExcelRow> rows,
+                                    final Optional<String> startGroupId) {
+      try (Stream<RowGroup> groups = sorter.group(rows.stream(), startGroupId)) {
+         return groups.map(g -> g.getRows()
+                                 .stream()
+                                 .map(RowGroupSorterTest::describe)
+                                 .collect(Collectors.toList()))
+                      .collect(Collectors.toList());
+      }
+   }
+
+   private boolean isEmptyFolder() throws IOException {
+      try (Stream<Path> files = Files.list(this.folder)) {
+         return !files.findAny().isPresent();
+      }
+   }
+
+   @Test
+   public void testGroupInMemory() {
+      List<ExcelRow> rows = createRows(500);
+      RowGroupSorter sorter = new RowGroupSorter("Family", 0, this.folder);
+
+      List<RowGroup> groups;
+      try (Stream<RowGroup> stream = sorter.group(rows.stream(), Optional.empty())) {
+         groups = stream.collect(Collectors.toList());
+      }
+      assertEquals(101, groups.size());
+      for (int g = 0; g < groups.size(); g++) {
+         RowGroup group = groups.get(g);
+         assertEquals(String.format("F%03d", g), group.getGroupId().get());
+         // the rows of a group keep their input order
+         List<Integer> positions = group.getRows().stream()
+                                        .map(rows::indexOf)
+                                        .collect(Collectors.toList());
+         List<Integer> sorted = new ArrayList<>(positions);
+         sorted.sort(null);
+         assertEquals(sorted, positions);
+         assertSame(rows.get(positions.get(0)), group.getHeadRow());
+      }
+   }
+
+   @Test
+   public void testSpilledRunsMatchMemory() throws IOException {
+      List<ExcelRow> rows = createRows(3000);
+      List<List<String>> expected =
+            group(new RowGroupSorter("Family", 0, this.folder), rows, Optional.empty());
+
+      // many small runs and a few runs with several index entries
+      for (long memoryLimit : Arrays.asList(8 * 1024L, 256 * 1024L)) {
+         RowGroupSorter sorter = new RowGroupSorter("Family", memoryLimit, this.folder);
+         assertEquals(expected, group(sorter, rows, Optional.empty()));
+         assertTrue(isEmptyFolder(), "runs not deleted");
+
+         // the start group is sought in every run
+         assertEquals(expected.subList(57, expected.size()),
+                      group(sorter, rows, Optional.of("F057")));
+         assertEquals(expected.subList(100, expected.size()),
+                      group(sorter, rows, Optional.of("F100")));
+         assertEquals(0, group(sorter, rows, Optional.of("F0575")).size());
+         assertTrue(isEmptyFolder(), "runs not deleted");
+      }
+   }
+
+   @Test
+   public void testRunsShareHeaders() {
+      List<ExcelRow> rows = createRows(1000);
+      RowGroupSorter sorter = new RowGroupSorter("Family", 4 * 1024, this.folder);
+      try (Stream<RowGroup> groups = sorter.group(rows.stream(), Optional.empty())) {
+         assertTrue(groups.flatMap(g -> g.getRows().stream())
+                          .allMatch(r -> r.getHeader() == HEADER));
+      }
+   }
+
+   @Test
+   public void testWithoutGroupColumn() {
+      List<ExcelRow> rows = createRows(20);
+      List<String> expected = rows.stream()
+                                  .map(RowGroupSorterTest::describe)
+                                  .collect(Collectors.toList());
+
+      for (String groupColumn : Arrays.asList(null, "Missing")) {
+         RowGroupSorter sorter = new RowGroupSorter(groupColumn, 1, this.folder);
+         List<List<String>> groups = group(sorter, rows, Optional.of("F057"));
+         // every row is a group of its own in input order
+         assertEquals(expected, groups.stream()
+                                      .map(g -> g.get(0))
+                                      .collect(Collectors.toList()));
+         assertTrue(groups.stream().allMatch(g -> g.size() == 1));
+      }
+      assertEquals(0, group(new RowGroupSorter("Family", 0, this.folder),
+                            new ArrayList<>(), Optional.empty()).size());
+   }
+
+}
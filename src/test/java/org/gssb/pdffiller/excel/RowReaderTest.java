@@ -1,26 +1,49 @@
 package org.gssb.pdffiller.excel;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.poi.EncryptedDocumentException;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.gssb.pdffiller.config.AppProperties;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class RowReaderTest {
 
    private final static String EXCEL_FILE = "src/test/resources/2018/sources/GSSB Raw Results.xlsx";
    private final static String SHEET_NAME = "Testergebnisse";
 
+   @TempDir
+   Path folder;
+
    private AppProperties createMockProperties() {
       AppProperties props = mock(AppProperties.class);
       List<String> emailColumn = new ArrayList<>();
@@ -31,6 +54,22 @@ public class RowReaderTest {
       return props;
    }
 
+   /**
+    * @return properties that save snapshots of sheets without a secret
+    */
+   private AppProperties createSnapshotProperties() {
+      AppProperties props = createMockProperties();
+      when(props.getExcelSnapshotFolder()).thenReturn(Optional.of("snapshots"));
+      when(props.getExcelSecretColumnName()).thenReturn("Password");
+      return props;
+   }
+
+   private static List<ExcelRow> toList(final RowSnapshot.Rows rows) {
+      List<ExcelRow> excelRows = new ArrayList<>();
+      rows.forEachRemaining(excelRows::add);
+      return excelRows;
+   }
+
    @Test
    public void testReadSample() {
       AppProperties props = createMockProperties();
@@ -57,4 +96,347 @@ public class RowReaderTest {
 
    }
 
+   @Test
+   public void testStreamMatchesWorkbook() throws Exception {
+      AppProperties props = createMockProperties();
+      when(props.isExcelStreaming()).thenReturn(true);
+      ExcelReader reader = new ExcelReader(props);
+      File excelFile = new File(EXCEL_FILE);
+
+      List<ExcelRow> streamed;
+      try (Stream<ExcelRow> rows = reader.stream(excelFile, SHEET_NAME)) {
+         streamed = rows.collect(Collectors.toList());
+      }
+      List<ExcelRow> loaded =
+            new ExcelReader(createMockProperties()).readWorkbook(excelFile, SHEET_NAME,
+                                                                 ColumnProjection.all());
+
+      assertEquals(loaded.size(), streamed.size(), "incorrect count");
+      for (int i=0; i<loaded.size(); i++) {
+         assertEquals(loaded.get(i).printHeaders(), streamed.get(i).printHeaders());
+         assertEquals(loaded.get(i).printValues(), streamed.get(i).printValues());
+         assertEquals(loaded.get(i).getRowNumber(), streamed.get(i).getRowNumber());
+      }
+   }
+
+   /**
+    * Writes a workbook with two sheets of many rows, which hold strings,
+    * numbers, booleans, formulas and empty rows.
+    */
+   private File createLargeWorkbook(final int rowCount) throws IOException {
+      File workbook = this.folder.resolve("large.xlsx").toFile();
+      try (XSSFWorkbook wb = new XSSFWorkbook();
+           OutputStream out = Files.newOutputStream(workbook.toPath())) {
+         for (String sheetName : Arrays.asList("First", SHEET_NAME)) {
+            Sheet sheet = wb.createSheet(sheetName);
+            Row header = sheet.createRow(0);
+            String[] columns = {"Key", "Name", "Score", "Passed", "Total"};
+            for (int j=0; j<columns.length; j++) {
+               header.createCell(j).setCellValue(columns[j]);
+            }
+            for (int i=1; i<=rowCount; i++) {
+               // every 100th row stays empty
+               if (i % 100 == 0) continue;
+               Row row = sheet.createRow(i);
+               row.createCell(0).setCellValue(sheetName + i);
+               row.createCell(1).setCellValue("Name " + i);
+               row.createCell(2).setCellValue(i % 7 == 0 ? i + 0.5 : i);
+               row.createCell(3).setCellValue(i % 2 == 0);
+               row.createCell(4).setCellFormula("C" + (i + 1) + "*2");
+            }
+         }
+         // saves the formula results with the workbook
+         wb.getCreationHelper().createFormulaEvaluator().evaluateAll();
+         wb.write(out);
+      }
+      return workbook;
+   }
+
+   @Test
+   public void testStreamLargeWorkbook() throws Exception {
+      // more rows than the queue of the streaming reader holds
+      File workbook = createLargeWorkbook(5000);
+      AppProperties props = createSnapshotProperties();
+      when(props.isExcelStreaming()).thenReturn(true);
+      ExcelReader reader = new ExcelReader(props);
+      ExcelReader loader = new ExcelReader(createMockProperties());
+
+      for (String sheetName : Arrays.asList("First", SHEET_NAME)) {
+         List<ExcelRow> loaded = loader.readWorkbook(workbook, sheetName,
+                                                     ColumnProjection.all());
+         assertEquals(4950, loaded.size(), "incorrect count");
+         // the empty row 101 is skipped
+         assertEquals(100, loaded.get(98).getRowNumber());
+         assertEquals(102, loaded.get(99).getRowNumber());
+         // the first read streams the sheet, the second loads its snapshot
+         for (int pass=0; pass<2; pass++) {
+            List<ExcelRow> streamed = reader.read(workbook, sheetName);
+            assertEquals(loaded.size(), streamed.size(), "incorrect count");
+            for (int i=0; i<loaded.size(); i++) {
+               assertEquals(loaded.get(i).printHeaders(), streamed.get(i).printHeaders());
+               assertEquals(loaded.get(i).printValues(), streamed.get(i).printValues());
+               assertEquals(loaded.get(i).getRowNumber(), streamed.get(i).getRowNumber());
+            }
+            assertTrue(Files.exists(reader.getSnapshot(workbook, sheetName,
+                                                       ColumnProjection.all())
+                                          .get().getSnapshotFile()));
+         }
+      }
+   }
+
+   @Test
+   public void testCachedFormulaResults() throws Exception {
+      File excelFile = new File(EXCEL_FILE);
+      List<ExcelRow> evaluated =
+            new ExcelReader(createMockProperties()).readWorkbook(excelFile, SHEET_NAME,
+                                                                 ColumnProjection.all());
+      AppProperties props = createMockProperties();
+      when(props.isCachedFormulaResults()).thenReturn(true);
+      List<ExcelRow> cached = new ExcelReader(props).readWorkbook(excelFile, SHEET_NAME,
+                                                                  ColumnProjection.all());
+
+      assertEquals(evaluated.size(), cached.size(), "incorrect count");
+      for (int i=0; i<evaluated.size(); i++) {
+         assertEquals(evaluated.get(i).getRowMap(), cached.get(i).getRowMap());
+      }
+   }
+
+   @Test
+   public void testRowsShareHeader() throws Exception {
+      ExcelReader reader = new ExcelReader(createMockProperties());
+      File excelFile = new File(EXCEL_FILE);
+
+      for (List<ExcelRow> rows : Arrays.asList(reader.read(excelFile, SHEET_NAME),
+                                               reader.readWorkbook(excelFile, SHEET_NAME,
+                                                                   ColumnProjection.all()))) {
+         ExcelHeader header = rows.get(0).getHeader();
+         for (ExcelRow row : rows) {
+            assertSame(header, row.getHeader());
+            // the maps and cells are views of the values
+            for (String column : row.getRowMap().keySet()) {
+               int index = header.indexOf(column);
+               assertEquals(column, row.getValue(column).getColumnName());
+               assertEquals(index, row.getValue(column).getColumnIndex());
+               assertEquals(row.getColumnValue(index), row.getRowMap().get(column));
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testRowViews() {
+      ExcelHeader header = ExcelHeader.of(Arrays.asList("Name", "Klasse", "LehrerIn"));
+      ExcelRow row = new ExcelRow(header, new String[] {"S, Leo", "6B", "Mr. Cool"});
+      ExcelRow built = new ExcelRow();
+      built.addExcelCell(new ExcelCell(0, "Name", "S, Leo"));
+      built.addExcelCell(new ExcelCell(1, "Klasse", "6B"));
+      built.addExcelCell(new ExcelCell(2, "LehrerIn", "Mr. Cool"));
+
+      assertEquals(header, built.getHeader());
+      assertEquals(row.getRowMap(), built.getRowMap());
+      assertEquals("Name, Klasse, LehrerIn", row.printHeaders());
+      assertEquals("S, Leo, 6B, Mr. Cool", built.printValues());
+      assertEquals("6B", row.getValue("Klasse").getColumnValue());
+      assertNull(row.getValue("Room"));
+      assertTrue(row.containsColumn("LehrerIn"));
+      assertEquals("Mr. Cool", row.getRow().get("LehrerIn").getColumnValue());
+      assertEquals("S, Leo", row.createFormMap(2, Collections.singleton("Klasse"))
+                                .get("Name_2"));
+
+      // all consumers share one unmodifiable view
+      assertSame(row.getRowMap(), row.createRowMap());
+      assertEquals(3, row.getRowMap().size());
+      assertFalse(row.getRowMap().containsKey("Room"));
+      assertThrows(UnsupportedOperationException.class,
+                   () -> row.getRowMap().put("Room", "101"));
+      Map<String, String> before = built.getRowMap();
+      built.addExcelCell(new ExcelCell(3, "Room", "101"));
+      assertEquals("101", built.getRowMap().get("Room"));
+      assertNull(before.get("Room"));
+   }
+
+   @Test
+   public void testSnapshot() throws Exception {
+      File workbook = this.folder.resolve("results.xlsx").toFile();
+      Files.copy(Paths.get(EXCEL_FILE), workbook.toPath());
+      ExcelReader reader = new ExcelReader(createSnapshotProperties());
+
+      List<ExcelRow> parsed = reader.read(workbook, SHEET_NAME);
+      RowSnapshot snapshot =
+            reader.getSnapshot(workbook, SHEET_NAME, ColumnProjection.all()).get();
+      assertTrue(Files.isRegularFile(snapshot.getSnapshotFile()));
+      assertEquals(this.folder.resolve("snapshots"), snapshot.getSnapshotFile().getParent());
+      RowSnapshot.Rows snapshotRows = snapshot.load().get();
+      assertEquals(parsed.size(), snapshotRows.getRowCount(), "incorrect count");
+      List<ExcelRow> loaded = toList(snapshotRows);
+      assertEquals(parsed.size(), loaded.size(), "incorrect count");
+      for (int i=0; i<parsed.size(); i++) {
+         assertEquals(parsed.get(i).printHeaders(), loaded.get(i).printHeaders());
+         assertEquals(parsed.get(i).printValues(), loaded.get(i).printValues());
+         assertEquals(parsed.get(i).getRowNumber(), loaded.get(i).getRowNumber());
+         assertSame(loaded.get(0).getHeader(), loaded.get(i).getHeader());
+      }
+
+      // later runs read the snapshot instead of the workbook
+      ExcelHeader header = ExcelHeader.of(Arrays.asList("Name", null, "Klasse"));
+      snapshot.save(Arrays.asList(new ExcelRow(header, new String[] {"Leo", null, "6B"})));
+      List<ExcelRow> rows = reader.read(workbook, SHEET_NAME);
+      assertEquals(1, rows.size(), "incorrect count");
+      assertEquals(header, rows.get(0).getHeader());
+      assertNull(rows.get(0).getColumnValue(1));
+      try (Stream<ExcelRow> streamed = reader.stream(workbook, SHEET_NAME)) {
+         assertEquals("Leo, 6B", streamed.findFirst().get().printValues());
+      }
+
+      // a modified workbook does not match the snapshot
+      Files.write(workbook.toPath(), new byte[] {0}, StandardOpenOption.APPEND);
+      assertFalse(reader.getSnapshot(workbook, SHEET_NAME, ColumnProjection.all())
+                        .get().load().isPresent());
+   }
+
+   @Test
+   public void testStreamSnapshot() throws Exception {
+      File workbook = this.folder.resolve("results.xlsx").toFile();
+      Files.copy(Paths.get(EXCEL_FILE), workbook.toPath());
+      AppProperties props = createSnapshotProperties();
+      when(props.isExcelStreaming()).thenReturn(true);
+      ExcelReader reader = new ExcelReader(props);
+      ColumnProjection projection = ColumnProjection.of(Arrays.asList("Key", "Name"));
+      RowSnapshot all = reader.getSnapshot(workbook, SHEET_NAME, ColumnProjection.all()).get();
+      RowSnapshot projected = reader.getSnapshot(workbook, SHEET_NAME, projection).get();
+      assertFalse(all.getSnapshotFile().equals(projected.getSnapshotFile()));
+
+      // a stream closed early saves no snapshot
+      try (Stream<ExcelRow> streamed = reader.stream(workbook, SHEET_NAME, projection)) {
+         assertTrue(streamed.findFirst().isPresent());
+      }
+      assertFalse(Files.exists(projected.getSnapshotFile()));
+      try (Stream<Path> files = Files.list(this.folder.resolve("snapshots"))) {
+         assertEquals(0, files.count());
+      }
+
+      // a stream read to the end saves the snapshot of its columns
+      List<ExcelRow> streamedRows;
+      try (Stream<ExcelRow> streamed = reader.stream(workbook, SHEET_NAME, projection)) {
+         streamedRows = streamed.collect(Collectors.toList());
+      }
+      List<ExcelRow> loaded = toList(projected.load().get());
+      assertEquals(streamedRows.size(), loaded.size(), "incorrect count");
+      for (int i=0; i<loaded.size(); i++) {
+         assertEquals(streamedRows.get(i).printValues(), loaded.get(i).printValues());
+      }
+
+      // reading all columns does not replace the snapshot of the projection
+      List<ExcelRow> allRows = reader.read(workbook, SHEET_NAME);
+      assertEquals(allRows.size(), all.load().get().getRowCount(), "incorrect count");
+      assertEquals("Name, Key", projected.load().get().next().printHeaders());
+   }
+
+   @Test
+   public void testNoSnapshotOfSecrets() throws Exception {
+      File workbook = this.folder.resolve("results.xlsx").toFile();
+      Files.copy(Paths.get(EXCEL_FILE), workbook.toPath());
+      AppProperties props = createMockProperties();
+      when(props.getExcelSnapshotFolder()).thenReturn(Optional.of("snapshots"));
+      Path snapshots = this.folder.resolve("snapshots");
+
+      // the sheet contains the secret column Key
+      for (boolean streaming : Arrays.asList(false, true)) {
+         when(props.isExcelStreaming()).thenReturn(streaming);
+         ExcelReader reader = new ExcelReader(props);
+         assertEquals(5, reader.read(workbook, SHEET_NAME).size(), "incorrect count");
+         assertFalse(Files.exists(reader.getSnapshot(workbook, SHEET_NAME,
+                                                     ColumnProjection.all())
+                                        .get().getSnapshotFile()));
+         try (Stream<Path> files = Files.list(snapshots)) {
+            assertEquals(0, files.count());
+         }
+      }
+
+      // a snapshot with secrets saved before is deleted instead of loaded
+      when(props.isExcelStreaming()).thenReturn(false);
+      new ExcelReader(createSnapshotProperties()).read(workbook, SHEET_NAME);
+      RowSnapshot snapshot = new ExcelReader(props).getSnapshot(workbook, SHEET_NAME,
+                                                                ColumnProjection.all())
+                                                   .get();
+      assertTrue(Files.exists(snapshot.getSnapshotFile()));
+      assertFalse(snapshot.load().isPresent());
+      assertFalse(Files.exists(snapshot.getSnapshotFile()));
+   }
+
+   @Test
+   public void testColumnProjection() throws Exception {
+      ExcelReader reader = new ExcelReader(createMockProperties());
+      File excelFile = new File(EXCEL_FILE);
+      ColumnProjection projection =
+            ColumnProjection.of(Arrays.asList("Key", "Name", "Award", "Missing"));
+
+      List<ExcelRow> all = reader.read(excelFile, SHEET_NAME);
+      for (List<ExcelRow> projected : Arrays.asList(reader.read(excelFile, SHEET_NAME,
+                                                                projection),
+                                                    reader.readWorkbook(excelFile,
+                                                                        SHEET_NAME,
+                                                                        projection))) {
+         assertEquals(all.size(), projected.size(), "incorrect count");
+         for (int i=0; i<all.size(); i++) {
+            ExcelRow row = projected.get(i);
+            // the columns keep their order in the sheet
+            assertEquals("Name, Award, Key", row.printHeaders());
+            for (String column : Arrays.asList("Key", "Name", "Award")) {
+               assertEquals(all.get(i).getRowMap().get(column),
+                            row.getRowMap().get(column));
+            }
+            assertFalse(row.containsColumn("LehrerIn"));
+         }
+      }
+   }
+
+   @Test
+   public void testProjectionKeepsRows() throws Exception {
+      File workbook = this.folder.resolve("projection.xlsx").toFile();
+      try (XSSFWorkbook wb = new XSSFWorkbook();
+           OutputStream out = Files.newOutputStream(workbook.toPath())) {
+         Sheet sheet = wb.createSheet(SHEET_NAME);
+         String[][] cells = {{"Name", "Award", "Comment"},
+                             {"Leo", "", ""},
+                             {"", "", "late entry"},
+                             {"", "0", ""}};
+         for (int i=0; i<cells.length; i++) {
+            Row row = sheet.createRow(i);
+            for (int j=0; j<cells[i].length; j++) {
+               row.createCell(j).setCellValue(cells[i][j]);
+            }
+         }
+         wb.write(out);
+      }
+      ColumnProjection projection = ColumnProjection.of(Arrays.asList("Name"));
+
+      // a value in a column that is not read keeps the row
+      for (boolean streaming : Arrays.asList(true, false)) {
+         AppProperties props = createMockProperties();
+         when(props.isExcelStreaming()).thenReturn(streaming);
+         ExcelReader reader = new ExcelReader(props);
+         for (List<ExcelRow> rows : Arrays.asList(reader.read(workbook, SHEET_NAME,
+                                                              projection),
+                                                  reader.readWorkbook(workbook,
+                                                                      SHEET_NAME,
+                                                                      projection))) {
+            assertEquals(Arrays.asList("Leo", ""),
+                         rows.stream()
+                             .map(r -> r.getColumnValue(0))
+                             .collect(Collectors.toList()));
+         }
+      }
+   }
+
+   @Test
+   public void testStreamClosedEarly() throws Exception {
+      AppProperties props = createMockProperties();
+      when(props.isExcelStreaming()).thenReturn(true);
+      ExcelReader reader = new ExcelReader(props);
+      try (Stream<ExcelRow> rows = reader.stream(new File(EXCEL_FILE), SHEET_NAME)) {
+         assertEquals(2, rows.limit(2).count());
+      }
+   }
+
 }
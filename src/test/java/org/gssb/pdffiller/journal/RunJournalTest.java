@@ -0,0 +1,144 @@
+package org.gssb.pdffiller.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gssb.pdffiller.excel.ExcelCell;
+import org.gssb.pdffiller.excel.ExcelHeader;
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.excel.RowGroup;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RunJournalTest {
+
+   private static final String SIGNATURE = "workbook.xlsx|Sheet1|100|1";
+
+   @TempDir
+   Path folder;
+
+   private List<File> createFiles(final String... names) throws IOException {
+      File[] files = new File[names.length];
+      for (int i = 0; i < names.length; i++) {
+         files[i] = Files.createFile(this.folder.resolve(names[i])).toFile();
+      }
+      return Arrays.asList(files);
+   }
+
+   @Test
+   public void testResumeInterruptedRun() throws IOException {
+      Path journalFile = this.folder.resolve("journal.log");
+      List<File> files = createFiles("a.pdf", "b\tc.pdf");
+
+      try (RunJournal journal = RunJournal.open(journalFile, SIGNATURE, 1000)) {
+         journal.recordCreated("id:1", files);
+         journal.recordSent("id:1");
+         journal.recordCreated("id:2", files.subList(0, 1));
+      }
+
+      try (RunJournal journal = RunJournal.open(journalFile, SIGNATURE, 0)) {
+         assertEquals(files, journal.getCreatedFiles("id:1").get());
+         assertTrue(journal.isSent("id:1"));
+         assertEquals(files.subList(0, 1), journal.getCreatedFiles("id:2").get());
+         assertFalse(journal.isSent("id:2"));
+         assertFalse(journal.getCreatedFiles("id:3").isPresent());
+      }
+   }
+
+   @Test
+   public void testMissingFilesAreCreatedAgain() throws IOException {
+      Path journalFile = this.folder.resolve("journal.log");
+      List<File> files = createFiles("a.pdf", "b.pdf");
+
+      try (RunJournal journal = RunJournal.open(journalFile, SIGNATURE, 0)) {
+         journal.recordCreated("id:1", files);
+      }
+      files.get(1).delete();
+
+      try (RunJournal journal = RunJournal.open(journalFile, SIGNATURE, 0)) {
+         assertFalse(journal.getCreatedFiles("id:1").isPresent());
+      }
+   }
+
+   @Test
+   public void testChangedSpreadsheetDiscardsJournal() throws IOException {
+      Path journalFile = this.folder.resolve("journal.log");
+
+      try (RunJournal journal = RunJournal.open(journalFile, SIGNATURE, 0)) {
+         journal.recordSent("id:1");
+      }
+      try (RunJournal journal = RunJournal.open(journalFile, "workbook.xlsx|Sheet1|200|2", 0)) {
+         assertFalse(journal.isSent("id:1"));
+      }
+   }
+
+   @Test
+   public void testIncompleteEntryIsDropped() throws IOException {
+      Path journalFile = this.folder.resolve("journal.log");
+
+      try (RunJournal journal = RunJournal.open(journalFile, SIGNATURE, 0)) {
+         journal.recordSent("id:1");
+      }
+      // entry cut off by a crash
+      Files.write(journalFile, "sent\tid:2".getBytes(StandardCharsets.UTF_8),
+                  StandardOpenOption.APPEND);
+
+      try (RunJournal journal = RunJournal.open(journalFile, SIGNATURE, 0)) {
+         assertTrue(journal.isSent("id:1"));
+         assertFalse(journal.isSent("id:2"));
+         journal.recordSent("id:3");
+      }
+      try (RunJournal journal = RunJournal.open(journalFile, SIGNATURE, 0)) {
+         assertTrue(journal.isSent("id:3"));
+         assertFalse(journal.isSent("id:2"));
+      }
+   }
+
+   @Test
+   public void testCompletedRunDeletesJournal() throws IOException {
+      Path journalFile = this.folder.resolve("journal.log");
+
+      RunJournal journal = RunJournal.open(journalFile, SIGNATURE, 1000);
+      journal.recordSent("id:1");
+      journal.complete();
+
+      assertFalse(Files.exists(journalFile));
+   }
+
+   @Test
+   public void testGroupKey() {
+      ExcelRow row = new ExcelRow();
+      row.addExcelCell(new ExcelCell(0, "FamilyID", "S1234"));
+      row.addExcelCell(new ExcelCell(1, "Name", "S, Leo"));
+
+      assertEquals("id:S1234",
+                   RunJournal.getKey(new RowGroup("FamilyID", Arrays.asList(row))));
+      assertEquals("record:S1234, S, Leo",
+                   RunJournal.getKey(new RowGroup(null, Arrays.asList(row))));
+
+      // records of a sheet keep their key if other columns are read
+      ExcelRow sheetRow = new ExcelRow(ExcelHeader.of(Arrays.asList("Name")),
+                                       new String[] {"S, Leo"}, 7);
+      assertEquals("row:7",
+                   RunJournal.getKey(new RowGroup(null, Arrays.asList(sheetRow))));
+   }
+
+   @Test
+   public void testDisabledJournal() throws IOException {
+      try (RunJournal journal = RunJournal.disabled()) {
+         journal.recordSent("id:1");
+         assertFalse(journal.isSent("id:1"));
+      }
+   }
+
+}
@@ -0,0 +1,135 @@
+package org.gssb.pdffiller.manifest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class OutputManifestTest {
+
+   @TempDir
+   Path folder;
+
+   private File createDocument(final String name, final String content)
+                throws IOException {
+      Path document = this.folder.resolve(name);
+      Files.write(document, content.getBytes(StandardCharsets.UTF_8));
+      return document.toFile();
+   }
+
+   @Test
+   public void testFingerprint() {
+      Map<String, String> values = new HashMap<>();
+      values.put("Name", "S, Leo");
+      values.put("Level", "4");
+      String fingerprint = new Fingerprint().add("template").add(values).build();
+
+      assertEquals(64, fingerprint.length());
+      assertEquals(fingerprint, new Fingerprint().add("template").add(values).build());
+      // values are separated
+      assertFalse(new Fingerprint().add("ab").add("c").build()
+                                   .equals(new Fingerprint().add("a").add("bc").build()));
+      assertFalse(new Fingerprint().add((String) null).build()
+                                   .equals(new Fingerprint().add("").build()));
+      values.put("Level", "5");
+      assertFalse(fingerprint.equals(new Fingerprint().add("template")
+                                                      .add(values).build()));
+   }
+
+   @Test
+   public void testReuseAfterReload() throws IOException {
+      Path manifestFile = this.folder.resolve("manifest.txt");
+      File document = createDocument("Leo.pdf", "content");
+
+      OutputManifest manifest = OutputManifest.load(manifestFile);
+      assertTrue(manifest.isEnabled());
+      assertFalse(manifest.isCurrent(document, "f1"));
+      manifest.record(document, "f1");
+      manifest.save();
+
+      OutputManifest reloaded = OutputManifest.load(manifestFile);
+      assertTrue(reloaded.isCurrent(document, "f1"));
+      assertFalse(reloaded.isCurrent(document, "f2"));
+   }
+
+   @Test
+   public void testPathWithSeparators() throws IOException {
+      Path manifestFile = this.folder.resolve("manifest.txt");
+      File document = createDocument("Leo\tSasson\\2\n.pdf", "content");
+      File other = createDocument("Leo", "content");
+
+      OutputManifest manifest = OutputManifest.load(manifestFile);
+      manifest.record(document, "f\t1");
+      manifest.record(other, "f2");
+      manifest.save();
+      assertEquals(2, Files.readAllLines(manifestFile, StandardCharsets.UTF_8).size());
+
+      OutputManifest reloaded = OutputManifest.load(manifestFile);
+      assertTrue(reloaded.isCurrent(document, "f\t1"));
+      assertTrue(reloaded.isCurrent(other, "f2"));
+   }
+
+   @Test
+   public void testModifiedDocumentIsNotCurrent() throws IOException {
+      Path manifestFile = this.folder.resolve("manifest.txt");
+      File document = createDocument("Leo.pdf", "content");
+
+      OutputManifest manifest = OutputManifest.load(manifestFile);
+      manifest.record(document, "f1");
+      Files.setLastModifiedTime(document.toPath(),
+                                FileTime.fromMillis(document.lastModified() + 2000));
+      assertFalse(manifest.isCurrent(document, "f1"));
+
+      manifest.record(document, "f1");
+      document.delete();
+      assertFalse(manifest.isCurrent(document, "f1"));
+   }
+
+   @Test
+   public void testFileHash() throws IOException {
+      OutputManifest manifest = OutputManifest.load(this.folder.resolve("manifest.txt"));
+      File template = createDocument("template.pdf", "version 1");
+      String hash = manifest.getFileHash(template.toPath());
+      assertEquals(hash, manifest.getFileHash(template.toPath()));
+
+      Files.write(template.toPath(), "version 2".getBytes(StandardCharsets.UTF_8));
+      Files.setLastModifiedTime(template.toPath(),
+                                FileTime.fromMillis(template.lastModified() + 2000));
+      assertFalse(hash.equals(manifest.getFileHash(template.toPath())));
+   }
+
+   @Test
+   public void testCorruptManifestIsIgnored() throws IOException {
+      Path manifestFile = this.folder.resolve("manifest.txt");
+      File document = createDocument("Leo.pdf", "content");
+      Files.write(manifestFile,
+                  Collections.singletonList(document.getAbsolutePath() + "\tf1\tx\t1"),
+                  StandardCharsets.UTF_8);
+
+      assertFalse(OutputManifest.load(manifestFile).isCurrent(document, "f1"));
+   }
+
+   @Test
+   public void testDisabledManifest() throws IOException {
+      File document = createDocument("Leo.pdf", "content");
+      OutputManifest manifest = OutputManifest.disabled();
+      manifest.record(document, "f1");
+      manifest.save();
+
+      assertFalse(manifest.isEnabled());
+      assertFalse(manifest.isCurrent(document, "f1"));
+   }
+
+}
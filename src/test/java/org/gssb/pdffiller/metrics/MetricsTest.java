@@ -0,0 +1,116 @@
+package org.gssb.pdffiller.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+   private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+   private MetricsReport createReport() {
+      Timer timer = new Timer("pdf.fill", "Fill time.");
+      timer.record(2 * MILLIS);
+      timer.record(3 * MILLIS);
+      timer.record(200 * MILLIS);
+      Counter counter = new Counter("email.sent", "Emails sent.");
+      counter.add(7);
+      Gauge gauge = new Gauge("jvm.heap_peak_bytes", "Peak heap.");
+      gauge.record(2048);
+      gauge.record(1024);
+      return new MetricsReport(Collections.singletonList(timer),
+                               Collections.singletonList(counter),
+                               Collections.singletonList(gauge));
+   }
+
+   @Test
+   public void testTimerStatistics() {
+      Timer timer = new Timer("t", "");
+      assertEquals(0, timer.getMinNanos());
+      timer.record(2 * MILLIS);
+      timer.record(200 * MILLIS);
+      try (Timer.Sample sample = timer.start()) {
+         // measured call
+      }
+
+      assertEquals(3, timer.getCount());
+      assertEquals(200 * MILLIS, timer.getMaxNanos());
+      assertTrue(timer.getMinNanos() < 2 * MILLIS);
+      long[] buckets = timer.getBucketCounts();
+      assertEquals(Timer.BUCKETS.length + 1, buckets.length);
+      assertEquals(3, Arrays.stream(buckets).sum());
+      // 2 ms falls into the bucket up to 5 ms, 200 ms into the one up to 0.5 s
+      assertEquals(1, buckets[1]);
+      assertEquals(1, buckets[5]);
+   }
+
+   @Test
+   public void testRegistryReturnsSameMetric() {
+      Timer timer = Metrics.timer("test.registry", "Registry test.");
+      assertSame(timer, Metrics.timer("test.registry", "Registry test."));
+      Counter counter = Metrics.counter("test.registry", "Registry test.");
+      counter.increment();
+      assertSame(counter, Metrics.counter("test.registry", "Registry test."));
+
+      Gauge gauge = Metrics.gauge("test.registry", "Registry test.");
+      gauge.record(5);
+      assertSame(gauge, Metrics.gauge("test.registry", "Registry test."));
+
+      Metrics.reset();
+      assertEquals(0, counter.getCount());
+      assertEquals(0, gauge.getValue());
+      assertTrue(Metrics.getCounters().contains(counter));
+   }
+
+   @Test
+   public void testHeapPeak() {
+      Metrics.recordHeapPeak();
+      Gauge gauge = Metrics.gauge(Metrics.HEAP_PEAK, "");
+      assertTrue(gauge.getValue() > 0);
+      assertTrue(Metrics.getGauges().contains(gauge));
+   }
+
+   @Test
+   public void testJsonReport() throws IOException {
+      StringWriter out = new StringWriter();
+      createReport().writeJson(out);
+      String json = out.toString();
+
+      assertTrue(json.contains("\"pdf.fill\": {\"count\": 3, \"total_seconds\": 0.205000"));
+      assertTrue(json.contains("\"min_seconds\": 0.002000, \"max_seconds\": 0.200000"));
+      assertTrue(json.contains("\"0.005\": 2"));
+      assertTrue(json.contains("\"+Inf\": 0"));
+      assertTrue(json.contains("\"email.sent\": 7"));
+      // a gauge reports the highest recorded value
+      assertTrue(json.contains("\"jvm.heap_peak_bytes\": 2048"));
+   }
+
+   @Test
+   public void testPrometheusReport() throws IOException {
+      StringWriter out = new StringWriter();
+      createReport().writePrometheus(out);
+      String text = out.toString();
+
+      assertTrue(text.contains("# TYPE pdffiller_pdf_fill_seconds histogram\n"));
+      assertTrue(text.contains("pdffiller_pdf_fill_seconds_bucket{le=\"0.001\"} 0\n"));
+      assertTrue(text.contains("pdffiller_pdf_fill_seconds_bucket{le=\"0.005\"} 2\n"));
+      // buckets are cumulative
+      assertTrue(text.contains("pdffiller_pdf_fill_seconds_bucket{le=\"0.5\"} 3\n"));
+      assertTrue(text.contains("pdffiller_pdf_fill_seconds_bucket{le=\"+Inf\"} 3\n"));
+      assertTrue(text.contains("pdffiller_pdf_fill_seconds_sum 0.205000\n"));
+      assertTrue(text.contains("pdffiller_pdf_fill_seconds_count 3\n"));
+      assertTrue(text.contains("# TYPE pdffiller_email_sent_total counter\n"));
+      assertTrue(text.contains("pdffiller_email_sent_total 7\n"));
+      assertTrue(text.contains("# TYPE pdffiller_jvm_heap_peak_bytes gauge\n"));
+      assertTrue(text.contains("pdffiller_jvm_heap_peak_bytes 2048\n"));
+   }
+
+}
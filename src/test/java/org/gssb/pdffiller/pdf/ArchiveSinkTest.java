@@ -0,0 +1,205 @@
+package org.gssb.pdffiller.pdf;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ArchiveSinkTest {
+
+   @TempDir
+   Path folder;
+
+   private static byte[] createContent(final int index) {
+      byte[] content = new byte[1000 + index];
+      for (int i = 0; i < content.length; i++) {
+         content[i] = (byte) ((i * 31 + index) % 251);
+      }
+      return content;
+   }
+
+   private void add(final ArchiveSink sink, final String groupKey,
+                    final String name, final byte[] content) throws IOException {
+      sink.add(groupKey, this.folder.resolve(name).toFile(),
+               new ByteArrayInputStream(content));
+   }
+
+   private List<String> listArchives() throws IOException {
+      try (Stream<Path> files = Files.list(this.folder)) {
+         return files.map(f -> f.getFileName().toString())
+                     .filter(n -> n.endsWith(".zip"))
+                     .sorted()
+                     .collect(Collectors.toList());
+      }
+   }
+
+   private Map<String, byte[]> readArchives() throws IOException {
+      Map<String, byte[]> entries = new HashMap<>();
+      for (String archive : listArchives()) {
+         try (ZipFile zip = new ZipFile(this.folder.resolve(archive).toFile())) {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+               ZipEntry entry = e.nextElement();
+               entries.put(archive + "!/" + entry.getName(),
+                           zip.getInputStream(entry).readAllBytes());
+            }
+         }
+      }
+      return entries;
+   }
+
+   @Test
+   public void testRollingArchives() throws IOException {
+      ArchiveSink sink = ArchiveSink.open(this.folder, "print", 10 * 1024, 0);
+      for (int i = 0; i < 30; i++) {
+         add(sink, "id:" + (i % 3), "Doc" + i + ".pdf", createContent(i));
+      }
+      // an archive is only visible once it is complete
+      assertEquals(Arrays.asList("print-0001.zip", "print-0002.zip", "print-0003.zip"),
+                   listArchives());
+      sink.close();
+
+      List<String> archives = listArchives();
+      assertEquals(4, archives.size());
+      assertEquals("print-0004.zip", archives.get(3));
+      for (String archive : archives) {
+         assertTrue(Files.size(this.folder.resolve(archive)) <= 10 * 1024);
+      }
+      Map<String, byte[]> entries = readArchives();
+      assertEquals(30, entries.size());
+
+      List<ArchiveSink.ArchiveEntry> group = sink.getEntries("id:1");
+      assertEquals(10, group.size());
+      assertEquals("Doc1.pdf", group.get(0).getName());
+      assertArrayEquals(createContent(1), entries.get(group.get(0).toString()));
+      assertTrue(sink.getEntries("id:9").isEmpty());
+
+      List<String> index = Files.readAllLines(this.folder.resolve("print-index.txt"),
+                                              StandardCharsets.UTF_8);
+      assertEquals(30, index.size());
+      assertEquals("id:0\tprint-0001.zip\tDoc0.pdf", index.get(0));
+
+      assertThrows(IllegalStateException.class,
+                   () -> add(sink, "id:0", "Late.pdf", createContent(0)));
+   }
+
+   @Test
+   public void testCompressedSizeLimit() throws IOException {
+      // documents that compress well fill an archive up to the limit
+      ArchiveSink sink = ArchiveSink.open(this.folder, "print", 16 * 1024, 9);
+      byte[] content = new byte[8 * 1024];
+      for (int i = 0; i < 20; i++) {
+         add(sink, "id:" + i, "Doc" + i + ".pdf", content);
+      }
+      sink.close();
+
+      assertEquals(Arrays.asList("print-0001.zip"), listArchives());
+      assertTrue(Files.size(this.folder.resolve("print-0001.zip")) <= 16 * 1024);
+      Map<String, byte[]> entries = readArchives();
+      assertEquals(20, entries.size());
+      assertArrayEquals(content, entries.get("print-0001.zip!/Doc19.pdf"));
+
+      // a single document larger than the limit gets an archive of its own
+      ArchiveSink large = ArchiveSink.open(this.folder, "large", 1024, 0);
+      add(large, "id:0", "Large.pdf", createContent(2000));
+      add(large, "id:1", "Small.pdf", createContent(0));
+      large.close();
+      assertEquals("large-0002.zip", large.getEntries("id:1").get(0).getArchive());
+   }
+
+   @Test
+   public void testEntryNames() throws IOException {
+      Path subfolder = Files.createDirectories(this.folder.resolve("0a/S1"));
+      File document = subfolder.resolve("Report.pdf").toFile();
+      Files.write(document.toPath(), createContent(7));
+
+      ArchiveSink sink = ArchiveSink.open(this.folder, "print", 1024 * 1024, 9);
+      sink.add("id:S1", document);
+      add(sink, "id:S2", "Letter.pdf", createContent(1));
+      add(sink, "id:S3", "Letter.pdf", createContent(2));
+      sink.close();
+
+      // documents keep their subfolder; duplicate names are made unique
+      Map<String, byte[]> entries = readArchives();
+      assertArrayEquals(createContent(7), entries.get("print-0001.zip!/0a/S1/Report.pdf"));
+      assertArrayEquals(createContent(1), entries.get("print-0001.zip!/Letter.pdf"));
+      assertArrayEquals(createContent(2), entries.get("print-0001.zip!/Letter (2).pdf"));
+      assertEquals("Letter (2).pdf", sink.getEntries("id:S3").get(0).getName());
+   }
+
+   @Test
+   public void testReplaceEarlierRun() throws IOException {
+      ArchiveSink first = ArchiveSink.open(this.folder, "print", 1024, 0);
+      for (int i = 0; i < 4; i++) {
+         add(first, "id:" + i, "Doc" + i + ".pdf", createContent(i));
+      }
+      first.close();
+      assertEquals(4, listArchives().size());
+
+      ArchiveSink second = ArchiveSink.open(this.folder, "print", 1024 * 1024, 0);
+      add(second, "id:0", "Doc0.pdf", createContent(0));
+      second.close();
+      assertEquals(Arrays.asList("print-0001.zip"), listArchives());
+   }
+
+   @Test
+   public void testParallelProducers() throws Exception {
+      ArchiveSink sink = ArchiveSink.open(this.folder, "print", 64 * 1024, 1);
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<?>> futures = new ArrayList<>();
+         for (int t = 0; t < 4; t++) {
+            int producer = t;
+            futures.add(executor.submit(() -> {
+               for (int i = 0; i < 50; i++) {
+                  int n = producer * 50 + i;
+                  add(sink, "id:" + producer, "Doc" + n + ".pdf", createContent(n));
+               }
+               return null;
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+      sink.close();
+
+      Map<String, byte[]> entries = readArchives();
+      assertEquals(200, entries.size());
+      for (int t = 0; t < 4; t++) {
+         List<ArchiveSink.ArchiveEntry> group = sink.getEntries("id:" + t);
+         assertEquals(50, group.size());
+         for (int i = 0; i < 50; i++) {
+            int n = t * 50 + i;
+            assertEquals("Doc" + n + ".pdf", group.get(i).getName());
+            assertArrayEquals(createContent(n), entries.get(group.get(i).toString()));
+         }
+      }
+   }
+
+}
@@ -1,34 +1,58 @@
 package org.gssb.pdffiller.pdf;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.apache.poi.EncryptedDocumentException;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.gssb.pdffiller.config.AppProperties;
+import org.gssb.pdffiller.config.OutputLayout;
+import org.gssb.pdffiller.excel.ColumnProjection;
 import org.gssb.pdffiller.excel.ExcelCell;
 import org.gssb.pdffiller.excel.ExcelReader;
 import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.excel.RowGroup;
+import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.gssb.pdffiller.journal.RunJournal;
 import org.gssb.pdffiller.template.Choice;
 import org.gssb.pdffiller.template.Template;
 import org.gssb.pdffiller.template.TemplateHelper;
+import org.gssb.pdffiller.template.TemplateInspector;
+import org.gssb.pdffiller.template.TemplateMetadata;
+import org.gssb.pdffiller.template.TemplateMetadataCache;
 import org.gssb.pdffiller.text.TextBuilder;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -54,6 +78,7 @@ public class BulkPdfTest extends PDFValidator {
    private ExcelReader rowReader= null;
    private TextBuilder textBuilder = null;
    private List<String> groupColumns = null;
+   private AppProperties props = null;
    private BulkPdf bulkPdf;
 
    private static void deleteGeneratedFiles(final File generatedDir) {
@@ -170,6 +195,7 @@ public class BulkPdfTest extends PDFValidator {
       ByteArrayOutputStream baos = new ByteArrayOutputStream();
       this.printStream = new PrintStream(baos, true, "UTF-8");
       AppProperties props = mock(AppProperties.class);
+      this.props = props;
       when(props.getSourceFolder()).thenReturn("sources");
       when(props.getGeneratedFolder()).thenReturn("generated");
       when(props.getExcelFileName()).thenReturn("Dummy.xlsx");
@@ -199,8 +225,9 @@ public class BulkPdfTest extends PDFValidator {
    @Test
    public void testThreeRow() throws EncryptedDocumentException,
                                      InvalidFormatException, IOException {
-      when(this.rowReader.read(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy"))
-          .thenReturn(getMockRows(false));
+      when(this.rowReader.stream(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy",
+                                  ColumnProjection.all()))
+          .thenAnswer(i -> getMockRows(false).stream());
 
       Template template =
             TemplateHelper.createTemplate("pdf1", Paths.get(TEMPLATE1));
@@ -247,8 +274,9 @@ public class BulkPdfTest extends PDFValidator {
       this.groupColumns.add(EMAIL_ADDRESS);
       this.groupColumns.add("FamilyID");
       this.groupColumns.add("ParentName");
-      when(this.rowReader.read(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy"))
-          .thenReturn(getMockRows(true));
+      when(this.rowReader.stream(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy",
+                                  ColumnProjection.all()))
+          .thenAnswer(i -> getMockRows(true).stream());
 
       Template template = TemplateHelper.createTemplate("pdf4", Paths.get(TEMPLATE4));
       List<Template> alwaysInclude = new ArrayList<>();
@@ -280,4 +308,395 @@ public class BulkPdfTest extends PDFValidator {
 
    }
 
+   @Test
+   public void testGroupLayout() throws Exception {
+      this.groupColumns.add(EMAIL_ADDRESS);
+      this.groupColumns.add("FamilyID");
+      this.groupColumns.add("ParentName");
+      when(this.rowReader.stream(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy",
+                                  ColumnProjection.all()))
+          .thenAnswer(i -> getMockRows(true).stream());
+      when(this.props.getGeneratedFolder()).thenReturn("generated/sharded");
+      when(this.props.getOutputLayout()).thenReturn(OutputLayout.GROUP);
+      when(this.props.getOutputFanOut()).thenReturn(16);
+      when(this.props.getOutputIndexFileName()).thenReturn(Optional.of("index.txt"));
+      BulkPdf shardedPdf = new BulkPdf(this.props, this.rowReader, this.textBuilder,
+                                       new PdfFormFiller(), this.printStream);
+
+      Template template = TemplateHelper.createTemplate("pdf4", Paths.get(TEMPLATE4));
+      Path folder = Paths.get(GENERATED_DIR, "sharded");
+      try {
+         List<UnitOfWork> uows =
+            shardedPdf.createPdfs(ROOT, "Dummy", MASTER_KEY, "secret",
+                                  Arrays.asList(template),
+                                  createMockChoices("AATG Cert"), defineFieldMaps(),
+                                  Optional.empty(), false);
+         assertEquals(1, uows.size());
+
+         // all documents of the group share a folder named by the group ID
+         List<File> files = uows.get(0).getGeneratedFiles();
+         assertEquals(4, files.size());
+         for (File file : files) {
+            assertTrue(file.isFile());
+            assertTrue(file.getParentFile().getName()
+                           .startsWith("mary.and.michael_somedomain.org-"));
+            assertEquals(folder.toFile(),
+                         file.getParentFile().getParentFile().getParentFile());
+         }
+
+         OutputDirectory index = new OutputDirectory(folder, OutputLayout.GROUP, 16,
+                                                     Optional.of("index.txt"));
+         assertEquals(new HashSet<>(files),
+                      new HashSet<>(index.getFiles(RunJournal.getKey(uows.get(0)
+                                                                        .getRow()))));
+      } finally {
+         try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder())
+                 .forEach(p -> p.toFile().delete());
+         }
+      }
+   }
+
+   @Test
+   public void testStreamGroupsFromStartGroup() {
+      this.groupColumns.add("Name");
+      when(this.rowReader.stream(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy",
+                                  ColumnProjection.all()))
+          .thenAnswer(i -> getMockRows(false).stream());
+
+      try (Stream<RowGroup> groups = this.bulkPdf.streamGroups(ROOT, "Dummy",
+                                                               Optional.of("S, Helene"))) {
+         assertEquals(Arrays.asList("S, Helene", "S, Leo"),
+                      groups.map(g -> g.getGroupId().get())
+                            .collect(Collectors.toList()));
+      }
+      try (Stream<RowGroup> groups = this.bulkPdf.streamGroups(ROOT, "Dummy",
+                                                               Optional.of("S, Otto"))) {
+         assertEquals(0, groups.count());
+      }
+   }
+
+   @Test
+   public void testColumnProjection() {
+      ColumnProjection projection =
+         this.bulkPdf.createColumnProjection("secret", Collections.emptyList(),
+                                             createMockChoices("AATG Cert"),
+                                             defineFieldMaps(),
+                                             Collections.singleton("Room_3"));
+      // file name templates, choice column, mapped fields and indexed bases
+      assertEquals(Arrays.asList("Award", "LehrerIn", "Level", "Name",
+                                 EMAIL_ADDRESS, "Room", "Room_3", "Schule",
+                                 "_BaseName_", "secret"),
+                   new ArrayList<>(projection.getColumns().get()));
+
+      this.groupColumns.add("FamilyID");
+      Template template = TemplateHelper.createTemplate("pdf4", Paths.get(TEMPLATE4));
+      projection =
+         this.bulkPdf.createColumnProjection("secret", Arrays.asList(template),
+                                             Collections.emptyList(),
+                                             defineFieldMaps(),
+                                             Collections.emptySet());
+      for (String column : Arrays.asList("FamilyID", "ParentName", "Klasse",
+                                         "Klasse_5", "Room", "LehrerIn")) {
+         assertTrue(projection.contains(column), column);
+      }
+      assertFalse(projection.contains("Award"));
+      assertFalse(projection.contains("Schule"));
+   }
+
+   @Test
+   public void testThreeRowParallel() throws EncryptedDocumentException,
+                                             InvalidFormatException, IOException {
+      when(this.rowReader.stream(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy",
+                                  ColumnProjection.all()))
+          .thenAnswer(i -> getMockRows(false).stream());
+      PdfFormFiller pdfFormFiller = new PdfFormFiller(true);
+      BulkPdf parallelPdf = new BulkPdf(this.props, this.rowReader, this.textBuilder,
+                                        pdfFormFiller,
+                                        new TemplateMetadataCache(pdfFormFiller),
+                                        3, this.printStream);
+
+      Template template =
+            TemplateHelper.createTemplate("pdf1", Paths.get(TEMPLATE1));
+      List<Template> alwaysInclude = new ArrayList<>();
+      alwaysInclude.add(template);
+
+      List<UnitOfWork> uows =
+         parallelPdf.createPdfs(ROOT, "Dummy", MASTER_KEY, "secret",
+                                alwaysInclude, createMockChoices("AATG Cert"),
+                                defineFieldMaps(), Optional.empty(), false);
+      assertEquals(3, uows.size());
+
+      // results are returned in the order of the spreadsheet rows
+      int i=0;
+      List<String> names = Arrays.asList("Leo", "Gwen", "Helene");
+      for (UnitOfWork uow : uows) {
+         List<String> expected0 = Arrays.asList(new String[]
+               {names.get(i), "Mr. Cool" + (i+1), (4+i)+"", (i+1)+"B", "TESTERGEBNIS"});
+
+         assertEquals(2, uow.getGeneratedFiles().size());
+
+         File validate0 = uow.getGeneratedFiles().get(0);
+         assertTrue(validate0.getName().startsWith("AATG Raw Score"));
+         assertTrue(validate0.getName().endsWith("S, " + names.get(i)+".pdf"));
+         validatePDFDocument(validate0, "abc"+(i+1), expected0);
+         i++;
+      }
+   }
+
+   @Test
+   public void testGroupFailure() throws IOException {
+      when(this.rowReader.stream(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy",
+                                  ColumnProjection.all()))
+          .thenAnswer(i -> getMockRows(false).stream());
+      TemplateInspector inspector = mock(TemplateInspector.class);
+      IllegalStateException failure = new IllegalStateException("broken template");
+      when(inspector.inspect(any(), any())).thenThrow(failure);
+      Template template =
+            TemplateHelper.createTemplate("pdf1", Paths.get(TEMPLATE1));
+
+      // sequential and parallel runs stop at the first group and keep its failure
+      for (int threads : Arrays.asList(1, 3)) {
+         BulkPdf failingPdf = new BulkPdf(this.props, this.rowReader, this.textBuilder,
+                                          new PdfFormFiller(),
+                                          new TemplateMetadataCache(inspector),
+                                          threads, this.printStream);
+         UnrecoverableException e =
+               assertThrows(UnrecoverableException.class,
+                            () -> failingPdf.createPdfs(ROOT, "Dummy", MASTER_KEY, "secret",
+                                                        Arrays.asList(template),
+                                                        createMockChoices("AATG Cert"),
+                                                        defineFieldMaps(), Optional.empty(),
+                                                        false));
+         assertSame(failure, e.getCause());
+         assertTrue(e.getMessage().contains("record 1"), e.getMessage());
+      }
+   }
+
+   @Test
+   public void testArchivedDocuments() throws IOException {
+      when(this.rowReader.stream(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy",
+                                  ColumnProjection.all()))
+          .thenAnswer(i -> getMockRows(false).stream());
+      when(this.props.getArchiveName()).thenReturn(Optional.of("archive-test"));
+      when(this.props.getArchiveSizeLimit()).thenReturn(64);
+      when(this.props.getArchiveCompression()).thenReturn(1);
+      PdfFormFiller pdfFormFiller = new PdfFormFiller(true);
+      BulkPdf archivePdf = new BulkPdf(this.props, this.rowReader, this.textBuilder,
+                                       pdfFormFiller,
+                                       new TemplateMetadataCache(pdfFormFiller),
+                                       3, this.printStream);
+
+      Template template =
+            TemplateHelper.createTemplate("pdf1", Paths.get(TEMPLATE1));
+      File archive = new File(GENERATED_DIR, "archive-test-0001.zip");
+      File index = new File(GENERATED_DIR, "archive-test-index.txt");
+      try {
+         List<UnitOfWork> uows =
+            archivePdf.createPdfs(ROOT, "Dummy", MASTER_KEY, "secret",
+                                  Arrays.asList(template), createMockChoices("AATG Cert"),
+                                  defineFieldMaps(), Optional.empty(), false);
+         assertEquals(3, uows.size());
+
+         // every document is saved and archived with the same content
+         try (ZipFile zip = new ZipFile(archive)) {
+            assertEquals(6, zip.size());
+            for (UnitOfWork uow : uows) {
+               for (File file : uow.getGeneratedFiles()) {
+                  ZipEntry entry = zip.getEntry(file.getName());
+                  assertArrayEquals(Files.readAllBytes(file.toPath()),
+                                    zip.getInputStream(entry).readAllBytes());
+               }
+            }
+         }
+         List<String> lines = Files.readAllLines(index.toPath());
+         assertEquals(6, lines.size());
+         assertTrue(lines.stream().allMatch(l -> l.startsWith("record:")));
+      } finally {
+         archive.delete();
+         index.delete();
+      }
+   }
+
+   @Test
+   public void testArchivedResumedDocuments() throws IOException {
+      when(this.rowReader.stream(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy",
+                                  ColumnProjection.all()))
+          .thenAnswer(i -> getMockRows(false).stream());
+      when(this.props.getArchiveName()).thenReturn(Optional.of("archive-test"));
+      when(this.props.getArchiveSizeLimit()).thenReturn(64);
+      when(this.props.getArchiveCompression()).thenReturn(1);
+      PdfFormFiller pdfFormFiller = spy(new PdfFormFiller(true));
+      BulkPdf archivePdf = new BulkPdf(this.props, this.rowReader, this.textBuilder,
+                                       pdfFormFiller,
+                                       new TemplateMetadataCache(pdfFormFiller),
+                                       3, this.printStream);
+
+      Template template =
+            TemplateHelper.createTemplate("pdf1", Paths.get(TEMPLATE1));
+      File archive = new File(GENERATED_DIR, "archive-test-0001.zip");
+      File index = new File(GENERATED_DIR, "archive-test-index.txt");
+      Path journalFile = Paths.get(GENERATED_DIR, "journal-test.log");
+      try {
+         for (int run = 0; run < 2; run++) {
+            try (RunJournal journal = RunJournal.open(journalFile, "test", 0)) {
+               clearInvocations(pdfFormFiller);
+               List<UnitOfWork> uows =
+                  archivePdf.createPdfs(ROOT, "Dummy", MASTER_KEY, "secret",
+                                        Arrays.asList(template),
+                                        createMockChoices("AATG Cert"),
+                                        defineFieldMaps(), Optional.empty(), false,
+                                        journal);
+               assertEquals(3, uows.size());
+               // the second run resumes all groups from the journal
+               if (run == 1) {
+                  verify(pdfFormFiller, times(0))
+                        .populateAndWrite(any(File.class), any(), any(),
+                                          any(ExcelRow.class), any(),
+                                          any(TemplateMetadata.class), any());
+               }
+
+               // resumed documents are archived again
+               try (ZipFile zip = new ZipFile(archive)) {
+                  assertEquals(6, zip.size());
+                  for (UnitOfWork uow : uows) {
+                     for (File file : uow.getGeneratedFiles()) {
+                        ZipEntry entry = zip.getEntry(file.getName());
+                        assertArrayEquals(Files.readAllBytes(file.toPath()),
+                                          zip.getInputStream(entry).readAllBytes());
+                     }
+                  }
+               }
+               assertEquals(6, Files.readAllLines(index.toPath()).size());
+            }
+         }
+      } finally {
+         archive.delete();
+         index.delete();
+         Files.deleteIfExists(journalFile);
+      }
+   }
+
+   @Test
+   public void testUnchangedDocumentsReused() throws EncryptedDocumentException,
+                                                    InvalidFormatException, IOException {
+      File manifest = new File(GENERATED_DIR, "manifest-test.txt");
+      manifest.delete();
+      when(this.props.getManifestFileName()).thenReturn(Optional.of(manifest.getName()));
+      PdfFormFiller pdfFormFiller = spy(new PdfFormFiller());
+      BulkPdf manifestPdf = new BulkPdf(this.props, this.rowReader, this.textBuilder,
+                                        pdfFormFiller, this.printStream);
+
+      Template template =
+            TemplateHelper.createTemplate("pdf1", Paths.get(TEMPLATE1));
+      List<Template> alwaysInclude = Arrays.asList(template);
+      List<ExcelRow> rows = getMockRows(false);
+      when(this.rowReader.stream(new File(ROOT + "/sources/Dummy.xlsx"), "Dummy",
+                                  ColumnProjection.all()))
+          .thenAnswer(i -> rows.stream());
+
+      try {
+         for (int run = 0; run < 2; run++) {
+            clearInvocations(pdfFormFiller);
+            List<UnitOfWork> uows =
+               manifestPdf.createPdfs(ROOT, "Dummy", MASTER_KEY, "secret",
+                                      alwaysInclude, createMockChoices("AATG Cert"),
+                                      defineFieldMaps(), Optional.empty(), false);
+            assertEquals(3, uows.size());
+            assertTrue(uows.stream().allMatch(u -> u.getGeneratedFiles().size() == 2));
+            // the second run reuses all documents
+            verify(pdfFormFiller, times(run == 0 ? 6 : 0))
+                  .populateAndCopy(any(File.class), any(File.class), any(ExcelRow.class), any(),
+                                   any(TemplateMetadata.class), any());
+         }
+         assertTrue(manifest.exists());
+
+         // a column not used by any template does not change the documents
+         rows.set(0, createMockRow(Arrays.asList(
+               "Name:S, Leo", "LehrerIn:Mr. Cool1", "Level:4", "Room:999",
+               "Schule:GSSB", "Klasse:1B", "secret:abc1", "Award:Goldurkunde",
+               "FamilyID:S1234", "ParentName:Mary & Michael S")));
+         clearInvocations(pdfFormFiller);
+         manifestPdf.createPdfs(ROOT, "Dummy", MASTER_KEY, "secret",
+                                alwaysInclude, createMockChoices("AATG Cert"),
+                                defineFieldMaps(), Optional.empty(), false);
+         verify(pdfFormFiller, times(0))
+               .populateAndCopy(any(File.class), any(File.class), any(ExcelRow.class), any(),
+                                any(TemplateMetadata.class), any());
+
+         // both documents of the record show the teacher
+         rows.set(0, createMockRow(Arrays.asList(
+               "Name:S, Leo", "LehrerIn:Mrs. Smart", "Level:4", "Room:999",
+               "Schule:GSSB", "Klasse:1B", "secret:abc1", "Award:Goldurkunde",
+               "FamilyID:S1234", "ParentName:Mary & Michael S")));
+         clearInvocations(pdfFormFiller);
+         List<UnitOfWork> uows =
+            manifestPdf.createPdfs(ROOT, "Dummy", MASTER_KEY, "secret",
+                                   alwaysInclude, createMockChoices("AATG Cert"),
+                                   defineFieldMaps(), Optional.empty(), false);
+         verify(pdfFormFiller, times(2))
+               .populateAndCopy(any(File.class), any(File.class), any(ExcelRow.class), any(),
+                                any(TemplateMetadata.class), any());
+         validatePDFDocument(uows.get(0).getGeneratedFiles().get(0), "abc1",
+                             Arrays.asList("S, Leo", "Mrs. Smart"));
+      } finally {
+         manifest.delete();
+      }
+   }
+
+   @Test
+   public void testInMemoryDocuments() throws IOException {
+      when(this.props.isInMemoryOutput()).thenReturn(true);
+      BulkPdf memoryPdf = new BulkPdf(this.props, this.rowReader, this.textBuilder,
+                                      new PdfFormFiller(), this.printStream);
+
+      Template template =
+            TemplateHelper.createTemplate("pdf1", Paths.get(TEMPLATE1));
+      RowGroup group = new RowGroup(null, getMockRows(false).subList(0, 1));
+      UnitOfWork uow =
+         memoryPdf.createUnitOfWork(ROOT, group, MASTER_KEY, "secret",
+                                    Arrays.asList(template),
+                                    createMockChoices("AATG Cert"),
+                                    defineFieldMaps(), RunJournal.disabled());
+      assertEquals(2, uow.getGeneratedFiles().size());
+
+      List<String> expected = Arrays.asList("Leo", "Mr. Cool1", "4", "1B",
+                                            "TESTERGEBNIS");
+      File target = uow.getGeneratedFiles().get(0);
+      Optional<InMemoryDocument> document = uow.getInMemoryDocument(target);
+      assertTrue(document.isPresent());
+      assertEquals(target.getName(), document.get().getName());
+      assertFalse(target.exists());
+      validatePDFDocument(document.get().openStream(), "abc1", expected);
+
+      uow.release();
+      assertThrows(IllegalStateException.class, () -> document.get().openStream());
+   }
+
+   @Test
+   public void testInMemoryDocumentsWrittenBehind() throws IOException {
+      when(this.props.isInMemoryOutput()).thenReturn(true);
+      when(this.props.isWriteBehind()).thenReturn(true);
+      BulkPdf memoryPdf = new BulkPdf(this.props, this.rowReader, this.textBuilder,
+                                      new PdfFormFiller(), this.printStream);
+
+      Template template =
+            TemplateHelper.createTemplate("pdf1", Paths.get(TEMPLATE1));
+      RowGroup group = new RowGroup(null, getMockRows(false).subList(1, 2));
+      UnitOfWork uow =
+         memoryPdf.createUnitOfWork(ROOT, group, MASTER_KEY, "secret",
+                                    Arrays.asList(template),
+                                    createMockChoices("AATG Cert"),
+                                    defineFieldMaps(), RunJournal.disabled());
+      // the email may release the documents before they are written
+      uow.release();
+      memoryPdf.finishRun();
+
+      List<String> expected = Arrays.asList("Gwen", "Mr. Cool2", "5", "2B",
+                                            "TESTERGEBNIS");
+      File target = uow.getGeneratedFiles().get(0);
+      assertTrue(target.exists());
+      validatePDFDocument(target, "abc2", expected);
+   }
+
 }
@@ -0,0 +1,91 @@
+package org.gssb.pdffiller.pdf;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DocumentWriterTest {
+
+   @TempDir
+   Path folder;
+
+   private final DocumentBufferPool pool = new DocumentBufferPool(4);
+
+   private InMemoryDocument createDocument(final String name) throws IOException {
+      DocumentBufferPool.Buffer buffer = this.pool.acquire();
+      buffer.write(name.getBytes(StandardCharsets.UTF_8));
+      return new InMemoryDocument(this.folder.resolve(name).toFile(), this.pool,
+                                  buffer);
+   }
+
+   @Test
+   public void testWriteInOrder() throws IOException {
+      DocumentWriter writer = new DocumentWriter(2);
+      List<String> written = new CopyOnWriteArrayList<>();
+      for (int i = 0; i < 10; i++) {
+         InMemoryDocument document = createDocument("Leo" + i + ".pdf");
+         writer.write(document, d -> written.add(d.getName()));
+         document.release();
+      }
+      writer.flush();
+
+      assertEquals(10, written.size());
+      for (int i = 0; i < 10; i++) {
+         File file = this.folder.resolve("Leo" + i + ".pdf").toFile();
+         assertEquals("Leo" + i + ".pdf", written.get(i));
+         assertArrayEquals(file.getName().getBytes(StandardCharsets.UTF_8),
+                           Files.readAllBytes(file.toPath()));
+      }
+      // buffers were returned to the pool; besides the document being
+      // created only the two waiting documents held one
+      int pooled = this.pool.getPooledCount();
+      assertTrue(pooled > 0 && pooled <= 3, "pooled buffers: " + pooled);
+   }
+
+   @Test
+   public void testProducerWaitsWhenFull() throws Exception {
+      DocumentWriter writer = new DocumentWriter(1);
+      CountDownLatch blocked = new CountDownLatch(1);
+      CountDownLatch accepted = new CountDownLatch(1);
+      writer.write(createDocument("Leo.pdf"), d -> {
+         try {
+            blocked.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      });
+
+      Thread producer = new Thread(() -> {
+         try {
+            writer.write(createDocument("Gwen.pdf"), d -> { });
+         } catch (IOException e) {
+            throw new IllegalStateException(e);
+         }
+         accepted.countDown();
+      });
+      producer.start();
+      // the first document still waits, so the second is not accepted
+      assertFalse(accepted.await(200, TimeUnit.MILLISECONDS));
+
+      blocked.countDown();
+      assertTrue(accepted.await(10, TimeUnit.SECONDS));
+      producer.join();
+      writer.flush();
+      assertTrue(this.folder.resolve("Gwen.pdf").toFile().isFile());
+   }
+
+}
@@ -0,0 +1,129 @@
+package org.gssb.pdffiller.pdf;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.gssb.pdffiller.config.OutputLayout;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class OutputDirectoryTest {
+
+   private static final String INDEX = "index.txt";
+
+   @TempDir
+   Path folder;
+
+   private long countSubfolders() throws IOException {
+      try (Stream<Path> files = Files.list(this.folder)) {
+         return files.filter(Files::isDirectory).count();
+      }
+   }
+
+   @Test
+   public void testFlat() throws IOException {
+      OutputDirectory directory = OutputDirectory.flat(this.folder);
+      assertEquals(this.folder.resolve("a.pdf").toFile(),
+                   directory.resolve("a.pdf", "id:1", Optional.of("1")));
+      assertTrue(directory.getFiles("id:1").isEmpty());
+      directory.save();
+      assertEquals(0, countSubfolders());
+      assertFalse(Files.exists(this.folder.resolve(INDEX)));
+   }
+
+   @Test
+   public void testHashed() throws IOException {
+      OutputDirectory directory = new OutputDirectory(this.folder, OutputLayout.HASHED,
+                                                      16, Optional.of(INDEX));
+      Set<File> files = new HashSet<>();
+      for (int i = 0; i < 200; i++) {
+         File file = directory.resolve("Doc" + i + ".pdf", "id:" + (i % 10),
+                                       Optional.of(String.valueOf(i % 10)));
+         assertTrue(file.getParentFile().isDirectory());
+         assertEquals(this.folder.toFile(), file.getParentFile().getParentFile());
+         assertEquals(1, file.getParentFile().getName().length());
+         files.add(file);
+      }
+      assertEquals(200, files.size());
+      assertEquals(16, countSubfolders());
+      // the same name is always placed in the same subfolder
+      assertEquals(directory.resolve("Doc7.pdf", "id:7", Optional.of("7")),
+                   new OutputDirectory(this.folder, OutputLayout.HASHED, 16,
+                                       Optional.empty())
+                         .resolve("Doc7.pdf", "id:7", Optional.of("7")));
+      assertEquals(20, directory.getFiles("id:3").size());
+   }
+
+   @Test
+   public void testGroup() throws IOException {
+      OutputDirectory directory = new OutputDirectory(this.folder, OutputLayout.GROUP,
+                                                      256, Optional.of(INDEX));
+      File first = directory.resolve("Report.pdf", "id:S/1", Optional.of("S/1"));
+      File second = directory.resolve("Letter.pdf", "id:S/1", Optional.of("S/1"));
+      File other = directory.resolve("Report.pdf", "id:S2", Optional.of("S2"));
+
+      assertEquals(first.getParentFile(), second.getParentFile());
+      assertEquals(OutputDirectory.toFolderName("S/1"), first.getParentFile().getName());
+      assertEquals(2, first.getParentFile().getParentFile().getName().length());
+      assertNotEquals(first, other);
+
+      // folder names keep the safe characters and differ for different IDs
+      assertTrue(OutputDirectory.toFolderName("S/1").startsWith("S_1-"));
+      assertNotEquals(OutputDirectory.toFolderName("S/1"),
+                      OutputDirectory.toFolderName("S_1"));
+      assertNotEquals(OutputDirectory.toFolderName("S_1").toLowerCase(),
+                      OutputDirectory.toFolderName("s_1").toLowerCase());
+      assertTrue(OutputDirectory.toFolderName("..").startsWith("..-"));
+      assertEquals(OutputDirectory.toFolderName("S/1"),
+                   OutputDirectory.toFolderName("S/1"));
+
+      // ungrouped documents are placed by their file name
+      File single = directory.resolve("Single.pdf", "record:x", Optional.empty());
+      assertEquals(this.folder.toFile(), single.getParentFile().getParentFile());
+      assertEquals(Arrays.asList(second, first), directory.getFiles("id:S/1"));
+   }
+
+   @Test
+   public void testIndex() throws IOException {
+      OutputDirectory directory = new OutputDirectory(this.folder, OutputLayout.GROUP,
+                                                      4, Optional.of(INDEX));
+      File report = directory.resolve("Report.pdf", "id:A\tB", Optional.of("A\tB"));
+      File single = directory.resolve("Single.pdf", "record:1, 2", Optional.empty());
+      directory.save();
+      assertTrue(Files.exists(this.folder.resolve(INDEX)));
+
+      // a later run finds the documents without scanning the folder
+      OutputDirectory loaded = new OutputDirectory(this.folder, OutputLayout.GROUP, 4,
+                                                   Optional.of(INDEX));
+      assertEquals(Arrays.asList(report), loaded.getFiles("id:A\tB"));
+      assertEquals(Arrays.asList(single), loaded.getFiles("record:1, 2"));
+      assertTrue(loaded.getFiles("id:C").isEmpty());
+
+      // indexed documents are checked on disk
+      Files.createFile(report.toPath());
+      assertTrue(loaded.exists("id:A\tB", report));
+      assertTrue(loaded.exists("id:A\tB", report.getAbsoluteFile()));
+      // a deleted document is removed from the index
+      assertFalse(loaded.exists("record:1, 2", single));
+      assertTrue(loaded.getFiles("record:1, 2").isEmpty());
+      Files.delete(report.toPath());
+      assertFalse(loaded.exists("id:A\tB", report));
+      assertTrue(loaded.getFiles("id:A\tB").isEmpty());
+      // other files are checked on disk
+      File template = Files.createFile(this.folder.resolve("Template.pdf")).toFile();
+      assertTrue(loaded.exists("id:A\tB", template));
+   }
+
+}
@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 import org.apache.pdfbox.cos.COSDocument;
@@ -29,7 +30,25 @@ public class PDFValidator {
       } else {
          pdf = PDDocument.load(templatePdf, password);
       }
+      validatePDFDocument(pdf, expected);
+   }
+
+   protected void validatePDFDocument(final InputStream pdfContent,
+                                      final String password,
+                                      final List<String> expected)
+                  throws InvalidPasswordException, IOException {
+      PDDocument pdf;
+      if (password == null) {
+         pdf = PDDocument.load(pdfContent);
+      } else {
+         pdf = PDDocument.load(pdfContent, password);
+      }
+      validatePDFDocument(pdf, expected);
+   }
 
+   private void validatePDFDocument(final PDDocument pdf,
+                                    final List<String> expected)
+                throws IOException {
       PDDocumentCatalog docCatalog = pdf.getDocumentCatalog();
       PDAcroForm acroForm = docCatalog.getAcroForm();
       assertTrue(acroForm.getFields().isEmpty());
@@ -1,21 +1,36 @@
 package org.gssb.pdffiller.pdf;
 
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 import org.apache.pdfbox.pdmodel.encryption.InvalidPasswordException;
+import org.gssb.pdffiller.config.PdfMemoryUsage;
 import org.gssb.pdffiller.excel.ExcelCell;
 import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.template.TemplateMetadata;
+import org.gssb.pdffiller.template.TemplateMetadataCache;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class PdfFormFillerTest extends PDFValidator {
 
+   @TempDir
+   Path scratchFolder;
+
    private ExcelRow createRow(final List<String> keys,
                               final List<String> values) {
       assert(keys.size() == values.size());
@@ -73,4 +88,99 @@ public class PdfFormFillerTest extends PDFValidator {
       }
    }
 
+   @Test
+   public void testCreatePdfFromBufferedTemplate() throws IOException {
+      File pdfTemplate = new File("src/test/resources/2018/sources/AATG Raw Score.pdf");
+      File targetFile = new File("src/test/resources/2018/generated/Leo Test.pdf");
+      List<String> keys = Arrays.asList(new String[]{"Klasse", "Name", "LehrerIn"});
+
+      // the second document is parsed from the buffered template master
+      PdfFormFiller filler = new PdfFormFiller(true);
+      for (String name : Arrays.asList("Sasson, Leo", "Sasson, Gwen")) {
+         if (targetFile.exists()) {
+            targetFile.delete();
+         }
+         ExcelRow row = createRow(keys, Arrays.asList("6B", name, "Mr. Cool"));
+         filler.populateAndCopy(pdfTemplate, targetFile, row.getRowMap(), "MASTER",
+                                Collections.emptyMap(), "abc");
+         assertTrue(targetFile.exists());
+         validatePDFDocument(targetFile, "abc", Arrays.asList(name, "6B", "Mr. Cool"));
+      }
+   }
+
+   @Test
+   public void testCreatePdfFromRow() throws IOException {
+      File pdfTemplate = new File("src/test/resources/2018/sources/AATG Raw Score.pdf");
+      File targetFile = new File("src/test/resources/2018/generated/Leo Test.pdf");
+
+      PdfFormFiller filler = new PdfFormFiller();
+      TemplateMetadata metadata =
+            filler.inspect(pdfTemplate.toPath(), Collections.singletonMap("Name", "Student"));
+      Map<String, String> record = new HashMap<>();
+      record.put("Klasse", "6B");
+      record.put("Student", "Sasson, Leo");
+      record.put("LehrerIn", "Mr. Cool");
+      // rows with different column orders are filled through the same plan
+      List<List<String>> layouts =
+            Arrays.asList(Arrays.asList("Klasse", "Student", "LehrerIn"),
+                          Arrays.asList("LehrerIn", "Klasse", "Student"));
+      for (List<String> keys : layouts) {
+         if (targetFile.exists()) {
+            targetFile.delete();
+         }
+         ExcelRow row = createRow(keys, keys.stream()
+                                            .map(record::get)
+                                            .collect(Collectors.toList()));
+         assertTrue(filler.populateAndCopy(pdfTemplate, targetFile, row, "MASTER",
+                                           metadata, "abc"));
+         validatePDFDocument(targetFile, "abc",
+                             Arrays.asList("Sasson, Leo", "6B", "Mr. Cool"));
+      }
+   }
+
+   @Test
+   public void testCreatePdfWithScratchFiles() throws IOException {
+      File pdfTemplate = new File("src/test/resources/2018/sources/AATG Raw Score.pdf");
+      File targetFile = new File("src/test/resources/2018/generated/Leo Test.pdf");
+      List<String> keys = Arrays.asList(new String[]{"Klasse", "Name", "LehrerIn"});
+      ExcelRow row = createRow(keys, Arrays.asList("6B", "Sasson, Leo", "Mr. Cool"));
+
+      for (PdfMemoryUsage usage : PdfMemoryUsage.values()) {
+         PdfMemoryPolicy policy =
+               new PdfMemoryPolicy(usage, 1024, Optional.of(this.scratchFolder.toFile()));
+         for (boolean buffered : Arrays.asList(false, true)) {
+            if (targetFile.exists()) {
+               targetFile.delete();
+            }
+            PdfFormFiller filler = new PdfFormFiller(buffered, policy);
+            assertTrue(filler.isPdfForm(pdfTemplate));
+            filler.populateAndCopy(pdfTemplate, targetFile, row.getRowMap(), "MASTER",
+                                   Collections.emptyMap(), "abc");
+            validatePDFDocument(targetFile, "abc",
+                                Arrays.asList("Sasson, Leo", "6B", "Mr. Cool"));
+         }
+      }
+   }
+
+   @Test
+   public void testTemplateMetadata() throws IOException {
+      Path rawScore = Paths.get("src/test/resources/2018/sources/AATG Raw Score.pdf");
+      Path acceptance = Paths.get("src/test/resources/2018/sources/2018-2019 Acceptance.pdf");
+      Path notPdf = Paths.get("src/test/resources/2018/sources/earth_type.mustache");
+
+      TemplateMetadataCache cache = new TemplateMetadataCache(new PdfFormFiller());
+
+      TemplateMetadata rawScoreMetadata = cache.get(rawScore, Collections.emptyMap());
+      assertTrue(rawScoreMetadata.isPdfForm());
+      assertTrue(rawScoreMetadata.getFields().contains("Name"));
+      assertFalse(rawScoreMetadata.containsRepeatedFieldNames());
+      assertSame(rawScoreMetadata, cache.get(rawScore, Collections.emptyMap()));
+
+      TemplateMetadata acceptanceMetadata = cache.get(acceptance, null);
+      assertTrue(acceptanceMetadata.isPdfForm());
+      assertFalse(acceptanceMetadata.getFieldNames().isEmpty());
+
+      assertFalse(cache.get(notPdf, Collections.emptyMap()).isPdfForm());
+   }
+
 }
@@ -0,0 +1,134 @@
+package org.gssb.pdffiller.pipeline;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.gssb.pdffiller.exception.UnrecoverableException;
+import org.junit.jupiter.api.Test;
+
+public class DeliveryPipelineTest {
+
+   private List<Integer> createGroups(final int count) {
+      return IntStream.range(0, count)
+                      .boxed()
+                      .collect(Collectors.toList());
+   }
+
+   @Test
+   public void testMessagesSentInGroupOrder() {
+      List<List<String>> batches = new ArrayList<>();
+      DeliveryPipeline<Integer, String, String> pipeline =
+            new DeliveryPipeline<>(4, 3,
+                                   g -> "unit" + g,
+                                   u -> Optional.of(u + ".msg"),
+                                   b -> batches.add(new ArrayList<>(b)));
+
+      pipeline.run(createGroups(10).iterator());
+
+      List<String> sent = batches.stream()
+                                 .flatMap(List::stream)
+                                 .collect(Collectors.toList());
+      List<String> expected = createGroups(10).stream()
+                                              .map(g -> "unit" + g + ".msg")
+                                              .collect(Collectors.toList());
+      assertEquals(expected, sent);
+      assertTrue(batches.stream().allMatch(b -> b.size() <= 4));
+   }
+
+   @Test
+   public void testFirstMessageSentAtOnce() {
+      // the second group waits until the message of the first one was sent
+      CountDownLatch firstSent = new CountDownLatch(1);
+      List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+      DeliveryPipeline<Integer, Integer, String> pipeline =
+            new DeliveryPipeline<>(32, 1,
+                                   g -> {
+                                      if (g > 0) {
+                                         awaitSent(firstSent);
+                                      }
+                                      return g;
+                                   },
+                                   u -> Optional.of("msg" + u),
+                                   b -> {
+                                      batches.add(new ArrayList<>(b));
+                                      firstSent.countDown();
+                                   });
+
+      pipeline.run(createGroups(3).iterator());
+
+      assertEquals(List.of("msg0"), batches.get(0));
+      assertEquals(3, batches.stream().mapToInt(List::size).sum());
+   }
+
+   private static void awaitSent(final CountDownLatch sent) {
+      try {
+         if (!sent.await(10, TimeUnit.SECONDS)) {
+            throw new UnrecoverableException("first message not sent");
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new UnrecoverableException("interrupted");
+      }
+   }
+
+   @Test
+   public void testUnitsWithoutMessageSkipped() {
+      List<String> sent = Collections.synchronizedList(new ArrayList<>());
+      DeliveryPipeline<Integer, Integer, String> pipeline =
+            new DeliveryPipeline<>(2, 2,
+                                   g -> g,
+                                   u -> u % 2 == 0 ? Optional.of("msg" + u)
+                                                   : Optional.empty(),
+                                   sent::addAll);
+
+      pipeline.run(createGroups(6).iterator());
+
+      assertEquals(List.of("msg0", "msg2", "msg4"), sent);
+   }
+
+   @Test
+   public void testDocumentFailureStopsPipeline() {
+      DeliveryPipeline<Integer, Integer, String> pipeline =
+            new DeliveryPipeline<>(2, 2,
+                                   g -> {
+                                      if (g == 3) {
+                                         throw new UnrecoverableException("group 3 failed");
+                                      }
+                                      return g;
+                                   },
+                                   u -> Optional.of("msg" + u),
+                                   b -> { });
+
+      UnrecoverableException e =
+            assertThrows(UnrecoverableException.class,
+                         () -> pipeline.run(createGroups(100).iterator()));
+      assertEquals("group 3 failed", e.getMessage());
+   }
+
+   @Test
+   public void testSendFailureStopsPipeline() {
+      DeliveryPipeline<Integer, Integer, String> pipeline =
+            new DeliveryPipeline<>(2, 2,
+                                   g -> g,
+                                   u -> Optional.of("msg" + u),
+                                   b -> {
+                                      throw new UnrecoverableException("server down");
+                                   });
+
+      UnrecoverableException e =
+            assertThrows(UnrecoverableException.class,
+                         () -> pipeline.run(createGroups(100).iterator()));
+      assertEquals("server down", e.getMessage());
+   }
+
+}
@@ -0,0 +1,150 @@
+package org.gssb.pdffiller.template;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.gssb.pdffiller.excel.ExcelCell;
+import org.gssb.pdffiller.excel.ExcelHeader;
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.excel.GroupFormMap;
+import org.gssb.pdffiller.excel.RowGroup;
+import org.junit.jupiter.api.Test;
+
+public class FillPlanTest {
+
+   private ExcelRow createRow(final List<String> keys,
+                              final List<String> values) {
+      ExcelRow row = new ExcelRow();
+      for (int i=0; i<keys.size(); i++) {
+         row.addExcelCell(new ExcelCell(i, keys.get(i), values.get(i)));
+      }
+      return row;
+   }
+
+   private ExcelRow createRow(final ExcelHeader header, final String... values) {
+      return new ExcelRow(header, values);
+   }
+
+   private TemplateMetadata createMetadata() {
+      Map<String, String> formFieldMap = new HashMap<>();
+      formFieldMap.put("Teacher", "LehrerIn");
+      // a field that shares its name with another field has an entry each
+      return new TemplateMetadata(true,
+                                  Arrays.asList("Name", "Teacher", "Missing", "Name"),
+                                  false, formFieldMap);
+   }
+
+   @Test
+   public void testCompile() {
+      FillPlan plan = createMetadata().getFillPlan();
+
+      assertEquals(4, plan.size());
+      assertEquals("Teacher", plan.getFieldName(1));
+      assertEquals("LehrerIn", plan.getColumn(1));
+      assertEquals("Missing", plan.getColumn(2));
+      assertEquals("Name", plan.getColumn(3));
+   }
+
+   @Test
+   public void testResolveRows() {
+      FillPlan plan = createMetadata().getFillPlan();
+      List<String> keys = Arrays.asList("Klasse", "Name", "LehrerIn");
+
+      assertArrayEquals(new String[] {"Leo", "Mr. Cool", null, "Leo"},
+                        plan.resolve(createRow(keys, Arrays.asList("6B", "Leo", "Mr. Cool"))));
+      assertArrayEquals(new String[] {"Gwen", "Mrs. Smart", null, "Gwen"},
+                        plan.resolve(createRow(keys, Arrays.asList("2B", "Gwen", "Mrs. Smart"))));
+
+      // a different column order is bound again
+      List<String> reordered = Arrays.asList("LehrerIn", "Klasse", "Name");
+      assertArrayEquals(new String[] {"Leo", "Mr. Cool", null, "Leo"},
+                        plan.resolve(createRow(reordered, Arrays.asList("Mr. Cool", "6B", "Leo"))));
+      List<String> other = Arrays.asList("LehrerIn", "Klasse", "Vorname");
+      assertArrayEquals(new String[] {null, "Mr. Cool", null, null},
+                        plan.resolve(createRow(other, Arrays.asList("Mr. Cool", "6B", "Leo"))));
+   }
+
+   @Test
+   public void testResolveFormMap() {
+      FillPlan plan = createMetadata().getFillPlan();
+      Map<String, String> formMap = new HashMap<>();
+      formMap.put("Name", "Leo");
+      formMap.put("LehrerIn", "Mr. Cool");
+
+      assertArrayEquals(new String[] {"Leo", "Mr. Cool", null, "Leo"},
+                        plan.resolve(formMap));
+   }
+
+   @Test
+   public void testResolveGroup() {
+      TemplateMetadata metadata =
+            new TemplateMetadata(true, Arrays.asList("Family", "Name_1", "Klasse_2",
+                                                     "Name_3", "Klasse_1"),
+                                 true, new HashMap<>());
+      FillPlan plan = metadata.getFillPlan();
+      // the rows of a sheet share their header
+      ExcelHeader header = ExcelHeader.of(Arrays.asList("Family", "Name", "Klasse"));
+      Set<String> groupColumns = new HashSet<>(Arrays.asList("Family"));
+      RowGroup group = new RowGroup("Family", Arrays.asList(
+            createRow(header, "S", "Leo", "6B"),
+            createRow(header, "S", "Gwen", "2B")));
+
+      Map<String, String> expected = new HashMap<>();
+      expected.put("Family", "S");
+      expected.put("Name_1", "Leo");
+      expected.put("Klasse_1", "6B");
+      expected.put("Name_2", "Gwen");
+      expected.put("Klasse_2", "2B");
+      Map<String, String> formMap = group.createFormMap(groupColumns);
+      assertEquals(expected, formMap);
+      assertEquals(expected, new HashMap<>(formMap));
+      assertArrayEquals(new String[] {"S", "Leo", "2B", null, "6B"},
+                        plan.resolve(formMap));
+      assertArrayEquals(plan.resolve(expected), plan.resolve(formMap));
+
+      // groups of the same shape share their keys
+      RowGroup other = new RowGroup("Family", Arrays.asList(
+            createRow(header, "T", "Helene", "3B"),
+            createRow(header, "T", "Otto", "4B")));
+      assertSame(((GroupFormMap) formMap).getLayout(),
+                 ((GroupFormMap) other.createFormMap(groupColumns)).getLayout());
+      assertArrayEquals(new String[] {"T", "Helene", "4B", null, "3B"},
+                        plan.resolve(other.createFormMap(groupColumns)));
+   }
+
+   @Test
+   public void testResolveManyLayouts() {
+      TemplateMetadata metadata =
+            new TemplateMetadata(true, Arrays.asList("Family", "Name_1", "Name_2"),
+                                 true, new HashMap<>());
+      FillPlan plan = metadata.getFillPlan();
+      ExcelHeader header = ExcelHeader.of(Arrays.asList("Family", "Name"));
+      Set<String> groupColumns = Collections.singleton("Family");
+
+      // more group sizes than the plan keeps bindings for
+      for (int pass = 0; pass < 2; pass++) {
+         for (int size = 1; size <= 100; size++) {
+            List<ExcelRow> rows = new ArrayList<>();
+            for (int r = 0; r < size; r++) {
+               rows.add(createRow(header, "F" + size, "Child" + r));
+            }
+            Map<String, String> formMap = new RowGroup("Family", rows)
+                                                .createFormMap(groupColumns);
+            assertArrayEquals(new String[] {"F" + size, "Child0",
+                                            size > 1 ? "Child1" : null},
+                              plan.resolve(formMap));
+         }
+      }
+   }
+
+}
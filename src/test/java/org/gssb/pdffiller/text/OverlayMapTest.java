@@ -0,0 +1,76 @@
+package org.gssb.pdffiller.text;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class OverlayMapTest {
+
+   private static final String BASE_NAME = "_BaseName_";
+
+   private Map<String, String> createRow() {
+      Map<String, String> row = new HashMap<>();
+      row.put("Name", "Leo");
+      row.put("Klasse", "6B");
+      return row;
+   }
+
+   @Test
+   public void testAddedKey() {
+      Map<String, String> row = createRow();
+      Map<String, String> overlay = new OverlayMap(row, BASE_NAME, "Certificate");
+
+      assertEquals("Certificate", overlay.get(BASE_NAME));
+      assertEquals("Leo", overlay.get("Name"));
+      assertNull(overlay.get("Missing"));
+      assertTrue(overlay.containsKey(BASE_NAME));
+      assertTrue(overlay.containsKey("Klasse"));
+      assertFalse(overlay.containsKey("Missing"));
+      assertEquals(3, overlay.size());
+
+      Map<String, String> expected = createRow();
+      expected.put(BASE_NAME, "Certificate");
+      assertEquals(expected, overlay);
+      assertEquals(expected, new HashMap<>(overlay));
+      // the row is not copied or changed
+      assertEquals(createRow(), row);
+   }
+
+   @Test
+   public void testAddedKeyHidesRowValue() {
+      Map<String, String> row = createRow();
+      row.put(BASE_NAME, "from row");
+      Map<String, String> overlay = new OverlayMap(row, BASE_NAME, "Certificate");
+
+      assertEquals("Certificate", overlay.get(BASE_NAME));
+      assertEquals(3, overlay.size());
+      assertEquals(3, overlay.entrySet().stream().count());
+      assertEquals("Certificate", new HashMap<>(overlay).get(BASE_NAME));
+   }
+
+   @Test
+   public void testNullValue() {
+      Map<String, String> overlay = new OverlayMap(createRow(), BASE_NAME, null);
+
+      assertTrue(overlay.containsKey(BASE_NAME));
+      assertNull(overlay.get(BASE_NAME));
+      assertEquals(3, overlay.size());
+   }
+
+   @Test
+   public void testUnmodifiable() {
+      Map<String, String> overlay = new OverlayMap(createRow(), BASE_NAME, "Certificate");
+
+      assertThrows(UnsupportedOperationException.class, () -> overlay.put("Name", "Gwen"));
+      assertThrows(UnsupportedOperationException.class, () -> overlay.remove("Name"));
+      assertThrows(NullPointerException.class, () -> new OverlayMap(createRow(), null, ""));
+   }
+
+}
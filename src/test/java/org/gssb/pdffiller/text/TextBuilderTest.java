@@ -6,8 +6,13 @@ import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -66,4 +71,51 @@ public class TextBuilderTest {
       }
    }
 
+   @Test
+   public void testSubstituteWithOverlay() throws IOException {
+      Map<String, String> variables = new HashMap<>();
+      variables.put("type", "Goldilocks");
+      variables.put("_BaseName_", "row");
+      Map<String, String> overlay = new OverlayMap(variables, "_BaseName_", "earth");
+
+      assertEquals("earth is in the Goldilocks zone.",
+                   this.textBuilder.substitute("{{_BaseName_}} is in the {{type}} zone.",
+                                               overlay));
+      assertEquals(2, overlay.size());
+      assertEquals(2, overlay.entrySet().size());
+      assertEquals("row", variables.get("_BaseName_"));
+      assertThrows(UnsupportedOperationException.class,
+                   () -> overlay.put("type", "Venus"));
+   }
+
+   @Test
+   public void testGetVariables() {
+      String template = "{{_BaseName_}} - {{Name}}{{#Award}} {{Level.Text}}{{/Award}}.pdf";
+      assertEquals(new HashSet<>(Arrays.asList("_BaseName_", "Name", "Award",
+                                               "Level.Text", "Level")),
+                   this.textBuilder.getVariables(template));
+   }
+
+   @Test
+   public void testSubstituteCompiledTemplateInParallel() {
+      String template = "Row {{index}} is in the {{type}} zone.";
+      List<String> texts =
+         IntStream.range(0, 200)
+                  .parallel()
+                  .mapToObj(i -> {
+                     Map<String, String> variables = new HashMap<>();
+                     variables.put("index", Integer.toString(i));
+                     variables.put("type", "Goldilocks");
+                     try {
+                        return this.textBuilder.substitute(template, variables);
+                     } catch (IOException e) {
+                        return "unexpected i/o error";
+                     }
+                  })
+                  .collect(Collectors.toList());
+      for (int i=0; i<texts.size(); i++) {
+         assertEquals("Row " + i + " is in the Goldilocks zone.", texts.get(i));
+      }
+   }
+
 }
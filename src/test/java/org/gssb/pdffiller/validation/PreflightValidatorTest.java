@@ -0,0 +1,242 @@
+package org.gssb.pdffiller.validation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.gssb.pdffiller.config.AppProperties;
+import org.gssb.pdffiller.excel.ExcelCell;
+import org.gssb.pdffiller.excel.ExcelRow;
+import org.gssb.pdffiller.excel.RowGroup;
+import org.gssb.pdffiller.pdf.PdfFormFiller;
+import org.gssb.pdffiller.template.Choice;
+import org.gssb.pdffiller.template.Template;
+import org.gssb.pdffiller.template.TemplateHelper;
+import org.gssb.pdffiller.template.TemplateMetadataCache;
+import org.gssb.pdffiller.validation.ValidationReport.Issue;
+import org.gssb.pdffiller.validation.ValidationReport.Severity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PreflightValidatorTest {
+
+   private final static String ROOT = "src/test/resources/2018";
+   private final static String TEMPLATE2 = ROOT + "/sources/AATG Gold.pdf";
+   private final static String TEMPLATE3 = ROOT + "/sources/AATG Participation.pdf";
+
+   private final static String MASTER_KEY = "MASTER";
+   private final static String EMAIL_ADDRESS = "PrimaryParentEmail";
+
+   @TempDir
+   Path folder;
+
+   private PreflightValidator validator;
+
+   private ExcelRow createMockRow(final List<String> keyValuePairs) {
+      ExcelRow row = new ExcelRow();
+      int i = 1;
+      for (String kv : keyValuePairs) {
+         String[] pair = kv.split(":", 2);
+         assertEquals(2, pair.length);
+         row.addExcelCell(new ExcelCell(i++, pair[0].trim(), pair[1].trim()));
+      }
+      return row;
+   }
+
+   private ExcelRow createRow(final String name, final String award,
+                              final String email) {
+      List<String> values = new ArrayList<>(Arrays.asList(new String[]
+            {"Name:" + name, "LehrerIn:Mr. Cool", "Level:4", "Schule:GSSB",
+             "secret:abc", "Award:" + award, "FamilyID:S1234"}));
+      if (email != null) {
+         values.add(EMAIL_ADDRESS + ":" + email);
+      }
+      return createMockRow(values);
+   }
+
+   private List<Choice> createMockChoices() {
+      Map<String, Template> templateChoices = new HashMap<>();
+      templateChoices.put("Goldurkunde",
+                          TemplateHelper.createTemplate("pdf2", Paths.get(TEMPLATE2)));
+      templateChoices.put("Participation",
+                          TemplateHelper.createTemplate("pdf3", Paths.get(TEMPLATE3)));
+      return Arrays.asList(TemplateHelper.createChoice("Award", Optional.empty(),
+                                                       templateChoices));
+   }
+
+   private Map<String, Map<String, String>> defineFieldMaps() {
+      Map<String, Map<String, String>> fieldMaps = new HashMap<>();
+      Map<String, String> pdf2FieldMap = new HashMap<>();
+      pdf2FieldMap.put("Text1", "Name");
+      pdf2FieldMap.put("Text3", "Level");
+      pdf2FieldMap.put("Text4", "LehrerIn");
+      pdf2FieldMap.put("Text5", "Schule");
+      fieldMaps.put("pdf2", pdf2FieldMap);
+      Map<String, String> pdf3FieldMap = new HashMap<>();
+      pdf3FieldMap.put("Text5", "Name");
+      pdf3FieldMap.put("Text6", "Level");
+      pdf3FieldMap.put("Text7", "LehrerIn");
+      pdf3FieldMap.put("Text8", "Schule");
+      fieldMaps.put("pdf3", pdf3FieldMap);
+      return fieldMaps;
+   }
+
+   private static Stream<RowGroup> ungrouped(final ExcelRow... rows) {
+      return Arrays.stream(rows).map(r -> new RowGroup(null, Arrays.asList(r)));
+   }
+
+   private ValidationReport validate(final Stream<RowGroup> groups,
+                                     final String masterKey, final boolean emails) {
+      return this.validator.validate(groups, masterKey, "secret",
+                                     Collections.emptyList(), createMockChoices(),
+                                     defineFieldMaps(), emails);
+   }
+
+   private static List<Issue> getErrors(final ValidationReport report) {
+      return report.getIssues()
+                   .stream()
+                   .filter(i -> i.getSeverity() == Severity.ERROR)
+                   .collect(Collectors.toList());
+   }
+
+   @BeforeEach
+   public void setUp() {
+      AppProperties props = mock(AppProperties.class);
+      when(props.getTargetEmailColumns()).thenReturn(Arrays.asList(EMAIL_ADDRESS));
+      when(props.getGroupColumns()).thenReturn(Arrays.asList("FamilyID"));
+      PdfFormFiller pdfFormFiller = new PdfFormFiller();
+      this.validator = new PreflightValidator(props, pdfFormFiller,
+                                              new TemplateMetadataCache(pdfFormFiller),
+                                              4);
+   }
+
+   @Test
+   public void testValidRecords() {
+      ValidationReport report =
+            validate(ungrouped(createRow("S, Leo", "Goldurkunde", null),
+                               createRow("S, Gwen", "Participation", null),
+                               createRow("S, Helene", "0", null),
+                               createRow("M, J\u00f6rg", "", null)),
+                     "", false);
+      assertTrue(report.isValid());
+      assertEquals(4, report.getRecordCount());
+      assertEquals(0, report.getErrorCount());
+   }
+
+   @Test
+   public void testInvalidRecords() {
+      ValidationReport report =
+            validate(ungrouped(createRow("S, Leo", "Goldurkunde", null),
+                               createRow("S, Gwen", "Silver", null),
+                               createRow("Wang \u4e2d", "Participation", null)),
+                     "", false);
+      assertFalse(report.isValid());
+
+      // every bad record is reported, not only the first one
+      List<Issue> errors = getErrors(report);
+      assertEquals(2, errors.size());
+      assertEquals("record 2", errors.get(0).getLocation());
+      assertEquals("Award", errors.get(0).getColumn());
+      assertTrue(errors.get(0).getMessage().contains("Silver"));
+      assertEquals("record 3", errors.get(1).getLocation());
+      assertEquals("Name", errors.get(1).getColumn());
+      assertTrue(errors.get(1).getMessage().contains("U+4E2D"));
+   }
+
+   @Test
+   public void testRequiredColumns() {
+      ValidationReport report =
+            validate(ungrouped(createMockRow(Arrays.asList("Name:S, Leo",
+                                                           "FamilyID:S1234"))),
+                     MASTER_KEY, true);
+
+      List<String> missing = getErrors(report).stream()
+                                              .map(Issue::getColumn)
+                                              .collect(Collectors.toList());
+      assertEquals(Arrays.asList("secret", "Award", EMAIL_ADDRESS), missing);
+      assertTrue(getErrors(report).stream()
+                                  .allMatch(i -> i.getLocation()
+                                                  .equals("configuration")));
+   }
+
+   @Test
+   public void testGroupEmail() {
+      RowGroup sent = new RowGroup("FamilyID",
+                                   Arrays.asList(createRow("S, Leo", "Goldurkunde",
+                                                           "mary@somedomain.org"),
+                                                 createRow("S, Gwen", "Goldurkunde",
+                                                           "mary@somedomain.org")));
+      RowGroup unsent = new RowGroup("FamilyID",
+                                     Arrays.asList(createMockRow(Arrays.asList(
+                                           "Name:T, Ben", "LehrerIn:Mr. Cool",
+                                           "Level:4", "Schule:GSSB", "secret:abc",
+                                           "Award:Goldurkunde", "FamilyID:T42",
+                                           EMAIL_ADDRESS + ":n/a"))));
+      ValidationReport report = validate(Stream.of(sent, unsent), MASTER_KEY, true);
+
+      assertTrue(report.isValid());
+      assertEquals(3, report.getRecordCount());
+      List<Issue> noEmail = report.getIssues()
+                                  .stream()
+                                  .filter(i -> i.getColumn().equals(EMAIL_ADDRESS))
+                                  .collect(Collectors.toList());
+      assertEquals(1, noEmail.size());
+      assertEquals(Severity.WARNING, noEmail.get(0).getSeverity());
+      assertEquals("group ID T42, row 1", noEmail.get(0).getLocation());
+   }
+
+   @Test
+   public void testManyRecords() {
+      // more records than a single batch; findings keep the record order
+      ExcelRow[] rows = IntStream.rangeClosed(1, 2000)
+                                 .mapToObj(i -> createRow("S" + i,
+                                                          i % 500 == 0 ? "Bronze"
+                                                                       : "Goldurkunde",
+                                                          null))
+                                 .toArray(ExcelRow[]::new);
+      ValidationReport report = validate(ungrouped(rows), "", false);
+
+      assertEquals(2000, report.getRecordCount());
+      assertEquals(Arrays.asList("record 500", "record 1000", "record 1500",
+                                 "record 2000"),
+                   getErrors(report).stream()
+                                    .map(Issue::getLocation)
+                                    .collect(Collectors.toList()));
+   }
+
+   @Test
+   public void testWriteReport() throws IOException {
+      ValidationReport report = new ValidationReport(Arrays.asList(
+            new Issue(Severity.ERROR, "record 2", "Award", "Choice value 'A\tB' is undefined."),
+            new Issue(Severity.WARNING, "configuration", null, "No group column.")), 2);
+      assertEquals(1, report.getErrorCount());
+      assertEquals(1, report.getWarningCount());
+
+      Path reportFile = this.folder.resolve("validation.txt");
+      report.write(reportFile);
+      List<String> lines = Files.readAllLines(reportFile, StandardCharsets.UTF_8);
+      assertEquals(Arrays.asList("ERROR\trecord 2\tAward\tChoice value 'A\\tB' is undefined.",
+                                 "WARNING\tconfiguration\t\tNo group column."),
+                   lines);
+   }
+
+}